@@ -0,0 +1,71 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures looking up the route of a request by its resourceId, from several
+ * threads at the same time.
+ *
+ * @author hylke
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class EndpointLookupBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int endpointCount;
+
+    private ServerConfig serverConfig;
+    private String[] resourceIds;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        int next;
+    }
+
+    @Setup
+    public void setup() {
+        List<EndPoint> endpoints = new ArrayList<>();
+        resourceIds = new String[endpointCount];
+        for (int i = 0; i < endpointCount; i++) {
+            EndPoint endpoint = new EndPoint();
+            endpoint.setResourceId("resource-" + i);
+            endpoint.setBaseUrl("http://localhost:8080/service-" + i);
+            endpoints.add(endpoint);
+            // A separate instance, like the id parsed from a request path.
+            resourceIds[i] = "resource-" + i;
+        }
+        serverConfig = new ServerConfig();
+        serverConfig.setBaseUrl("http://localhost:1337/");
+        serverConfig.setEndpoints(endpoints);
+        serverConfig.updateRoutingTable();
+    }
+
+    @Benchmark
+    public Route getRoute(Cursor cursor) {
+        final int index = cursor.next;
+        cursor.next = index + 1 == resourceIds.length ? 0 : index + 1;
+        return serverConfig.getRoute(resourceIds[index]);
+    }
+
+}
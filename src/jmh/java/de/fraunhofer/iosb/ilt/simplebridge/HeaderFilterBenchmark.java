@@ -0,0 +1,98 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServletRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures creating a BridgeRequest from an incoming request, which filters
+ * the request headers with the header allowlist of the endpoint.
+ *
+ * @author hylke
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HeaderFilterBenchmark {
+
+    /**
+     * The number of headers on the incoming request.
+     */
+    @Param({"4", "16", "64"})
+    public int headerCount;
+
+    /**
+     * The number of headers on the allowlist of the endpoint.
+     */
+    @Param({"2", "8"})
+    public int allowlistSize;
+
+    private Route route;
+    private HttpServletRequest request;
+
+    @Setup
+    public void setup() {
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (int i = 0; i < headerCount; i++) {
+            headers.put("X-Header-" + i, "value-" + i);
+        }
+        headers.put("Content-Type", "application/json");
+        headers.put("Accept", "application/json");
+        List<String> allowlist = new ArrayList<>(Arrays.asList("Content-Type", "Accept"));
+        for (int i = 2; i < allowlistSize; i++) {
+            allowlist.add("X-Header-" + (i * 2));
+        }
+        EndPoint endpoint = new EndPoint();
+        endpoint.setResourceId("r1");
+        endpoint.setBaseUrl("http://localhost:8080/FROST-Server/v1.1");
+        endpoint.setHeaderAllowlist(allowlist);
+        endpoint.setMethodsAllowlist(Arrays.asList("GET", "POST"));
+        route = new Route(endpoint, "http://localhost:1337/resource/r1/");
+        request = createRequest(headers);
+    }
+
+    private static HttpServletRequest createRequest(Map<String, String> headers) {
+        return (HttpServletRequest) Proxy.newProxyInstance(
+                HeaderFilterBenchmark.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getMethod":
+                            return "GET";
+                        case "getPathInfo":
+                            return "/r1/v1.1/Things";
+                        case "getQueryString":
+                            return "$top=10";
+                        case "getHeader":
+                            return headers.get((String) args[0]);
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    @Benchmark
+    public BridgeRequest createBridgeRequest() {
+        return RestApi.createBridgeRequest(request, route);
+    }
+
+}
@@ -0,0 +1,120 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import com.google.gson.Gson;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the JSON and the binary encoding of BridgeRequests and
+ * BridgeResponses on the link. The sizes of the encoded messages are printed
+ * at the start of each trial.
+ *
+ * @author hylke
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LinkFormatBenchmark {
+
+    @Param({"0", "1024", "65536"})
+    public int bodySize;
+
+    @Param({"0", "8", "32"})
+    public int headerCount;
+
+    private Gson gson;
+    private BridgeRequest request;
+    private BridgeResponse response;
+    private String requestJson;
+    private byte[] requestBinary;
+    private String responseJson;
+    private byte[] responseBinary;
+
+    @Setup
+    public void setup() {
+        gson = RestApi.getGson();
+        Random random = new Random(42);
+        request = new BridgeRequest();
+        request.resourceId = "r1";
+        request.method = "POST";
+        request.url = "/v1.1/Things?$top=100&$expand=Datastreams";
+        response = new BridgeResponse();
+        response.statusCode = 200;
+        for (int i = 0; i < headerCount; i++) {
+            request.headers.put("X-Header-" + i, "value-" + random.nextInt());
+            response.headers.put("X-Header-" + i, "value-" + random.nextInt());
+        }
+        byte[] requestBody = new byte[bodySize];
+        random.nextBytes(requestBody);
+        request.body = Body.wrap(requestBody);
+        byte[] responseBody = new byte[bodySize];
+        random.nextBytes(responseBody);
+        response.body = Body.wrap(responseBody);
+
+        requestJson = gson.toJson(request);
+        requestBinary = LinkCodec.toBytes(request);
+        responseJson = gson.toJson(response);
+        responseBinary = LinkCodec.toBytes(response);
+        System.out.println();
+        System.out.println("Request size: json " + requestJson.getBytes(StandardCharsets.UTF_8).length + ", binary " + requestBinary.length);
+        System.out.println("Response size: json " + responseJson.getBytes(StandardCharsets.UTF_8).length + ", binary " + responseBinary.length);
+    }
+
+    @Benchmark
+    public String jsonEncodeRequest() {
+        return gson.toJson(request);
+    }
+
+    @Benchmark
+    public BridgeRequest jsonDecodeRequest() {
+        return gson.fromJson(requestJson, BridgeRequest.class);
+    }
+
+    @Benchmark
+    public byte[] binaryEncodeRequest() {
+        return LinkCodec.toBytes(request);
+    }
+
+    @Benchmark
+    public BridgeRequest binaryDecodeRequest() throws IOException {
+        return LinkCodec.readRequest(new ByteArrayInputStream(requestBinary));
+    }
+
+    @Benchmark
+    public String jsonEncodeResponse() {
+        return gson.toJson(response);
+    }
+
+    @Benchmark
+    public BridgeResponse jsonDecodeResponse() {
+        return gson.fromJson(responseJson, BridgeResponse.class);
+    }
+
+    @Benchmark
+    public byte[] binaryEncodeResponse() {
+        return LinkCodec.toBytes(response);
+    }
+
+    @Benchmark
+    public BridgeResponse binaryDecodeResponse() throws IOException {
+        return LinkCodec.readResponse(new ByteArrayInputStream(responseBinary));
+    }
+
+}
@@ -0,0 +1,78 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares rewriting the URLs in a JSON response body on the byte stream, with
+ * decoding the body to a String and replacing the URLs in the String.
+ *
+ * @author hylke
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UrlRewriterBenchmark {
+
+    private static final String FROM = "http://upstream.example.org/FROST-Server/v1.1";
+    private static final String TO = "http://bridge.example.org/resource/frost";
+
+    @Param({"1024", "65536", "1048576"})
+    public int bodySize;
+
+    private byte[] body;
+    private UrlRewriter rewriter;
+    private ByteArrayOutputStream out;
+
+    @Setup
+    public void setup() {
+        StringBuilder json = new StringBuilder(bodySize + 256);
+        json.append("{\"value\":[");
+        int id = 0;
+        while (json.length() < bodySize) {
+            json.append("{\"@iot.id\":").append(id)
+                    .append(",\"@iot.selfLink\":\"").append(FROM).append("/Things(").append(id)
+                    .append(")\",\"name\":\"Thing ").append(id)
+                    .append("\",\"description\":\"A thing that measures things, number ").append(id).append("\"},");
+            id++;
+        }
+        json.setLength(json.length() - 1);
+        json.append("]}");
+        body = json.toString().getBytes(StandardCharsets.UTF_8);
+        rewriter = new UrlRewriter(FROM, TO);
+        out = new ByteArrayOutputStream(body.length);
+    }
+
+    @Benchmark
+    public int rewriteStream() throws IOException {
+        out.reset();
+        UrlRewriter.RewritingOutputStream rewriting = rewriter.wrap(out);
+        rewriting.write(body);
+        rewriting.finish();
+        return out.size();
+    }
+
+    @Benchmark
+    public byte[] stringReplace() {
+        return new String(body, StandardCharsets.UTF_8)
+                .replace(FROM, TO)
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,257 @@
+package de.fraunhofer.iosb.ilt.simplebridge.loadtest;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import de.fraunhofer.iosb.ilt.simplebridge.BridgeServer;
+import de.fraunhofer.iosb.ilt.simplebridge.ServerConfig;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An end-to-end load test. Starts a stub upstream server and two Bridges in
+ * this JVM, configured like one.json and two.json: the first Bridge has a
+ * direct endpoint for the stub, the second Bridge reaches that endpoint through
+ * a link to the first. The workload is run against the direct and the linked
+ * path, and the throughput and latency percentiles are reported for both.
+ *
+ * Options are given as key=value arguments:
+ * <ul>
+ * <li>mode: closed (default) or open. A closed loop runs concurrency clients
+ * that each send the next request when the previous one is done. An open loop
+ * sends rate requests per second, independent of the response times, with at
+ * most concurrency requests in flight. Latencies in the open loop are measured
+ * from the time the request should have been sent.</li>
+ * <li>concurrency: The number of clients, default 32.</li>
+ * <li>rate: The requests per second in the open loop, default 1000.</li>
+ * <li>duration, warmup: The seconds to measure, and to run before measuring,
+ * default 10 and 3.</li>
+ * <li>path: The path of the requests on the endpoint, default
+ * /v1.1/Things.</li>
+ * <li>delay, size, errorRate: The default behaviour of the stub, see
+ * {@link StubUpstream}.</li>
+ * <li>targets: A comma separated list of the paths to test: upstream (the stub
+ * itself, as a baseline), direct and linked. Default direct,linked.</li>
+ * <li>bridge: Extra JSON fields for the ServerConfig of both Bridges, for
+ * example bridge="async":true,"linkChannel":true</li>
+ * <li>endpoint: Extra JSON fields for the EndPoint.</li>
+ * <li>threads: platform (default) or virtual. Runs the requests in both
+ * Bridges on a pool of platform threads, or on virtual threads if the JVM has
+ * them.</li>
+ * <li>maxThreads: The size of the thread pool of both Bridges, for platform
+ * threads, default 200.</li>
+ * <li>connections: The maximum number of connections of both Bridges to the
+ * stub and to each other, default the pool defaults. Set this above the
+ * concurrency to find out how many slow requests a Bridge can hold at once,
+ * with a large delay.</li>
+ * <li>log: The log level, default WARN, so the per-request logging does not
+ * dominate the results.</li>
+ * </ul>
+ *
+ * @author hylke
+ */
+public class LoadTest {
+
+    private static final String RESOURCE_ID = "stub";
+
+    private final Map<String, String> options;
+    private final String mode;
+    private final int concurrency;
+    private final int rate;
+    private final int duration;
+    private final int warmup;
+
+    public LoadTest(Map<String, String> options) {
+        this.options = options;
+        this.mode = options.getOrDefault("mode", "closed");
+        this.concurrency = Integer.parseInt(options.getOrDefault("concurrency", "32"));
+        this.rate = Integer.parseInt(options.getOrDefault("rate", "1000"));
+        this.duration = Integer.parseInt(options.getOrDefault("duration", "10"));
+        this.warmup = Integer.parseInt(options.getOrDefault("warmup", "3"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int idx = arg.indexOf('=');
+            if (idx < 0) {
+                throw new IllegalArgumentException("Arguments must be key=value, not " + arg);
+            }
+            options.put(arg.substring(0, idx), arg.substring(idx + 1));
+        }
+        new LoadTest(options).run();
+    }
+
+    public void run() throws Exception {
+        Logger root = (Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME);
+        root.setLevel(Level.toLevel(options.getOrDefault("log", "WARN")));
+        final int stubPort = Integer.parseInt(options.getOrDefault("stubPort", "18080"));
+        final int directPort = Integer.parseInt(options.getOrDefault("directPort", "11336"));
+        final int linkedPort = Integer.parseInt(options.getOrDefault("linkedPort", "11338"));
+        final boolean virtualThreads = "virtual".equals(options.getOrDefault("threads", "platform"));
+        final String jetty = ",\"jetty\":{\"virtualThreads\":" + virtualThreads + ",\"maxThreads\":" + options.getOrDefault("maxThreads", "200") + "}";
+        final String connections = options.get("connections");
+        final String pool = connections == null ? "" : "{\"maxTotal\":" + connections + ",\"maxPerRoute\":" + connections + "}";
+        final String bridgeExtra = jetty + (connections == null ? "" : ",\"linkPool\":" + pool) + extraFields(options.get("bridge"));
+        final String endpointExtra = (connections == null ? "" : ",\"pool\":" + pool) + extraFields(options.get("endpoint"));
+
+        StubUpstream stub = new StubUpstream(
+                stubPort,
+                Long.parseLong(options.getOrDefault("delay", "0")),
+                Integer.parseInt(options.getOrDefault("size", "1024")),
+                Double.parseDouble(options.getOrDefault("errorRate", "0")));
+        stub.start();
+
+        String directConfig = "{\"baseUrl\":\"http://localhost:" + directPort + "\",\"port\":" + directPort + bridgeExtra
+                + ",\"endpoints\":[{\"baseUrl\":\"" + stub.getBaseUrl() + "\",\"resourceId\":\"" + RESOURCE_ID + "\""
+                + ",\"headerAllowlist\":[\"Content-Type\"]"
+                + ",\"methodsAllowlist\":[\"HEAD\",\"OPTIONS\",\"GET\",\"POST\",\"PUT\",\"PATCH\",\"DELETE\"]"
+                + endpointExtra + "}]}";
+        String linkedConfig = "{\"baseUrl\":\"http://localhost:" + linkedPort + "/\",\"port\":" + linkedPort + bridgeExtra
+                + ",\"linkServers\":[\"http://localhost:" + directPort + "\"]}";
+        BridgeServer direct = new BridgeServer(directPort, directConfig, ServerConfig.fromString(directConfig).getJetty());
+        direct.start();
+        BridgeServer linked = new BridgeServer(linkedPort, linkedConfig, ServerConfig.fromString(linkedConfig).getJetty());
+        linked.start();
+
+        final String path = options.getOrDefault("path", "/v1.1/Things");
+        final List<String> targets = Arrays.asList(options.getOrDefault("targets", "direct,linked").split(","));
+        try {
+            if (targets.contains("upstream")) {
+                runTarget("upstream", stub.getBaseUrl() + path, stub);
+            }
+            if (targets.contains("direct")) {
+                runTarget("direct", "http://localhost:" + directPort + "/resource/" + RESOURCE_ID + path, stub);
+            }
+            if (targets.contains("linked")) {
+                runTarget("linked", "http://localhost:" + linkedPort + "/resource/" + RESOURCE_ID + path, stub);
+            }
+        } finally {
+            linked.stop();
+            direct.stop();
+            stub.stop();
+        }
+    }
+
+    private static String extraFields(String fields) {
+        if (fields == null || fields.isEmpty()) {
+            return "";
+        }
+        return "," + fields;
+    }
+
+    private void runTarget(String name, String url, StubUpstream stub) throws InterruptedException, IOException {
+        try (CloseableHttpClient client = HttpClients.custom()
+                .setMaxConnTotal(concurrency)
+                .setMaxConnPerRoute(concurrency)
+                .build()) {
+            if (warmup > 0) {
+                runWorkload(client, url, warmup, new Recorder(0));
+            }
+            Recorder recorder = new Recorder(Math.max(rate, 100_000) * duration);
+            stub.resetPeakInFlight();
+            final long start = System.nanoTime();
+            runWorkload(client, url, duration, recorder);
+            recorder.report(name, System.nanoTime() - start, stub.getPeakInFlight());
+        }
+    }
+
+    private void runWorkload(CloseableHttpClient client, String url, int seconds, Recorder recorder) throws InterruptedException {
+        final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        if ("open".equals(mode)) {
+            final long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+            long next = System.nanoTime();
+            while (next < end) {
+                final long intended = next;
+                long wait = intended - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                executor.execute(() -> execute(client, url, intended, recorder));
+                next += interval;
+            }
+        } else {
+            for (int i = 0; i < concurrency; i++) {
+                executor.execute(() -> {
+                    while (System.nanoTime() < end) {
+                        execute(client, url, System.nanoTime(), recorder);
+                    }
+                });
+            }
+        }
+        executor.shutdown();
+        executor.awaitTermination(seconds + 60L, TimeUnit.SECONDS);
+    }
+
+    private static void execute(CloseableHttpClient client, String url, long start, Recorder recorder) {
+        boolean ok;
+        try (CloseableHttpResponse response = client.execute(new HttpGet(url))) {
+            EntityUtils.consume(response.getEntity());
+            ok = response.getStatusLine().getStatusCode() < 400;
+        } catch (IOException ex) {
+            ok = false;
+        }
+        recorder.record(System.nanoTime() - start, ok);
+    }
+
+    /**
+     * Records the latencies of the requests of one run.
+     */
+    private static class Recorder {
+
+        private final long[] latencies;
+        private final AtomicInteger count = new AtomicInteger();
+        private final LongAdder errors = new LongAdder();
+
+        Recorder(int capacity) {
+            latencies = new long[capacity];
+        }
+
+        void record(long nanos, boolean ok) {
+            int index = count.getAndIncrement();
+            if (index < latencies.length) {
+                latencies[index] = nanos;
+            }
+            if (!ok) {
+                errors.increment();
+            }
+        }
+
+        void report(String name, long elapsedNanos, int peakInFlight) {
+            final int total = count.get();
+            final int recorded = Math.min(total, latencies.length);
+            long[] sorted = Arrays.copyOf(latencies, recorded);
+            Arrays.sort(sorted);
+            final double seconds = elapsedNanos / 1e9;
+            System.out.println(String.format(Locale.ROOT,
+                    "%-7s %8d requests in %5.1f s, %9.1f req/s, %d errors, p50 %7.2f ms, p99 %7.2f ms, p999 %7.2f ms, max %7.2f ms, peak %d at the stub",
+                    name, total, seconds, total / seconds, errors.sum(),
+                    percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                    recorded == 0 ? 0 : sorted[recorded - 1] / 1e6, peakInFlight));
+        }
+
+        private static double percentile(long[] sorted, double fraction) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(fraction * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package de.fraunhofer.iosb.ilt.simplebridge.loadtest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A stub of a FROST-Server like upstream server. Every GET returns a
+ * collection of Things, with selfLinks pointing to the stub itself, and every
+ * other request echoes the size of its body.
+ *
+ * The behaviour can be changed per request with query parameters, the
+ * defaults are given when starting the stub:
+ * <ul>
+ * <li>delay: The time to wait before responding, in ms. Waiting requests do
+ * not hold a thread, so the stub can hold many slow requests at once.</li>
+ * <li>size: The approximate size of the response body, in bytes.</li>
+ * <li>errorRate: The fraction of requests that fail with a status 500.</li>
+ * </ul>
+ *
+ * @author hylke
+ */
+public class StubUpstream {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StubUpstream.class.getName());
+
+    /**
+     * The path the stub serves on, the base url of the stub is
+     * http://localhost:{port}{PATH}.
+     */
+    public static final String PATH = "/FROST-Server";
+
+    private static final String ATTRIBUTE_BODY = StubUpstream.class.getName() + ".body";
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "stub-delay");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int port;
+    private final StubServlet servlet;
+    private Server server;
+
+    /**
+     * @param port The port to listen on.
+     * @param delay The default delay before responding, in ms.
+     * @param size The default size of response bodies, in bytes.
+     * @param errorRate The default fraction of failing requests.
+     */
+    public StubUpstream(int port, long delay, int size, double errorRate) {
+        this.port = port;
+        this.servlet = new StubServlet(delay, size, errorRate);
+    }
+
+    /**
+     * @return the base url of the stub.
+     */
+    public String getBaseUrl() {
+        return "http://localhost:" + port + PATH;
+    }
+
+    public void start() throws Exception {
+        server = new Server(port);
+        ServletContextHandler handler = new ServletContextHandler();
+        ServletHolder holder = new ServletHolder(servlet);
+        holder.setAsyncSupported(true);
+        handler.addServlet(holder, PATH + "/*");
+        server.setHandler(handler);
+        server.start();
+        LOGGER.info("Stub upstream started on {}", getBaseUrl());
+    }
+
+    public void stop() throws Exception {
+        server.stop();
+    }
+
+    /**
+     * @return the largest number of requests the stub handled at the same
+     * time, since the last reset.
+     */
+    public int getPeakInFlight() {
+        return servlet.peakInFlight.get();
+    }
+
+    /**
+     * Resets the peak number of requests handled at the same time.
+     */
+    public void resetPeakInFlight() {
+        servlet.peakInFlight.set(servlet.inFlight.get());
+    }
+
+    private static class StubServlet extends HttpServlet {
+
+        private final long delay;
+        private final int size;
+        private final double errorRate;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger peakInFlight = new AtomicInteger();
+
+        StubServlet(long delay, int size, double errorRate) {
+            this.delay = delay;
+            this.size = size;
+            this.errorRate = errorRate;
+        }
+
+        @Override
+        protected void service(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            byte[] requestBody = (byte[]) request.getAttribute(ATTRIBUTE_BODY);
+            if (requestBody == null) {
+                requestBody = request.getInputStream().readAllBytes();
+                peakInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                final long requestDelay = getParameter(request, "delay", delay);
+                if (requestDelay > 0) {
+                    // Continue in a new dispatch after the delay.
+                    request.setAttribute(ATTRIBUTE_BODY, requestBody);
+                    final AsyncContext asyncContext = request.startAsync();
+                    asyncContext.setTimeout(0);
+                    TIMER.schedule(() -> asyncContext.dispatch(), requestDelay, TimeUnit.MILLISECONDS);
+                    return;
+                }
+            }
+            try {
+                respond(request, response, requestBody);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        private void respond(HttpServletRequest request, HttpServletResponse response, byte[] requestBody) throws IOException {
+            final int requestSize = (int) getParameter(request, "size", size);
+            final double requestErrorRate = getParameter(request, "errorRate", errorRate);
+            if (requestErrorRate > 0 && ThreadLocalRandom.current().nextDouble() < requestErrorRate) {
+                response.sendError(500, "Stub error");
+                return;
+            }
+            response.setContentType("application/json");
+            response.setCharacterEncoding("UTF-8");
+            final byte[] body;
+            if ("GET".equals(request.getMethod()) || "HEAD".equals(request.getMethod())) {
+                body = createCollection(request.getRequestURL().toString(), requestSize);
+            } else {
+                body = ("{\"method\":\"" + request.getMethod() + "\",\"size\":" + requestBody.length + "}").getBytes(StandardCharsets.UTF_8);
+            }
+            response.setContentLength(body.length);
+            if ("HEAD".equals(request.getMethod())) {
+                return;
+            }
+            try (OutputStream out = response.getOutputStream()) {
+                out.write(body);
+            }
+        }
+
+        private static byte[] createCollection(String selfUrl, int size) {
+            final String base = selfUrl.endsWith("/") ? selfUrl : selfUrl + "/";
+            StringBuilder json = new StringBuilder(size + 256);
+            json.append("{\"value\":[");
+            int id = 0;
+            do {
+                if (id > 0) {
+                    json.append(',');
+                }
+                json.append("{\"@iot.id\":").append(id)
+                        .append(",\"@iot.selfLink\":\"").append(base).append("Things(").append(id)
+                        .append(")\",\"name\":\"Thing ").append(id)
+                        .append("\",\"description\":\"A stub thing, number ").append(id).append("\"}");
+                id++;
+            } while (json.length() < size);
+            json.append("]}");
+            return json.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static long getParameter(HttpServletRequest request, String name, long dflt) {
+            String value = request.getParameter(name);
+            return value == null ? dflt : Long.parseLong(value);
+        }
+
+        private static double getParameter(HttpServletRequest request, String name, double dflt) {
+            String value = request.getParameter(name);
+            return value == null ? dflt : Double.parseDouble(value);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.annotations.Expose;
+import java.time.Instant;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes one JSON record per request to the logger of this class, at INFO.
+ * Request threads only decide whether a request is logged, and put its
+ * record in a bounded queue. A single background thread formats and writes
+ * the records. When the queue is full, records are dropped and counted.
+ *
+ * @author hylke
+ */
+public class AccessLog {
+
+    /**
+     * Requests from clients.
+     */
+    public static final String API_REST = "rest";
+    /**
+     * Requests in a batch from a client.
+     */
+    public static final String API_BATCH = "batch";
+    /**
+     * Requests from other Bridges.
+     */
+    public static final String API_LINK = "link";
+    /**
+     * Requests in a batch from another Bridge.
+     */
+    public static final String API_LINK_BATCH = "link-batch";
+    /**
+     * Requests from other Bridges, over a link channel.
+     */
+    public static final String API_CHANNEL = "channel";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AccessLog.class.getName());
+    private static final int QUEUE_SIZE = 8192;
+    private static final BlockingQueue<Entry> QUEUE = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private static final LongAdder DROPPED = new LongAdder();
+    private static Thread writer;
+
+    private final double sampleRate;
+    private final long slowNanos;
+
+    private static class Entry {
+
+        final long timeMillis = System.currentTimeMillis();
+        @Expose
+        String time;
+        @Expose
+        String api;
+        @Expose
+        String method;
+        @Expose
+        String resourceId;
+        @Expose
+        String url;
+        @Expose
+        int status;
+        @Expose
+        long requestBytes;
+        @Expose
+        long responseBytes;
+        @Expose
+        long durationMicros;
+        @Expose
+        boolean slow;
+    }
+
+    /**
+     * @param settings The settings, or null for the defaults.
+     */
+    public AccessLog(AccessLogSettings settings) {
+        if (settings == null) {
+            settings = new AccessLogSettings();
+        }
+        this.sampleRate = settings.getSampleRate();
+        this.slowNanos = TimeUnit.MILLISECONDS.toNanos(settings.getSlowThreshold());
+        startWriter();
+    }
+
+    private static synchronized void startWriter() {
+        if (writer != null) {
+            return;
+        }
+        writer = new Thread(AccessLog::write, "access-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private static void write() {
+        final Gson gson = new GsonBuilder().excludeFieldsWithoutExposeAnnotation().disableHtmlEscaping().create();
+        while (true) {
+            final Entry entry;
+            try {
+                entry = QUEUE.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            entry.time = Instant.ofEpochMilli(entry.timeMillis).toString();
+            LOGGER.info(gson.toJson(entry));
+        }
+    }
+
+    /**
+     * Logs a finished request, if it is slow or sampled.
+     *
+     * @param api The API that handled the request, one of the API constants.
+     * @param request The request.
+     * @param statusCode The status code of the response.
+     * @param requestBytes The size of the request body.
+     * @param responseBytes The size of the response body.
+     * @param start The value of System.nanoTime() when the request arrived.
+     */
+    public void log(String api, BridgeRequest request, int statusCode, long requestBytes, long responseBytes, long start) {
+        final long duration = System.nanoTime() - start;
+        final boolean slow = slowNanos > 0 && duration >= slowNanos;
+        if (!slow && (sampleRate <= 0 || (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate))) {
+            return;
+        }
+        if (!LOGGER.isInfoEnabled()) {
+            return;
+        }
+        final Entry entry = new Entry();
+        entry.api = api;
+        entry.method = request.method;
+        entry.resourceId = request.resourceId;
+        entry.url = request.url;
+        entry.status = statusCode;
+        entry.requestBytes = requestBytes;
+        entry.responseBytes = responseBytes;
+        entry.durationMicros = TimeUnit.NANOSECONDS.toMicros(duration);
+        entry.slow = slow;
+        if (!QUEUE.offer(entry)) {
+            DROPPED.increment();
+        }
+    }
+
+    /**
+     * @return the number of records dropped because the queue was full.
+     */
+    public static long getDropped() {
+        return DROPPED.sum();
+    }
+
+}
@@ -0,0 +1,61 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import com.google.gson.annotations.Expose;
+import de.fraunhofer.iosb.ilt.configurable.AnnotatedConfigurable;
+import de.fraunhofer.iosb.ilt.configurable.annotations.ConfigurableClass;
+import de.fraunhofer.iosb.ilt.configurable.annotations.ConfigurableField;
+import de.fraunhofer.iosb.ilt.configurable.editor.EditorDouble;
+import de.fraunhofer.iosb.ilt.configurable.editor.EditorInt;
+
+/**
+ * The settings for the access log, that has one record per request. By
+ * default every request is logged.
+ *
+ * @author hylke
+ */
+@ConfigurableClass()
+public class AccessLogSettings implements AnnotatedConfigurable<Void, Void> {
+
+    @ConfigurableField(editor = EditorDouble.class, optional = true,
+            label = "Sample Rate", description = "The fraction of requests to log, from 0 to 1. With 0 only slow requests are logged.")
+    @EditorDouble.EdOptsDouble(dflt = 1, min = 0, max = 1, step = 0.01)
+    @Expose
+    private double sampleRate = 1;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Slow Threshold", description = "Requests that take at least this many milliseconds are always logged. 0 to not treat slow requests differently.")
+    @EditorInt.EdOptsInt(dflt = 0, min = 0, max = 3600000)
+    @Expose
+    private int slowThreshold;
+
+    /**
+     * @return the fraction of requests to log
+     */
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @param sampleRate the fraction of requests to log
+     */
+    public void setSampleRate(double sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * @return the duration in milliseconds from which requests are always
+     * logged, 0 if slow requests are not treated differently
+     */
+    public int getSlowThreshold() {
+        return slowThreshold;
+    }
+
+    /**
+     * @param slowThreshold the duration in milliseconds from which requests
+     * are always logged, 0 if slow requests are not treated differently
+     */
+    public void setSlowThreshold(int slowThreshold) {
+        this.slowThreshold = slowThreshold;
+    }
+
+}
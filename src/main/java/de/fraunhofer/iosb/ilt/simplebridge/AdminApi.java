@@ -0,0 +1,92 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import de.fraunhofer.iosb.ilt.configurable.ConfigurationException;
+import de.fraunhofer.iosb.ilt.configurable.Utils;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The admin api of the Bridge. A GET on /admin/config returns the running
+ * configuration, a POST replaces it without restarting the server. Requests
+ * must carry the admin token of the running configuration as bearer token.
+ *
+ * @author hylke
+ */
+@WebServlet(
+        name = "Admin",
+        urlPatterns = {"/admin/config"}
+)
+public class AdminApi extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdminApi.class.getName());
+    private static final String BEARER = "Bearer ";
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        ServerConfig serverConfig = ServerConfig.getServerConfig(request);
+        if (!authorise(request, response, serverConfig)) {
+            return;
+        }
+        response.setContentType(RestApi.CONTENT_TYPE_APPLICATIONJSON);
+        response.setCharacterEncoding(RestApi.ENCODING_UTF8);
+        response.getWriter().write(serverConfig.toJson());
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        ServerConfig serverConfig = ServerConfig.getServerConfig(request);
+        if (!authorise(request, response, serverConfig)) {
+            return;
+        }
+        ConfigReloader reloader = (ConfigReloader) request.getServletContext().getAttribute(ConfigReloader.TAG_CONFIG_RELOADER);
+        if (reloader == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Configuration reloading not available.");
+            return;
+        }
+        String config = new String(request.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        LOGGER.info("New configuration posted by {}", request.getRemoteAddr());
+        ServerConfig newConfig;
+        try {
+            newConfig = reloader.reload(config);
+        } catch (ConfigurationException | RuntimeException ex) {
+            LOGGER.warn("Rejected posted configuration: {}", ex.getMessage());
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+            return;
+        }
+        response.setContentType(RestApi.CONTENT_TYPE_APPLICATIONJSON);
+        response.setCharacterEncoding(RestApi.ENCODING_UTF8);
+        response.getWriter().write(newConfig.toJson());
+    }
+
+    private static boolean authorise(HttpServletRequest request, HttpServletResponse response, ServerConfig serverConfig) throws IOException {
+        final String token = serverConfig.getAdminToken();
+        if (Utils.isNullOrEmpty(token)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return false;
+        }
+        final String header = request.getHeader("Authorization");
+        if (header == null || !header.startsWith(BEARER)) {
+            response.setHeader("WWW-Authenticate", "Bearer");
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+            return false;
+        }
+        final byte[] given = header.substring(BEARER.length()).trim().getBytes(StandardCharsets.UTF_8);
+        if (!MessageDigest.isEqual(given, token.getBytes(StandardCharsets.UTF_8))) {
+            LOGGER.warn("Invalid admin token from {}", request.getRemoteAddr());
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return false;
+        }
+        return true;
+    }
+
+}
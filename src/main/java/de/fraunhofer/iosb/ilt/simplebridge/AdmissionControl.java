@@ -0,0 +1,276 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the requests admitted to an endpoint or a link: the number of
+ * requests handled at the same time, with a bounded queue for requests that
+ * wait for a free slot, and the rate of requests, with a token bucket.
+ *
+ * All state is kept in atomics, so admitting a request takes no locks. The
+ * token bucket is kept as the time the next token is available, so taking a
+ * token is a single compare-and-set.
+ *
+ * @author hylke
+ */
+public class AdmissionControl {
+
+    public enum Result {
+        ADMITTED,
+        RATE_LIMITED,
+        OVERLOADED
+    }
+
+    private static final CompletableFuture<Result> ADMITTED = CompletableFuture.completedFuture(Result.ADMITTED);
+    private static final CompletableFuture<Result> RATE_LIMITED = CompletableFuture.completedFuture(Result.RATE_LIMITED);
+    private static final CompletableFuture<Result> OVERLOADED = CompletableFuture.completedFuture(Result.OVERLOADED);
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "admission-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String name;
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final long queueTimeoutMillis;
+    /**
+     * The time between two tokens, 0 if the rate is not limited.
+     */
+    private final long intervalNanos;
+    /**
+     * How far the next token may lie in the future, so that a burst of
+     * requests can be admitted at once.
+     */
+    private final long burstNanos;
+
+    /**
+     * The time the next token becomes available, in System.nanoTime().
+     */
+    private final AtomicLong nextToken;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Queue<CompletableFuture<Result>> waiters = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder overloaded = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    /**
+     * @param name The name of the endpoint or link, used in the metrics.
+     * @param settings The limits, if null nothing is limited.
+     */
+    public AdmissionControl(String name, LimitSettings settings) {
+        final LimitSettings actual = settings == null ? new LimitSettings() : settings;
+        this.name = name;
+        this.maxConcurrent = actual.getMaxConcurrent();
+        this.maxQueued = actual.getMaxQueued();
+        this.queueTimeoutMillis = actual.getQueueTimeout();
+        final int rate = actual.getRate();
+        if (rate > 0) {
+            final int burst = actual.getBurst() > 0 ? actual.getBurst() : rate;
+            intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+            burstNanos = intervalNanos * (burst - 1);
+        } else {
+            intervalNanos = 0;
+            burstNanos = 0;
+        }
+        nextToken = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * @return true if any limit is set.
+     */
+    public boolean isEnabled() {
+        return maxConcurrent > 0 || intervalNanos > 0;
+    }
+
+    /**
+     * Asks for admission of a request. The returned future is already
+     * complete, unless the request has to wait in the queue. When the result
+     * is ADMITTED, {@link #release()} must be called when the request is done.
+     *
+     * @return A future that completes with the result.
+     */
+    public CompletableFuture<Result> acquire() {
+        if (!takeToken()) {
+            rateLimited.increment();
+            return RATE_LIMITED;
+        }
+        if (maxConcurrent <= 0 || tryIncrement()) {
+            admitted.increment();
+            return ADMITTED;
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            refundToken();
+            overloaded.increment();
+            return OVERLOADED;
+        }
+        final CompletableFuture<Result> waiter = new CompletableFuture<>();
+        waiters.add(waiter);
+        // A slot may have been released before the waiter was in the queue.
+        if (tryIncrement() && !waiter.complete(Result.ADMITTED)) {
+            release();
+        }
+        if (!waiter.isDone()) {
+            final ScheduledFuture<?> timeout = TIMER.schedule(() -> {
+                if (waiter.complete(Result.OVERLOADED)) {
+                    waiters.remove(waiter);
+                    refundToken();
+                    timedOut.increment();
+                }
+            }, queueTimeoutMillis, TimeUnit.MILLISECONDS);
+            waiter.whenComplete((result, ex) -> timeout.cancel(false));
+        }
+        waiter.whenComplete((result, ex) -> {
+            queued.decrementAndGet();
+            if (result == Result.ADMITTED) {
+                admitted.increment();
+            }
+        });
+        return waiter;
+    }
+
+    /**
+     * Ends a request that was admitted, handing its slot to the first waiting
+     * request, if there is one.
+     */
+    public void release() {
+        if (maxConcurrent <= 0) {
+            return;
+        }
+        CompletableFuture<Result> waiter;
+        while ((waiter = waiters.poll()) != null) {
+            if (waiter.complete(Result.ADMITTED)) {
+                return;
+            }
+        }
+        inFlight.decrementAndGet();
+        // A request may have started waiting after the queue was checked.
+        if (!waiters.isEmpty() && tryIncrement()) {
+            release();
+        }
+    }
+
+    private boolean tryIncrement() {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= maxConcurrent) {
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    private boolean takeToken() {
+        if (intervalNanos == 0) {
+            return true;
+        }
+        final long now = System.nanoTime();
+        long current;
+        long start;
+        do {
+            current = nextToken.get();
+            // Tokens do not accumulate beyond the burst while idle.
+            start = current - now < 0 ? now : current;
+            if (start - now > burstNanos) {
+                return false;
+            }
+        } while (!nextToken.compareAndSet(current, start + intervalNanos));
+        return true;
+    }
+
+    /**
+     * Gives back the token of a request that was not admitted, so requests
+     * rejected because of overload do not use up the rate.
+     */
+    private void refundToken() {
+        if (intervalNanos != 0) {
+            nextToken.addAndGet(-intervalNanos);
+        }
+    }
+
+    /**
+     * @param result The result of a rejected request.
+     * @return the number of seconds the client should wait before trying
+     * again, rounded up.
+     */
+    public long getRetryAfterSeconds(Result result) {
+        if (result != Result.RATE_LIMITED) {
+            return Math.max(1, TimeUnit.MILLISECONDS.toSeconds(queueTimeoutMillis));
+        }
+        final long wait = nextToken.get() - System.nanoTime() - burstNanos;
+        return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(wait + TimeUnit.SECONDS.toNanos(1) - 1));
+    }
+
+    /**
+     * @return the longest time in milliseconds a request waits for a slot, 0
+     * if requests never wait.
+     */
+    public long getQueueTimeoutMillis() {
+        return maxConcurrent > 0 ? queueTimeoutMillis : 0;
+    }
+
+    /**
+     * @return the name of the endpoint or link that is limited.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the number of admitted requests that have not been released.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return the number of requests waiting for a slot.
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * @return the number of admitted requests.
+     */
+    public long getAdmitted() {
+        return admitted.sum();
+    }
+
+    /**
+     * @return the number of requests rejected because of the rate limit.
+     */
+    public long getRateLimited() {
+        return rateLimited.sum();
+    }
+
+    /**
+     * @return the number of requests rejected because the queue was full.
+     */
+    public long getOverloaded() {
+        return overloaded.sum();
+    }
+
+    /**
+     * @return the number of requests rejected because they waited too long.
+     */
+    public long getTimedOut() {
+        return timedOut.sum();
+    }
+
+}
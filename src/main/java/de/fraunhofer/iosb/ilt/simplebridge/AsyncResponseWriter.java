@@ -0,0 +1,146 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes a response body of an async request using non-blocking IO, and
+ * completes the request when done. No thread is blocked while the client is
+ * slow to receive the data.
+ *
+ * @author hylke
+ */
+public class AsyncResponseWriter implements WriteListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncResponseWriter.class.getName());
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private final AsyncContext asyncContext;
+    private final ServletOutputStream out;
+    private final List<ByteBuffer> buffers;
+    private final Body body;
+    private final Runnable whenDone;
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private int index;
+    private byte[] scratch;
+
+    private AsyncResponseWriter(AsyncContext asyncContext, ServletOutputStream out, List<ByteBuffer> buffers, Body body, Runnable whenDone) {
+        this.asyncContext = asyncContext;
+        this.out = out;
+        this.buffers = buffers;
+        this.body = body;
+        this.whenDone = whenDone;
+    }
+
+    /**
+     * Writes the given data to the response of the given async context, and
+     * completes the context when all data is written. Status and headers must
+     * be set before calling this method.
+     *
+     * @param asyncContext The async context to write the response of.
+     * @param data The data to write.
+     */
+    public static void write(AsyncContext asyncContext, byte[] data) {
+        write(asyncContext, data, null);
+    }
+
+    /**
+     * Writes the given data to the response of the given async context, and
+     * completes the context when all data is written, or writing failed.
+     * Status and headers must be set before calling this method.
+     *
+     * @param asyncContext The async context to write the response of.
+     * @param data The data to write.
+     * @param whenDone Called just before the context is completed, may be
+     * null.
+     */
+    public static void write(AsyncContext asyncContext, byte[] data, Runnable whenDone) {
+        write(asyncContext, data.length, Collections.singletonList(ByteBuffer.wrap(data)), null, whenDone);
+    }
+
+    /**
+     * Writes the given body to the response of the given async context,
+     * completes the context when all data is written, or writing failed, and
+     * closes the body. Takes over the reference of the caller to the body.
+     * Status and headers must be set before calling this method.
+     *
+     * @param asyncContext The async context to write the response of.
+     * @param body The body to write.
+     * @param whenDone Called just before the context is completed, may be
+     * null.
+     */
+    public static void write(AsyncContext asyncContext, Body body, Runnable whenDone) {
+        write(asyncContext, body.length(), body.buffers(), body, whenDone);
+    }
+
+    private static void write(AsyncContext asyncContext, long length, List<ByteBuffer> buffers, Body body, Runnable whenDone) {
+        try {
+            asyncContext.getResponse().setContentLengthLong(length);
+            ServletOutputStream out = asyncContext.getResponse().getOutputStream();
+            out.setWriteListener(new AsyncResponseWriter(asyncContext, out, buffers, body, whenDone));
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.error("Failed to write response", ex);
+            if (body != null) {
+                body.close();
+            }
+            if (whenDone != null) {
+                whenDone.run();
+            }
+            asyncContext.complete();
+        }
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        while (out.isReady()) {
+            while (index < buffers.size() && !buffers.get(index).hasRemaining()) {
+                index++;
+            }
+            if (index >= buffers.size()) {
+                done();
+                return;
+            }
+            final ByteBuffer buffer = buffers.get(index);
+            final int length = Math.min(CHUNK_SIZE, buffer.remaining());
+            if (buffer.hasArray()) {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+                buffer.position(buffer.position() + length);
+            } else {
+                // Only copies a chunk of a mapped body into the heap at a time.
+                if (scratch == null) {
+                    scratch = new byte[CHUNK_SIZE];
+                }
+                buffer.get(scratch, 0, length);
+                out.write(scratch, 0, length);
+            }
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        LOGGER.warn("Failed to write response: {}", t.getMessage());
+        done();
+    }
+
+    private void done() {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+        if (body != null) {
+            body.close();
+        }
+        if (whenDone != null) {
+            whenDone.run();
+        }
+        asyncContext.complete();
+    }
+
+}
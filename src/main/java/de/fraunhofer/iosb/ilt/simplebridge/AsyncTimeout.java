@@ -0,0 +1,122 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Ends an async request with 504 when no response was started within its
+ * timeout. The response and the timeout race for the request: only the one
+ * that claims it first may write to it.
+ *
+ * The timeout only covers the time until the response is claimed. The
+ * container timeout is disabled, so writing a large response is not cut off.
+ *
+ * @author hylke
+ */
+public class AsyncTimeout implements AsyncListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncTimeout.class.getName());
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "async-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicBoolean claimed = new AtomicBoolean();
+    private final AsyncContext asyncContext;
+    private final long timeoutMillis;
+    private volatile ScheduledFuture<?> timer;
+
+    private AsyncTimeout(AsyncContext asyncContext, long timeoutMillis) {
+        this.asyncContext = asyncContext;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Sets the timeout of the given async context, and ends the request when
+     * it expires.
+     *
+     * @param asyncContext The context of the request.
+     * @param timeoutMillis The timeout in milliseconds, 0 for none.
+     * @return the timeout, to claim the request with before writing the
+     * response.
+     */
+    public static AsyncTimeout start(AsyncContext asyncContext, long timeoutMillis) {
+        final AsyncTimeout timeout = new AsyncTimeout(asyncContext, timeoutMillis);
+        asyncContext.setTimeout(0);
+        asyncContext.addListener(timeout);
+        if (timeoutMillis > 0) {
+            timeout.timer = TIMER.schedule(timeout::expire, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        return timeout;
+    }
+
+    /**
+     * Claims the request for writing the response. After the request timed
+     * out, the async context must no longer be used.
+     *
+     * @return true if the response may be written, false if the request
+     * already timed out.
+     */
+    public boolean claim() {
+        if (claimed.compareAndSet(false, true)) {
+            cancelTimer();
+            return true;
+        }
+        LOGGER.debug("Response after the timeout of {} ms dropped.", timeoutMillis);
+        return false;
+    }
+
+    private void expire() {
+        if (!claimed.compareAndSet(false, true)) {
+            // The response is being written.
+            return;
+        }
+        LOGGER.warn("No response after {} ms.", timeoutMillis);
+        try {
+            ((HttpServletResponse) asyncContext.getResponse()).setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+            asyncContext.complete();
+        } catch (IllegalStateException ex) {
+            LOGGER.debug("Request ended before the timeout: {}", ex.getMessage());
+        }
+    }
+
+    private void cancelTimer() {
+        final ScheduledFuture<?> current = timer;
+        if (current != null) {
+            current.cancel(false);
+        }
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) throws IOException {
+        // The container timeout is disabled.
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) throws IOException {
+        cancelTimer();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) throws IOException {
+        cancelTimer();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) throws IOException {
+        // Nothing to do.
+    }
+
+}
@@ -0,0 +1,98 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import com.google.gson.annotations.Expose;
+import de.fraunhofer.iosb.ilt.configurable.AnnotatedConfigurable;
+import de.fraunhofer.iosb.ilt.configurable.annotations.ConfigurableClass;
+import de.fraunhofer.iosb.ilt.configurable.annotations.ConfigurableField;
+import de.fraunhofer.iosb.ilt.configurable.editor.EditorInt;
+import java.util.Objects;
+
+/**
+ * The settings for collecting the requests sent over a link into batches.
+ * Batching is off by default.
+ *
+ * @author hylke
+ */
+@ConfigurableClass()
+public class BatchSettings implements AnnotatedConfigurable<Void, Void> {
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Max Size", description = "The maximum number of requests in a batch. 0 or 1 to send each request on its own.")
+    @EditorInt.EdOptsInt(dflt = 0, min = 0, max = 10000)
+    @Expose
+    private int maxSize;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Max Wait", description = "The maximum time in microseconds a request waits for others to join its batch.")
+    @EditorInt.EdOptsInt(dflt = 500, min = 1, max = 1000000)
+    @Expose
+    private int maxWait = 500;
+
+    /**
+     * @return true if requests are collected into batches.
+     */
+    public boolean isEnabled() {
+        return maxSize > 1;
+    }
+
+    /**
+     * @return the maximum number of requests in a batch
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @param maxSize the maximum number of requests in a batch
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the maximum time a request waits, in microseconds
+     */
+    public int getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * @param maxWait the maximum time a request waits, in microseconds
+     */
+    public void setMaxWait(int maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Checks if two settings batch the same way, treating null as the default
+     * settings.
+     *
+     * @param first The first settings, may be null.
+     * @param second The second settings, may be null.
+     * @return true if the settings are equal.
+     */
+    public static boolean same(BatchSettings first, BatchSettings second) {
+        return Objects.equals(
+                first == null ? new BatchSettings() : first,
+                second == null ? new BatchSettings() : second);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(maxSize, maxWait);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final BatchSettings other = (BatchSettings) obj;
+        return maxSize == other.maxSize
+                && maxWait == other.maxWait;
+    }
+
+}
@@ -0,0 +1,951 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.eclipse.jetty.server.HttpOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A body that is written once, and then read any number of times. Small
+ * bodies are kept in heap chunks. A body that grows beyond the spill threshold
+ * is moved to a temporary file, that is memory-mapped for reading, so it takes
+ * no heap. The file is deleted as soon as it is mapped; its content stays
+ * readable through the mapping.
+ *
+ * A mapped body is written to a channel, and to the output of a Jetty
+ * response, as direct buffers, so it is never copied into the heap.
+ *
+ * The encoded requests and responses sent over links are built with
+ * {@link #of(long, Content)}, from chunks taken from a pool of heap buffers.
+ * The bodies of requests and responses themselves are read with
+ * {@link #read(InputStream, long)} or wrapped with {@link #wrap(byte[])}, and
+ * do not use the pool.
+ *
+ * Pooled and mapped bodies are reference counted. The creator holds the
+ * first reference; users that keep the body beyond the request that created
+ * it, like the cache and coalesced requests, take their own with
+ * {@link #retain()}. Each reference is released with {@link #close()}. The
+ * last release returns the chunks to the pool, or unmaps the file, so its
+ * disk space is freed right away instead of when the mapping is garbage
+ * collected. Bodies in the heap that are not pooled need no releasing, for
+ * them retaining and closing do nothing.
+ *
+ * @author hylke
+ */
+public class Body implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Body.class.getName());
+    private static final int CHUNK_SIZE = 8 * 1024;
+    private static final int MAX_POOLED_CHUNKS = 2048;
+    /**
+     * The largest part of a file that is mapped at once. A single mapping can
+     * not be larger.
+     */
+    private static final long MAX_MAPPING = Integer.MAX_VALUE;
+    /**
+     * The largest body that can be copied into an array.
+     */
+    private static final long MAX_ARRAY = Integer.MAX_VALUE - 8;
+    private static final Queue<byte[]> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+    private static final LongAdder SPILLED = new LongAdder();
+    private static final LongAdder SPILLED_BYTES = new LongAdder();
+    /**
+     * Frees a mapping right away, null if the JVM does not allow that.
+     */
+    private static final Consumer<ByteBuffer> UNMAPPER = createUnmapper();
+
+    /**
+     * The empty body.
+     */
+    public static final Body EMPTY = wrap(new byte[0]);
+
+    private final long length;
+    /**
+     * The chunks of a heap body, null if the body is in a file.
+     */
+    private final List<byte[]> chunks;
+    /**
+     * Flag indicating the chunks are returned to the pool on close.
+     */
+    private final boolean pooled;
+    /**
+     * The mappings of the parts of the file of a mapped body, null if the body
+     * is in the heap.
+     */
+    private final List<MappedByteBuffer> mappings;
+    /**
+     * The file of a mapped body, if it could not be deleted after mapping it.
+     */
+    private Path file;
+    /**
+     * The number of references to a pooled or mapped body. When it drops to
+     * 0, the body is released and must no longer be read.
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private Body(List<byte[]> chunks, long length, boolean pooled) {
+        this.chunks = chunks;
+        this.length = length;
+        this.pooled = pooled;
+        this.mappings = null;
+    }
+
+    /**
+     * Maps the given file, in parts of at most the given size, closes the
+     * channel and deletes the file.
+     */
+    private Body(Path file, FileChannel channel, long length, long maxMapping) throws IOException {
+        final long size = channel.size();
+        if (size != length) {
+            throw new IOException("Body file " + file + " has " + size + " bytes, expected " + length);
+        }
+        final List<MappedByteBuffer> parts = new ArrayList<>((int) (length / maxMapping) + 1);
+        long position = 0;
+        while (position < length) {
+            final long partLength = Math.min(maxMapping, length - position);
+            parts.add(channel.map(FileChannel.MapMode.READ_ONLY, position, partLength));
+            position += partLength;
+        }
+        this.chunks = null;
+        this.length = length;
+        this.pooled = false;
+        this.mappings = parts;
+        channel.close();
+        // The mappings stay valid after the file is deleted.
+        if (!deleteFile(file)) {
+            this.file = file;
+        }
+    }
+
+    /**
+     * Writes the content of a body.
+     */
+    public interface Content {
+
+        /**
+         * @param out The stream to write the content to.
+         * @throws IOException If writing fails.
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Creates a body with the given content.
+     *
+     * @param spillThreshold The size in bytes above which the body is moved
+     * to a file. 0 to always keep it in the heap.
+     * @param content Writes the content of the body.
+     * @return the body.
+     * @throws IOException If writing the content fails.
+     */
+    public static Body of(long spillThreshold, Content content) throws IOException {
+        final Builder builder = new Builder(spillThreshold);
+        try {
+            content.writeTo(builder);
+            return builder.build();
+        } catch (IOException | RuntimeException ex) {
+            builder.discard();
+            throw ex;
+        }
+    }
+
+    /**
+     * Reads the given stream to its end into a shared body.
+     *
+     * @param in The stream to read, it is not closed.
+     * @param spillThreshold The size in bytes above which the body is moved
+     * to a file. 0 to always keep it in the heap.
+     * @return the body.
+     * @throws IOException If reading the stream, or writing the file, fails.
+     */
+    public static Body read(InputStream in, long spillThreshold) throws IOException {
+        final Builder builder = new Builder(spillThreshold, false, MAX_MAPPING);
+        try {
+            builder.readFrom(in, Long.MAX_VALUE);
+            return builder.build();
+        } catch (IOException | RuntimeException ex) {
+            builder.discard();
+            throw ex;
+        }
+    }
+
+    /**
+     * Reads the given number of bytes from the given stream into a shared
+     * body.
+     *
+     * @param in The stream to read, it is not closed.
+     * @param count The number of bytes to read.
+     * @param spillThreshold The size in bytes above which the body is moved
+     * to a file. 0 to always keep it in the heap.
+     * @return the body.
+     * @throws IOException If reading the stream, or writing the file, fails,
+     * or the stream ends before the given number of bytes.
+     */
+    public static Body read(InputStream in, long count, long spillThreshold) throws IOException {
+        final Builder builder = new Builder(spillThreshold, false, MAX_MAPPING);
+        try {
+            if (builder.readFrom(in, count) < count) {
+                throw new EOFException("Body ended after " + builder.length() + " of " + count + " bytes.");
+            }
+            return builder.build();
+        } catch (IOException | RuntimeException ex) {
+            builder.discard();
+            throw ex;
+        }
+    }
+
+    /**
+     * Creates a shared body with the given content. The array is not copied,
+     * and must not be changed afterwards.
+     *
+     * @param data The content of the body.
+     * @return the body.
+     */
+    public static Body wrap(byte[] data) {
+        final List<byte[]> chunks = new ArrayList<>(1);
+        chunks.add(data);
+        return new Body(chunks, data.length, false);
+    }
+
+    /**
+     * @return the number of bytes in the body.
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return true if the body has no bytes.
+     */
+    public boolean isEmpty() {
+        return length == 0;
+    }
+
+    /**
+     * @return true if the body is in a memory-mapped file.
+     */
+    public boolean isSpilled() {
+        return chunks == null;
+    }
+
+    /**
+     * @return true if this body is pooled or mapped, and has to be released.
+     */
+    private boolean isCounted() {
+        return pooled || chunks == null;
+    }
+
+    /**
+     * Takes another reference to this body, for a user that keeps it beyond
+     * the lifetime of the current owner. The reference must be released with
+     * {@link #close()}.
+     *
+     * @return this body.
+     * @throws IllegalStateException If the body was already released.
+     */
+    public Body retain() {
+        if (!tryRetain()) {
+            throw new IllegalStateException("Body was already released.");
+        }
+        return this;
+    }
+
+    /**
+     * Takes another reference to this body, unless it was already released.
+     * For users that find the body in a shared place, like the cache, where
+     * another thread may release it at the same time.
+     *
+     * @return true if a reference was taken, and must be released with
+     * {@link #close()}.
+     */
+    public boolean tryRetain() {
+        if (!isCounted()) {
+            return true;
+        }
+        int current;
+        do {
+            current = references.get();
+            if (current <= 0) {
+                return false;
+            }
+        } while (!references.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * @return the content of the body, as buffers that can be read
+     * independently of other readers. The caller must hold a reference to the
+     * body until it is done with the buffers.
+     * @throws IllegalStateException If the body was already released.
+     */
+    public List<ByteBuffer> buffers() {
+        if (isCounted() && references.get() <= 0) {
+            throw new IllegalStateException("Body was already released.");
+        }
+        if (chunks == null) {
+            if (mappings.size() == 1) {
+                return Collections.singletonList(mappings.get(0).duplicate());
+            }
+            final List<ByteBuffer> result = new ArrayList<>(mappings.size());
+            for (MappedByteBuffer mapping : mappings) {
+                result.add(mapping.duplicate());
+            }
+            return result;
+        }
+        final List<ByteBuffer> result = new ArrayList<>(chunks.size());
+        long remaining = length;
+        for (byte[] chunk : chunks) {
+            final int size = (int) Math.min(chunk.length, remaining);
+            result.add(ByteBuffer.wrap(chunk, 0, size));
+            remaining -= size;
+        }
+        return result;
+    }
+
+    /**
+     * @return a new stream over the content of the body. The stream holds a
+     * reference to the body until it is closed, so it can be read after the
+     * creator released the body.
+     */
+    public InputStream openStream() {
+        return new BuffersInputStream(retain(), buffers());
+    }
+
+    /**
+     * Copies the content of the body into a new array, for the few users that
+     * need the whole body at once.
+     *
+     * @return the content of the body.
+     * @throws IOException If the body is too large for an array.
+     */
+    public byte[] toByteArray() throws IOException {
+        if (length > MAX_ARRAY) {
+            throw new IOException("Body of " + length + " bytes is too large for an array.");
+        }
+        final byte[] result = new byte[(int) length];
+        int position = 0;
+        for (ByteBuffer buffer : buffers()) {
+            final int size = buffer.remaining();
+            buffer.get(result, position, size);
+            position += size;
+        }
+        return result;
+    }
+
+    /**
+     * Writes the body to the given stream. Mapped bodies are written without
+     * copying them into the heap if the stream is a channel, or the output of
+     * a Jetty response.
+     *
+     * @param out The stream to write to.
+     * @throws IOException If writing fails.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (chunks == null && out instanceof WritableByteChannel) {
+            writeTo((WritableByteChannel) out);
+            return;
+        }
+        byte[] scratch = null;
+        for (ByteBuffer buffer : buffers()) {
+            if (buffer.hasArray()) {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else if (out instanceof HttpOutput) {
+                ((HttpOutput) out).write(buffer);
+            } else {
+                if (scratch == null) {
+                    scratch = new byte[CHUNK_SIZE];
+                }
+                while (buffer.hasRemaining()) {
+                    final int size = Math.min(scratch.length, buffer.remaining());
+                    buffer.get(scratch, 0, size);
+                    out.write(scratch, 0, size);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the body to the given channel. A mapped body is written from its
+     * mapped buffers, with plain channel writes; the file is deleted once it
+     * is mapped, so it can not be sent with FileChannel.transferTo.
+     *
+     * @param target The channel to write to.
+     * @throws IOException If writing fails.
+     */
+    public void writeTo(WritableByteChannel target) throws IOException {
+        for (ByteBuffer buffer : buffers()) {
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * @param contentType The content type of the body.
+     * @return an entity for sending the body with the http client. The entity
+     * can be sent more than once. The streams it opens hold their own
+     * reference to the body, so a request that is aborted while its body is
+     * being sent does not read a released body.
+     */
+    public Entity toEntity(ContentType contentType) {
+        return new Entity(this, contentType);
+    }
+
+    /**
+     * Releases a reference to this body. The last release returns the chunks
+     * of a pooled body to the pool, and unmaps a mapped body, deleting its
+     * file if that failed when it was mapped. Does nothing for bodies in the
+     * heap that are not pooled, and for bodies that were already released.
+     */
+    @Override
+    public void close() {
+        if (!isCounted()) {
+            return;
+        }
+        int current;
+        do {
+            current = references.get();
+            if (current <= 0) {
+                return;
+            }
+        } while (!references.compareAndSet(current, current - 1));
+        if (current > 1) {
+            return;
+        }
+        if (chunks != null) {
+            chunks.forEach(Body::releaseChunk);
+            chunks.clear();
+            return;
+        }
+        if (UNMAPPER != null) {
+            for (MappedByteBuffer mapping : mappings) {
+                UNMAPPER.accept(mapping);
+            }
+        }
+        final Path toDelete = file;
+        if (toDelete != null && !deleteFile(toDelete)) {
+            toDelete.toFile().deleteOnExit();
+        }
+    }
+
+    /**
+     * Finds the way to unmap a buffer: Unsafe.invokeCleaner on Java 9 and
+     * later, the cleaner of the buffer on Java 8.
+     */
+    private static Consumer<ByteBuffer> createUnmapper() {
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            final Object unsafe = theUnsafe.get(null);
+            return buffer -> invokeQuietly(invokeCleaner, unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            LOGGER.trace("No Unsafe.invokeCleaner: {}", ex.getMessage());
+        }
+        try {
+            final Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> invokeQuietly(clean, invokeQuietly(cleaner, buffer));
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            LOGGER.info("Mapped bodies can not be unmapped, they are freed when garbage collected: {}", ex.getMessage());
+            return null;
+        }
+    }
+
+    private static Object invokeQuietly(Method method, Object target, Object... arguments) {
+        if (target == null) {
+            return null;
+        }
+        try {
+            return method.invoke(target, arguments);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            LOGGER.warn("Failed to unmap body: {}", ex.getMessage());
+            return null;
+        }
+    }
+
+    private static boolean deleteFile(Path file) {
+        try {
+            Files.deleteIfExists(file);
+            return true;
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to delete body file {}: {}", file, ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Releases the body of the given entity, if it has one. For entities that
+     * were given the reference of their creator.
+     *
+     * @param entity The entity, may be null.
+     */
+    public static void release(HttpEntity entity) {
+        if (entity instanceof Entity) {
+            ((Entity) entity).body.close();
+        }
+    }
+
+    /**
+     * Creates the adapter that writes bodies to JSON, and reads them from
+     * JSON, as an array of numbers, like a byte array.
+     *
+     * @param spillThreshold The size in bytes above which a body that is
+     * read is moved to a file. 0 to always keep it in the heap.
+     * @return the adapter.
+     */
+    public static TypeAdapter<Body> jsonAdapter(long spillThreshold) {
+        return new JsonAdapter(spillThreshold);
+    }
+
+    /**
+     * @return the number of bodies that were moved to a file.
+     */
+    public static long getSpilled() {
+        return SPILLED.sum();
+    }
+
+    /**
+     * @return the number of bytes in bodies that were moved to a file.
+     */
+    public static long getSpilledBytes() {
+        return SPILLED_BYTES.sum();
+    }
+
+    private static byte[] takeChunk() {
+        final byte[] chunk = POOL.poll();
+        if (chunk == null) {
+            return new byte[CHUNK_SIZE];
+        }
+        POOLED.decrementAndGet();
+        return chunk;
+    }
+
+    private static void releaseChunk(byte[] chunk) {
+        if (POOLED.incrementAndGet() <= MAX_POOLED_CHUNKS) {
+            POOL.offer(chunk);
+        } else {
+            POOLED.decrementAndGet();
+        }
+    }
+
+    /**
+     * Collects the bytes of a body. Closing the builder does nothing, so it
+     * can be wrapped by streams that close it; {@link #build()} turns it into
+     * the body.
+     */
+    public static class Builder extends OutputStream {
+
+        private final long spillThreshold;
+        private final boolean pooled;
+        private final long maxMapping;
+        private final List<byte[]> chunks = new ArrayList<>();
+        private byte[] current;
+        private int position;
+        private long length;
+        private Path file;
+        private FileChannel channel;
+
+        /**
+         * @param spillThreshold The size in bytes above which the body is
+         * moved to a file. 0 to always keep it in the heap.
+         */
+        public Builder(long spillThreshold) {
+            this(spillThreshold, true, MAX_MAPPING);
+        }
+
+        /**
+         * @param spillThreshold The size in bytes above which the body is
+         * moved to a file. 0 to always keep it in the heap.
+         * @param pooled Flag indicating the chunks are taken from the pool,
+         * and the body returns them when it is closed. A body that is not
+         * pooled can be shared.
+         * @param maxMapping The largest part of the file that is mapped at
+         * once. Only smaller than the largest possible mapping in tests.
+         */
+        Builder(long spillThreshold, boolean pooled, long maxMapping) {
+            this.spillThreshold = spillThreshold;
+            this.pooled = pooled;
+            this.maxMapping = maxMapping;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (current == null || position == current.length) {
+                nextChunk();
+            }
+            current[position++] = (byte) b;
+            length++;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int count) throws IOException {
+            while (count > 0) {
+                if (current == null || position == current.length) {
+                    nextChunk();
+                }
+                final int size = Math.min(count, current.length - position);
+                System.arraycopy(data, offset, current, position, size);
+                position += size;
+                offset += size;
+                count -= size;
+                length += size;
+            }
+        }
+
+        /**
+         * Reads at most the given number of bytes from the given stream,
+         * directly into the chunks of the body.
+         *
+         * @return the number of bytes read, less than the given number if the
+         * stream ended.
+         */
+        private long readFrom(InputStream in, long count) throws IOException {
+            long remaining = count;
+            while (remaining > 0) {
+                if (current == null || position == current.length) {
+                    if (shouldSpill()) {
+                        // Only move the body to a file if more bytes follow.
+                        final int next = in.read();
+                        if (next < 0) {
+                            break;
+                        }
+                        write(next);
+                        remaining--;
+                        continue;
+                    }
+                    nextChunk();
+                }
+                final int size = (int) Math.min(current.length - position, remaining);
+                final int read = in.read(current, position, size);
+                if (read < 0) {
+                    break;
+                }
+                position += read;
+                length += read;
+                remaining -= read;
+            }
+            return count - remaining;
+        }
+
+        private boolean shouldSpill() {
+            return channel == null && spillThreshold > 0 && length >= spillThreshold;
+        }
+
+        private void nextChunk() throws IOException {
+            if (shouldSpill()) {
+                spill();
+            }
+            if (channel != null) {
+                if (current != null) {
+                    writeCurrent();
+                } else {
+                    current = newChunk();
+                }
+                return;
+            }
+            current = newChunk();
+            position = 0;
+            chunks.add(current);
+        }
+
+        private byte[] newChunk() {
+            return pooled ? takeChunk() : new byte[CHUNK_SIZE];
+        }
+
+        private void dropChunk(byte[] chunk) {
+            if (pooled) {
+                releaseChunk(chunk);
+            }
+        }
+
+        /**
+         * Moves the collected bytes to a new temporary file. The current
+         * chunk stays in use as the write buffer of the file.
+         */
+        private void spill() throws IOException {
+            file = Files.createTempFile("simplebridge-body-", ".tmp");
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            for (byte[] chunk : chunks) {
+                if (chunk != current) {
+                    writeFully(ByteBuffer.wrap(chunk));
+                    dropChunk(chunk);
+                }
+            }
+            chunks.clear();
+        }
+
+        private void writeCurrent() throws IOException {
+            writeFully(ByteBuffer.wrap(current, 0, position));
+            position = 0;
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        /**
+         * @return the body with the bytes written so far. The builder must
+         * not be used afterwards.
+         * @throws IOException If the file of the body can not be written.
+         */
+        public Body build() throws IOException {
+            if (channel == null) {
+                if (pooled) {
+                    return new Body(new ArrayList<>(chunks), length, true);
+                }
+                return new Body(trimmedChunks(), length, false);
+            }
+            try {
+                writeCurrent();
+                dropChunk(current);
+                current = null;
+                SPILLED.increment();
+                SPILLED_BYTES.add(length);
+                return new Body(file, channel, length, maxMapping);
+            } catch (IOException ex) {
+                channel.close();
+                Files.deleteIfExists(file);
+                throw ex;
+            }
+        }
+
+        /**
+         * Cuts the unused end off the last chunk, and drops chunks that are
+         * not used at all, so a shared body takes no more heap than its
+         * length.
+         */
+        private List<byte[]> trimmedChunks() {
+            final List<byte[]> result = new ArrayList<>(chunks.size());
+            long remaining = length;
+            for (byte[] chunk : chunks) {
+                if (remaining <= 0) {
+                    break;
+                }
+                if (remaining < chunk.length) {
+                    result.add(Arrays.copyOf(chunk, (int) remaining));
+                    break;
+                }
+                result.add(chunk);
+                remaining -= chunk.length;
+            }
+            return result;
+        }
+
+        /**
+         * Drops the bytes written so far, when the body is not needed after
+         * all. The builder must not be used afterwards.
+         */
+        public void discard() {
+            chunks.forEach(this::dropChunk);
+            chunks.clear();
+            if (channel != null && current != null) {
+                dropChunk(current);
+            }
+            current = null;
+            if (channel != null) {
+                try {
+                    channel.close();
+                    Files.deleteIfExists(file);
+                } catch (IOException ex) {
+                    LOGGER.warn("Failed to delete body file {}: {}", file, ex.getMessage());
+                    file.toFile().deleteOnExit();
+                }
+            }
+        }
+
+        /**
+         * @return the number of bytes written so far.
+         */
+        public long length() {
+            return length;
+        }
+
+    }
+
+    /**
+     * An http client entity that sends a body.
+     */
+    public static class Entity extends AbstractHttpEntity {
+
+        private final Body body;
+
+        private Entity(Body body, ContentType contentType) {
+            this.body = body;
+            if (contentType != null) {
+                setContentType(contentType.toString());
+            }
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return body.length();
+        }
+
+        @Override
+        public InputStream getContent() {
+            return body.openStream();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            try (Body held = body.retain()) {
+                held.writeTo(out);
+            }
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+
+    }
+
+    /**
+     * Writes bodies to JSON, and reads them from JSON, as an array of numbers,
+     * the way Gson writes byte arrays, so Bridges that still send byte arrays
+     * understand each other.
+     */
+    private static class JsonAdapter extends TypeAdapter<Body> {
+
+        private final long spillThreshold;
+
+        JsonAdapter(long spillThreshold) {
+            this.spillThreshold = spillThreshold;
+        }
+
+        @Override
+        public void write(JsonWriter out, Body body) throws IOException {
+            if (body == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginArray();
+            for (ByteBuffer buffer : body.buffers()) {
+                while (buffer.hasRemaining()) {
+                    out.value(buffer.get());
+                }
+            }
+            out.endArray();
+        }
+
+        @Override
+        public Body read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            final Builder builder = new Builder(spillThreshold, false, MAX_MAPPING);
+            try {
+                in.beginArray();
+                while (in.hasNext()) {
+                    builder.write(in.nextInt());
+                }
+                in.endArray();
+                return builder.build();
+            } catch (IOException | RuntimeException ex) {
+                builder.discard();
+                throw ex;
+            }
+        }
+
+    }
+
+    private static class BuffersInputStream extends InputStream {
+
+        private final Body body;
+        private final List<ByteBuffer> buffers;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private int index;
+
+        BuffersInputStream(Body body, List<ByteBuffer> buffers) {
+            this.body = body;
+            this.buffers = buffers;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                body.close();
+            }
+        }
+
+        private ByteBuffer current() {
+            while (index < buffers.size()) {
+                final ByteBuffer buffer = buffers.get(index);
+                if (buffer.hasRemaining()) {
+                    return buffer;
+                }
+                index++;
+            }
+            return null;
+        }
+
+        @Override
+        public int read() {
+            final ByteBuffer buffer = current();
+            return buffer == null ? -1 : buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] data, int offset, int count) {
+            if (count == 0) {
+                return 0;
+            }
+            final ByteBuffer buffer = current();
+            if (buffer == null) {
+                return -1;
+            }
+            final int size = Math.min(count, buffer.remaining());
+            buffer.get(data, offset, size);
+            return size;
+        }
+
+        @Override
+        public int available() {
+            final ByteBuffer buffer = current();
+            return buffer == null ? 0 : buffer.remaining();
+        }
+
+    }
+
+}
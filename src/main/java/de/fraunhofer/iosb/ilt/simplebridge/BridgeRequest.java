@@ -1,6 +1,7 @@
 package de.fraunhofer.iosb.ilt.simplebridge;
 
 import com.google.gson.annotations.Expose;
+import java.io.Closeable;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -8,7 +9,7 @@ import java.util.Map;
  *
  * @author hylke
  */
-public class BridgeRequest {
+public class BridgeRequest implements Closeable {
 
     @Expose
     public String resourceId;
@@ -19,6 +20,17 @@ public class BridgeRequest {
     @Expose
     public Map<String, String> headers = new HashMap<>();
     @Expose
-    public byte[] body;
+    public Body body = Body.EMPTY;
+
+    /**
+     * Releases the reference of this request to its body. The body must not be
+     * used through this request afterwards.
+     */
+    @Override
+    public void close() {
+        if (body != null) {
+            body.close();
+        }
+    }
 
 }
@@ -1,6 +1,7 @@
 package de.fraunhofer.iosb.ilt.simplebridge;
 
 import com.google.gson.annotations.Expose;
+import java.io.Closeable;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -8,13 +9,35 @@ import java.util.Map;
  *
  * @author hylke
  */
-public class BridgeResponse {
+public class BridgeResponse implements Closeable {
 
     @Expose
     public int statusCode;
     @Expose
     public Map<String, String> headers = new HashMap<>();
     @Expose
-    public byte[] body = new byte[0];
+    public Body body = Body.EMPTY;
+    /**
+     * Flag indicating this response was created by the Bridge because the
+     * server could not be reached. Not sent over links.
+     */
+    public transient boolean failed;
+    /**
+     * Flag indicating the request was cancelled by the Bridge, because another
+     * copy of it was answered first. This says nothing about the health of
+     * the server. Not sent over links.
+     */
+    public transient boolean cancelled;
+
+    /**
+     * Releases the reference of this response to its body. The body must not be
+     * used through this response afterwards.
+     */
+    @Override
+    public void close() {
+        if (body != null) {
+            body.close();
+        }
+    }
 
 }
@@ -0,0 +1,131 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.HandlerCollection;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.eclipse.jetty.websocket.server.config.JettyWebSocketServletContainerInitializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An embedded Jetty server running a Bridge with the given configuration.
+ *
+ * @author hylke
+ */
+public class BridgeServer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BridgeServer.class.getName());
+
+    private final int port;
+    private final String config;
+    private final JettySettings settings;
+    private volatile Server server;
+
+    /**
+     * @param port The port to listen on.
+     * @param config The configuration of the Bridge, as JSON.
+     */
+    public BridgeServer(int port, String config) {
+        this(port, config, null);
+    }
+
+    /**
+     * @param port The port to listen on.
+     * @param config The configuration of the Bridge, as JSON.
+     * @param settings The settings for the threads and the connector, or null
+     * for the defaults.
+     */
+    public BridgeServer(int port, String config, JettySettings settings) {
+        this.port = port;
+        this.config = config;
+        this.settings = settings == null ? new JettySettings() : settings;
+    }
+
+    /**
+     * Starts the server. Links to other Bridges are set up before this method
+     * returns.
+     */
+    public void start() {
+        server = new Server(createThreadPool());
+        HttpConfiguration httpConfig = new HttpConfiguration();
+        httpConfig.setOutputBufferSize(settings.getOutputBufferSize());
+        ServerConnector connector = new ServerConnector(server, settings.getAcceptors(), settings.getSelectors(), new HttpConnectionFactory(httpConfig));
+        connector.setPort(port);
+        connector.setIdleTimeout(settings.getIdleTimeout());
+        server.addConnector(connector);
+        HandlerCollection contextHandlerCollection = new HandlerCollection(true);
+        server.setHandler(contextHandlerCollection);
+
+        ServletContextHandler handler = new ServletContextHandler();
+        handler.getServletContext().setExtendedListenerTypes(true);
+        handler.setInitParameter(ServerConfig.TAG_SERVER_CONFIG, config);
+        handler.addEventListener(new ContextListener());
+        JettyWebSocketServletContainerInitializer.configure(handler, null);
+        handler.addServlet(LinkApi.class, "/link/*").setAsyncSupported(true);
+        handler.addServlet(LinkChannelServlet.class, LinkChannel.PATH);
+        handler.addServlet(RestApi.class, "/resource/*").setAsyncSupported(true);
+        handler.addServlet(MetricsServlet.class, "/metrics");
+        handler.addServlet(AdminApi.class, "/admin/config");
+        // Added before starting, so the server also stops the context, and
+        // the ContextListener closes the connections of the Bridge.
+        contextHandlerCollection.addHandler(handler);
+
+        LOGGER.info("Server starting...");
+        try {
+            server.start();
+        } catch (Exception ex) {
+            LOGGER.error("Exception starting server!");
+            throw new IllegalStateException(ex);
+        }
+        LOGGER.info("Server started.");
+    }
+
+    private ThreadPool createThreadPool() {
+        if (settings.isVirtualThreads()) {
+            final VirtualThreadPool pool = VirtualThreadPool.create();
+            if (pool != null) {
+                LOGGER.info("Using virtual threads.");
+                return pool;
+            }
+            LOGGER.warn("Virtual threads are not available on Java {}, using a thread pool.", System.getProperty("java.version"));
+        }
+        final int maxThreads = settings.getMaxThreads();
+        final int minThreads = Math.min(settings.getMinThreads(), maxThreads);
+        QueuedThreadPool pool = new QueuedThreadPool(maxThreads, minThreads, settings.getThreadIdleTimeout(), settings.getReservedThreads(), null, null);
+        pool.setName("bridge");
+        return pool;
+    }
+
+    /**
+     * Waits until the server is stopped.
+     *
+     * @throws InterruptedException If the thread was interrupted.
+     */
+    public void join() throws InterruptedException {
+        final Server current = server;
+        if (current != null) {
+            current.join();
+        }
+    }
+
+    /**
+     * Stops the server, if it is running.
+     */
+    public void stop() {
+        if (server == null) {
+            return;
+        }
+        try {
+            server.stop();
+        } catch (Exception ex) {
+            LOGGER.error("Exception stopping server", ex);
+        }
+        server = null;
+    }
+
+}
@@ -0,0 +1,182 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends messages over a link channel one at a time, without blocking the
+ * caller. Messages sent while another message is being written are queued, up
+ * to a limit. A message is written as a fragment per buffer of its body, so it
+ * is never copied into a single buffer.
+ *
+ * @author hylke
+ */
+public class ChannelSender implements WriteCallback {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChannelSender.class.getName());
+    /**
+     * The maximum number of messages waiting to be sent.
+     */
+    private static final int MAX_QUEUED_MESSAGES = 4096;
+    /**
+     * The maximum total size of the messages waiting to be sent. A larger
+     * message is still accepted when nothing is waiting.
+     */
+    private static final long MAX_QUEUED_BYTES = 64L * 1024 * 1024;
+
+    private final Session session;
+    private final Queue<Body> queue = new ArrayDeque<>();
+    private long queuedBytes;
+    private boolean sending;
+    private boolean closed;
+    /**
+     * Flag indicating a thread is in {@link #advance()}. A write that
+     * completes while it is set is picked up by that thread, so writes that
+     * complete right away do not recurse.
+     */
+    private boolean advancing;
+    private boolean written;
+
+    /**
+     * The message being written, and its fragments. Only used by the thread
+     * that is advancing.
+     */
+    private Body current;
+    private List<ByteBuffer> fragments;
+    private int index;
+
+    public ChannelSender(Session session) {
+        this.session = session;
+    }
+
+    /**
+     * Sends the message, or queues it if another message is being written,
+     * unless the queue is full. Takes over the reference of the caller to the
+     * message if it is accepted.
+     *
+     * @param message The message to send.
+     * @return false if the queue is full or the channel failed, in which case
+     * the caller still owns the message.
+     */
+    public boolean trySend(Body message) {
+        return offer(message, true);
+    }
+
+    /**
+     * Sends the message, or queues it if another message is being written,
+     * also when the queue is full. Only for small messages that must not be
+     * dropped. Takes over the reference of the caller to the message.
+     *
+     * @param message The message to send.
+     */
+    public void send(Body message) {
+        if (!offer(message, false)) {
+            message.close();
+        }
+    }
+
+    private boolean offer(Body message, boolean bounded) {
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            if (sending) {
+                if (bounded && !queue.isEmpty()
+                        && (queue.size() >= MAX_QUEUED_MESSAGES || queuedBytes + message.length() > MAX_QUEUED_BYTES)) {
+                    return false;
+                }
+                queue.add(message);
+                queuedBytes += message.length();
+                return true;
+            }
+            sending = true;
+            advancing = true;
+        }
+        start(message);
+        advance();
+        return true;
+    }
+
+    private void start(Body message) {
+        current = message;
+        fragments = message.buffers();
+        index = 0;
+    }
+
+    /**
+     * Writes the next fragment, and keeps going while writes complete right
+     * away.
+     */
+    private void advance() {
+        while (true) {
+            if (index < fragments.size()) {
+                final ByteBuffer fragment = fragments.get(index++);
+                session.getRemote().sendPartialBytes(fragment, index == fragments.size(), this);
+            } else {
+                final Body done = current;
+                current = null;
+                final Body next;
+                synchronized (this) {
+                    next = queue.poll();
+                    if (next == null) {
+                        // From here on, another thread may start a message.
+                        sending = false;
+                        advancing = false;
+                    } else {
+                        queuedBytes -= next.length();
+                    }
+                }
+                done.close();
+                if (next == null) {
+                    return;
+                }
+                start(next);
+                continue;
+            }
+            synchronized (this) {
+                if (!written) {
+                    advancing = false;
+                    return;
+                }
+                written = false;
+            }
+        }
+    }
+
+    @Override
+    public void writeSuccess() {
+        synchronized (this) {
+            if (advancing) {
+                written = true;
+                return;
+            }
+            advancing = true;
+        }
+        advance();
+    }
+
+    @Override
+    public void writeFailed(Throwable x) {
+        LOGGER.warn("Failed to write to link channel: {}", x.getMessage());
+        synchronized (this) {
+            closed = true;
+            sending = false;
+            advancing = false;
+            queue.forEach(Body::close);
+            queue.clear();
+            queuedBytes = 0;
+        }
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+        session.close();
+    }
+
+}
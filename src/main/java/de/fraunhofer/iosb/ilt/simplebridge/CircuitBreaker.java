@@ -0,0 +1,175 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops sending requests to a destination that keeps failing, so requests
+ * fail fast instead of waiting for the timeouts of an unresponsive server.
+ *
+ * After the configured number of failures in a row the breaker opens, and
+ * requests are rejected. When the open time has passed, a single probe request
+ * is let through. If it succeeds the breaker closes, otherwise it opens again.
+ *
+ * @author hylke
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class.getName());
+
+    public enum State {
+        CLOSED(0),
+        OPEN(1),
+        HALF_OPEN(2);
+
+        public final int value;
+
+        private State(int value) {
+            this.value = value;
+        }
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openNanos;
+
+    private final AtomicInteger failures = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder opened = new LongAdder();
+    private volatile State state = State.CLOSED;
+    private long openedAt;
+    private boolean probing;
+    private long probeAt;
+
+    /**
+     * @param name The name of the destination, used for logging.
+     * @param settings The settings of the destination, if null the defaults
+     * are used.
+     */
+    public CircuitBreaker(String name, PoolSettings settings) {
+        final PoolSettings actual = settings == null ? new PoolSettings() : settings;
+        this.name = name;
+        this.failureThreshold = actual.getBreakerThreshold();
+        this.openNanos = TimeUnit.SECONDS.toNanos(actual.getBreakerOpenTime());
+    }
+
+    /**
+     * @param name The name of the destination, used for logging.
+     * @param failureThreshold The number of failures in a row that open the
+     * breaker, 0 to never open it.
+     * @param openNanos The time the breaker stays open, in nanoseconds.
+     */
+    CircuitBreaker(String name, int failureThreshold, long openNanos) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openNanos;
+    }
+
+    /**
+     * Checks if a request may be sent. When this returns true, the outcome of
+     * the request must be passed to {@link #record(boolean)}.
+     *
+     * @return true if the request may be sent, false if it must be rejected.
+     */
+    public boolean allowRequest() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        synchronized (this) {
+            if (state == State.OPEN && System.nanoTime() - openedAt >= openNanos) {
+                state = State.HALF_OPEN;
+                probing = false;
+            }
+            // A probe that never reported back does not block the breaker.
+            if (state == State.HALF_OPEN && (!probing || System.nanoTime() - probeAt >= openNanos)) {
+                probing = true;
+                probeAt = System.nanoTime();
+                return true;
+            }
+            if (state == State.CLOSED) {
+                return true;
+            }
+        }
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * Records the outcome of a request that was allowed.
+     *
+     * @param success false if the destination could not be reached, or
+     * answered with an error that indicates it is unhealthy.
+     */
+    public void record(boolean success) {
+        if (failureThreshold <= 0) {
+            return;
+        }
+        if (success) {
+            if (state == State.CLOSED) {
+                if (failures.get() != 0) {
+                    failures.set(0);
+                }
+                return;
+            }
+            synchronized (this) {
+                if (state != State.CLOSED) {
+                    LOGGER.info("Circuit to {} closed.", name);
+                }
+                state = State.CLOSED;
+                failures.set(0);
+                probing = false;
+            }
+            return;
+        }
+        if (state == State.CLOSED && failures.incrementAndGet() < failureThreshold) {
+            return;
+        }
+        synchronized (this) {
+            if (state == State.OPEN) {
+                return;
+            }
+            LOGGER.warn("Circuit to {} opened after {} failures.", name, failures.get());
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+            probing = false;
+            opened.increment();
+        }
+    }
+
+    /**
+     * @return the number of seconds until a request is let through again,
+     * rounded up, or 0 if the breaker is not open.
+     */
+    public synchronized long getRetryAfterSeconds() {
+        if (state != State.OPEN) {
+            return 0;
+        }
+        final long remaining = openNanos - (System.nanoTime() - openedAt);
+        return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(remaining + TimeUnit.SECONDS.toNanos(1) - 1));
+    }
+
+    /**
+     * @return the state of the breaker.
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return the number of requests that were rejected.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return the number of times the breaker opened.
+     */
+    public long getOpened() {
+        return opened.sum();
+    }
+
+}
@@ -0,0 +1,259 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import de.fraunhofer.iosb.ilt.configurable.ConfigurationException;
+import de.fraunhofer.iosb.ilt.configurable.Utils;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replaces the configuration of a running Bridge. The new configuration,
+ * including its routing table and link discovery, is built next to the old
+ * one, while requests continue to use the old one. It is then published in the
+ * servlet context in a single step. New requests use the new configuration,
+ * running requests finish on the old one.
+ *
+ * Connection pools and links that are set up the same way in both
+ * configurations are taken over. The others are closed after the drain
+ * timeout of the new configuration.
+ *
+ * A reload is triggered by a POST to the admin api, or by a change to the
+ * config file of the configuration.
+ *
+ * @author hylke
+ */
+public class ConfigReloader implements AutoCloseable {
+
+    public static final String TAG_CONFIG_RELOADER = "configReloader";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConfigReloader.class.getName());
+    /**
+     * Editors often write a file in several steps, wait for the writes to
+     * settle before reading it.
+     */
+    private static final long SETTLE_MILLIS = 250;
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "config-reloader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ServletContext context;
+    private final Map<ServerConfig, ScheduledFuture<?>> draining = new HashMap<>();
+
+    private String currentConfig;
+    private Path watchedFile;
+    private WatchService watchService;
+    private boolean closed;
+
+    public ConfigReloader(ServletContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Loads the initial configuration and publishes it. When the configuration
+     * can not be loaded, an empty configuration is published.
+     *
+     * @param config The initial configuration, as JSON.
+     */
+    public synchronized void start(String config) {
+        ServerConfig serverConfig;
+        try {
+            serverConfig = load(config, null);
+            currentConfig = config;
+        } catch (ConfigurationException | RuntimeException ex) {
+            LOGGER.error("Failed to read server config!", ex);
+            serverConfig = new ServerConfig();
+        }
+        context.setAttribute(ServerConfig.TAG_SERVER_CONFIG, serverConfig);
+        watch(serverConfig.getConfigFile());
+    }
+
+    /**
+     * Builds a configuration, taking over what it can from the previous
+     * configuration.
+     *
+     * @param config The configuration, as JSON.
+     * @param previous The configuration the new one replaces, or null.
+     * @return The new configuration, with links and routing table set up.
+     * @throws ConfigurationException If the configuration is invalid.
+     */
+    public static ServerConfig load(String config, ServerConfig previous) throws ConfigurationException {
+        ServerConfig serverConfig = ServerConfig.fromString(config);
+        if (previous != null) {
+            serverConfig.adoptLinks(previous);
+        }
+        serverConfig.startDiscovery(previous);
+        return serverConfig;
+    }
+
+    /**
+     * Replaces the running configuration with the given one. Returns when the
+     * new configuration is in use. When the new configuration is invalid, the
+     * running configuration is kept.
+     *
+     * @param config The new configuration, as JSON.
+     * @return The new configuration.
+     * @throws ConfigurationException If the new configuration is invalid.
+     */
+    public synchronized ServerConfig reload(String config) throws ConfigurationException {
+        if (closed) {
+            throw new IllegalStateException("Bridge is shutting down.");
+        }
+        final long start = System.nanoTime();
+        final ServerConfig previous = ServerConfig.getServerConfig(context);
+        final ServerConfig next;
+        try {
+            next = load(config, previous);
+        } catch (RuntimeException ex) {
+            throw new ConfigurationException("Failed to load configuration: " + ex.getMessage(), ex);
+        }
+        context.setAttribute(ServerConfig.TAG_SERVER_CONFIG, next);
+        currentConfig = config;
+        if (previous != null) {
+            // Links may be shared, only the new configuration updates them.
+            previous.stopDiscovery();
+        }
+        LOGGER.info("Configuration reloaded in {} ms, draining the old configuration for {} s.",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), next.getDrainTimeout());
+        if (previous != null) {
+            drain(previous, next);
+        }
+        watch(next.getConfigFile());
+        return next;
+    }
+
+    private void drain(ServerConfig previous, ServerConfig next) {
+        ScheduledFuture<?> future = SCHEDULER.schedule(() -> {
+            synchronized (this) {
+                draining.remove(previous);
+            }
+            LOGGER.info("Closing connections of the previous configuration.");
+            previous.close(next);
+        }, next.getDrainTimeout(), TimeUnit.SECONDS);
+        draining.put(previous, future);
+    }
+
+    private void watch(String configFile) {
+        final Path file = Utils.isNullOrEmpty(configFile) ? null : Paths.get(configFile).toAbsolutePath();
+        if (file == null ? watchedFile == null : file.equals(watchedFile)) {
+            return;
+        }
+        stopWatching();
+        if (file == null) {
+            return;
+        }
+        try {
+            final WatchService service = FileSystems.getDefault().newWatchService();
+            file.getParent().register(service,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            watchService = service;
+            watchedFile = file;
+            Thread thread = new Thread(() -> watchLoop(service, file), "config-watcher");
+            thread.setDaemon(true);
+            thread.start();
+            LOGGER.info("Watching {} for configuration changes.", file);
+        } catch (IOException ex) {
+            LOGGER.error("Failed to watch config file {}", file, ex);
+        }
+    }
+
+    private void stopWatching() {
+        if (watchService == null) {
+            return;
+        }
+        try {
+            watchService.close();
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to stop watching {}", watchedFile, ex);
+        }
+        watchService = null;
+        watchedFile = null;
+    }
+
+    private void watchLoop(WatchService service, Path file) {
+        final Path fileName = file.getFileName();
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (fileName.equals(event.context())) {
+                        changed = true;
+                    }
+                }
+                key.reset();
+                if (changed) {
+                    Thread.sleep(SETTLE_MILLIS);
+                    // Drop the events of the remaining writes.
+                    WatchKey more = service.poll();
+                    if (more != null) {
+                        more.pollEvents();
+                        more.reset();
+                    }
+                    reloadFromFile(file);
+                }
+            }
+        } catch (ClosedWatchServiceException ex) {
+            // Stopped watching.
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void reloadFromFile(Path file) {
+        final String config;
+        try {
+            config = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            LOGGER.error("Failed to read config file {}", file, ex);
+            return;
+        }
+        synchronized (this) {
+            if (closed || config.equals(currentConfig)) {
+                return;
+            }
+            LOGGER.info("Config file {} changed, reloading.", file);
+            try {
+                reload(config);
+            } catch (ConfigurationException ex) {
+                LOGGER.error("Failed to reload configuration from {}, keeping the running configuration.", file, ex);
+            }
+        }
+    }
+
+    /**
+     * Stops watching the config file, and closes the configurations that are
+     * still draining. Does not close the running configuration.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        stopWatching();
+        for (Map.Entry<ServerConfig, ScheduledFuture<?>> entry : draining.entrySet()) {
+            entry.getValue().cancel(false);
+            entry.getKey().close(ServerConfig.getServerConfig(context));
+        }
+        draining.clear();
+    }
+
+}
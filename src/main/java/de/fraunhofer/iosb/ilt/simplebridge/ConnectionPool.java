@@ -0,0 +1,442 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.NHttpClientConnection;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.ConnectingIOReactor;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pooled HTTP client for a single destination: the upstream server of an
+ * endpoint, or another Bridge. The blocking and the non-blocking client are
+ * each created on first use, and keep track of the time requests have to wait
+ * for a connection from the pool.
+ *
+ * Requests of the blocking client wait for a free connection on semaphores,
+ * before asking the pool for one. The pool of HttpClient waits while holding a
+ * monitor, which pins a virtual thread to its carrier thread. The semaphores
+ * ensure the pool has a free connection when it is asked for one.
+ *
+ * @author hylke
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionPool.class.getName());
+
+    /**
+     * Closes idle and expired connections of the non-blocking clients.
+     */
+    private static final ScheduledExecutorService EVICTOR = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "pool-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String name;
+    private final PoolSettings settings;
+    private final boolean contentCompression;
+    private final CircuitBreaker circuitBreaker;
+
+    private volatile CloseableHttpClient client;
+    private PoolingHttpClientConnectionManager connectionManager;
+    private volatile CloseableHttpAsyncClient asyncClient;
+    private PoolingNHttpClientConnectionManager asyncConnectionManager;
+    private ScheduledFuture<?> asyncEvictor;
+    private boolean closed;
+
+    private final LongAdder leaseCount = new LongAdder();
+    private final LongAdder leaseNanosTotal = new LongAdder();
+    private final AtomicLong leaseNanosMax = new AtomicLong();
+
+    /**
+     * @param name The name of the destination, used for logging.
+     * @param settings The settings to use, if null the defaults are used.
+     */
+    public ConnectionPool(String name, PoolSettings settings) {
+        this(name, settings, true);
+    }
+
+    /**
+     * @param name The name of the destination, used for logging.
+     * @param settings The settings to use, if null the defaults are used.
+     * @param contentCompression Flag indicating the blocking client should ask
+     * for compressed responses, and decompress them transparently.
+     */
+    public ConnectionPool(String name, PoolSettings settings, boolean contentCompression) {
+        this.name = name;
+        this.settings = settings == null ? new PoolSettings() : settings;
+        this.contentCompression = contentCompression;
+        this.circuitBreaker = new CircuitBreaker(name, this.settings);
+    }
+
+    /**
+     * @return the client, created on first use.
+     */
+    public CloseableHttpClient getClient() {
+        CloseableHttpClient result = client;
+        if (result == null) {
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("Connection pool for " + name + " is closed.");
+                }
+                result = client;
+                if (result == null) {
+                    result = createClient();
+                    client = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private CloseableHttpClient createClient() {
+        LOGGER.info("Creating connection pool for {}: max {}, per route {}", name, settings.getMaxTotal(), settings.getMaxPerRoute());
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", SSLConnectionSocketFactory.getSystemSocketFactory())
+                .build();
+        connectionManager = new TimedConnectionManager(registry, settings.getMaxTotal(), settings.getMaxPerRoute());
+        HttpClientBuilder builder = HttpClients.custom()
+                .useSystemProperties()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(createRequestConfig())
+                .setKeepAliveStrategy(createKeepAliveStrategy())
+                .evictExpiredConnections()
+                .evictIdleConnections(settings.getIdleTimeout(), TimeUnit.SECONDS);
+        if (!contentCompression) {
+            builder.disableContentCompression();
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the non-blocking client, created and started on first use.
+     */
+    public CloseableHttpAsyncClient getAsyncClient() {
+        CloseableHttpAsyncClient result = asyncClient;
+        if (result == null) {
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("Connection pool for " + name + " is closed.");
+                }
+                result = asyncClient;
+                if (result == null) {
+                    result = createAsyncClient();
+                    result.start();
+                    asyncClient = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private CloseableHttpAsyncClient createAsyncClient() {
+        LOGGER.info("Creating non-blocking connection pool for {}: max {}, per route {}, IO threads {}", name, settings.getMaxTotal(), settings.getMaxPerRoute(), settings.getIoThreads());
+        ConnectingIOReactor ioReactor;
+        try {
+            ioReactor = new DefaultConnectingIOReactor(IOReactorConfig.custom()
+                    .setIoThreadCount(settings.getIoThreads())
+                    .setConnectTimeout(settings.getConnectTimeout())
+                    .setSoTimeout(settings.getSocketTimeout())
+                    .build());
+        } catch (IOReactorException ex) {
+            throw new IllegalStateException("Failed to create IO reactor for " + name, ex);
+        }
+        Registry<SchemeIOSessionStrategy> registry = RegistryBuilder.<SchemeIOSessionStrategy>create()
+                .register("http", NoopIOSessionStrategy.INSTANCE)
+                .register("https", SSLIOSessionStrategy.getSystemDefaultStrategy())
+                .build();
+        asyncConnectionManager = new TimedNConnectionManager(ioReactor, registry);
+        asyncConnectionManager.setMaxTotal(settings.getMaxTotal());
+        asyncConnectionManager.setDefaultMaxPerRoute(settings.getMaxPerRoute());
+        final PoolingNHttpClientConnectionManager manager = asyncConnectionManager;
+        final long idleTimeout = settings.getIdleTimeout();
+        asyncEvictor = EVICTOR.scheduleWithFixedDelay(() -> {
+            manager.closeExpiredConnections();
+            manager.closeIdleConnections(idleTimeout, TimeUnit.SECONDS);
+        }, idleTimeout, idleTimeout, TimeUnit.SECONDS);
+        return HttpAsyncClients.custom()
+                .useSystemProperties()
+                .setConnectionManager(asyncConnectionManager)
+                .setDefaultRequestConfig(createRequestConfig())
+                .setKeepAliveStrategy(createKeepAliveStrategy())
+                .build();
+    }
+
+    private RequestConfig createRequestConfig() {
+        return RequestConfig.custom()
+                .setConnectTimeout(settings.getConnectTimeout())
+                .setSocketTimeout(settings.getSocketTimeout())
+                .setConnectionRequestTimeout(settings.getLeaseTimeout())
+                .build();
+    }
+
+    private ConnectionKeepAliveStrategy createKeepAliveStrategy() {
+        final long keepAliveMillis = TimeUnit.SECONDS.toMillis(settings.getKeepAlive());
+        return (response, context) -> {
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration > 0 ? duration : keepAliveMillis;
+        };
+    }
+
+    /**
+     * @return the circuit breaker of the destination of this pool.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * @return the settings of this pool.
+     */
+    public PoolSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * @return the name of the destination of this pool.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the number of connections leased from the pool.
+     */
+    public long getLeaseCount() {
+        return leaseCount.sum();
+    }
+
+    /**
+     * @return the total time requests waited for a connection, in nanoseconds.
+     */
+    public long getLeaseNanosTotal() {
+        return leaseNanosTotal.sum();
+    }
+
+    /**
+     * @return the longest time a request waited for a connection, in
+     * nanoseconds.
+     */
+    public long getLeaseNanosMax() {
+        return leaseNanosMax.get();
+    }
+
+    /**
+     * @return the current statistics of the pool, or null if the pool has not
+     * been created yet.
+     */
+    public PoolStats getStats() {
+        synchronized (this) {
+            if (closed) {
+                return null;
+            }
+            if (connectionManager != null) {
+                return connectionManager.getTotalStats();
+            }
+            if (asyncConnectionManager != null) {
+                return asyncConnectionManager.getTotalStats();
+            }
+            return null;
+        }
+    }
+
+    private void recordLease(long nanos) {
+        leaseCount.increment();
+        leaseNanosTotal.add(nanos);
+        long max = leaseNanosMax.get();
+        while (nanos > max && !leaseNanosMax.compareAndSet(max, nanos)) {
+            max = leaseNanosMax.get();
+        }
+    }
+
+    @Override
+    public void close() {
+        Closeable[] toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new Closeable[]{client, asyncClient};
+            client = null;
+            asyncClient = null;
+            if (asyncEvictor != null) {
+                asyncEvictor.cancel(false);
+                asyncEvictor = null;
+            }
+        }
+        for (Closeable closeable : toClose) {
+            if (closeable == null) {
+                continue;
+            }
+            LOGGER.info("Closing connection pool for {}", name);
+            try {
+                closeable.close();
+            } catch (IOException ex) {
+                LOGGER.warn("Failed to close connection pool for {}", name, ex);
+            }
+        }
+    }
+
+    /**
+     * A connection manager that measures how long requests wait for a
+     * connection, and lets them wait on semaphores instead of in the pool.
+     */
+    private class TimedConnectionManager extends PoolingHttpClientConnectionManager {
+
+        private final int maxPerRoute;
+        private final Semaphore totalPermits;
+        private final Map<HttpRoute, Semaphore> routePermits = new ConcurrentHashMap<>();
+        /**
+         * The route permits held by the leased connections.
+         */
+        private final Map<HttpClientConnection, Semaphore> leased = new ConcurrentHashMap<>();
+
+        public TimedConnectionManager(Registry<ConnectionSocketFactory> registry, int maxTotal, int maxPerRoute) {
+            super(registry);
+            setMaxTotal(maxTotal);
+            setDefaultMaxPerRoute(maxPerRoute);
+            this.maxPerRoute = maxPerRoute;
+            this.totalPermits = new Semaphore(maxTotal, true);
+        }
+
+        @Override
+        public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+            final ConnectionRequest request = super.requestConnection(route, state);
+            final Semaphore permits = routePermits.computeIfAbsent(route, r -> new Semaphore(maxPerRoute, true));
+            return new ConnectionRequest() {
+                @Override
+                public HttpClientConnection get(long timeout, TimeUnit timeUnit) throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                    final long start = System.nanoTime();
+                    try {
+                        // A timeout of 0 means waiting forever.
+                        final long deadline = timeout > 0 ? start + timeUnit.toNanos(timeout) : 0;
+                        acquire(permits, deadline);
+                        try {
+                            acquire(totalPermits, deadline);
+                        } catch (InterruptedException | ConnectionPoolTimeoutException ex) {
+                            permits.release();
+                            throw ex;
+                        }
+                        try {
+                            final HttpClientConnection connection = request.get(timeout, timeUnit);
+                            leased.put(connection, permits);
+                            return connection;
+                        } catch (InterruptedException | ExecutionException | ConnectionPoolTimeoutException | RuntimeException ex) {
+                            totalPermits.release();
+                            permits.release();
+                            throw ex;
+                        }
+                    } finally {
+                        recordLease(System.nanoTime() - start);
+                    }
+                }
+
+                @Override
+                public boolean cancel() {
+                    return request.cancel();
+                }
+            };
+        }
+
+        private void acquire(Semaphore semaphore, long deadline) throws InterruptedException, ConnectionPoolTimeoutException {
+            if (deadline == 0) {
+                semaphore.acquire();
+            } else if (!semaphore.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                throw new ConnectionPoolTimeoutException("Timeout waiting for connection from pool");
+            }
+        }
+
+        @Override
+        public void releaseConnection(HttpClientConnection managedConn, Object state, long keepalive, TimeUnit timeUnit) {
+            try {
+                super.releaseConnection(managedConn, state, keepalive, timeUnit);
+            } finally {
+                // Released after the pool got the connection back, so a
+                // waiting request always finds it there.
+                final Semaphore permits = leased.remove(managedConn);
+                if (permits != null) {
+                    permits.release();
+                    totalPermits.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * A non-blocking connection manager that measures how long requests wait
+     * for a connection.
+     */
+    private class TimedNConnectionManager extends PoolingNHttpClientConnectionManager {
+
+        public TimedNConnectionManager(ConnectingIOReactor ioReactor, Registry<SchemeIOSessionStrategy> registry) {
+            super(ioReactor, registry);
+        }
+
+        @Override
+        public Future<NHttpClientConnection> requestConnection(HttpRoute route, Object state, long connectTimeout, long leaseTimeout, TimeUnit timeUnit, FutureCallback<NHttpClientConnection> callback) {
+            final long start = System.nanoTime();
+            return super.requestConnection(route, state, connectTimeout, leaseTimeout, timeUnit, new FutureCallback<NHttpClientConnection>() {
+                @Override
+                public void completed(NHttpClientConnection result) {
+                    recordLease(System.nanoTime() - start);
+                    if (callback != null) {
+                        callback.completed(result);
+                    }
+                }
+
+                @Override
+                public void failed(Exception ex) {
+                    recordLease(System.nanoTime() - start);
+                    if (callback != null) {
+                        callback.failed(ex);
+                    }
+                }
+
+                @Override
+                public void cancelled() {
+                    if (callback != null) {
+                        callback.cancelled();
+                    }
+                }
+            });
+        }
+    }
+}
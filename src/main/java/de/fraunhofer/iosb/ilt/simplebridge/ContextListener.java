@@ -17,7 +17,6 @@
  */
 package de.fraunhofer.iosb.ilt.simplebridge;
 
-import de.fraunhofer.iosb.ilt.configurable.ConfigurationException;
 import java.io.IOException;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
@@ -25,11 +24,7 @@ import javax.servlet.ServletContextListener;
 import javax.servlet.annotation.WebListener;
 import org.apache.http.Consts;
 import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.entity.ContentType;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,40 +44,25 @@ public class ContextListener implements ServletContextListener {
             ServletContext context = sce.getServletContext();
 
             String serverConfigString = context.getInitParameter(ServerConfig.TAG_SERVER_CONFIG);
-            ServerConfig serverConfig;
-            try {
-                serverConfig = ServerConfig.fromString(serverConfigString);
-                initLinks(serverConfig);
-            } catch (ConfigurationException ex) {
-                LOGGER.error("Failed to read server config!", ex);
-                serverConfig = new ServerConfig();
-            }
-
-            context.setAttribute(ServerConfig.TAG_SERVER_CONFIG, serverConfig);
+            ConfigReloader reloader = new ConfigReloader(context);
+            context.setAttribute(ConfigReloader.TAG_CONFIG_RELOADER, reloader);
+            reloader.start(serverConfigString);
         }
     }
 
-    private void initLinks(ServerConfig serverConfig) {
-        LOGGER.info("Initialising links...");
-        CloseableHttpClient client = HttpClients.createSystem();
-        for (String linkUrl : serverConfig.getLinkServers()) {
-            LOGGER.info("Link: {}", linkUrl);
-            HttpGet httpGet = new HttpGet(linkUrl + "/link");
-            httpGet.addHeader("Accept", ContentType.APPLICATION_JSON.getMimeType());
-            try (CloseableHttpResponse response = client.execute(httpGet)) {
-                String content = throwIfNotOk(httpGet, response);
-                ServerConfig otherConfig = ServerConfig.fromString(content);
-                for (EndPoint endPoint : otherConfig.getEndpoints()) {
-                    endPoint.setLinkUrl(linkUrl);
-                    serverConfig.getEndpoints().add(endPoint);
-                }
-            } catch (IOException ex) {
-                LOGGER.error("Failed to connect to {}", linkUrl, ex);
-            } catch (ConfigurationException ex) {
-                LOGGER.error("Failed to parse server config from {}", linkUrl, ex);
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+        if (sce != null && sce.getServletContext() != null) {
+            Object reloader = sce.getServletContext().getAttribute(ConfigReloader.TAG_CONFIG_RELOADER);
+            if (reloader instanceof ConfigReloader) {
+                ((ConfigReloader) reloader).close();
+            }
+            Object serverConfig = sce.getServletContext().getAttribute(ServerConfig.TAG_SERVER_CONFIG);
+            if (serverConfig instanceof ServerConfig) {
+                LOGGER.info("Context destroyed, closing connections.");
+                ((ServerConfig) serverConfig).close();
             }
         }
-
     }
 
     public static String throwIfNotOk(HttpRequestBase request, CloseableHttpResponse response) {
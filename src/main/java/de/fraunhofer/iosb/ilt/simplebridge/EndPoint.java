@@ -2,12 +2,23 @@ package de.fraunhofer.iosb.ilt.simplebridge;
 
 import com.google.gson.annotations.Expose;
 import de.fraunhofer.iosb.ilt.configurable.AnnotatedConfigurable;
+import de.fraunhofer.iosb.ilt.configurable.Utils;
 import de.fraunhofer.iosb.ilt.configurable.annotations.ConfigurableClass;
 import de.fraunhofer.iosb.ilt.configurable.annotations.ConfigurableField;
+import de.fraunhofer.iosb.ilt.configurable.editor.EditorBoolean;
+import de.fraunhofer.iosb.ilt.configurable.editor.EditorClass;
+import de.fraunhofer.iosb.ilt.configurable.editor.EditorInt;
 import de.fraunhofer.iosb.ilt.configurable.editor.EditorList;
 import de.fraunhofer.iosb.ilt.configurable.editor.EditorString;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
@@ -16,6 +27,8 @@ import java.util.UUID;
 @ConfigurableClass()
 public class EndPoint implements AnnotatedConfigurable<Void, Void> {
 
+    private static final CompletableFuture<BridgeResponse> ADMITTED = CompletableFuture.completedFuture(null);
+
     @ConfigurableField(editor = EditorString.class, optional = true,
             label = "LinkUrl", description = "The Bridges that this endpoint belongs to.")
     @EditorString.EdOptsString(dflt = "")
@@ -28,15 +41,50 @@ public class EndPoint implements AnnotatedConfigurable<Void, Void> {
     @Expose
     private String baseUrl;
 
+    @ConfigurableField(editor = EditorList.class, optional = true,
+            label = "Replicas", description = "The URLs of further replicas of the upstream server. Requests are balanced over the BaseUrl and these.")
+    @EditorList.EdOptsList(editor = EditorString.class)
+    @EditorString.EdOptsString(dflt = "http://server2.de/path/to/api")
+    @Expose
+    private List<String> replicas;
+
     @ConfigurableField(editor = EditorString.class, optional = false,
             label = "ResourceId", description = "The ID used to access this resource.")
     @EditorString.EdOptsString(dflt = "")
     @Expose
     private String resourceId = UUID.randomUUID().toString();
 
+    @ConfigurableField(editor = EditorClass.class, optional = true,
+            label = "Connection Pool", description = "The settings for the connections to the upstream server.")
+    @EditorClass.EdOptsClass(clazz = PoolSettings.class)
+    @Expose
+    private PoolSettings pool;
+
+    @ConfigurableField(editor = EditorClass.class, optional = true,
+            label = "Limits", description = "The limits on the requests to this endpoint.")
+    @EditorClass.EdOptsClass(clazz = LimitSettings.class)
+    @Expose
+    private LimitSettings limits;
+
     @Expose
     private String localUrl = "";
 
+    private Link link;
+
+    /**
+     * The size in bytes above which the bodies of the requests and responses
+     * of this endpoint are buffered in a file, set from the configuration.
+     */
+    private long spillThreshold;
+
+    private volatile ConnectionPool connectionPool;
+
+    private volatile UpstreamBalancer balancer;
+
+    private volatile AdmissionControl admissionControl;
+
+    private final Map<String, RequestMetrics> metrics = new ConcurrentHashMap<>();
+
     @ConfigurableField(editor = EditorList.class, optional = true,
             label = "Allowed Headers", description = "Allowed Request headers")
     @EditorList.EdOptsList(editor = EditorString.class)
@@ -51,6 +99,48 @@ public class EndPoint implements AnnotatedConfigurable<Void, Void> {
     @Expose
     private List<String> methodsAllowlist;
 
+    @ConfigurableField(editor = EditorBoolean.class, optional = true,
+            label = "Streaming", description = "Stream request and response bodies to and from the upstream server, instead of buffering them. Only used when the endpoint is not reached through a link.")
+    @EditorBoolean.EdOptsBool(dflt = true)
+    @Expose
+    private boolean streaming = true;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Cache TTL", description = "The time in seconds to cache responses, overriding the caching headers of the upstream server. -1 to follow the caching headers, 0 to never cache responses.")
+    @EditorInt.EdOptsInt(dflt = -1, min = -1, max = Integer.MAX_VALUE)
+    @Expose
+    private int cacheTtl = -1;
+
+    @ConfigurableField(editor = EditorString.class, optional = true,
+            label = "Balancing", description = "How requests are balanced over the replicas: least-outstanding sends each request to the replica with the fewest running requests, ewma to the replica with the lowest average latency.")
+    @EditorString.EdOptsString(dflt = UpstreamBalancer.STRATEGY_LEAST_OUTSTANDING)
+    @Expose
+    private String balancing = UpstreamBalancer.STRATEGY_LEAST_OUTSTANDING;
+
+    @ConfigurableField(editor = EditorString.class, optional = true,
+            label = "Health Path", description = "The path, relative to the url of a replica, that is requested to check the health of the replica.")
+    @EditorString.EdOptsString(dflt = "")
+    @Expose
+    private String healthPath = "";
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Health Interval", description = "The number of seconds between health checks of the replicas. 0 disables health checks. Only used when there are replicas.")
+    @EditorInt.EdOptsInt(dflt = 10, min = 0, max = 3600)
+    @Expose
+    private int healthInterval = 10;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Health Threshold", description = "The number of failed health checks in a row after which a replica is no longer used.")
+    @EditorInt.EdOptsInt(dflt = 2, min = 1, max = 100)
+    @Expose
+    private int healthThreshold = 2;
+
+    @ConfigurableField(editor = EditorBoolean.class, optional = true,
+            label = "Hedging", description = "Send a GET that has not been answered within the 95th percentile of the recent latencies to a second replica, and use the first answer. Only used when there are replicas.")
+    @EditorBoolean.EdOptsBool(dflt = false)
+    @Expose
+    private boolean hedging;
+
     /**
      * @return the linkUrl
      */
@@ -65,6 +155,244 @@ public class EndPoint implements AnnotatedConfigurable<Void, Void> {
         this.linkUrl = linkUrl;
     }
 
+    /**
+     * @return the link this endpoint is reached through, or null for direct
+     * endpoints.
+     */
+    public Link getLink() {
+        return link;
+    }
+
+    /**
+     * @param link the link to set
+     */
+    public void setLink(Link link) {
+        this.link = link;
+    }
+
+    /**
+     * @return the size in bytes above which the bodies of the requests and
+     * responses of this endpoint are buffered in a file, 0 to buffer them in
+     * memory
+     */
+    public long getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    /**
+     * @param spillThreshold the size in bytes above which the bodies of the
+     * requests and responses of this endpoint are buffered in a file
+     */
+    public void setSpillThreshold(long spillThreshold) {
+        this.spillThreshold = spillThreshold;
+    }
+
+    /**
+     * @return the pool settings
+     */
+    public PoolSettings getPool() {
+        return pool;
+    }
+
+    /**
+     * @param pool the pool settings to set
+     */
+    public void setPool(PoolSettings pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return the limits on the requests to this endpoint
+     */
+    public LimitSettings getLimits() {
+        return limits;
+    }
+
+    /**
+     * @param limits the limits on the requests to this endpoint to set
+     */
+    public void setLimits(LimitSettings limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * @return the admission control that enforces the limits of this
+     * endpoint, created on first use.
+     */
+    public AdmissionControl getAdmissionControl() {
+        AdmissionControl result = admissionControl;
+        if (result == null) {
+            synchronized (this) {
+                result = admissionControl;
+                if (result == null) {
+                    result = new AdmissionControl(resourceId, limits);
+                    admissionControl = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the admission control of this endpoint, or null if it has not
+     * been created.
+     */
+    AdmissionControl peekAdmissionControl() {
+        return admissionControl;
+    }
+
+    /**
+     * Asks for admission of a request to this endpoint, by the limits of the
+     * endpoint and, for a linked endpoint, of the link. When the request is
+     * admitted, {@link #release()} must be called when it is done.
+     *
+     * @return A future that completes with null if the request is admitted,
+     * or with the response to send if it is rejected.
+     */
+    public CompletableFuture<BridgeResponse> admit() {
+        final AdmissionControl own = getAdmissionControl();
+        final AdmissionControl linkControl = link == null ? null : link.getAdmissionControl();
+        if (!own.isEnabled() && (linkControl == null || !linkControl.isEnabled())) {
+            return ADMITTED;
+        }
+        return own.acquire().thenCompose(result -> {
+            if (result != AdmissionControl.Result.ADMITTED) {
+                return CompletableFuture.completedFuture(LinkApi.createRejectedResponse(own, result));
+            }
+            if (linkControl == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return linkControl.acquire().thenApply(linkResult -> {
+                if (linkResult == AdmissionControl.Result.ADMITTED) {
+                    return null;
+                }
+                own.release();
+                return LinkApi.createRejectedResponse(linkControl, linkResult);
+            });
+        });
+    }
+
+    /**
+     * Ends a request that was admitted by {@link #admit()}.
+     */
+    public void release() {
+        if (link != null) {
+            link.getAdmissionControl().release();
+        }
+        getAdmissionControl().release();
+    }
+
+    /**
+     * @return the connection pool for the upstream server of this endpoint,
+     * created on first use.
+     */
+    public ConnectionPool getConnectionPool() {
+        ConnectionPool result = connectionPool;
+        if (result == null) {
+            synchronized (this) {
+                result = connectionPool;
+                if (result == null) {
+                    result = new ConnectionPool(baseUrl, pool);
+                    connectionPool = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Closes the connection pool of this endpoint, if it was created.
+     */
+    public synchronized void closeConnectionPool() {
+        if (connectionPool != null) {
+            connectionPool.close();
+            connectionPool = null;
+        }
+    }
+
+    /**
+     * @return the balancer that chooses the replica for each request, created
+     * on first use.
+     */
+    public UpstreamBalancer getBalancer() {
+        UpstreamBalancer result = balancer;
+        if (result == null) {
+            synchronized (this) {
+                result = balancer;
+                if (result == null) {
+                    result = new UpstreamBalancer(this);
+                    result.start();
+                    balancer = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stops the health checks of this endpoint, if they were started.
+     */
+    public synchronized void closeBalancer() {
+        if (balancer != null) {
+            balancer.close();
+            balancer = null;
+        }
+    }
+
+    /**
+     * @return the balancer of this endpoint, or null if it has not been
+     * created.
+     */
+    UpstreamBalancer peekBalancer() {
+        return balancer;
+    }
+
+    /**
+     * @return the connection pool for the upstream server of this endpoint, or
+     * null if it has not been created.
+     */
+    ConnectionPool peekConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Takes over the state of an endpoint that this endpoint replaces after a
+     * configuration reload: the metrics, the admission control if the limits
+     * are the same, the connection pool if it connects to
+     * the same upstream servers with the same settings, and the balancer with
+     * the health of the replicas if its settings are also the same.
+     *
+     * @param previous The endpoint with the same resourceId in the previous
+     * configuration.
+     */
+    void adopt(EndPoint previous) {
+        for (RequestMetrics previousMetrics : previous.getAllMetrics()) {
+            metrics.putIfAbsent(previousMetrics.getMethod(), previousMetrics);
+        }
+        if (LimitSettings.same(limits, previous.limits)) {
+            synchronized (this) {
+                if (admissionControl == null) {
+                    admissionControl = previous.peekAdmissionControl();
+                }
+            }
+        }
+        if (Utils.isNullOrEmpty(linkUrl)
+                && Utils.isNullOrEmpty(previous.linkUrl)
+                && Objects.equals(baseUrl, previous.baseUrl)
+                && Objects.equals(replicas, previous.replicas)
+                && PoolSettings.same(pool, previous.pool)) {
+            synchronized (this) {
+                if (connectionPool == null) {
+                    connectionPool = previous.peekConnectionPool();
+                }
+                final UpstreamBalancer previousBalancer = previous.peekBalancer();
+                if (balancer == null && connectionPool != null && previousBalancer != null && previousBalancer.matches(this)) {
+                    balancer = previousBalancer;
+                }
+            }
+        }
+    }
+
     /**
      * @return the baseUrl
      */
@@ -79,6 +407,37 @@ public class EndPoint implements AnnotatedConfigurable<Void, Void> {
         this.baseUrl = baseUrl;
     }
 
+    /**
+     * @return the urls of further replicas of the upstream server
+     */
+    public List<String> getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * @param replicas the urls of further replicas of the upstream server
+     */
+    public void setReplicas(List<String> replicas) {
+        this.replicas = replicas;
+    }
+
+    /**
+     * @return the baseUrl followed by the urls of the replicas.
+     */
+    public List<String> getUpstreamUrls() {
+        if (replicas == null || replicas.isEmpty()) {
+            return Collections.singletonList(baseUrl);
+        }
+        List<String> result = new ArrayList<>(replicas.size() + 1);
+        result.add(baseUrl);
+        for (String replica : replicas) {
+            if (!Utils.isNullOrEmpty(replica) && !result.contains(replica)) {
+                result.add(replica);
+            }
+        }
+        return result;
+    }
+
     /**
      * @return the resourceId
      */
@@ -138,4 +497,128 @@ public class EndPoint implements AnnotatedConfigurable<Void, Void> {
         this.methodsAllowlist = methodsAllowlist;
     }
 
+    /**
+     * @return the streaming flag
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * @param streaming the streaming flag to set
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * @return the cache time to live, in seconds. -1 means the caching headers
+     * of the upstream server are used, 0 means responses are never cached.
+     */
+    public int getCacheTtl() {
+        return cacheTtl;
+    }
+
+    /**
+     * @param cacheTtl the cache time to live to set, in seconds
+     */
+    public void setCacheTtl(int cacheTtl) {
+        this.cacheTtl = cacheTtl;
+    }
+
+    /**
+     * @return the balancing strategy
+     */
+    public String getBalancing() {
+        return balancing;
+    }
+
+    /**
+     * @param balancing the balancing strategy to set
+     */
+    public void setBalancing(String balancing) {
+        this.balancing = balancing;
+    }
+
+    /**
+     * @return the path requested to check the health of a replica
+     */
+    public String getHealthPath() {
+        return healthPath;
+    }
+
+    /**
+     * @param healthPath the path requested to check the health of a replica
+     */
+    public void setHealthPath(String healthPath) {
+        this.healthPath = healthPath;
+    }
+
+    /**
+     * @return the number of seconds between health checks
+     */
+    public int getHealthInterval() {
+        return healthInterval;
+    }
+
+    /**
+     * @param healthInterval the number of seconds between health checks
+     */
+    public void setHealthInterval(int healthInterval) {
+        this.healthInterval = healthInterval;
+    }
+
+    /**
+     * @return the number of failed health checks that eject a replica
+     */
+    public int getHealthThreshold() {
+        return healthThreshold;
+    }
+
+    /**
+     * @param healthThreshold the number of failed health checks that eject a
+     * replica
+     */
+    public void setHealthThreshold(int healthThreshold) {
+        this.healthThreshold = healthThreshold;
+    }
+
+    /**
+     * @return the hedging flag
+     */
+    public boolean isHedging() {
+        return hedging;
+    }
+
+    /**
+     * @param hedging the hedging flag to set
+     */
+    public void setHedging(boolean hedging) {
+        this.hedging = hedging;
+    }
+
+    /**
+     * Returns the metrics of the requests with the given method to this
+     * endpoint, creating them if they do not exist yet. Methods that are not
+     * standard HTTP methods share a single set of metrics.
+     *
+     * @param method The method of the requests.
+     * @return the metrics for the given method.
+     */
+    public RequestMetrics getMetrics(String method) {
+        final String metricsMethod = RequestMetrics.getMetricsMethod(method);
+        RequestMetrics result = metrics.get(metricsMethod);
+        if (result == null) {
+            result = metrics.computeIfAbsent(metricsMethod, m -> new RequestMetrics(resourceId, m));
+        }
+        return result;
+    }
+
+    /**
+     * @return the metrics of all methods that were used on this endpoint.
+     */
+    public Collection<RequestMetrics> getAllMetrics() {
+        return metrics.values();
+    }
+
 }
@@ -0,0 +1,204 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import com.google.gson.annotations.Expose;
+import de.fraunhofer.iosb.ilt.configurable.AnnotatedConfigurable;
+import de.fraunhofer.iosb.ilt.configurable.annotations.ConfigurableClass;
+import de.fraunhofer.iosb.ilt.configurable.annotations.ConfigurableField;
+import de.fraunhofer.iosb.ilt.configurable.editor.EditorBoolean;
+import de.fraunhofer.iosb.ilt.configurable.editor.EditorInt;
+
+/**
+ * The settings for the threads and the connector of the embedded Jetty
+ * server. These are used when the server starts, reloading the configuration
+ * does not change them.
+ *
+ * @author hylke
+ */
+@ConfigurableClass()
+public class JettySettings implements AnnotatedConfigurable<Void, Void> {
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Min Threads", description = "The minimum number of threads in the pool.")
+    @EditorInt.EdOptsInt(dflt = 8, min = 1, max = 10000)
+    @Expose
+    private int minThreads = 8;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Max Threads", description = "The maximum number of threads in the pool.")
+    @EditorInt.EdOptsInt(dflt = 200, min = 1, max = 100000)
+    @Expose
+    private int maxThreads = 200;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Thread Idle Timeout", description = "The time in milliseconds after which idle threads above the minimum are stopped.")
+    @EditorInt.EdOptsInt(dflt = 60000, min = 1000, max = 3600000)
+    @Expose
+    private int threadIdleTimeout = 60000;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Reserved Threads", description = "The number of threads kept ready to take over from a selector. -1 to let Jetty decide.")
+    @EditorInt.EdOptsInt(dflt = -1, min = -1, max = 10000)
+    @Expose
+    private int reservedThreads = -1;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Acceptors", description = "The number of threads accepting connections. -1 to let Jetty decide.")
+    @EditorInt.EdOptsInt(dflt = -1, min = -1, max = 64)
+    @Expose
+    private int acceptors = -1;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Selectors", description = "The number of threads handling I/O on the connections. -1 to let Jetty decide.")
+    @EditorInt.EdOptsInt(dflt = -1, min = -1, max = 256)
+    @Expose
+    private int selectors = -1;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Output Buffer Size", description = "The size in bytes of the buffer for response bodies. Larger responses are sent in chunks.")
+    @EditorInt.EdOptsInt(dflt = 32768, min = 1024, max = 16777216)
+    @Expose
+    private int outputBufferSize = 32768;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Idle Timeout", description = "The time in milliseconds after which idle client connections are closed.")
+    @EditorInt.EdOptsInt(dflt = 30000, min = 1000, max = 3600000)
+    @Expose
+    private int idleTimeout = 30000;
+
+    @ConfigurableField(editor = EditorBoolean.class, optional = true,
+            label = "Virtual Threads", description = "Handle each request on its own virtual thread, on Java versions that have them. The thread settings do not apply then.")
+    @EditorBoolean.EdOptsBool(dflt = false)
+    @Expose
+    private boolean virtualThreads;
+
+    /**
+     * @return the minimum number of threads in the pool
+     */
+    public int getMinThreads() {
+        return minThreads;
+    }
+
+    /**
+     * @param minThreads the minimum number of threads in the pool
+     */
+    public void setMinThreads(int minThreads) {
+        this.minThreads = minThreads;
+    }
+
+    /**
+     * @return the maximum number of threads in the pool
+     */
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    /**
+     * @param maxThreads the maximum number of threads in the pool
+     */
+    public void setMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads;
+    }
+
+    /**
+     * @return the time after which idle threads are stopped, in milliseconds
+     */
+    public int getThreadIdleTimeout() {
+        return threadIdleTimeout;
+    }
+
+    /**
+     * @param threadIdleTimeout the time after which idle threads are stopped,
+     * in milliseconds
+     */
+    public void setThreadIdleTimeout(int threadIdleTimeout) {
+        this.threadIdleTimeout = threadIdleTimeout;
+    }
+
+    /**
+     * @return the number of reserved threads, -1 to let Jetty decide
+     */
+    public int getReservedThreads() {
+        return reservedThreads;
+    }
+
+    /**
+     * @param reservedThreads the number of reserved threads, -1 to let Jetty
+     * decide
+     */
+    public void setReservedThreads(int reservedThreads) {
+        this.reservedThreads = reservedThreads;
+    }
+
+    /**
+     * @return the number of acceptor threads, -1 to let Jetty decide
+     */
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    /**
+     * @param acceptors the number of acceptor threads, -1 to let Jetty decide
+     */
+    public void setAcceptors(int acceptors) {
+        this.acceptors = acceptors;
+    }
+
+    /**
+     * @return the number of selector threads, -1 to let Jetty decide
+     */
+    public int getSelectors() {
+        return selectors;
+    }
+
+    /**
+     * @param selectors the number of selector threads, -1 to let Jetty decide
+     */
+    public void setSelectors(int selectors) {
+        this.selectors = selectors;
+    }
+
+    /**
+     * @return the size of the response buffer, in bytes
+     */
+    public int getOutputBufferSize() {
+        return outputBufferSize;
+    }
+
+    /**
+     * @param outputBufferSize the size of the response buffer, in bytes
+     */
+    public void setOutputBufferSize(int outputBufferSize) {
+        this.outputBufferSize = outputBufferSize;
+    }
+
+    /**
+     * @return the time after which idle connections are closed, in
+     * milliseconds
+     */
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * @param idleTimeout the time after which idle connections are closed, in
+     * milliseconds
+     */
+    public void setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * @return true if requests should be handled on virtual threads
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * @param virtualThreads the virtualThreads flag to set
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+}
@@ -0,0 +1,133 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations with log-linear buckets, like an HDR histogram: each
+ * power of two is split in {@link #SUB_BUCKETS} linear buckets, giving a
+ * relative error below 25% over the whole range. Durations are recorded in
+ * microseconds, from {@link #MIN_MICROS} to about a minute. Longer durations
+ * end up in the overflow bucket.
+ *
+ * Recording does not allocate, and does not lock.
+ *
+ * @author hylke
+ */
+public class LatencyHistogram {
+
+    /**
+     * The number of linear buckets per power of two.
+     */
+    public static final int SUB_BUCKETS = 4;
+    private static final int SUB_BUCKET_BITS = 2;
+    /**
+     * The upper bound of the first bucket, in microseconds.
+     */
+    public static final long MIN_MICROS = 1L << 4;
+    private static final int MIN_EXPONENT = 4;
+    private static final int MAX_EXPONENT = 26;
+    /**
+     * The number of buckets, including the first and the overflow bucket.
+     */
+    public static final int BUCKET_COUNT = 2 + (MAX_EXPONENT - MIN_EXPONENT) * SUB_BUCKETS;
+
+    private static final long[] UPPER_BOUNDS = new long[BUCKET_COUNT - 1];
+
+    static {
+        UPPER_BOUNDS[0] = MIN_MICROS;
+        for (int exponent = MIN_EXPONENT; exponent < MAX_EXPONENT; exponent++) {
+            final long base = 1L << exponent;
+            final long step = base >> SUB_BUCKET_BITS;
+            for (int sub = 0; sub < SUB_BUCKETS; sub++) {
+                UPPER_BOUNDS[1 + (exponent - MIN_EXPONENT) * SUB_BUCKETS + sub] = base + (sub + 1) * step;
+            }
+        }
+    }
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumMicros = new LongAdder();
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos The duration in nanoseconds.
+     */
+    public void recordNanos(long nanos) {
+        final long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+        buckets.incrementAndGet(bucketIndex(micros));
+        count.increment();
+        sumMicros.add(micros);
+    }
+
+    static int bucketIndex(long micros) {
+        if (micros < MIN_MICROS) {
+            return 0;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        final int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return 1 + (exponent - MIN_EXPONENT) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the exclusive upper bound of the bucket with the given index.
+     *
+     * @param index The index of the bucket, not the overflow bucket.
+     * @return The upper bound, in microseconds.
+     */
+    public static long getUpperBoundMicros(int index) {
+        return UPPER_BOUNDS[index];
+    }
+
+    /**
+     * @param index The index of the bucket.
+     * @return The number of durations recorded in the bucket.
+     */
+    public long getBucket(int index) {
+        return buckets.get(index);
+    }
+
+    /**
+     * Estimates a percentile of the recorded durations, as the upper bound of
+     * the bucket it falls in.
+     *
+     * @param fraction The percentile, as a fraction between 0 and 1.
+     * @return The estimate in microseconds, or -1 if nothing was recorded or
+     * the percentile falls in the overflow bucket.
+     */
+    public long getPercentileMicros(double fraction) {
+        final long total = getCount();
+        if (total == 0) {
+            return -1;
+        }
+        final long rank = (long) Math.ceil(fraction * total);
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+            cumulative += buckets.get(i);
+            if (cumulative >= rank) {
+                return UPPER_BOUNDS[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of recorded durations.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the sum of all recorded durations, in microseconds.
+     */
+    public long getSumMicros() {
+        return sumMicros.sum();
+    }
+
+}
@@ -0,0 +1,60 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import de.fraunhofer.iosb.ilt.configurable.ConfigurationException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a Bridge without the GUI, for servers without a display:
+ *
+ * <pre>java -cp ... de.fraunhofer.iosb.ilt.simplebridge.Launcher config.json</pre>
+ *
+ * The Bridge runs until the process is stopped.
+ *
+ * @author hylke
+ */
+public class Launcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Launcher.class.getName());
+
+    private Launcher() {
+        // Only has a main method.
+    }
+
+    /**
+     * @param args The path of the configuration file.
+     */
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.err.println("Usage: " + Launcher.class.getName() + " <config file>");
+            System.exit(2);
+        }
+        String config;
+        ServerConfig serverConfig;
+        try {
+            config = new String(Files.readAllBytes(Paths.get(args[0])), StandardCharsets.UTF_8);
+            serverConfig = ServerConfig.fromString(config);
+        } catch (IOException ex) {
+            LOGGER.error("Failed to read config file {}: {}", args[0], ex.getMessage());
+            System.exit(1);
+            return;
+        } catch (ConfigurationException | RuntimeException ex) {
+            LOGGER.error("Failed to parse config file {}", args[0], ex);
+            System.exit(1);
+            return;
+        }
+        final BridgeServer server = new BridgeServer(serverConfig.getPort(), config, serverConfig.getJetty());
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "bridge-shutdown"));
+        server.start();
+        try {
+            server.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
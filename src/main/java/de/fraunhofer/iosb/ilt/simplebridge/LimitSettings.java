@@ -0,0 +1,158 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import com.google.gson.annotations.Expose;
+import de.fraunhofer.iosb.ilt.configurable.AnnotatedConfigurable;
+import de.fraunhofer.iosb.ilt.configurable.annotations.ConfigurableClass;
+import de.fraunhofer.iosb.ilt.configurable.annotations.ConfigurableField;
+import de.fraunhofer.iosb.ilt.configurable.editor.EditorInt;
+import java.util.Objects;
+
+/**
+ * The limits on the requests admitted to an endpoint or a link, so a single
+ * busy endpoint can not take all threads of the server. All limits are off by
+ * default.
+ *
+ * @author hylke
+ */
+@ConfigurableClass()
+public class LimitSettings implements AnnotatedConfigurable<Void, Void> {
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Max Concurrent", description = "The maximum number of requests handled at the same time. 0 for no limit.")
+    @EditorInt.EdOptsInt(dflt = 0, min = 0, max = 100000)
+    @Expose
+    private int maxConcurrent;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Max Queued", description = "The maximum number of requests that wait for one of the concurrent requests to finish. Further requests are rejected.")
+    @EditorInt.EdOptsInt(dflt = 0, min = 0, max = 100000)
+    @Expose
+    private int maxQueued;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Queue Timeout", description = "The maximum time in milliseconds a request waits in the queue before it is rejected.")
+    @EditorInt.EdOptsInt(dflt = 1000, min = 0, max = 3600000)
+    @Expose
+    private int queueTimeout = 1000;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Rate", description = "The maximum number of requests per second, on average. 0 for no limit.")
+    @EditorInt.EdOptsInt(dflt = 0, min = 0, max = 1000000)
+    @Expose
+    private int rate;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Burst", description = "The number of requests that may arrive at once, above the rate. 0 to use the rate.")
+    @EditorInt.EdOptsInt(dflt = 0, min = 0, max = 1000000)
+    @Expose
+    private int burst;
+
+    /**
+     * @return the maximum number of concurrent requests, 0 for no limit
+     */
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * @param maxConcurrent the maximum number of concurrent requests, 0 for no
+     * limit
+     */
+    public void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    /**
+     * @return the maximum number of waiting requests
+     */
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    /**
+     * @param maxQueued the maximum number of waiting requests
+     */
+    public void setMaxQueued(int maxQueued) {
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * @return the maximum time a request waits, in milliseconds
+     */
+    public int getQueueTimeout() {
+        return queueTimeout;
+    }
+
+    /**
+     * @param queueTimeout the maximum time a request waits, in milliseconds
+     */
+    public void setQueueTimeout(int queueTimeout) {
+        this.queueTimeout = queueTimeout;
+    }
+
+    /**
+     * @return the maximum number of requests per second, 0 for no limit
+     */
+    public int getRate() {
+        return rate;
+    }
+
+    /**
+     * @param rate the maximum number of requests per second, 0 for no limit
+     */
+    public void setRate(int rate) {
+        this.rate = rate;
+    }
+
+    /**
+     * @return the number of requests that may arrive at once, 0 to use the
+     * rate
+     */
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * @param burst the number of requests that may arrive at once, 0 to use
+     * the rate
+     */
+    public void setBurst(int burst) {
+        this.burst = burst;
+    }
+
+    /**
+     * Checks if two settings result in the same limits, treating null as the
+     * default settings.
+     *
+     * @param first The first settings, may be null.
+     * @param second The second settings, may be null.
+     * @return true if the settings are equal.
+     */
+    public static boolean same(LimitSettings first, LimitSettings second) {
+        return Objects.equals(
+                first == null ? new LimitSettings() : first,
+                second == null ? new LimitSettings() : second);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(maxConcurrent, maxQueued, queueTimeout, rate, burst);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final LimitSettings other = (LimitSettings) obj;
+        return maxConcurrent == other.maxConcurrent
+                && maxQueued == other.maxQueued
+                && queueTimeout == other.queueTimeout
+                && rate == other.rate
+                && burst == other.burst;
+    }
+
+}
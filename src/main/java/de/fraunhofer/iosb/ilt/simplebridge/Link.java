@@ -0,0 +1,177 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+/**
+ * The runtime state of a link to another Bridge, shared by all endpoints
+ * reached through that Bridge.
+ *
+ * @author hylke
+ */
+public class Link {
+
+    private final String url;
+
+    private final ConnectionPool connectionPool;
+
+    private final LinkCompression compression;
+
+    private final long spillThreshold;
+
+    private final AdmissionControl admissionControl;
+
+    /**
+     * Collects the requests into batches, null if batching is off.
+     */
+    private final MicroBatcher batcher;
+
+    /**
+     * Flag indicating the other Bridge accepts the binary link format.
+     */
+    private volatile boolean binary;
+
+    /**
+     * Flag indicating the other Bridge accepts batches of requests.
+     */
+    private volatile boolean batch;
+
+    /**
+     * The compression negotiated with the other Bridge, or null.
+     */
+    private volatile LinkCompression.Encoding encoding;
+
+    private volatile LinkChannel channel;
+
+    public Link(String url, PoolSettings poolSettings, LimitSettings limits, BatchSettings batching, LinkCompression compression, long spillThreshold) {
+        this.url = url;
+        // Link responses are decompressed by the Bridge itself, not the client.
+        this.connectionPool = new ConnectionPool(url, poolSettings, false);
+        this.admissionControl = new AdmissionControl(url, limits);
+        this.batcher = batching != null && batching.isEnabled() ? new MicroBatcher(this, batching) : null;
+        this.compression = compression;
+        this.spillThreshold = spillThreshold;
+    }
+
+    /**
+     * @return the url
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the connection pool used to reach the other Bridge.
+     */
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * @return the admission control that enforces the limits on the requests
+     * sent over this link.
+     */
+    public AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
+    /**
+     * @return the micro-batcher that collects the requests sent over this
+     * link into batches, or null if batching is off.
+     */
+    public MicroBatcher getBatcher() {
+        return batcher;
+    }
+
+    /**
+     * @return true if the other Bridge accepts the binary link format.
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * @param binary the binary flag to set
+     */
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    /**
+     * @return true if the other Bridge accepts batches of requests.
+     */
+    public boolean isBatch() {
+        return batch;
+    }
+
+    /**
+     * @param batch the batch flag to set
+     */
+    public void setBatch(boolean batch) {
+        this.batch = batch;
+    }
+
+    /**
+     * @return the compression of link traffic.
+     */
+    public LinkCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * @return the size in bytes above which request bodies for the other
+     * Bridge are moved to a file, 0 to always keep them in the heap.
+     */
+    public long getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    /**
+     * @return the compression negotiated with the other Bridge, or null if
+     * link traffic is not compressed.
+     */
+    public LinkCompression.Encoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * @param encoding the negotiated compression to set, or null
+     */
+    public void setEncoding(LinkCompression.Encoding encoding) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * @return the persistent channel to the other Bridge, or null if no
+     * channel is used.
+     */
+    public LinkChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Opens a persistent channel to the other Bridge, using the socket timeout
+     * of the connection pool as response timeout; like the socket timeout, 0
+     * means no timeout. If compression was negotiated, the channel compresses
+     * its messages with permessage-deflate.
+     */
+    public synchronized void openChannel() {
+        if (channel != null) {
+            return;
+        }
+        channel = new LinkChannel(url, connectionPool.getSettings().getSocketTimeout(), spillThreshold, encoding != null);
+        channel.start();
+    }
+
+    /**
+     * Closes the channel and the connection pool of this link.
+     */
+    public synchronized void close() {
+        if (batcher != null) {
+            batcher.flush();
+        }
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        connectionPool.close();
+    }
+
+}
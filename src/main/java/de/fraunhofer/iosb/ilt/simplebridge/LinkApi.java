@@ -3,11 +3,30 @@ package de.fraunhofer.iosb.ilt.simplebridge;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import de.fraunhofer.iosb.ilt.configurable.Utils;
-import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.MultipartConfig;
 import javax.servlet.annotation.WebInitParam;
@@ -16,12 +35,11 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
-import org.apache.http.entity.ByteArrayEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
+import org.apache.http.concurrent.FutureCallback;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,6 +50,7 @@ import org.slf4j.LoggerFactory;
 @WebServlet(
         name = "BridgeLink",
         urlPatterns = {"/link/*"},
+        asyncSupported = true,
         initParams = {
             @WebInitParam(name = "readonly", value = "false")
         }
@@ -39,100 +58,930 @@ import org.slf4j.LoggerFactory;
 @MultipartConfig()
 public class LinkApi extends HttpServlet {
 
+    /**
+     * The header used in the index response to advertise the request formats
+     * this Bridge accepts on the link.
+     */
+    public static final String HEADER_ACCEPT_POST = "Accept-Post";
+    /**
+     * The header used in the index response to advertise the path of the
+     * persistent link channel.
+     */
+    public static final String HEADER_LINK_CHANNEL = "Link-Channel";
+    /**
+     * The header used in the index response to advertise the path that
+     * accepts batches of requests.
+     */
+    public static final String HEADER_LINK_BATCH = "Link-Batch";
+    /**
+     * The header used in the response to a batch to name the compression of
+     * the compressed items.
+     */
+    public static final String HEADER_BATCH_ENCODING = "Link-Batch-Encoding";
+    /**
+     * The headers used to check the index for changes.
+     */
+    public static final String HEADER_ETAG = "ETag";
+    public static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    /**
+     * The header used in the index response to advertise the compressions
+     * this Bridge accepts for requests on the link.
+     */
+    public static final String HEADER_LINK_ENCODINGS = "Link-Encodings";
+    public static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    public static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    /**
+     * Not defined in the servlet api.
+     */
+    public static final int SC_TOO_MANY_REQUESTS = 429;
+
     private static final Logger LOGGER = LoggerFactory.getLogger(LinkApi.class.getName());
-    private static CloseableHttpClient client;
+    /**
+     * The number of latencies needed before requests are hedged.
+     */
+    private static final int HEDGE_MIN_SAMPLES = 50;
+    private static final double HEDGE_PERCENTILE = 0.95;
+    private static final ScheduledExecutorService HEDGE_SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "hedge-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * The time in milliseconds the container waits for the response to an
+     * async request, on top of the time the request may take.
+     */
+    private static final long ASYNC_TIMEOUT_MARGIN = 5000;
+    /**
+     * The characters, besides letters and digits, that may appear unescaped
+     * in the path and query of a URI.
+     */
+    private static final String URL_CHARS = "-._~!$&'()*+,;=:@/?";
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
     private static Gson gson;
+    /**
+     * The Gsons for reading, per spill threshold.
+     */
+    private static final Map<Long, Gson> GSONS = new ConcurrentHashMap<>();
 
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         ServerConfig serverConfig = ServerConfig.getServerConfig(request);
-        getIndex(response, serverConfig);
-        LOGGER.info("Index Request.");
+        getIndex(request, response, serverConfig);
+        LOGGER.debug("Index Request.");
     }
 
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         ServerConfig serverConfig = ServerConfig.getServerConfig(request);
-        String requestData = readRequestData(request.getReader());
-        BridgeRequest bridgeRequest = parseBridgeRequest(requestData);
-        LOGGER.info("Request: {} {} {}", bridgeRequest.method, bridgeRequest.resourceId, bridgeRequest.url);
-        LOGGER.info("  Headers: {}, bodySize {}", bridgeRequest.headers.size(), bridgeRequest.body.length);
+        final String pathInfo = request.getPathInfo();
+        if (pathInfo != null && LinkBatch.PATH.equals(request.getServletPath() + pathInfo)) {
+            doBatch(request, response, serverConfig);
+            return;
+        }
+        final long start = System.nanoTime();
+        final LinkCompression compression = serverConfig.getCompression();
+        final boolean binary = LinkCodec.isBinary(request.getContentType());
+        BridgeRequest bridgeRequest;
+        try {
+            bridgeRequest = readBridgeRequest(request, binary, compression, serverConfig.getSpillThreshold());
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to read link request: {}", ex.getMessage());
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+            return;
+        }
+        LOGGER.debug("Request: {} {} {}, headers: {}, bodySize {}", bridgeRequest.method, bridgeRequest.resourceId, bridgeRequest.url, bridgeRequest.headers.size(), bridgeRequest.body.length());
+        final AccessLog accessLog = serverConfig.getAccessLogger();
         EndPoint endpoint = serverConfig.getEndpoint(bridgeRequest.resourceId);
-        BridgeResponse bridgeResponse = executeRequest(endpoint, bridgeRequest);
-        LOGGER.info("  Response {}, Headers: {}, bodySize {}", bridgeResponse.statusCode, bridgeResponse.headers.size(), bridgeResponse.body.length);
-        response.getWriter().write(getGson().toJson(bridgeResponse));
+        if (endpoint == null) {
+            response.setStatus(404);
+            accessLog.log(AccessLog.API_LINK, bridgeRequest, 404, bridgeRequest.body.length(), 0, start);
+            bridgeRequest.close();
+            return;
+        }
+        final RequestMetrics metrics = endpoint.getMetrics(bridgeRequest.method);
+        metrics.recordPhase(RequestMetrics.Phase.CLIENT_READ, start);
+        final LinkCompression.Encoding encoding = compression.negotiate(request.getHeader(HEADER_ACCEPT_ENCODING));
+        if (serverConfig.isAsync()) {
+            final AsyncContext asyncContext = request.startAsync();
+            final AsyncTimeout timeout = AsyncTimeout.start(asyncContext, getAsyncTimeout(endpoint, bridgeRequest.method));
+            final long requestSize = bridgeRequest.body.length();
+            admitAndExecuteAsync(endpoint, bridgeRequest)
+                    .whenComplete((bridgeResponse, ex) -> bridgeRequest.close())
+                    .thenAccept(bridgeResponse -> writeResponseAsync(asyncContext, timeout, bridgeRequest, bridgeResponse, binary, compression, encoding, serverConfig.getSpillThreshold(), metrics, accessLog, requestSize, start));
+            return;
+        }
+        BridgeResponse bridgeResponse = null;
+        try {
+            // Waits in this thread if the request is queued.
+            bridgeResponse = endpoint.admit().join();
+            if (bridgeResponse == null) {
+                try {
+                    bridgeResponse = executeRequest(endpoint, bridgeRequest);
+                } finally {
+                    endpoint.release();
+                }
+            }
+            LOGGER.debug("Response {}, headers: {}, bodySize {}", bridgeResponse.statusCode, bridgeResponse.headers.size(), bridgeResponse.body.length());
+            final long writeStart = System.nanoTime();
+            try (Body data = encodeResponse(response, bridgeResponse, binary, compression, encoding, serverConfig.getSpillThreshold())) {
+                response.setContentLengthLong(data.length());
+                data.writeTo(response.getOutputStream());
+            }
+            metrics.recordPhase(RequestMetrics.Phase.RESPONSE_WRITE, writeStart);
+            metrics.recordRequest(bridgeResponse.statusCode, bridgeRequest.body.length(), bridgeResponse.body.length());
+            accessLog.log(AccessLog.API_LINK, bridgeRequest, bridgeResponse.statusCode, bridgeRequest.body.length(), bridgeResponse.body.length(), start);
+        } finally {
+            bridgeRequest.close();
+            if (bridgeResponse != null) {
+                bridgeResponse.close();
+            }
+        }
     }
 
+    /**
+     * Executes a batch of requests, with at most the batch parallelism of the
+     * configuration running at the same time, and streams the responses back
+     * as they complete. The thread handling the batch waits for all
+     * responses, also in async mode.
+     */
+    private void doBatch(HttpServletRequest request, HttpServletResponse response, ServerConfig serverConfig) throws IOException {
+        final long start = System.nanoTime();
+        final LinkCompression compression = serverConfig.getCompression();
+        List<BridgeRequest> requests;
+        try (InputStream in = compression.decompressing(request.getHeader(HEADER_CONTENT_ENCODING), request.getInputStream())) {
+            requests = LinkCodec.readBatch(in, serverConfig.getMaxBatchSize(), serverConfig.getSpillThreshold());
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to read link batch: {}", ex.getMessage());
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+            return;
+        }
+        LOGGER.debug("Batch: {} requests", requests.size());
+        final AccessLog accessLog = serverConfig.getAccessLogger();
+        final LinkCompression.Encoding encoding = compression.negotiate(request.getHeader(HEADER_ACCEPT_ENCODING));
+        response.setContentType(LinkCodec.CONTENT_TYPE_LINK_BATCH);
+        if (encoding != null) {
+            response.setHeader(HEADER_BATCH_ENCODING, encoding.name);
+        }
+        final LinkBatch.Execution execution = new LinkBatch.Execution(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            final BridgeRequest bridgeRequest = requests.get(i);
+            execution.addPending(i, () -> executeBatchItem(serverConfig, accessLog, bridgeRequest, start));
+        }
+        final DataOutputStream out = new DataOutputStream(response.getOutputStream());
+        try {
+            execution.run(serverConfig.getBatchParallelism(), (index, bridgeResponse) -> {
+                final long spillThreshold = serverConfig.getSpillThreshold();
+                Body frame;
+                try (BridgeResponse encoded = bridgeResponse) {
+                    frame = Body.of(spillThreshold, buffer -> LinkCodec.writeResponse(encoded, buffer));
+                }
+                final boolean compress = compression.shouldCompress(encoding, frame.length());
+                if (compress) {
+                    try (Body uncompressed = frame) {
+                        frame = compression.compress(encoding, uncompressed, spillThreshold);
+                    }
+                }
+                try (Body written = frame) {
+                    LinkCodec.writeBatchItem(out, index, compress, written);
+                }
+                out.flush();
+            });
+            LinkCodec.writeBatchEnd(out);
+            out.flush();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static CompletableFuture<BridgeResponse> executeBatchItem(ServerConfig serverConfig, AccessLog accessLog, BridgeRequest bridgeRequest, long received) {
+        final EndPoint endpoint = serverConfig.getEndpoint(bridgeRequest.resourceId);
+        final long requestSize = bridgeRequest.body == null ? 0 : bridgeRequest.body.length();
+        if (endpoint == null) {
+            accessLog.log(AccessLog.API_LINK_BATCH, bridgeRequest, HttpServletResponse.SC_NOT_FOUND, requestSize, 0, received);
+            bridgeRequest.close();
+            return CompletableFuture.completedFuture(createErrorResponse(HttpServletResponse.SC_NOT_FOUND, "No such endpoint."));
+        }
+        final RequestMetrics metrics = endpoint.getMetrics(bridgeRequest.method);
+        return admitAndExecuteAsync(endpoint, bridgeRequest).thenApply(bridgeResponse -> {
+            bridgeRequest.close();
+            metrics.recordRequest(bridgeResponse.statusCode, requestSize, bridgeResponse.body.length());
+            accessLog.log(AccessLog.API_LINK_BATCH, bridgeRequest, bridgeResponse.statusCode, requestSize, bridgeResponse.body.length(), received);
+            return bridgeResponse;
+        });
+    }
+
+    /**
+     * Reads the request, decompressing it while it is read. The body of the
+     * request is moved to a file if it is larger than the spill threshold.
+     */
+    private BridgeRequest readBridgeRequest(HttpServletRequest request, boolean binary, LinkCompression compression, long spillThreshold) throws IOException {
+        final String contentEncoding = request.getHeader(HEADER_CONTENT_ENCODING);
+        try (InputStream in = compression.decompressing(contentEncoding, request.getInputStream())) {
+            if (binary) {
+                return LinkCodec.readRequest(in, spillThreshold);
+            }
+            return parseBridgeRequest(new InputStreamReader(in, StandardCharsets.UTF_8), spillThreshold);
+        }
+    }
+
+    /**
+     * Encodes the response in the format of the request, and compresses it if
+     * the other Bridge accepts that and it is large enough. Sets the content
+     * type and encoding on the servlet response. The encoded response is moved
+     * to a file if it is larger than the spill threshold, and must be closed
+     * when it is written.
+     */
+    private static Body encodeResponse(HttpServletResponse response, BridgeResponse bridgeResponse, boolean binary, LinkCompression compression, LinkCompression.Encoding encoding, long spillThreshold) throws IOException {
+        Body data;
+        if (binary) {
+            response.setContentType(LinkCodec.CONTENT_TYPE_LINK_BINARY);
+            data = Body.of(spillThreshold, out -> LinkCodec.writeResponse(bridgeResponse, out));
+        } else {
+            response.setContentType(RestApi.CONTENT_TYPE_APPLICATIONJSON);
+            response.setCharacterEncoding(RestApi.ENCODING_UTF8);
+            data = Body.of(spillThreshold, out -> {
+                Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                getGson().toJson(bridgeResponse, writer);
+                writer.flush();
+            });
+        }
+        if (compression.shouldCompress(encoding, data.length())) {
+            try (Body uncompressed = data) {
+                data = compression.compress(encoding, uncompressed, spillThreshold);
+            }
+            response.setHeader(HEADER_CONTENT_ENCODING, encoding.name);
+        }
+        return data;
+    }
+
+    private static void writeResponseAsync(AsyncContext asyncContext, AsyncTimeout timeout, BridgeRequest bridgeRequest, BridgeResponse bridgeResponse, boolean binary, LinkCompression compression, LinkCompression.Encoding encoding, long spillThreshold, RequestMetrics metrics, AccessLog accessLog, long requestSize, long received) {
+        if (!timeout.claim()) {
+            bridgeResponse.close();
+            return;
+        }
+        LOGGER.debug("Response {}, headers: {}, bodySize {}", bridgeResponse.statusCode, bridgeResponse.headers.size(), bridgeResponse.body.length());
+        final long writeStart = System.nanoTime();
+        final HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+        final long responseSize = bridgeResponse.body.length();
+        final Body data;
+        try (BridgeResponse encoded = bridgeResponse) {
+            data = encodeResponse(response, encoded, binary, compression, encoding, spillThreshold);
+        } catch (IOException ex) {
+            LOGGER.error("Failed to encode response: {}", ex.getMessage());
+            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            asyncContext.complete();
+            return;
+        }
+        AsyncResponseWriter.write(asyncContext, data, () -> {
+            metrics.recordPhase(RequestMetrics.Phase.RESPONSE_WRITE, writeStart);
+            metrics.recordRequest(bridgeResponse.statusCode, requestSize, responseSize);
+            accessLog.log(AccessLog.API_LINK, bridgeRequest, bridgeResponse.statusCode, requestSize, responseSize, received);
+        });
+    }
+
+    /**
+     * Executes the request on the given (direct) endpoint, if the limits of
+     * the endpoint admit it, using the non-blocking client.
+     *
+     * @param endpoint The endpoint to execute the request on.
+     * @param bridgeRequest The request to execute.
+     * @return A future that completes with the response, or with the
+     * rejection if the request was not admitted. It always completes
+     * normally, failures result in an error response.
+     */
+    public static CompletableFuture<BridgeResponse> admitAndExecuteAsync(EndPoint endpoint, BridgeRequest bridgeRequest) {
+        return admitAndRun(endpoint, () -> executeRequestAsync(endpoint, bridgeRequest));
+    }
+
+    /**
+     * Runs a request on the given endpoint, if the limits of the endpoint
+     * admit it. The slot of an admitted request is released exactly once when
+     * the request is done, also when it fails, or fails to start.
+     *
+     * @param endpoint The endpoint the request is for.
+     * @param execution Starts the request.
+     * @return A future that completes with the response, or with the
+     * rejection if the request was not admitted. It always completes
+     * normally, failures result in an error response.
+     */
+    static CompletableFuture<BridgeResponse> admitAndRun(EndPoint endpoint, Supplier<CompletableFuture<BridgeResponse>> execution) {
+        return endpoint.admit().thenCompose(rejected -> {
+            if (rejected != null) {
+                return CompletableFuture.completedFuture(rejected);
+            }
+            CompletableFuture<BridgeResponse> future;
+            try {
+                future = execution.get();
+            } catch (RuntimeException ex) {
+                future = CompletableFuture.failedFuture(ex);
+            }
+            return future.whenComplete((response, ex) -> endpoint.release());
+        }).handle(LinkApi::orErrorResponse);
+    }
+
+    /**
+     * Turns the outcome of a request into a response.
+     *
+     * @param response The response, if the request completed normally.
+     * @param failure The failure, if the request completed exceptionally.
+     * @return the response, or an error response for the failure.
+     */
+    static BridgeResponse orErrorResponse(BridgeResponse response, Throwable failure) {
+        if (failure == null && response != null) {
+            return response;
+        }
+        Throwable cause = failure;
+        if (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof IOException) {
+            LOGGER.error("Failed to execute request: {}", cause.getMessage());
+            return createErrorResponse((IOException) cause);
+        }
+        LOGGER.error("Failed to execute request", cause);
+        BridgeResponse error = createErrorResponse(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Failed to execute the request.");
+        // Not a failure of the server, the request may not have been sent.
+        error.failed = false;
+        return error;
+    }
+
+    /**
+     * Determines how long an async request to the given endpoint waits for
+     * the response to start: the time the request may wait for a slot, plus
+     * the time each attempt may take, plus a margin.
+     *
+     * @param endpoint The endpoint the request is for.
+     * @param method The method of the request.
+     * @return the timeout in milliseconds, 0 for none if the server may take
+     * forever to answer.
+     */
+    static long getAsyncTimeout(EndPoint endpoint, String method) {
+        final Link link = endpoint.getLink();
+        final ConnectionPool pool = link == null ? endpoint.getConnectionPool() : link.getConnectionPool();
+        final PoolSettings settings = pool.getSettings();
+        if (settings.getSocketTimeout() <= 0) {
+            return 0;
+        }
+        final long attempt = (long) settings.getLeaseTimeout() + settings.getConnectTimeout() + settings.getSocketTimeout();
+        long timeout = ASYNC_TIMEOUT_MARGIN + getAttempts(pool, method) * attempt;
+        timeout += endpoint.getAdmissionControl().getQueueTimeoutMillis();
+        if (link != null) {
+            timeout += link.getAdmissionControl().getQueueTimeoutMillis();
+        }
+        return timeout;
+    }
+
+    /**
+     * Executes the request on a replica of the upstream server of the given
+     * (direct) endpoint. Requests fail fast while the circuit breaker of the
+     * endpoint is open, and idempotent requests are retried on another replica
+     * when the upstream server could not be reached.
+     *
+     * @param endpoint The endpoint to execute the request on.
+     * @param bridgeRequest The request to execute.
+     * @return The response.
+     */
     public static BridgeResponse executeRequest(EndPoint endpoint, BridgeRequest bridgeRequest) {
+        final long start = System.nanoTime();
         BridgeResponse bridgeResponse = new BridgeResponse();
 
         final String linkUrl = endpoint.getLinkUrl();
         if (Utils.isNullOrEmpty(linkUrl)) {
-            String targetUrl = endpoint.getBaseUrl() + bridgeRequest.url;
-            LOGGER.info("  Target URL: {}", targetUrl);
-            CloseableHttpClient httpClient = getHttpClient();
-            final String method = bridgeRequest.method;
-            HttpEntityEnclosingRequestBase httpRequest = new HttpEntityEnclosingRequestBase() {
-                @Override
-                public String getMethod() {
-                    return method;
+            final RequestMetrics metrics = endpoint.getMetrics(bridgeRequest.method);
+            if (getHedgeDelayNanos(endpoint, bridgeRequest, metrics) > 0) {
+                return executeRequestAsync(endpoint, bridgeRequest).join();
+            }
+            final ConnectionPool pool = endpoint.getConnectionPool();
+            final CircuitBreaker breaker = pool.getCircuitBreaker();
+            final int attempts = getAttempts(pool, bridgeRequest.method);
+            Upstream previous = null;
+            for (int attempt = 0; attempt < attempts; attempt++) {
+                if (!breaker.allowRequest()) {
+                    bridgeResponse = createBreakerResponse(breaker);
+                    break;
+                }
+                if (attempt > 0) {
+                    metrics.recordRetry();
                 }
-            };
-            httpRequest.setURI(URI.create(targetUrl));
-            if (bridgeRequest.body != null && bridgeRequest.body.length != 0) {
-                httpRequest.setEntity(new ByteArrayEntity(bridgeRequest.body));
+                final Upstream upstream = endpoint.getBalancer().choose(previous);
+                bridgeResponse = executeOnce(pool, upstream, bridgeRequest, endpoint.getSpillThreshold());
+                breaker.record(!isUpstreamFailure(bridgeResponse));
+                if (!bridgeResponse.failed) {
+                    break;
+                }
+                previous = upstream;
+            }
+            metrics.recordPhase(RequestMetrics.Phase.UPSTREAM, start);
+        } else {
+            bridgeResponse = createNotDirectResponse(endpoint);
+        }
+        return bridgeResponse;
+    }
+
+    private static BridgeResponse executeOnce(ConnectionPool pool, Upstream upstream, BridgeRequest bridgeRequest, long spillThreshold) {
+        HttpEntityEnclosingRequestBase httpRequest;
+        try {
+            httpRequest = createHttpRequest(upstream, bridgeRequest);
+        } catch (IllegalArgumentException ex) {
+            return createInvalidUrlResponse(ex);
+        }
+        if (bridgeRequest.body != null && !bridgeRequest.body.isEmpty()) {
+            httpRequest.setEntity(bridgeRequest.body.toEntity(null));
+        }
+        BridgeResponse bridgeResponse;
+        final long upstreamStart = upstream.begin();
+        try (CloseableHttpResponse response = pool.getClient().execute(httpRequest)) {
+            bridgeResponse = toBridgeResponse(response, spillThreshold);
+        } catch (IOException ex) {
+            LOGGER.error("Failed to execute request on {}: {}", upstream.getBaseUrl(), ex.getMessage());
+            bridgeResponse = createErrorResponse(ex);
+        }
+        upstream.end(upstreamStart, !isUpstreamFailure(bridgeResponse));
+        return bridgeResponse;
+    }
+
+    /**
+     * Executes the request on a replica of the upstream server of the given
+     * (direct) endpoint, using the non-blocking client. The returned future
+     * always completes normally, failures result in an error response.
+     *
+     * Like {@link #executeRequest(EndPoint, BridgeRequest)}, this fails fast
+     * while the circuit breaker is open and retries idempotent requests. If
+     * the endpoint has hedging enabled, a GET that has not been answered
+     * within the 95th percentile of the recent latencies is also sent to
+     * another replica, and the first answer is used.
+     *
+     * @param endpoint The endpoint to execute the request on.
+     * @param bridgeRequest The request to execute.
+     * @return A future that completes with the response.
+     */
+    public static CompletableFuture<BridgeResponse> executeRequestAsync(EndPoint endpoint, BridgeRequest bridgeRequest) {
+        if (!Utils.isNullOrEmpty(endpoint.getLinkUrl())) {
+            return CompletableFuture.completedFuture(createNotDirectResponse(endpoint));
+        }
+        final long start = System.nanoTime();
+        final RequestMetrics metrics = endpoint.getMetrics(bridgeRequest.method);
+        final ConnectionPool pool = endpoint.getConnectionPool();
+        final int attempts = getAttempts(pool, bridgeRequest.method);
+        final long hedgeDelay = getHedgeDelayNanos(endpoint, bridgeRequest, metrics);
+        CompletableFuture<BridgeResponse> result;
+        if (hedgeDelay > 0) {
+            result = executeHedged(endpoint, bridgeRequest, metrics, attempts, hedgeDelay);
+        } else {
+            result = executeAttemptAsync(endpoint, bridgeRequest, metrics, attempts, null, null, null);
+        }
+        return result.thenApply(response -> {
+            metrics.recordPhase(RequestMetrics.Phase.UPSTREAM, start);
+            return response;
+        });
+    }
+
+    /**
+     * Sends the request, and retries it while it fails and attempts are left.
+     *
+     * @param avoid The replica to avoid, or null.
+     * @param chosen Receives the replica that is used first, may be null.
+     * @param cancel Aborts the running request when completed, may be null.
+     */
+    private static CompletableFuture<BridgeResponse> executeAttemptAsync(EndPoint endpoint, BridgeRequest bridgeRequest, RequestMetrics metrics, int attempts, Upstream avoid, AtomicReference<Upstream> chosen, CompletableFuture<Void> cancel) {
+        final CircuitBreaker breaker = endpoint.getConnectionPool().getCircuitBreaker();
+        if (!breaker.allowRequest()) {
+            return CompletableFuture.completedFuture(createBreakerResponse(breaker));
+        }
+        final Upstream upstream = endpoint.getBalancer().choose(avoid);
+        if (chosen != null) {
+            chosen.compareAndSet(null, upstream);
+        }
+        return sendAsync(endpoint.getConnectionPool(), upstream, bridgeRequest, endpoint.getSpillThreshold(), cancel).thenCompose(response -> {
+            if (response.cancelled) {
+                // Another copy was answered, this one is neither a failure nor retried.
+                return CompletableFuture.completedFuture(response);
+            }
+            breaker.record(!isUpstreamFailure(response));
+            if (response.failed && attempts > 1 && (cancel == null || !cancel.isDone())) {
+                metrics.recordRetry();
+                return executeAttemptAsync(endpoint, bridgeRequest, metrics, attempts - 1, upstream, null, cancel);
             }
+            return CompletableFuture.completedFuture(response);
+        });
+    }
 
-            for (Map.Entry<String, String> entry : bridgeRequest.headers.entrySet()) {
-                httpRequest.setHeader(entry.getKey(), entry.getValue());
+    /**
+     * Sends the request, and a second copy to another replica if the first
+     * has not been answered after the given delay. The first successful
+     * response is used, the other request is aborted.
+     */
+    private static CompletableFuture<BridgeResponse> executeHedged(EndPoint endpoint, BridgeRequest bridgeRequest, RequestMetrics metrics, int attempts, long delayNanos) {
+        final CompletableFuture<BridgeResponse> result = new CompletableFuture<>();
+        final CompletableFuture<Void> cancel = new CompletableFuture<>();
+        result.whenComplete((response, ex) -> cancel.complete(null));
+        final AtomicInteger running = new AtomicInteger(1);
+        final AtomicReference<Upstream> primary = new AtomicReference<>();
+        executeAttemptAsync(endpoint, bridgeRequest, metrics, attempts, null, primary, cancel)
+                .thenAccept(response -> completeHedged(result, response, running, null));
+        final ScheduledFuture<?> timer = HEDGE_SCHEDULER.schedule(() -> {
+            if (result.isDone()) {
+                return;
             }
+            running.incrementAndGet();
+            metrics.recordHedge();
+            executeAttemptAsync(endpoint, bridgeRequest, metrics, 1, primary.get(), null, cancel)
+                    .thenAccept(response -> completeHedged(result, response, running, metrics));
+        }, delayNanos, TimeUnit.NANOSECONDS);
+        result.whenComplete((response, ex) -> timer.cancel(false));
+        return result;
+    }
+
+    /**
+     * Completes the result of a hedged request with the first response that
+     * did not fail, or with the last one. Closes the responses that are not
+     * used.
+     */
+    private static void completeHedged(CompletableFuture<BridgeResponse> result, BridgeResponse response, AtomicInteger running, RequestMetrics hedgeMetrics) {
+        if (response.failed && running.decrementAndGet() != 0) {
+            response.close();
+            return;
+        }
+        if (!result.complete(response)) {
+            response.close();
+        } else if (hedgeMetrics != null) {
+            hedgeMetrics.recordHedgeWin();
+        }
+    }
 
-            try (CloseableHttpResponse response = httpClient.execute(httpRequest)) {
-                bridgeResponse.statusCode = response.getStatusLine().getStatusCode();
-                for (Header header : response.getAllHeaders()) {
-                    bridgeResponse.headers.put(header.getName(), header.getValue());
+    private static CompletableFuture<BridgeResponse> sendAsync(ConnectionPool pool, Upstream upstream, BridgeRequest bridgeRequest, long spillThreshold, CompletableFuture<Void> cancel) {
+        final CompletableFuture<BridgeResponse> result = new CompletableFuture<>();
+        HttpEntityEnclosingRequestBase httpRequest;
+        try {
+            httpRequest = createHttpRequest(upstream, bridgeRequest);
+        } catch (IllegalArgumentException ex) {
+            result.complete(createInvalidUrlResponse(ex));
+            return result;
+        }
+        if (bridgeRequest.body != null && !bridgeRequest.body.isEmpty()) {
+            httpRequest.setEntity(bridgeRequest.body.toEntity(null));
+        }
+        final long upstreamStart = upstream.begin();
+        final Future<HttpResponse> future = pool.getAsyncClient().execute(httpRequest, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                try {
+                    BridgeResponse bridgeResponse = toBridgeResponse(response, spillThreshold);
+                    upstream.end(upstreamStart, !isUpstreamFailure(bridgeResponse));
+                    result.complete(bridgeResponse);
+                } catch (IOException ex) {
+                    failed(ex);
                 }
-                bridgeResponse.body = EntityUtils.toByteArray(response.getEntity());
-            } catch (IOException ex) {
-                bridgeResponse.statusCode = 500;
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                LOGGER.error("Failed to execute request on {}: {}", upstream.getBaseUrl(), ex.getMessage());
+                upstream.end(upstreamStart, false);
+                result.complete(createErrorResponse(ex));
+            }
+
+            @Override
+            public void cancelled() {
+                upstream.cancel();
+                result.complete(createCancelledResponse());
+            }
+        });
+        if (cancel != null) {
+            cancel.thenRun(() -> future.cancel(true));
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of times the request may be sent: once, plus the
+     * configured retries for idempotent methods.
+     */
+    static int getAttempts(ConnectionPool pool, String method) {
+        if (isIdempotent(method)) {
+            return 1 + pool.getSettings().getRetries();
+        }
+        return 1;
+    }
+
+    /**
+     * @param method The method of a request.
+     * @return true if sending the request more than once has the same effect
+     * as sending it once.
+     */
+    static boolean isIdempotent(String method) {
+        switch (method) {
+            case "GET":
+            case "HEAD":
+            case "OPTIONS":
+            case "PUT":
+            case "DELETE":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Determines after how long a copy of the request is sent to another
+     * replica: the 95th percentile of the recent latencies of the endpoint.
+     *
+     * @return the delay in nanoseconds, or 0 if the request is not hedged.
+     */
+    private static long getHedgeDelayNanos(EndPoint endpoint, BridgeRequest bridgeRequest, RequestMetrics metrics) {
+        if (!endpoint.isHedging() || !"GET".equals(bridgeRequest.method) || endpoint.getBalancer().getUpstreams().size() < 2) {
+            return 0;
+        }
+        final LatencyHistogram histogram = metrics.getHistogram(RequestMetrics.Phase.UPSTREAM);
+        if (histogram.getCount() < HEDGE_MIN_SAMPLES) {
+            return 0;
+        }
+        final long micros = histogram.getPercentileMicros(HEDGE_PERCENTILE);
+        return micros < 0 ? 0 : TimeUnit.MICROSECONDS.toNanos(micros);
+    }
+
+    /**
+     * Checks if the response shows the upstream server is unhealthy: it could
+     * not be reached, or it answered that it is overloaded or could not reach
+     * its own backend.
+     */
+    static boolean isUpstreamFailure(BridgeResponse response) {
+        return response.failed || isUpstreamFailure(response.statusCode);
+    }
+
+    /**
+     * @param statusCode The status code the upstream server answered with.
+     * @return true if the status shows the upstream server is unhealthy.
+     */
+    static boolean isUpstreamFailure(int statusCode) {
+        return statusCode == HttpServletResponse.SC_BAD_GATEWAY
+                || statusCode == HttpServletResponse.SC_SERVICE_UNAVAILABLE
+                || statusCode == HttpServletResponse.SC_GATEWAY_TIMEOUT;
+    }
+
+    /**
+     * Reads the response of the upstream server. The body is moved to a file
+     * if it is larger than the spill threshold.
+     */
+    private static BridgeResponse toBridgeResponse(HttpResponse response, long spillThreshold) throws IOException {
+        BridgeResponse bridgeResponse = new BridgeResponse();
+        bridgeResponse.statusCode = response.getStatusLine().getStatusCode();
+        for (Header header : response.getAllHeaders()) {
+            bridgeResponse.headers.put(header.getName(), header.getValue());
+        }
+        final HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            try (InputStream content = entity.getContent()) {
+                bridgeResponse.body = Body.read(content, spillThreshold);
             }
         }
         return bridgeResponse;
     }
 
-    private BridgeRequest parseBridgeRequest(String data) {
-        return getGson().fromJson(data, BridgeRequest.class);
+    static BridgeResponse createErrorResponse() {
+        return createErrorResponse(HttpServletResponse.SC_BAD_GATEWAY, "Failed to reach the server.");
     }
 
-    private void getIndex(HttpServletResponse response, ServerConfig serverConfig) {
+    /**
+     * Creates the response for a request that failed because the server could
+     * not be reached: 504 for timeouts, 502 for other failures.
+     *
+     * @param ex The cause of the failure.
+     * @return The response, marked as failed.
+     */
+    static BridgeResponse createErrorResponse(Exception ex) {
+        if (ex instanceof InterruptedIOException) {
+            return createErrorResponse(HttpServletResponse.SC_GATEWAY_TIMEOUT, "Timed out: " + ex.getMessage());
+        }
+        return createErrorResponse(HttpServletResponse.SC_BAD_GATEWAY, "Failed to reach the server: " + ex.getMessage());
+    }
+
+    /**
+     * Creates the response for a request that was to be sent to the upstream
+     * server of an endpoint that is behind a link. Linked endpoints are never
+     * sent to an upstream server directly.
+     */
+    private static BridgeResponse createNotDirectResponse(EndPoint endpoint) {
+        LOGGER.error("Endpoint {} is behind a link, not sending the request upstream.", endpoint.getResourceId());
+        BridgeResponse error = createErrorResponse(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Not a direct endpoint.");
+        error.failed = false;
+        return error;
+    }
+
+    /**
+     * Creates a response with the given status and a plain text message,
+     * marked as failed.
+     *
+     * @param statusCode The status code of the response.
+     * @param message The message to put in the body.
+     * @return The response.
+     */
+    static BridgeResponse createErrorResponse(int statusCode, String message) {
+        BridgeResponse response = new BridgeResponse();
+        response.statusCode = statusCode;
+        response.headers.put("Content-Type", "text/plain; charset=UTF-8");
+        response.body = Body.wrap(message.getBytes(StandardCharsets.UTF_8));
+        response.failed = true;
+        return response;
+    }
+
+    /**
+     * Creates the response for a copy of a request that was cancelled,
+     * because another copy was answered first. It is not a failure.
+     *
+     * @return The response.
+     */
+    static BridgeResponse createCancelledResponse() {
+        BridgeResponse response = createErrorResponse(HttpServletResponse.SC_BAD_GATEWAY, "Request cancelled.");
+        response.failed = false;
+        response.cancelled = true;
+        return response;
+    }
+
+    /**
+     * Creates the 503 response for a request that was rejected by an open
+     * circuit breaker, telling the client when to try again.
+     *
+     * @param breaker The breaker that rejected the request.
+     * @return The response.
+     */
+    static BridgeResponse createBreakerResponse(CircuitBreaker breaker) {
+        BridgeResponse response = createErrorResponse(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The server is unavailable, try again later.");
+        // Not a new failure, the request was not sent.
+        response.failed = false;
+        final long retryAfter = breaker.getRetryAfterSeconds();
+        if (retryAfter > 0) {
+            response.headers.put("Retry-After", Long.toString(retryAfter));
+        }
+        return response;
+    }
+
+    /**
+     * Creates the response for a request that was not admitted: 429 when the
+     * rate limit was reached, 503 when too many requests were running,
+     * telling the client when to try again.
+     *
+     * @param control The admission control that rejected the request.
+     * @param result The reason the request was rejected.
+     * @return The response.
+     */
+    static BridgeResponse createRejectedResponse(AdmissionControl control, AdmissionControl.Result result) {
+        BridgeResponse response;
+        if (result == AdmissionControl.Result.RATE_LIMITED) {
+            response = createErrorResponse(SC_TOO_MANY_REQUESTS, "Too many requests, try again later.");
+        } else {
+            response = createErrorResponse(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too busy, try again later.");
+        }
+        // Not a failure of the destination, the request was not sent.
+        response.failed = false;
+        response.headers.put("Retry-After", Long.toString(control.getRetryAfterSeconds(result)));
+        return response;
+    }
+
+    /**
+     * Creates the 400 response for a request with a url that can not be sent
+     * to the upstream server.
+     *
+     * @param ex The reason the url is invalid.
+     * @return The response.
+     */
+    static BridgeResponse createInvalidUrlResponse(IllegalArgumentException ex) {
+        LOGGER.debug("Invalid url: {}", ex.getMessage());
+        BridgeResponse response = createErrorResponse(HttpServletResponse.SC_BAD_REQUEST, "Invalid url: " + ex.getMessage());
+        // The request was not sent.
+        response.failed = false;
+        return response;
+    }
+
+    /**
+     * Creates the request to the given replica of the upstream server of a
+     * (direct) endpoint, with the url, method and headers of the given
+     * BridgeRequest. The body is not set. Characters in the url that may not
+     * appear in a URI, like the spaces the container decoded from the path,
+     * are escaped.
+     *
+     * @param upstream The replica to create the request for.
+     * @param bridgeRequest The request to forward.
+     * @return The request to send to the upstream server.
+     * @throws IllegalArgumentException If the url of the request is not a
+     * path below the base url of the endpoint.
+     */
+    static HttpEntityEnclosingRequestBase createHttpRequest(Upstream upstream, BridgeRequest bridgeRequest) {
+        final String url = bridgeRequest.url;
+        if (url == null || !(url.startsWith("/") || url.startsWith("?"))) {
+            throw new IllegalArgumentException("The url must start with /");
+        }
+        String targetUrl = upstream.getBaseUrl() + escapeUrl(url);
+        LOGGER.debug("Target URL: {}", targetUrl);
+        final String method = bridgeRequest.method;
+        HttpEntityEnclosingRequestBase httpRequest = new HttpEntityEnclosingRequestBase() {
+            @Override
+            public String getMethod() {
+                return method;
+            }
+        };
+        httpRequest.setURI(URI.create(targetUrl));
+        for (Map.Entry<String, String> entry : bridgeRequest.headers.entrySet()) {
+            httpRequest.setHeader(entry.getKey(), entry.getValue());
+        }
+        return httpRequest;
+    }
+
+    /**
+     * Escapes the characters of a path and query that may not appear in a
+     * URI. Existing escapes are kept.
+     *
+     * @param url The path and query to escape.
+     * @return The escaped path and query.
+     */
+    static String escapeUrl(String url) {
+        final byte[] bytes = url.getBytes(StandardCharsets.UTF_8);
+        StringBuilder result = null;
+        for (int i = 0; i < bytes.length; i++) {
+            final int value = bytes[i] & 0xFF;
+            final boolean escape = !isUrlChar(value)
+                    && !(value == '%' && i + 2 < bytes.length && isHexDigit(bytes[i + 1]) && isHexDigit(bytes[i + 2]));
+            if (escape && result == null) {
+                // All bytes up to here are ASCII, so they match the chars.
+                result = new StringBuilder(bytes.length + 16);
+                result.append(url, 0, i);
+            }
+            if (escape) {
+                result.append('%').append(HEX_DIGITS[value >> 4]).append(HEX_DIGITS[value & 0xF]);
+            } else if (result != null) {
+                result.append((char) value);
+            }
+        }
+        return result == null ? url : result.toString();
+    }
+
+    private static boolean isUrlChar(int value) {
+        return (value >= 'a' && value <= 'z')
+                || (value >= 'A' && value <= 'Z')
+                || (value >= '0' && value <= '9')
+                || (value < 0x80 && URL_CHARS.indexOf(value) >= 0);
+    }
+
+    private static boolean isHexDigit(byte value) {
+        return Character.digit(value, 16) >= 0;
+    }
+
+    private BridgeRequest parseBridgeRequest(Reader data, long spillThreshold) {
+        return getGson(spillThreshold).fromJson(data, BridgeRequest.class);
+    }
+
+    /**
+     * Writes the index: the endpoints other Bridges can reach through this
+     * one, without the settings of this Bridge. The index carries an ETag, so
+     * other Bridges can check for changes with a conditional request.
+     */
+    private void getIndex(HttpServletRequest request, HttpServletResponse response, ServerConfig serverConfig) {
         response.setContentType(RestApi.CONTENT_TYPE_APPLICATIONJSON);
         response.setCharacterEncoding(RestApi.ENCODING_UTF8);
+        response.setHeader(HEADER_ACCEPT_POST, LinkCodec.CONTENT_TYPE_LINK_BINARY + ", " + RestApi.CONTENT_TYPE_APPLICATIONJSON);
+        response.setHeader(HEADER_LINK_CHANNEL, LinkChannel.PATH);
+        response.setHeader(HEADER_LINK_BATCH, LinkBatch.PATH);
+        response.setHeader(HEADER_LINK_ENCODINGS, LinkCompression.getSupportedEncodings());
+        final String json = serverConfig.toPeerJson();
+        final String etag = "\"" + Integer.toHexString(json.hashCode()) + "-" + Integer.toHexString(json.length()) + "\"";
+        response.setHeader(HEADER_ETAG, etag);
+        if (etag.equals(request.getHeader(HEADER_IF_NONE_MATCH))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
         try {
-            response.getWriter().write(serverConfig.toJson());
+            response.getWriter().write(json);
         } catch (IOException ex) {
             LOGGER.error("Failed to write response", ex);
         }
     }
 
-    private static String readRequestData(BufferedReader reader) {
-        return reader.lines().collect(Collectors.joining("\n"));
+    public static Gson getGson() {
+        if (gson == null) {
+            gson = createGson(0);
+        }
+        return gson;
     }
 
-    private static CloseableHttpClient getHttpClient() {
-        if (client == null) {
-            client = HttpClients.createSystem();
+    /**
+     * @param spillThreshold The size in bytes above which the bodies that are
+     * read are moved to a file.
+     * @return the Gson for reading requests and responses with the given
+     * spill threshold.
+     */
+    static Gson getGson(long spillThreshold) {
+        if (spillThreshold <= 0) {
+            return getGson();
         }
-        return client;
+        return GSONS.computeIfAbsent(spillThreshold, LinkApi::createGson);
     }
 
-    public static Gson getGson() {
-        if (gson == null) {
-            gson = new GsonBuilder()
-                    .setPrettyPrinting()
-                    .excludeFieldsWithoutExposeAnnotation()
-                    .create();
-        }
-        return gson;
+    private static Gson createGson(long spillThreshold) {
+        return new GsonBuilder()
+                .setPrettyPrinting()
+                .excludeFieldsWithoutExposeAnnotation()
+                .registerTypeAdapter(Body.class, Body.jsonAdapter(spillThreshold))
+                .create();
     }
 
 }
@@ -0,0 +1,328 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Supplier;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Batches of requests on the link between two Bridges, so many small requests
+ * cost a single round trip. The other Bridge executes the requests of a batch
+ * concurrently, and streams each response back as soon as it completes, so a
+ * slow request does not hold up the others.
+ *
+ * @author hylke
+ */
+public class LinkBatch {
+
+    /**
+     * The path that accepts batches, relative to the url of a Bridge.
+     */
+    public static final String PATH = "/link/batch";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LinkBatch.class.getName());
+
+    private static final ContentType CONTENT_TYPE_BATCH = ContentType.create(LinkCodec.CONTENT_TYPE_LINK_BATCH);
+
+    /**
+     * Reads the streamed responses to the batches sent to other Bridges.
+     */
+    private static final ExecutorService READERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "link-batch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private LinkBatch() {
+        // Utility class.
+    }
+
+    /**
+     * Handles a single response of a batch.
+     */
+    public interface ResponseConsumer {
+
+        /**
+         * @param index The index of the request in the batch.
+         * @param response The response to the request.
+         * @throws IOException If the response can not be written.
+         */
+        void accept(int index, BridgeResponse response) throws IOException;
+    }
+
+    /**
+     * The running requests of a batch. Requests are either started by the
+     * caller, or started by {@link #run(int, ResponseConsumer)} while fewer
+     * than the given number of them run.
+     */
+    public static class Execution {
+
+        private final int count;
+        private final Queue<Pending> pending = new ArrayDeque<>();
+        private final BlockingQueue<Completion> completed = new LinkedBlockingQueue<>();
+
+        /**
+         * @param count The number of requests in the batch.
+         */
+        public Execution(int count) {
+            this.count = count;
+        }
+
+        /**
+         * Adds a request that was already started. It does not count for the
+         * parallelism.
+         *
+         * @param index The index of the request in the batch.
+         * @param future The future response.
+         */
+        public void add(int index, CompletableFuture<BridgeResponse> future) {
+            watch(index, future, false);
+        }
+
+        /**
+         * Adds a request that is started when there is room for it.
+         *
+         * @param index The index of the request in the batch.
+         * @param starter Starts the request.
+         */
+        public void addPending(int index, Supplier<CompletableFuture<BridgeResponse>> starter) {
+            pending.add(new Pending(index, starter));
+        }
+
+        /**
+         * Starts the pending requests, with at most the given number running
+         * at the same time, and hands each response to the consumer as soon as
+         * it completes, in the calling thread. Returns when all responses were
+         * handed over. When the consumer fails, the requests that did not
+         * start yet are dropped.
+         *
+         * @param parallelism The maximum number of pending requests running
+         * at the same time.
+         * @param consumer The consumer of the responses.
+         * @throws IOException If the consumer failed.
+         * @throws InterruptedException If the thread was interrupted.
+         */
+        public void run(int parallelism, ResponseConsumer consumer) throws IOException, InterruptedException {
+            int running = 0;
+            try {
+                for (int handed = 0; handed < count; handed++) {
+                    while (running < parallelism && !pending.isEmpty()) {
+                        final Pending next = pending.poll();
+                        watch(next.index, next.starter.get(), true);
+                        running++;
+                    }
+                    final Completion completion = completed.take();
+                    if (completion.limited) {
+                        running--;
+                    }
+                    consumer.accept(completion.index, completion.response);
+                }
+            } finally {
+                pending.clear();
+            }
+        }
+
+        private void watch(int index, CompletableFuture<BridgeResponse> future, boolean limited) {
+            future.whenComplete((response, ex) -> {
+                if (ex != null) {
+                    LOGGER.error("Batch request {} failed", index, ex);
+                    response = LinkApi.createErrorResponse();
+                }
+                completed.add(new Completion(index, response, limited));
+            });
+        }
+    }
+
+    private static class Pending {
+
+        final int index;
+        final Supplier<CompletableFuture<BridgeResponse>> starter;
+
+        Pending(int index, Supplier<CompletableFuture<BridgeResponse>> starter) {
+            this.index = index;
+            this.starter = starter;
+        }
+    }
+
+    private static class Completion {
+
+        final int index;
+        final BridgeResponse response;
+        final boolean limited;
+
+        Completion(int index, BridgeResponse response, boolean limited) {
+            this.index = index;
+            this.response = response;
+            this.limited = limited;
+        }
+    }
+
+    /**
+     * Sends the requests to the other Bridge of the link in a single batch.
+     * The link must support batches. Requests fail fast while the circuit
+     * breaker of the link is open. Batches are not retried.
+     *
+     * @param link The link to send the batch over.
+     * @param requests The requests to send.
+     * @return The future responses, in the order of the requests. Each future
+     * completes as soon as its response arrives, and always completes
+     * normally: failures result in an error response.
+     */
+    public static List<CompletableFuture<BridgeResponse>> send(Link link, List<BridgeRequest> requests) {
+        final List<CompletableFuture<BridgeResponse>> futures = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            futures.add(new CompletableFuture<>());
+        }
+        final CircuitBreaker breaker = link.getConnectionPool().getCircuitBreaker();
+        if (!breaker.allowRequest()) {
+            completeAll(futures, LinkApi.createBreakerResponse(breaker));
+            return Collections.unmodifiableList(futures);
+        }
+        READERS.execute(() -> {
+            final BridgeResponse error = doSend(link, requests, futures);
+            breaker.record(error == null || !error.failed);
+            if (error != null) {
+                completeAll(futures, error);
+            }
+        });
+        return Collections.unmodifiableList(futures);
+    }
+
+    /**
+     * Sends the requests to the other Bridge of the link in a single batch,
+     * without consulting the circuit breaker of the link, for callers that do
+     * so for each request.
+     *
+     * @param link The link to send the batch over.
+     * @param requests The requests to send.
+     * @return The future responses, in the order of the requests.
+     */
+    static List<CompletableFuture<BridgeResponse>> sendUnguarded(Link link, List<BridgeRequest> requests) {
+        final List<CompletableFuture<BridgeResponse>> futures = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            futures.add(new CompletableFuture<>());
+        }
+        READERS.execute(() -> {
+            final BridgeResponse error = doSend(link, requests, futures);
+            if (error != null) {
+                completeAll(futures, error);
+            }
+        });
+        return Collections.unmodifiableList(futures);
+    }
+
+    /**
+     * Sends the batch and completes the futures as the responses arrive.
+     *
+     * @return null if all responses arrived, or the response for the requests
+     * without response.
+     */
+    private static BridgeResponse doSend(Link link, List<BridgeRequest> requests, List<CompletableFuture<BridgeResponse>> futures) {
+        final HttpPost httpPost;
+        try {
+            httpPost = createBatchRequest(link, requests);
+        } catch (IOException ex) {
+            LOGGER.error("Failed to encode batch for {}: {}", link.getUrl(), ex.getMessage());
+            BridgeResponse error = LinkApi.createErrorResponse(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Failed to buffer the batch.");
+            error.failed = false;
+            return error;
+        }
+        try (CloseableHttpResponse response = link.getConnectionPool().getClient().execute(httpPost)) {
+            final HttpEntity entity = response.getEntity();
+            final int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != HttpServletResponse.SC_OK || entity == null) {
+                EntityUtils.consume(entity);
+                BridgeResponse error = LinkApi.createErrorResponse(HttpServletResponse.SC_BAD_GATEWAY, "The other Bridge answered the batch with status " + statusCode + ".");
+                // Only server errors say something about the health of the other Bridge.
+                error.failed = statusCode >= 500;
+                return error;
+            }
+            final Header batchEncoding = response.getFirstHeader(LinkApi.HEADER_BATCH_ENCODING);
+            final LinkCompression compression = link.getCompression();
+            final DataInputStream data = new DataInputStream(new BufferedInputStream(entity.getContent()));
+            int index;
+            while ((index = data.readInt()) >= 0) {
+                final boolean compressed = data.readBoolean();
+                final BridgeResponse bridgeResponse = readFrame(link, data, data.readInt(), compressed ? batchEncoding : null);
+                if (index >= futures.size() || !futures.get(index).complete(bridgeResponse)) {
+                    bridgeResponse.close();
+                }
+            }
+            EntityUtils.consume(entity);
+            return null;
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.error("Failed to execute batch on {}: {}", link.getUrl(), ex.getMessage());
+            return LinkApi.createErrorResponse(ex);
+        } finally {
+            Body.release(httpPost.getEntity());
+        }
+    }
+
+    /**
+     * Reads a single response of a batch, decompressing it while it is read.
+     * The body of the response is moved to a file if it is larger than the
+     * spill threshold of the link.
+     */
+    private static BridgeResponse readFrame(Link link, InputStream data, int length, Header encoding) throws IOException {
+        final BoundedInputStream frame = new BoundedInputStream(data, length);
+        frame.setPropagateClose(false);
+        try (InputStream content = link.getCompression().decompressing(encoding == null ? null : encoding.getValue(), frame)) {
+            return LinkCodec.readResponse(content, link.getSpillThreshold());
+        } finally {
+            IOUtils.consume(frame);
+        }
+    }
+
+    /**
+     * Creates the POST of the batch. The encoded batch is moved to a file if
+     * it is larger than the spill threshold of the link. It must be released
+     * with {@link Body#release(HttpEntity)} when the request is done.
+     */
+    private static HttpPost createBatchRequest(Link link, List<BridgeRequest> requests) throws IOException {
+        HttpPost httpPost = new HttpPost(link.getUrl() + PATH);
+        httpPost.setHeader("Accept", LinkCodec.CONTENT_TYPE_LINK_BATCH);
+        Body data = Body.of(link.getSpillThreshold(), out -> LinkCodec.writeBatch(requests, out));
+        final LinkCompression.Encoding encoding = link.getEncoding();
+        if (encoding != null) {
+            httpPost.setHeader(LinkApi.HEADER_ACCEPT_ENCODING, encoding.name);
+            final LinkCompression compression = link.getCompression();
+            if (compression.shouldCompress(encoding, data.length())) {
+                try (Body uncompressed = data) {
+                    data = compression.compress(encoding, uncompressed, link.getSpillThreshold());
+                }
+                httpPost.setHeader(LinkApi.HEADER_CONTENT_ENCODING, encoding.name);
+            }
+        }
+        httpPost.setEntity(data.toEntity(CONTENT_TYPE_BATCH));
+        return httpPost;
+    }
+
+    private static void completeAll(List<CompletableFuture<BridgeResponse>> futures, BridgeResponse response) {
+        for (CompletableFuture<BridgeResponse> future : futures) {
+            future.complete(response);
+        }
+    }
+
+}
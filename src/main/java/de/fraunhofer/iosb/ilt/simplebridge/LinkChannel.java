@@ -0,0 +1,356 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent, multiplexed channel to another Bridge. Requests are sent as
+ * binary WebSocket messages, prefixed with a stream id. Many requests can be
+ * in flight at the same time, responses are matched to their requests by the
+ * stream id. When the connection drops, the channel reconnects automatically.
+ *
+ * @author hylke
+ */
+public class LinkChannel implements AutoCloseable {
+
+    /**
+     * The path of the channel, relative to the url of a Bridge.
+     */
+    public static final String PATH = "/link/channel";
+    /**
+     * The maximum size of a single request or response on the channel.
+     * Larger requests are sent with a POST instead.
+     */
+    public static final long MAX_MESSAGE_SIZE = 256L * 1024 * 1024;
+    /**
+     * Set on the response a Bridge sends instead of a response to an
+     * idempotent request that it can not send over the channel, because it is
+     * too large or the channel is too busy. The request is then sent again
+     * with a POST. The value is the reason.
+     */
+    public static final String HEADER_FALLBACK = "Link-Channel-Fallback";
+    public static final Duration IDLE_TIMEOUT = Duration.ofMinutes(5);
+
+    private static final String EXTENSION_DEFLATE = "permessage-deflate";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LinkChannel.class.getName());
+    private static final long PING_INTERVAL_SECONDS = 30;
+    private static final long RECONNECT_DELAY_MIN_MILLIS = 500;
+    private static final long RECONNECT_DELAY_MAX_MILLIS = 60_000;
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "link-channel");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final URI uri;
+    private final long timeoutMillis;
+    private final long spillThreshold;
+    private final boolean compress;
+    private final WebSocketClient client = new WebSocketClient();
+    private final AtomicInteger nextStreamId = new AtomicInteger();
+    private final Map<Integer, CompletableFuture<BridgeResponse>> pending = new ConcurrentHashMap<>();
+
+    private volatile Connection connection;
+    private volatile boolean closed;
+    private long reconnectDelay = RECONNECT_DELAY_MIN_MILLIS;
+    private ScheduledFuture<?> pinger;
+
+    /**
+     * @param linkUrl The url of the other Bridge.
+     * @param timeoutMillis The time to wait for a response before failing a
+     * request, 0 to wait until the connection drops.
+     * @param spillThreshold The size in bytes above which an encoded request
+     * is moved to a file while it waits to be sent, 0 to keep it in the heap.
+     * @param compress Flag indicating the messages should be compressed, using
+     * the permessage-deflate extension.
+     */
+    public LinkChannel(String linkUrl, long timeoutMillis, long spillThreshold, boolean compress) {
+        this.uri = URI.create(linkUrl.replaceFirst("^http", "ws") + PATH);
+        this.timeoutMillis = timeoutMillis;
+        this.spillThreshold = spillThreshold;
+        this.compress = compress;
+    }
+
+    /**
+     * Starts the channel. The connection is opened in the background.
+     */
+    public void start() {
+        client.setMaxBinaryMessageSize(MAX_MESSAGE_SIZE);
+        client.setIdleTimeout(IDLE_TIMEOUT);
+        try {
+            client.start();
+        } catch (Exception ex) {
+            LOGGER.error("Failed to start link channel client for {}", uri, ex);
+            return;
+        }
+        pinger = SCHEDULER.scheduleWithFixedDelay(this::ping, PING_INTERVAL_SECONDS, PING_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        connect();
+    }
+
+    /**
+     * @return true if the channel is currently connected.
+     */
+    public boolean isOpen() {
+        return connection != null;
+    }
+
+    /**
+     * Sends the request over the channel. The returned future always completes
+     * normally: when the connection drops or the response does not arrive in
+     * time, it completes with a response with status 500. Without a timeout,
+     * the request waits until its response arrives or the connection drops.
+     *
+     * @param bridgeRequest The request to send.
+     * @return A future that completes with the response, or null if the
+     * channel is not connected, the request is too large for it, or too many
+     * messages wait to be sent, in which case the caller should use another
+     * way to send the request. The response may be one that
+     * {@link #isFallback(BridgeResponse)}, then the caller should also send
+     * the request another way.
+     */
+    public CompletableFuture<BridgeResponse> send(BridgeRequest bridgeRequest) {
+        final Connection current = connection;
+        if (current == null) {
+            return null;
+        }
+        if (LinkCodec.messageSize(bridgeRequest) > MAX_MESSAGE_SIZE) {
+            // The other Bridge would close the channel, failing all requests on it.
+            LOGGER.debug("Request too large for link channel to {}, using POST.", uri);
+            return null;
+        }
+        final int streamId = nextStreamId.incrementAndGet();
+        final Body message;
+        try {
+            message = LinkCodec.toMessage(streamId, bridgeRequest, spillThreshold);
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to encode request for link channel to {}, using POST: {}", uri, ex.getMessage());
+            return null;
+        }
+        final CompletableFuture<BridgeResponse> result = new CompletableFuture<>();
+        pending.put(streamId, result);
+        if (!current.sender.trySend(message)) {
+            pending.remove(streamId);
+            message.close();
+            LOGGER.debug("Link channel to {} is busy, using POST.", uri);
+            return null;
+        }
+        if (timeoutMillis > 0) {
+            final ScheduledFuture<?> timeout = SCHEDULER.schedule(() -> fail(streamId), timeoutMillis, TimeUnit.MILLISECONDS);
+            result.whenComplete((response, ex) -> timeout.cancel(false));
+        }
+        return result;
+    }
+
+    /**
+     * Checks if the response is the one a Bridge sends instead of a response
+     * it can not send over the channel.
+     *
+     * @param response The response to check.
+     * @return true if the request must be sent again another way.
+     */
+    public static boolean isFallback(BridgeResponse response) {
+        return response.headers.containsKey(HEADER_FALLBACK);
+    }
+
+    /**
+     * Creates the response to send over the channel instead of the given
+     * response, if that is too large for the channel.
+     *
+     * @param request The request the response is for.
+     * @param response The response to send.
+     * @return The response to send, or null if the given response fits.
+     */
+    static BridgeResponse replaceTooLarge(BridgeRequest request, BridgeResponse response) {
+        final long size = LinkCodec.messageSize(response);
+        if (size <= MAX_MESSAGE_SIZE) {
+            return null;
+        }
+        LOGGER.warn("Response of {} bytes to {} {} too large for link channel.", size, request.method, request.url);
+        return createFallbackResponse(request, HttpServletResponse.SC_BAD_GATEWAY, "The response is too large for the link channel.", "too-large");
+    }
+
+    /**
+     * Creates the response to send over the channel instead of a response
+     * that does not fit in the queue of the channel.
+     *
+     * @param request The request the response is for.
+     * @return The response to send.
+     */
+    static BridgeResponse createBusyResponse(BridgeRequest request) {
+        LOGGER.warn("Link channel too busy for the response to {} {}.", request.method, request.url);
+        return createFallbackResponse(request, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The link channel is too busy.", "busy");
+    }
+
+    /**
+     * Idempotent requests are sent again with a POST by the other Bridge,
+     * others fail, since they were already executed.
+     */
+    private static BridgeResponse createFallbackResponse(BridgeRequest request, int statusCode, String message, String reason) {
+        BridgeResponse replacement = LinkApi.createErrorResponse(statusCode, message);
+        replacement.failed = false;
+        if (LinkApi.isIdempotent(request.method)) {
+            replacement.headers.put(HEADER_FALLBACK, reason);
+        }
+        return replacement;
+    }
+
+    private void fail(int streamId) {
+        CompletableFuture<BridgeResponse> future = pending.remove(streamId);
+        if (future != null) {
+            future.complete(LinkApi.createErrorResponse());
+        }
+    }
+
+    private void failAll() {
+        for (Integer streamId : pending.keySet()) {
+            fail(streamId);
+        }
+    }
+
+    private void connect() {
+        if (closed) {
+            return;
+        }
+        final Connection newConnection = new Connection();
+        final ClientUpgradeRequest upgradeRequest = new ClientUpgradeRequest();
+        if (compress) {
+            upgradeRequest.addExtensions(EXTENSION_DEFLATE);
+        }
+        try {
+            client.connect(newConnection, uri, upgradeRequest).whenComplete((session, ex) -> {
+                if (ex != null) {
+                    LOGGER.warn("Failed to open link channel to {}: {}", uri, ex.getMessage());
+                    newConnection.disconnected();
+                }
+            });
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to open link channel to {}: {}", uri, ex.getMessage());
+            newConnection.disconnected();
+        }
+    }
+
+    private synchronized void scheduleReconnect() {
+        if (closed) {
+            return;
+        }
+        LOGGER.info("Reconnecting link channel to {} in {} ms", uri, reconnectDelay);
+        SCHEDULER.schedule(this::connect, reconnectDelay, TimeUnit.MILLISECONDS);
+        reconnectDelay = Math.min(reconnectDelay * 2, RECONNECT_DELAY_MAX_MILLIS);
+    }
+
+    private synchronized void connected(Connection newConnection) {
+        reconnectDelay = RECONNECT_DELAY_MIN_MILLIS;
+        connection = newConnection;
+    }
+
+    private void ping() {
+        final Connection current = connection;
+        if (current != null) {
+            current.session.getRemote().sendPing(ByteBuffer.allocate(0), WriteCallback.NOOP);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (pinger != null) {
+            pinger.cancel(false);
+        }
+        final Connection current = connection;
+        connection = null;
+        if (current != null) {
+            current.session.close();
+        }
+        failAll();
+        try {
+            client.stop();
+        } catch (Exception ex) {
+            LOGGER.warn("Failed to stop link channel client for {}", uri, ex);
+        }
+    }
+
+    /**
+     * A single connection of the channel.
+     */
+    private class Connection implements WebSocketListener {
+
+        private final AtomicBoolean ended = new AtomicBoolean();
+        private Session session;
+        private ChannelSender sender;
+
+        @Override
+        public void onWebSocketConnect(Session session) {
+            LOGGER.info("Link channel to {} opened.", uri);
+            this.session = session;
+            this.sender = new ChannelSender(session);
+            connected(this);
+        }
+
+        @Override
+        public void onWebSocketBinary(byte[] payload, int offset, int len) {
+            final int streamId;
+            final BridgeResponse bridgeResponse;
+            try {
+                DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload, offset, len));
+                streamId = data.readInt();
+                bridgeResponse = LinkCodec.readResponse(data);
+            } catch (IOException ex) {
+                LOGGER.error("Failed to parse link channel message", ex);
+                return;
+            }
+            CompletableFuture<BridgeResponse> future = pending.remove(streamId);
+            if (future == null || !future.complete(bridgeResponse)) {
+                bridgeResponse.close();
+            }
+        }
+
+        @Override
+        public void onWebSocketClose(int statusCode, String reason) {
+            LOGGER.info("Link channel to {} closed: {} {}", uri, statusCode, reason);
+            disconnected();
+        }
+
+        @Override
+        public void onWebSocketError(Throwable cause) {
+            LOGGER.warn("Link channel to {} failed: {}", uri, cause.getMessage());
+            disconnected();
+        }
+
+        private void disconnected() {
+            if (!ended.compareAndSet(false, true)) {
+                return;
+            }
+            synchronized (LinkChannel.this) {
+                if (connection == this) {
+                    connection = null;
+                }
+            }
+            // Responses for requests sent on this connection will not arrive.
+            failAll();
+            scheduleReconnect();
+        }
+    }
+}
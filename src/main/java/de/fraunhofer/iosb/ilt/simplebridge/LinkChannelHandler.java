@@ -0,0 +1,123 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The receiving side of a link channel. Executes the requests received over
+ * the channel concurrently, and sends each response back with the stream id of
+ * its request.
+ *
+ * @author hylke
+ */
+public class LinkChannelHandler implements WebSocketListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LinkChannelHandler.class.getName());
+
+    private final ServletContext context;
+    private ChannelSender sender;
+
+    /**
+     * @param context The context of the Bridge, used to find the current
+     * configuration for each request, since the channel may outlive a
+     * configuration reload.
+     */
+    public LinkChannelHandler(ServletContext context) {
+        this.context = context;
+    }
+
+    @Override
+    public void onWebSocketConnect(Session session) {
+        LOGGER.info("Link channel opened from {}", session.getRemoteAddress());
+        sender = new ChannelSender(session);
+    }
+
+    @Override
+    public void onWebSocketBinary(byte[] payload, int offset, int len) {
+        final long start = System.nanoTime();
+        final int streamId;
+        final BridgeRequest bridgeRequest;
+        try {
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload, offset, len));
+            streamId = data.readInt();
+            bridgeRequest = LinkCodec.readRequest(data);
+        } catch (IOException ex) {
+            LOGGER.error("Failed to parse link channel message", ex);
+            return;
+        }
+        LOGGER.debug("Request: {} {} {}, stream {}", bridgeRequest.method, bridgeRequest.resourceId, bridgeRequest.url, streamId);
+        final ServerConfig serverConfig = ServerConfig.getServerConfig(context);
+        final AccessLog accessLog = serverConfig.getAccessLogger();
+        EndPoint endpoint = serverConfig.getEndpoint(bridgeRequest.resourceId);
+        if (endpoint == null) {
+            BridgeResponse notFound = LinkApi.createErrorResponse(HttpServletResponse.SC_NOT_FOUND, "No such endpoint.");
+            sender.send(toHeapMessage(streamId, notFound));
+            accessLog.log(AccessLog.API_CHANNEL, bridgeRequest, notFound.statusCode, bridgeRequest.body.length(), notFound.body.length(), start);
+            bridgeRequest.close();
+            return;
+        }
+        final RequestMetrics metrics = endpoint.getMetrics(bridgeRequest.method);
+        final long requestSize = bridgeRequest.body.length();
+        final long spillThreshold = serverConfig.getSpillThreshold();
+        LinkApi.admitAndExecuteAsync(endpoint, bridgeRequest)
+                .whenComplete((bridgeResponse, ex) -> bridgeRequest.close())
+                .thenAccept(bridgeResponse -> {
+                    try (BridgeResponse sent = bridgeResponse) {
+                        final BridgeResponse replacement = LinkChannel.replaceTooLarge(bridgeRequest, sent);
+                        sendResponse(streamId, bridgeRequest, replacement == null ? sent : replacement, spillThreshold);
+                    }
+                    metrics.recordRequest(bridgeResponse.statusCode, requestSize, bridgeResponse.body.length());
+                    accessLog.log(AccessLog.API_CHANNEL, bridgeRequest, bridgeResponse.statusCode, requestSize, bridgeResponse.body.length(), start);
+                });
+    }
+
+    /**
+     * Encodes and sends the response. If the queue of the channel is full, or
+     * the response can not be encoded, a small error response is sent
+     * instead, so the other Bridge does not wait for the response forever.
+     */
+    private void sendResponse(int streamId, BridgeRequest bridgeRequest, BridgeResponse bridgeResponse, long spillThreshold) {
+        final Body message;
+        try {
+            message = LinkCodec.toMessage(streamId, bridgeResponse, spillThreshold);
+        } catch (IOException ex) {
+            LOGGER.error("Failed to encode link channel response: {}", ex.getMessage());
+            sender.send(toHeapMessage(streamId, LinkApi.createErrorResponse(ex)));
+            return;
+        }
+        if (!sender.trySend(message)) {
+            message.close();
+            sender.send(toHeapMessage(streamId, LinkChannel.createBusyResponse(bridgeRequest)));
+        }
+    }
+
+    /**
+     * Encodes a small response into a message in the heap.
+     */
+    private static Body toHeapMessage(int streamId, BridgeResponse bridgeResponse) {
+        try {
+            return LinkCodec.toMessage(streamId, bridgeResponse, 0);
+        } catch (IOException ex) {
+            // Can not happen, the message is not moved to a file.
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public void onWebSocketClose(int statusCode, String reason) {
+        LOGGER.info("Link channel closed: {} {}", statusCode, reason);
+    }
+
+    @Override
+    public void onWebSocketError(Throwable cause) {
+        LOGGER.warn("Link channel error: {}", cause.getMessage());
+    }
+
+}
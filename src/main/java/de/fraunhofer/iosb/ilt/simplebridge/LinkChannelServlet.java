@@ -0,0 +1,27 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import javax.servlet.annotation.WebServlet;
+import org.eclipse.jetty.websocket.server.JettyWebSocketServlet;
+import org.eclipse.jetty.websocket.server.JettyWebSocketServletFactory;
+
+/**
+ * Accepts persistent link channels from other Bridges.
+ *
+ * @author hylke
+ */
+@WebServlet(
+        name = "BridgeLinkChannel",
+        urlPatterns = {LinkChannel.PATH}
+)
+public class LinkChannelServlet extends JettyWebSocketServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void configure(JettyWebSocketServletFactory factory) {
+        factory.setMaxBinaryMessageSize(LinkChannel.MAX_MESSAGE_SIZE);
+        factory.setIdleTimeout(LinkChannel.IDLE_TIMEOUT);
+        factory.setCreator((request, response) -> new LinkChannelHandler(request.getHttpServletRequest().getServletContext()));
+    }
+
+}
@@ -0,0 +1,415 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The compact binary encoding of BridgeRequests and BridgeResponses, used on
+ * the link between two bridges when both sides support it.
+ *
+ * A frame starts with a header block: the magic bytes, the version, the fields
+ * of the request or response as length-prefixed UTF-8 strings and the headers
+ * as a count followed by name/value pairs. The header block is followed by the
+ * length of the body and the raw body bytes.
+ *
+ * A batch of requests is the number of requests followed by their frames. The
+ * response to a batch is a sequence of items, in the order the responses
+ * completed. Each item is the index of the request, a flag telling if the
+ * frame is compressed, and the length-prefixed frame of the response. The
+ * sequence ends with the index -1.
+ *
+ * @author hylke
+ */
+public class LinkCodec {
+
+    /**
+     * The Content-Type used for binary link frames.
+     */
+    public static final String CONTENT_TYPE_LINK_BINARY = "application/vnd.simplebridge.link";
+    /**
+     * The Content-Type used for batches of binary link frames.
+     */
+    public static final String CONTENT_TYPE_LINK_BATCH = "application/vnd.simplebridge.link-batch";
+
+    private static final int MAGIC = 0x5342; // "SB"
+    private static final int VERSION = 1;
+    /**
+     * The size of the magic bytes and the version.
+     */
+    private static final int HEADER_SIZE = 3;
+    /**
+     * The size of the stream id that prefixes a channel message.
+     */
+    private static final int STREAM_ID_SIZE = 4;
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private LinkCodec() {
+        // Utility class.
+    }
+
+    /**
+     * Checks if the given Content-Type is the binary link format.
+     *
+     * @param contentType The Content-Type to check, may be null.
+     * @return true if the Content-Type is the binary link format.
+     */
+    public static boolean isBinary(String contentType) {
+        return contentType != null && contentType.startsWith(CONTENT_TYPE_LINK_BINARY);
+    }
+
+    public static void writeRequest(BridgeRequest request, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        writeRequest(request, data);
+        data.flush();
+    }
+
+    private static void writeRequest(BridgeRequest request, DataOutputStream data) throws IOException {
+        writeHeader(data);
+        writeString(data, request.resourceId);
+        writeString(data, request.url);
+        writeString(data, request.method);
+        writeHeaders(data, request.headers);
+        writeBody(data, request.body);
+    }
+
+    public static BridgeRequest readRequest(InputStream in) throws IOException {
+        return readRequest(in, 0);
+    }
+
+    /**
+     * Reads a request, moving its body to a file if it is larger than the
+     * given spill threshold.
+     *
+     * @param in The stream to read.
+     * @param spillThreshold The size in bytes above which the body is moved
+     * to a file, 0 to keep it in the heap.
+     * @return The request.
+     * @throws IOException If the stream can not be read.
+     */
+    public static BridgeRequest readRequest(InputStream in, long spillThreshold) throws IOException {
+        return readRequest(new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE)), spillThreshold);
+    }
+
+    private static BridgeRequest readRequest(DataInputStream data, long spillThreshold) throws IOException {
+        readHeader(data);
+        BridgeRequest request = new BridgeRequest();
+        request.resourceId = readString(data);
+        request.url = readString(data);
+        request.method = readString(data);
+        readHeaders(data, request.headers);
+        request.body = readBody(data, spillThreshold);
+        return request;
+    }
+
+    public static void writeResponse(BridgeResponse response, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        writeHeader(data);
+        data.writeInt(response.statusCode);
+        writeHeaders(data, response.headers);
+        writeBody(data, response.body);
+        data.flush();
+    }
+
+    public static BridgeResponse readResponse(InputStream in) throws IOException {
+        return readResponse(in, 0);
+    }
+
+    /**
+     * Reads a response, moving its body to a file if it is larger than the
+     * given spill threshold.
+     *
+     * @param in The stream to read.
+     * @param spillThreshold The size in bytes above which the body is moved
+     * to a file, 0 to keep it in the heap.
+     * @return The response.
+     * @throws IOException If the stream can not be read.
+     */
+    public static BridgeResponse readResponse(InputStream in, long spillThreshold) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+        readHeader(data);
+        BridgeResponse response = new BridgeResponse();
+        response.statusCode = data.readInt();
+        readHeaders(data, response.headers);
+        response.body = readBody(data, spillThreshold);
+        return response;
+    }
+
+    /**
+     * Writes a batch of requests.
+     *
+     * @param requests The requests to write.
+     * @param out The stream to write to.
+     * @throws IOException If the stream can not be written to.
+     */
+    public static void writeBatch(List<BridgeRequest> requests, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        data.writeInt(requests.size());
+        for (BridgeRequest request : requests) {
+            writeRequest(request, data);
+        }
+        data.flush();
+    }
+
+    /**
+     * Reads a batch of requests.
+     *
+     * @param in The stream to read.
+     * @param maxSize The maximum number of requests in the batch.
+     * @param spillThreshold The size in bytes above which the body of a
+     * request is moved to a file, 0 to keep them in the heap.
+     * @return The requests.
+     * @throws IOException If the stream can not be read, or the batch is too
+     * large.
+     */
+    public static List<BridgeRequest> readBatch(InputStream in, int maxSize, long spillThreshold) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+        final int count = data.readInt();
+        if (count < 0 || count > maxSize) {
+            throw new IOException("Invalid batch size: " + count);
+        }
+        List<BridgeRequest> requests = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            requests.add(readRequest(data, spillThreshold));
+        }
+        return requests;
+    }
+
+    /**
+     * Writes an item of the response to a batch.
+     *
+     * @param out The stream to write to.
+     * @param index The index of the request in the batch.
+     * @param compressed Flag indicating the frame is compressed.
+     * @param frame The encoded response.
+     * @throws IOException If the stream can not be written to.
+     */
+    public static void writeBatchItem(DataOutputStream out, int index, boolean compressed, Body frame) throws IOException {
+        if (frame.length() > Integer.MAX_VALUE) {
+            throw new IOException("Response too large for a batch: " + frame.length());
+        }
+        out.writeInt(index);
+        out.writeBoolean(compressed);
+        out.writeInt((int) frame.length());
+        frame.writeTo(out);
+    }
+
+    /**
+     * Writes the marker that ends the response to a batch.
+     *
+     * @param out The stream to write to.
+     * @throws IOException If the stream can not be written to.
+     */
+    public static void writeBatchEnd(DataOutputStream out) throws IOException {
+        out.writeInt(-1);
+    }
+
+    /**
+     * Encodes the request into a byte array.
+     *
+     * @param request The request to encode.
+     * @return The encoded request.
+     */
+    public static byte[] toBytes(BridgeRequest request) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bodyLength(request.body) + 256);
+        try {
+            writeRequest(request, out);
+        } catch (IOException ex) {
+            // Can not happen with a ByteArrayOutputStream.
+            throw new IllegalStateException(ex);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Encodes the response into a byte array.
+     *
+     * @param response The response to encode.
+     * @return The encoded response.
+     */
+    public static byte[] toBytes(BridgeResponse response) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bodyLength(response.body) + 256);
+        try {
+            writeResponse(response, out);
+        } catch (IOException ex) {
+            // Can not happen with a ByteArrayOutputStream.
+            throw new IllegalStateException(ex);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Encodes the request into a channel message, prefixed with the given
+     * stream id. The message is built from pooled chunks, and moved to a file
+     * if it is larger than the spill threshold. It must be closed when sent.
+     *
+     * @param streamId The id used to correlate the response to the request.
+     * @param request The request to encode.
+     * @param spillThreshold The size in bytes above which the message is
+     * moved to a file, 0 to keep it in the heap.
+     * @return The encoded message.
+     * @throws IOException If the file of the message can not be written.
+     */
+    public static Body toMessage(int streamId, BridgeRequest request, long spillThreshold) throws IOException {
+        return Body.of(spillThreshold, out -> {
+            new DataOutputStream(out).writeInt(streamId);
+            writeRequest(request, out);
+        });
+    }
+
+    /**
+     * Encodes the response into a channel message, prefixed with the given
+     * stream id. The message is built from pooled chunks, and moved to a file
+     * if it is larger than the spill threshold. It must be closed when sent.
+     *
+     * @param streamId The id of the request this is the response to.
+     * @param response The response to encode.
+     * @param spillThreshold The size in bytes above which the message is
+     * moved to a file, 0 to keep it in the heap.
+     * @return The encoded message.
+     * @throws IOException If the file of the message can not be written.
+     */
+    public static Body toMessage(int streamId, BridgeResponse response, long spillThreshold) throws IOException {
+        return Body.of(spillThreshold, out -> {
+            new DataOutputStream(out).writeInt(streamId);
+            writeResponse(response, out);
+        });
+    }
+
+    /**
+     * Computes the size of the request encoded as a channel message, without
+     * encoding it.
+     *
+     * @param request The request to compute the size of.
+     * @return The size of the message, in bytes.
+     */
+    public static long messageSize(BridgeRequest request) {
+        return STREAM_ID_SIZE + HEADER_SIZE
+                + stringSize(request.resourceId)
+                + stringSize(request.url)
+                + stringSize(request.method)
+                + headersSize(request.headers)
+                + bodySize(request.body);
+    }
+
+    /**
+     * Computes the size of the response encoded as a channel message, without
+     * encoding it.
+     *
+     * @param response The response to compute the size of.
+     * @return The size of the message, in bytes.
+     */
+    public static long messageSize(BridgeResponse response) {
+        return STREAM_ID_SIZE + HEADER_SIZE
+                + Integer.BYTES
+                + headersSize(response.headers)
+                + bodySize(response.body);
+    }
+
+    private static long stringSize(String value) {
+        return Integer.BYTES + (value == null ? 0 : value.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    private static long headersSize(Map<String, String> headers) {
+        long size = Integer.BYTES;
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            size += stringSize(entry.getKey()) + stringSize(entry.getValue());
+        }
+        return size;
+    }
+
+    private static long bodySize(Body body) {
+        return Integer.BYTES + (body == null ? 0 : body.length());
+    }
+
+    /**
+     * @return the length of the body, for sizing buffers, without overflowing
+     * when the size of the headers is added.
+     */
+    private static int bodyLength(Body body) {
+        return body == null ? 0 : (int) Math.min(body.length(), Integer.MAX_VALUE / 2);
+    }
+
+    private static void writeHeader(DataOutputStream data) throws IOException {
+        data.writeShort(MAGIC);
+        data.writeByte(VERSION);
+    }
+
+    private static void readHeader(DataInputStream data) throws IOException {
+        final int magic = data.readUnsignedShort();
+        final int version = data.readUnsignedByte();
+        if (magic != MAGIC || version != VERSION) {
+            throw new IOException("Not a link frame, or unsupported version: " + magic + "/" + version);
+        }
+    }
+
+    private static void writeHeaders(DataOutputStream data, Map<String, String> headers) throws IOException {
+        data.writeInt(headers.size());
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            writeString(data, entry.getKey());
+            writeString(data, entry.getValue());
+        }
+    }
+
+    private static void readHeaders(DataInputStream data, Map<String, String> headers) throws IOException {
+        final int count = data.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid header count: " + count);
+        }
+        for (int i = 0; i < count; i++) {
+            headers.put(readString(data), readString(data));
+        }
+    }
+
+    private static void writeString(DataOutputStream data, String value) throws IOException {
+        if (value == null) {
+            data.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static String readString(DataInputStream data) throws IOException {
+        final int length = data.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        data.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeBody(DataOutputStream data, Body body) throws IOException {
+        if (body == null) {
+            data.writeInt(0);
+            return;
+        }
+        if (body.length() > Integer.MAX_VALUE) {
+            throw new IOException("Body of " + body.length() + " bytes is too large for a link frame.");
+        }
+        data.writeInt((int) body.length());
+        body.writeTo(data);
+    }
+
+    private static Body readBody(DataInputStream data, long spillThreshold) throws IOException {
+        final int length = data.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid body length: " + length);
+        }
+        if (length == 0) {
+            return Body.EMPTY;
+        }
+        return Body.read(data, length, spillThreshold);
+    }
+}
@@ -0,0 +1,460 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The compression of the request and response bodies on the link between two
+ * Bridges. The encodings a Bridge accepts are advertised in the index of the
+ * link api, the encoding of a body is given in the Content-Encoding header, as
+ * in plain HTTP. Bodies smaller than the threshold are not compressed, since
+ * the saving does not outweigh the cost.
+ *
+ * Also keeps track of the compression ratio and the time spent compressing
+ * and decompressing, per encoding.
+ *
+ * @author hylke
+ */
+public class LinkCompression {
+
+    /**
+     * The value for the linkCompression setting that disables compression.
+     */
+    public static final String NONE = "none";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LinkCompression.class.getName());
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * The supported encodings, with their names as used in the
+     * Content-Encoding header.
+     */
+    public enum Encoding {
+        GZIP("gzip") {
+            @Override
+            OutputStream wrap(OutputStream out) throws IOException {
+                return new GZIPOutputStream(out, BUFFER_SIZE);
+            }
+
+            @Override
+            InputStream wrap(InputStream in) throws IOException {
+                return new GZIPInputStream(in, BUFFER_SIZE);
+            }
+        },
+        DEFLATE("deflate") {
+            @Override
+            OutputStream wrap(OutputStream out) throws IOException {
+                return new DeflaterOutputStream(out);
+            }
+
+            @Override
+            InputStream wrap(InputStream in) throws IOException {
+                return new InflaterInputStream(in);
+            }
+        };
+
+        public final String name;
+
+        private Encoding(String name) {
+            this.name = name;
+        }
+
+        abstract OutputStream wrap(OutputStream out) throws IOException;
+
+        abstract InputStream wrap(InputStream in) throws IOException;
+
+        /**
+         * Finds the encoding with the given name.
+         *
+         * @param name The name of the encoding, case insensitive.
+         * @return The encoding, or null if the name is null or not supported.
+         */
+        public static Encoding fromName(String name) {
+            if (name == null) {
+                return null;
+            }
+            final String trimmed = name.trim().toLowerCase(Locale.ROOT);
+            for (Encoding encoding : values()) {
+                if (encoding.name.equals(trimmed)) {
+                    return encoding;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final Encoding preferred;
+    private final int threshold;
+
+    private final LongAdder[] uncompressedOut;
+    private final LongAdder[] compressedOut;
+    private final LongAdder[] uncompressedIn;
+    private final LongAdder[] compressedIn;
+    private final LongAdder[] compressNanos;
+    private final LongAdder[] decompressNanos;
+    private final LongAdder skipped;
+
+    /**
+     * @param preferred The name of the encoding to use when the other Bridge
+     * supports it, or "none".
+     * @param threshold The minimum size of a body, in bytes, to compress it.
+     */
+    public LinkCompression(String preferred, int threshold) {
+        this(preferred, threshold, null);
+    }
+
+    private LinkCompression(String preferred, int threshold, LinkCompression counters) {
+        this.preferred = Encoding.fromName(preferred);
+        this.threshold = threshold;
+        if (this.preferred == null && preferred != null && !NONE.equalsIgnoreCase(preferred.trim())) {
+            LOGGER.warn("Unsupported link compression {}, links will not be compressed.", preferred);
+        }
+        if (counters == null) {
+            uncompressedOut = createCounters();
+            compressedOut = createCounters();
+            uncompressedIn = createCounters();
+            compressedIn = createCounters();
+            compressNanos = createCounters();
+            decompressNanos = createCounters();
+            skipped = new LongAdder();
+        } else {
+            uncompressedOut = counters.uncompressedOut;
+            compressedOut = counters.compressedOut;
+            uncompressedIn = counters.uncompressedIn;
+            compressedIn = counters.compressedIn;
+            compressNanos = counters.compressNanos;
+            decompressNanos = counters.decompressNanos;
+            skipped = counters.skipped;
+        }
+    }
+
+    /**
+     * Creates a compression with another preferred encoding, for a single
+     * link. It counts into the counters of this compression, so the metrics
+     * cover all links.
+     *
+     * @param preferred The name of the encoding to use when the other Bridge
+     * supports it, or "none".
+     * @return The compression for the link.
+     */
+    public LinkCompression withPreferred(String preferred) {
+        return new LinkCompression(preferred, threshold, this);
+    }
+
+    private static LongAdder[] createCounters() {
+        LongAdder[] counters = new LongAdder[Encoding.values().length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+    /**
+     * @return The value for the header advertising the supported encodings.
+     */
+    public static String getSupportedEncodings() {
+        StringBuilder result = new StringBuilder();
+        for (Encoding encoding : Encoding.values()) {
+            if (result.length() > 0) {
+                result.append(", ");
+            }
+            result.append(encoding.name);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Chooses the encoding to use with another Bridge, or for a response to
+     * another Bridge.
+     *
+     * @param accepted The encodings the other Bridge accepts, as a comma
+     * separated list, may be null.
+     * @return The preferred encoding if the other Bridge accepts it, otherwise
+     * the first accepted encoding that is supported, or null if compression is
+     * disabled or there is no common encoding.
+     */
+    public Encoding negotiate(String accepted) {
+        if (preferred == null || accepted == null) {
+            return null;
+        }
+        Encoding first = null;
+        for (String name : accepted.split(",")) {
+            final Encoding encoding = Encoding.fromName(stripParameters(name));
+            if (encoding == preferred) {
+                return preferred;
+            }
+            if (first == null) {
+                first = encoding;
+            }
+        }
+        return first;
+    }
+
+    private static String stripParameters(String value) {
+        final int idx = value.indexOf(';');
+        return idx < 0 ? value : value.substring(0, idx);
+    }
+
+    /**
+     * @return true if this Bridge compresses link traffic at all.
+     */
+    public boolean isEnabled() {
+        return preferred != null;
+    }
+
+    /**
+     * Checks if a body of the given size should be compressed with the given
+     * encoding.
+     *
+     * @param encoding The negotiated encoding, may be null.
+     * @param length The size of the body.
+     * @return true if the body should be compressed.
+     */
+    public boolean shouldCompress(Encoding encoding, long length) {
+        if (encoding == null) {
+            return false;
+        }
+        if (length < threshold) {
+            skipped.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compresses the given data.
+     *
+     * @param encoding The encoding to use.
+     * @param data The data to compress.
+     * @return The compressed data.
+     */
+    public byte[] compress(Encoding encoding, byte[] data) {
+        final long start = System.nanoTime();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+        try (OutputStream out = encoding.wrap(buffer)) {
+            out.write(data);
+        } catch (IOException ex) {
+            // Can not happen with a ByteArrayOutputStream.
+            throw new IllegalStateException(ex);
+        }
+        final byte[] result = buffer.toByteArray();
+        final int idx = encoding.ordinal();
+        compressNanos[idx].add(System.nanoTime() - start);
+        uncompressedOut[idx].add(data.length);
+        compressedOut[idx].add(result.length);
+        return result;
+    }
+
+    /**
+     * Compresses the given body into a new body, that is moved to a file if
+     * it grows beyond the spill threshold. The given body is not closed.
+     *
+     * @param encoding The encoding to use.
+     * @param data The body to compress.
+     * @param spillThreshold The size above which the result is moved to a
+     * file, 0 to keep it in the heap.
+     * @return The compressed body.
+     * @throws IOException If the file of the result can not be written.
+     */
+    public Body compress(Encoding encoding, Body data, long spillThreshold) throws IOException {
+        final long start = System.nanoTime();
+        final Body result = Body.of(spillThreshold, buffer -> {
+            try (OutputStream out = encoding.wrap(buffer)) {
+                data.writeTo(out);
+            }
+        });
+        final int idx = encoding.ordinal();
+        compressNanos[idx].add(System.nanoTime() - start);
+        uncompressedOut[idx].add(data.length());
+        compressedOut[idx].add(result.length());
+        return result;
+    }
+
+    /**
+     * Reads and decompresses the given stream.
+     *
+     * @param contentEncoding The value of the Content-Encoding header, may be
+     * null.
+     * @param in The stream to read.
+     * @return The decompressed data.
+     * @throws IOException If the stream can not be read, or the encoding is
+     * not supported.
+     */
+    public byte[] decompress(String contentEncoding, InputStream in) throws IOException {
+        try (InputStream decoded = decompressing(contentEncoding, in)) {
+            return decoded.readAllBytes();
+        }
+    }
+
+    /**
+     * Wraps the given stream, so it is decompressed while it is read, without
+     * holding the decompressed data. The sizes and the time spent reading are
+     * counted when the returned stream is closed.
+     *
+     * @param contentEncoding The value of the Content-Encoding header, may be
+     * null.
+     * @param in The stream to read.
+     * @return The stream of decompressed data, or the given stream if it is
+     * not compressed.
+     * @throws IOException If the stream can not be read, or the encoding is
+     * not supported.
+     */
+    public InputStream decompressing(String contentEncoding, InputStream in) throws IOException {
+        final Encoding encoding = Encoding.fromName(contentEncoding);
+        if (encoding == null) {
+            if (contentEncoding == null || contentEncoding.trim().isEmpty() || "identity".equalsIgnoreCase(contentEncoding.trim())) {
+                return in;
+            }
+            throw new IOException("Unsupported Content-Encoding: " + contentEncoding);
+        }
+        return new DecompressingInputStream(encoding, in);
+    }
+
+    /**
+     * @return the preferred encoding, or null if compression is disabled.
+     */
+    public Encoding getPreferred() {
+        return preferred;
+    }
+
+    /**
+     * @return the minimum size of a body, in bytes, to compress it.
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @param encoding The encoding to get the counter for.
+     * @return the size of the bodies sent with the encoding, before
+     * compression.
+     */
+    public long getUncompressedOut(Encoding encoding) {
+        return uncompressedOut[encoding.ordinal()].sum();
+    }
+
+    /**
+     * @param encoding The encoding to get the counter for.
+     * @return the size of the bodies sent with the encoding, after
+     * compression.
+     */
+    public long getCompressedOut(Encoding encoding) {
+        return compressedOut[encoding.ordinal()].sum();
+    }
+
+    /**
+     * @param encoding The encoding to get the counter for.
+     * @return the size of the bodies received with the encoding, after
+     * decompression.
+     */
+    public long getUncompressedIn(Encoding encoding) {
+        return uncompressedIn[encoding.ordinal()].sum();
+    }
+
+    /**
+     * @param encoding The encoding to get the counter for.
+     * @return the size of the bodies received with the encoding, before
+     * decompression.
+     */
+    public long getCompressedIn(Encoding encoding) {
+        return compressedIn[encoding.ordinal()].sum();
+    }
+
+    /**
+     * @param encoding The encoding to get the counter for.
+     * @return the time spent compressing, in nanoseconds.
+     */
+    public long getCompressNanos(Encoding encoding) {
+        return compressNanos[encoding.ordinal()].sum();
+    }
+
+    /**
+     * @param encoding The encoding to get the counter for.
+     * @return the time spent decompressing, in nanoseconds.
+     */
+    public long getDecompressNanos(Encoding encoding) {
+        return decompressNanos[encoding.ordinal()].sum();
+    }
+
+    /**
+     * @return the number of bodies not compressed because they were smaller
+     * than the threshold.
+     */
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    /**
+     * Decompresses a stream while it is read, and counts the sizes and the
+     * time spent reading when it is closed.
+     */
+    private class DecompressingInputStream extends InputStream {
+
+        private final int idx;
+        private final CountingInputStream counting;
+        private final InputStream decoded;
+        private long nanos;
+        private long length;
+        private boolean closed;
+
+        DecompressingInputStream(Encoding encoding, InputStream in) throws IOException {
+            final long start = System.nanoTime();
+            this.idx = encoding.ordinal();
+            this.counting = new CountingInputStream(in);
+            // Reads the header of the compressed data.
+            this.decoded = encoding.wrap(counting);
+            nanos = System.nanoTime() - start;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final long start = System.nanoTime();
+            final int value = decoded.read();
+            nanos += System.nanoTime() - start;
+            if (value >= 0) {
+                length++;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] data, int offset, int count) throws IOException {
+            final long start = System.nanoTime();
+            final int read = decoded.read(data, offset, count);
+            nanos += System.nanoTime() - start;
+            if (read > 0) {
+                length += read;
+            }
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return decoded.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            decompressNanos[idx].add(nanos);
+            compressedIn[idx].add(counting.getByteCount());
+            uncompressedIn[idx].add(length);
+            decoded.close();
+        }
+
+    }
+}
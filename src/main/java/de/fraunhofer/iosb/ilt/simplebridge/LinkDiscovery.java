@@ -0,0 +1,290 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import de.fraunhofer.iosb.ilt.configurable.ConfigurationException;
+import de.fraunhofer.iosb.ilt.configurable.Utils;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ContentType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Discovers the endpoints of the Bridges in the linkServers of a
+ * configuration. All Bridges are contacted at the same time, each with its
+ * own deadline. Startup waits for the discovery at most the discovery timeout,
+ * Bridges that answer later are added when they answer.
+ *
+ * After startup, the indexes of the other Bridges are refreshed periodically
+ * in the background, using conditional requests. Changes are merged into the
+ * endpoints of the configuration, and published with a new routing table.
+ * Request threads are never blocked by discovery.
+ *
+ * @author hylke
+ */
+public class LinkDiscovery implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LinkDiscovery.class.getName());
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "link-discovery");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "link-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ServerConfig serverConfig;
+    /**
+     * The endpoints that are configured on this Bridge itself.
+     */
+    private final List<EndPoint> configured;
+    /**
+     * The last index of each linked Bridge.
+     */
+    private final Map<String, LinkIndex> indexes = new ConcurrentHashMap<>();
+    /**
+     * The linked Bridges that are being contacted, so a slow Bridge is not
+     * contacted again before it answered.
+     */
+    private final Set<String> running = ConcurrentHashMap.newKeySet();
+    /**
+     * The configuration this one replaces, to take over the state of its
+     * endpoints. Cleared after the first discovery.
+     */
+    private volatile ServerConfig predecessor;
+    private ScheduledFuture<?> refresher;
+    private volatile boolean closed;
+
+    /**
+     * The endpoints of a linked Bridge, and the ETag of the index they came
+     * from.
+     */
+    private static class LinkIndex {
+
+        final String etag;
+        final List<EndPoint> endpoints;
+
+        LinkIndex(String etag, List<EndPoint> endpoints) {
+            this.etag = etag;
+            this.endpoints = endpoints;
+        }
+    }
+
+    /**
+     * @param serverConfig The configuration to discover the links of.
+     * @param predecessor The configuration that this configuration replaces,
+     * or null.
+     */
+    public LinkDiscovery(ServerConfig serverConfig, ServerConfig predecessor) {
+        this.serverConfig = serverConfig;
+        this.predecessor = predecessor;
+        final List<EndPoint> endpoints = serverConfig.getEndpoints();
+        this.configured = endpoints == null ? Collections.emptyList() : new ArrayList<>(endpoints);
+    }
+
+    /**
+     * Sets up the links and discovers the endpoints of the linked Bridges.
+     * Returns when all Bridges answered, or the discovery timeout passed.
+     */
+    public void start() {
+        LOGGER.info("Initialising links...");
+        for (EndPoint endPoint : configured) {
+            if (!Utils.isNullOrEmpty(endPoint.getLinkUrl())) {
+                endPoint.setLink(serverConfig.getLink(endPoint.getLinkUrl()));
+            }
+        }
+        merge();
+        final List<String> linkServers = getLinkServers();
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (String linkUrl : linkServers) {
+            futures.add(CompletableFuture.runAsync(() -> discover(linkUrl), EXECUTOR));
+        }
+        final CompletableFuture<Void> all = CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+        all.whenComplete((result, ex) -> predecessor = null);
+        try {
+            all.get(serverConfig.getDiscoveryTimeout(), TimeUnit.SECONDS);
+        } catch (TimeoutException ex) {
+            for (int i = 0; i < futures.size(); i++) {
+                if (!futures.get(i).isDone()) {
+                    LOGGER.warn("Link {} did not answer within {} s, continuing without it.", linkServers.get(i), serverConfig.getDiscoveryTimeout());
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            LOGGER.error("Link discovery failed", ex);
+        }
+        final int interval = serverConfig.getDiscoveryInterval();
+        if (interval > 0 && !linkServers.isEmpty()) {
+            synchronized (this) {
+                if (!closed) {
+                    refresher = SCHEDULER.scheduleWithFixedDelay(this::refresh, interval, interval, TimeUnit.SECONDS);
+                }
+            }
+        }
+    }
+
+    private List<String> getLinkServers() {
+        final List<LinkServer> linkServers = serverConfig.getLinkServers();
+        if (linkServers == null) {
+            return Collections.emptyList();
+        }
+        final List<String> urls = new ArrayList<>(linkServers.size());
+        for (LinkServer linkServer : linkServers) {
+            urls.add(linkServer.getUrl());
+        }
+        return urls;
+    }
+
+    private void refresh() {
+        for (String linkUrl : getLinkServers()) {
+            if (closed) {
+                return;
+            }
+            EXECUTOR.execute(() -> discover(linkUrl));
+        }
+    }
+
+    /**
+     * Fetches the index of the given Bridge, and merges its endpoints if they
+     * changed.
+     */
+    private void discover(String linkUrl) {
+        if (closed || !running.add(linkUrl)) {
+            return;
+        }
+        try {
+            fetchIndex(linkUrl);
+        } finally {
+            running.remove(linkUrl);
+        }
+    }
+
+    private void fetchIndex(String linkUrl) {
+        final Link link = serverConfig.getLink(linkUrl);
+        final LinkIndex previous = indexes.get(linkUrl);
+        final int timeoutMillis = (int) TimeUnit.SECONDS.toMillis(serverConfig.getDiscoveryTimeout());
+        HttpGet httpGet = new HttpGet(linkUrl + "/link");
+        httpGet.addHeader("Accept", ContentType.APPLICATION_JSON.getMimeType());
+        httpGet.setConfig(RequestConfig.custom()
+                .setConnectTimeout(timeoutMillis)
+                .setSocketTimeout(timeoutMillis)
+                .setConnectionRequestTimeout(timeoutMillis)
+                .build());
+        if (previous != null && previous.etag != null) {
+            httpGet.addHeader(LinkApi.HEADER_IF_NONE_MATCH, previous.etag);
+        }
+        try (CloseableHttpResponse response = link.getConnectionPool().getClient().execute(httpGet)) {
+            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+                LOGGER.debug("Link: {} unchanged", linkUrl);
+                return;
+            }
+            String content = ContextListener.throwIfNotOk(httpGet, response);
+            ServerConfig otherConfig = ServerConfig.fromString(content);
+            Header acceptPost = response.getFirstHeader(LinkApi.HEADER_ACCEPT_POST);
+            link.setBinary(acceptPost != null && acceptPost.getValue().contains(LinkCodec.CONTENT_TYPE_LINK_BINARY));
+            Header encodings = response.getFirstHeader(LinkApi.HEADER_LINK_ENCODINGS);
+            link.setEncoding(link.getCompression().negotiate(encodings == null ? null : encodings.getValue()));
+            Header batch = response.getFirstHeader(LinkApi.HEADER_LINK_BATCH);
+            link.setBatch(link.isBinary() && batch != null);
+            Header channel = response.getFirstHeader(LinkApi.HEADER_LINK_CHANNEL);
+            if (serverConfig.isLinkChannel() && link.isBinary() && channel != null) {
+                link.openChannel();
+            }
+            List<EndPoint> endpoints = otherConfig.getEndpoints() == null ? Collections.emptyList() : otherConfig.getEndpoints();
+            for (EndPoint endPoint : endpoints) {
+                endPoint.setLinkUrl(linkUrl);
+                endPoint.setLink(link);
+                // The other Bridge enforces its own limits, here only the link limits apply.
+                endPoint.setLimits(null);
+            }
+            Header etag = response.getFirstHeader(LinkApi.HEADER_ETAG);
+            indexes.put(linkUrl, new LinkIndex(etag == null ? null : etag.getValue(), endpoints));
+            LOGGER.info("Link: {} binary: {}, compression: {}, endpoints: {}", linkUrl, link.isBinary(), link.getEncoding() == null ? LinkCompression.NONE : link.getEncoding().name, endpoints.size());
+            merge();
+        } catch (IOException | RuntimeException ex) {
+            if (!closed) {
+                LOGGER.error("Failed to connect to {}: {}", linkUrl, ex.getMessage());
+            }
+        } catch (ConfigurationException ex) {
+            LOGGER.error("Failed to parse server config from {}", linkUrl, ex);
+        }
+    }
+
+    /**
+     * Publishes the configured endpoints and the endpoints of all linked
+     * Bridges, in the order of the linkServers. When a resourceId occurs more
+     * than once, the first endpoint is used, so Bridges that link to each
+     * other do not keep adding each other's endpoints.
+     */
+    private synchronized void merge() {
+        if (closed) {
+            return;
+        }
+        final RoutingTable current = serverConfig.getRoutingTableIfBuilt();
+        final ServerConfig previousConfig = predecessor;
+        final List<EndPoint> merged = new ArrayList<>(configured);
+        final Set<String> ids = new HashSet<>();
+        for (EndPoint endpoint : configured) {
+            ids.add(endpoint.getResourceId());
+        }
+        for (String linkUrl : getLinkServers()) {
+            final LinkIndex index = indexes.get(linkUrl);
+            if (index == null) {
+                continue;
+            }
+            for (EndPoint endpoint : index.endpoints) {
+                if (ids.add(endpoint.getResourceId())) {
+                    merged.add(endpoint);
+                }
+            }
+        }
+        for (EndPoint endpoint : merged) {
+            endpoint.setSpillThreshold(serverConfig.getSpillThreshold());
+            EndPoint old = current == null ? null : current.getEndpoint(endpoint.getResourceId());
+            if (old == null && previousConfig != null) {
+                old = previousConfig.getEndpoint(endpoint.getResourceId());
+            }
+            if (old != null && old != endpoint) {
+                endpoint.adopt(old);
+            }
+        }
+        serverConfig.setEndpoints(Collections.unmodifiableList(merged));
+        serverConfig.updateRoutingTable();
+    }
+
+    /**
+     * Stops refreshing the indexes of the linked Bridges.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (refresher != null) {
+            refresher.cancel(false);
+            refresher = null;
+        }
+    }
+
+}
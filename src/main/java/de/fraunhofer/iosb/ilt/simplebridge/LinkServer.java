@@ -0,0 +1,120 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import com.google.gson.JsonElement;
+import com.google.gson.annotations.Expose;
+import de.fraunhofer.iosb.ilt.configurable.AnnotatedConfigurable;
+import de.fraunhofer.iosb.ilt.configurable.ConfigEditor;
+import de.fraunhofer.iosb.ilt.configurable.ConfigurationException;
+import de.fraunhofer.iosb.ilt.configurable.annotations.ConfigurableClass;
+import de.fraunhofer.iosb.ilt.configurable.annotations.ConfigurableField;
+import de.fraunhofer.iosb.ilt.configurable.editor.EditorClass;
+import de.fraunhofer.iosb.ilt.configurable.editor.EditorString;
+import java.util.Objects;
+
+/**
+ * Another Bridge to communicate with, and the settings of the link to it that
+ * differ from the server-wide link settings.
+ *
+ * @author hylke
+ */
+@ConfigurableClass()
+public class LinkServer implements AnnotatedConfigurable<Void, Void> {
+
+    @ConfigurableField(editor = EditorString.class, optional = false,
+            label = "Url", description = "The url of the other Bridge.")
+    @EditorString.EdOptsString(dflt = "")
+    @Expose
+    private String url;
+
+    @ConfigurableField(editor = EditorClass.class, optional = true,
+            label = "Batching", description = "Collect the requests sent to this Bridge into batches. Overrides the Link Batching of the server.")
+    @EditorClass.EdOptsClass(clazz = BatchSettings.class)
+    @Expose
+    private BatchSettings batching;
+
+    @ConfigurableField(editor = EditorString.class, optional = true,
+            label = "Compression", description = "The compression used for requests and responses to this Bridge: gzip, deflate or none. Overrides the Link Compression of the server.")
+    @EditorString.EdOptsString(dflt = "gzip")
+    @Expose
+    private String compression;
+
+    @Override
+    public void configure(JsonElement config, Void context, Void edtCtx, ConfigEditor<?> configEditor) throws ConfigurationException {
+        AnnotatedConfigurable.super.configure(config, context, edtCtx, configEditor);
+        // Settings that are not given are filled in with their defaults, but
+        // for a link they mean the server-wide settings apply.
+        final boolean object = config.isJsonObject();
+        if (!object || !config.getAsJsonObject().has("batching")) {
+            batching = null;
+        }
+        if (!object || !config.getAsJsonObject().has("compression")) {
+            compression = null;
+        }
+    }
+
+    /**
+     * @return the url of the other Bridge
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @param url the url of the other Bridge
+     */
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    /**
+     * @return the batching settings of this link, or null to use the
+     * server-wide settings
+     */
+    public BatchSettings getBatching() {
+        return batching;
+    }
+
+    /**
+     * @param batching the batching settings of this link, or null to use the
+     * server-wide settings
+     */
+    public void setBatching(BatchSettings batching) {
+        this.batching = batching;
+    }
+
+    /**
+     * @return the compression of this link, or null to use the server-wide
+     * compression
+     */
+    public String getCompression() {
+        return compression;
+    }
+
+    /**
+     * @param compression the compression of this link, or null to use the
+     * server-wide compression
+     */
+    public void setCompression(String compression) {
+        this.compression = compression;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(url, batching, compression);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final LinkServer other = (LinkServer) obj;
+        return Objects.equals(url, other.url)
+                && Objects.equals(batching, other.batching)
+                && Objects.equals(compression, other.compression);
+    }
+
+}
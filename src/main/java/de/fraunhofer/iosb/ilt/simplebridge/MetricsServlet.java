@@ -0,0 +1,359 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.http.pool.PoolStats;
+
+/**
+ * Exports the metrics of the Bridge in the Prometheus text format.
+ *
+ * @author hylke
+ */
+@WebServlet(
+        name = "Metrics",
+        urlPatterns = {"/metrics"}
+)
+public class MetricsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String CONTENT_TYPE_PROMETHEUS = "text/plain; version=0.0.4";
+
+    private static final String PREFIX = "simplebridge_";
+
+    /**
+     * The upper bounds of the histogram buckets, in seconds, formatted for the
+     * le label.
+     */
+    private static final String[] BUCKET_BOUNDS = new String[LatencyHistogram.BUCKET_COUNT];
+
+    static {
+        for (int i = 0; i < BUCKET_BOUNDS.length - 1; i++) {
+            BUCKET_BOUNDS[i] = formatMicros(LatencyHistogram.getUpperBoundMicros(i));
+        }
+        BUCKET_BOUNDS[BUCKET_BOUNDS.length - 1] = "+Inf";
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        ServerConfig serverConfig = ServerConfig.getServerConfig(request);
+        StringBuilder out = new StringBuilder(16 * 1024);
+        List<EndPoint> endpoints = serverConfig.getEndpoints();
+        writeRequestMetrics(out, endpoints);
+        writePoolMetrics(out, serverConfig, endpoints);
+        writeUpstreamMetrics(out, endpoints);
+        writeAdmissionMetrics(out, serverConfig, endpoints);
+        writeBatcherMetrics(out, serverConfig);
+        writeCacheMetrics(out, serverConfig);
+        writeCompressionMetrics(out, serverConfig.getCompression());
+        writeCounter(out, "access_log_dropped_total", "Access log records dropped because the queue was full.", AccessLog.getDropped());
+        writeCounter(out, "body_spilled_total", "Bodies moved to a temporary file because they were larger than the spill threshold.", Body.getSpilled());
+        writeCounter(out, "body_spilled_bytes_total", "Bytes of bodies moved to a temporary file.", Body.getSpilledBytes());
+        response.setContentType(CONTENT_TYPE_PROMETHEUS);
+        response.setCharacterEncoding(RestApi.ENCODING_UTF8);
+        response.getWriter().write(out.toString());
+    }
+
+    private static void writeRequestMetrics(StringBuilder out, List<EndPoint> endpoints) {
+        writeType(out, "requests_total", "counter", "Requests handled, by endpoint, method and status class.");
+        for (EndPoint endpoint : endpoints) {
+            for (RequestMetrics metrics : endpoint.getAllMetrics()) {
+                for (int i = 0; i < RequestMetrics.STATUS_CLASSES.length; i++) {
+                    final long count = metrics.getStatusCount(i);
+                    if (count > 0) {
+                        writeRequestLabels(out, "requests_total", metrics)
+                                .append(",status=\"").append(RequestMetrics.STATUS_CLASSES[i]).append("\"} ")
+                                .append(count).append('\n');
+                    }
+                }
+            }
+        }
+        writeType(out, "request_bytes_total", "counter", "Size of the request bodies.");
+        for (EndPoint endpoint : endpoints) {
+            for (RequestMetrics metrics : endpoint.getAllMetrics()) {
+                writeRequestLabels(out, "request_bytes_total", metrics).append("} ").append(metrics.getBytesIn()).append('\n');
+            }
+        }
+        writeType(out, "response_bytes_total", "counter", "Size of the response bodies.");
+        for (EndPoint endpoint : endpoints) {
+            for (RequestMetrics metrics : endpoint.getAllMetrics()) {
+                writeRequestLabels(out, "response_bytes_total", metrics).append("} ").append(metrics.getBytesOut()).append('\n');
+            }
+        }
+        writeType(out, "request_retries_total", "counter", "Requests sent again after the server could not be reached.");
+        for (EndPoint endpoint : endpoints) {
+            for (RequestMetrics metrics : endpoint.getAllMetrics()) {
+                writeRequestLabels(out, "request_retries_total", metrics).append("} ").append(metrics.getRetries()).append('\n');
+            }
+        }
+        writeType(out, "request_hedges_total", "counter", "Slow requests also sent to a second replica, and how often the second replica answered first.");
+        for (EndPoint endpoint : endpoints) {
+            for (RequestMetrics metrics : endpoint.getAllMetrics()) {
+                writeRequestLabels(out, "request_hedges_total", metrics).append(",result=\"sent\"} ").append(metrics.getHedges()).append('\n');
+                writeRequestLabels(out, "request_hedges_total", metrics).append(",result=\"won\"} ").append(metrics.getHedgeWins()).append('\n');
+            }
+        }
+        writeType(out, "request_phase_seconds", "histogram", "Duration of the phases of requests.");
+        for (EndPoint endpoint : endpoints) {
+            for (RequestMetrics metrics : endpoint.getAllMetrics()) {
+                for (RequestMetrics.Phase phase : RequestMetrics.Phase.values()) {
+                    writeHistogram(out, metrics, phase);
+                }
+            }
+        }
+    }
+
+    private static void writeHistogram(StringBuilder out, RequestMetrics metrics, RequestMetrics.Phase phase) {
+        final LatencyHistogram histogram = metrics.getHistogram(phase);
+        final long count = histogram.getCount();
+        if (count == 0) {
+            return;
+        }
+        long cumulative = 0;
+        for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++) {
+            cumulative += histogram.getBucket(i);
+            writeRequestLabels(out, "request_phase_seconds_bucket", metrics)
+                    .append(",phase=\"").append(phase.label)
+                    .append("\",le=\"").append(BUCKET_BOUNDS[i]).append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+        writeRequestLabels(out, "request_phase_seconds_sum", metrics)
+                .append(",phase=\"").append(phase.label).append("\"} ")
+                .append(formatMicros(histogram.getSumMicros())).append('\n');
+        writeRequestLabels(out, "request_phase_seconds_count", metrics)
+                .append(",phase=\"").append(phase.label).append("\"} ")
+                .append(count).append('\n');
+    }
+
+    private static void writePoolMetrics(StringBuilder out, ServerConfig serverConfig, List<EndPoint> endpoints) {
+        writeType(out, "pool_leases_total", "counter", "Connections leased from the pool.");
+        forEachPool(serverConfig, endpoints, pool -> writePoolLabels(out, "pool_leases_total", pool).append("} ").append(pool.getLeaseCount()).append('\n'));
+        writeType(out, "pool_lease_seconds_total", "counter", "Time spent waiting for a connection from the pool.");
+        forEachPool(serverConfig, endpoints, pool -> writePoolLabels(out, "pool_lease_seconds_total", pool).append("} ").append(formatMicros(pool.getLeaseNanosTotal() / 1000)).append('\n'));
+        writeType(out, "pool_lease_seconds_max", "gauge", "Longest time spent waiting for a connection from the pool.");
+        forEachPool(serverConfig, endpoints, pool -> writePoolLabels(out, "pool_lease_seconds_max", pool).append("} ").append(formatMicros(pool.getLeaseNanosMax() / 1000)).append('\n'));
+        writeType(out, "breaker_state", "gauge", "State of the circuit breaker of the destination: 0 closed, 1 open, 2 half open.");
+        forEachPool(serverConfig, endpoints, pool -> writePoolLabels(out, "breaker_state", pool).append("} ").append(pool.getCircuitBreaker().getState().value).append('\n'));
+        writeType(out, "breaker_opened_total", "counter", "Times the circuit breaker of the destination opened.");
+        forEachPool(serverConfig, endpoints, pool -> writePoolLabels(out, "breaker_opened_total", pool).append("} ").append(pool.getCircuitBreaker().getOpened()).append('\n'));
+        writeType(out, "breaker_rejected_total", "counter", "Requests rejected by the circuit breaker of the destination.");
+        forEachPool(serverConfig, endpoints, pool -> writePoolLabels(out, "breaker_rejected_total", pool).append("} ").append(pool.getCircuitBreaker().getRejected()).append('\n'));
+        writeType(out, "pool_connections", "gauge", "Connections in the pool, by state.");
+        forEachPool(serverConfig, endpoints, pool -> {
+            PoolStats stats = pool.getStats();
+            if (stats != null) {
+                writePoolLabels(out, "pool_connections", pool).append(",state=\"leased\"} ").append(stats.getLeased()).append('\n');
+                writePoolLabels(out, "pool_connections", pool).append(",state=\"available\"} ").append(stats.getAvailable()).append('\n');
+                writePoolLabels(out, "pool_connections", pool).append(",state=\"pending\"} ").append(stats.getPending()).append('\n');
+            }
+        });
+    }
+
+    private static void writeUpstreamMetrics(StringBuilder out, List<EndPoint> endpoints) {
+        writeType(out, "upstream_requests_total", "counter", "Requests sent to each replica of the upstream server.");
+        forEachUpstream(endpoints, (endpoint, upstream) -> writeUpstreamLabels(out, "upstream_requests_total", endpoint, upstream).append("} ").append(upstream.getRequests()).append('\n'));
+        writeType(out, "upstream_failures_total", "counter", "Requests to each replica that failed with an I/O error or a server error.");
+        forEachUpstream(endpoints, (endpoint, upstream) -> writeUpstreamLabels(out, "upstream_failures_total", endpoint, upstream).append("} ").append(upstream.getFailures()).append('\n'));
+        writeType(out, "upstream_outstanding", "gauge", "Requests to each replica that have not finished.");
+        forEachUpstream(endpoints, (endpoint, upstream) -> writeUpstreamLabels(out, "upstream_outstanding", endpoint, upstream).append("} ").append(upstream.getOutstanding()).append('\n'));
+        writeType(out, "upstream_latency_ewma_seconds", "gauge", "Moving average of the latency of each replica.");
+        forEachUpstream(endpoints, (endpoint, upstream) -> writeUpstreamLabels(out, "upstream_latency_ewma_seconds", endpoint, upstream).append("} ").append(formatMicros(upstream.getEwmaNanos() / 1000)).append('\n'));
+        writeType(out, "upstream_healthy", "gauge", "1 if the replica passes its health checks, 0 if it is ejected.");
+        forEachUpstream(endpoints, (endpoint, upstream) -> writeUpstreamLabels(out, "upstream_healthy", endpoint, upstream).append("} ").append(upstream.isHealthy() ? 1 : 0).append('\n'));
+        writeType(out, "upstream_ejections_total", "counter", "Times each replica was ejected by the health checks.");
+        forEachUpstream(endpoints, (endpoint, upstream) -> writeUpstreamLabels(out, "upstream_ejections_total", endpoint, upstream).append("} ").append(upstream.getEjections()).append('\n'));
+    }
+
+    private static void writeAdmissionMetrics(StringBuilder out, ServerConfig serverConfig, List<EndPoint> endpoints) {
+        writeType(out, "admission_in_flight", "gauge", "Admitted requests that have not finished, by endpoint or link.");
+        forEachAdmissionControl(serverConfig, endpoints, (scope, control) -> writeAdmissionLabels(out, "admission_in_flight", scope, control).append("} ").append(control.getInFlight()).append('\n'));
+        writeType(out, "admission_queued", "gauge", "Requests waiting for admission, by endpoint or link.");
+        forEachAdmissionControl(serverConfig, endpoints, (scope, control) -> writeAdmissionLabels(out, "admission_queued", scope, control).append("} ").append(control.getQueued()).append('\n'));
+        writeType(out, "admission_admitted_total", "counter", "Requests admitted, by endpoint or link.");
+        forEachAdmissionControl(serverConfig, endpoints, (scope, control) -> writeAdmissionLabels(out, "admission_admitted_total", scope, control).append("} ").append(control.getAdmitted()).append('\n'));
+        writeType(out, "admission_rejected_total", "counter", "Requests rejected, by endpoint or link and reason.");
+        forEachAdmissionControl(serverConfig, endpoints, (scope, control) -> {
+            writeAdmissionLabels(out, "admission_rejected_total", scope, control).append(",reason=\"rate\"} ").append(control.getRateLimited()).append('\n');
+            writeAdmissionLabels(out, "admission_rejected_total", scope, control).append(",reason=\"queue_full\"} ").append(control.getOverloaded()).append('\n');
+            writeAdmissionLabels(out, "admission_rejected_total", scope, control).append(",reason=\"queue_timeout\"} ").append(control.getTimedOut()).append('\n');
+        });
+    }
+
+    private static void writeBatcherMetrics(StringBuilder out, ServerConfig serverConfig) {
+        writeType(out, "link_batch_max_size", "gauge", "The maximum number of requests in a batch, by link.");
+        forEachBatcher(serverConfig, batcher -> writeLinkLabels(out, "link_batch_max_size", batcher).append("} ").append(batcher.getMaxSize()).append('\n'));
+        writeType(out, "link_batch_max_wait_seconds", "gauge", "The maximum time a request waits for others to join its batch, by link.");
+        forEachBatcher(serverConfig, batcher -> writeLinkLabels(out, "link_batch_max_wait_seconds", batcher).append("} ").append(formatMicros(batcher.getMaxWaitNanos() / 1000)).append('\n'));
+        writeType(out, "link_batches_total", "counter", "Batches sent, by link and the reason they were sent.");
+        forEachBatcher(serverConfig, batcher -> {
+            writeLinkLabels(out, "link_batches_total", batcher).append(",trigger=\"size\"} ").append(batcher.getFullBatches()).append('\n');
+            writeLinkLabels(out, "link_batches_total", batcher).append(",trigger=\"time\"} ").append(batcher.getTimedBatches()).append('\n');
+        });
+        writeType(out, "link_batch_requests_total", "counter", "Requests sent in batches, by link.");
+        forEachBatcher(serverConfig, batcher -> writeLinkLabels(out, "link_batch_requests_total", batcher).append("} ").append(batcher.getRequests()).append('\n'));
+        writeType(out, "link_batch_wait_seconds_total", "counter", "Time the first requests of the batches waited for the batch to be sent, by link.");
+        forEachBatcher(serverConfig, batcher -> writeLinkLabels(out, "link_batch_wait_seconds_total", batcher).append("} ").append(formatMicros(batcher.getWaitNanos() / 1000)).append('\n'));
+    }
+
+    private static void forEachBatcher(ServerConfig serverConfig, Consumer<MicroBatcher> consumer) {
+        for (Link link : serverConfig.getLinks()) {
+            final MicroBatcher batcher = link.getBatcher();
+            if (batcher != null) {
+                consumer.accept(batcher);
+            }
+        }
+    }
+
+    /**
+     * Calls the consumer for the admission controls that have limits set.
+     */
+    private static void forEachAdmissionControl(ServerConfig serverConfig, List<EndPoint> endpoints, BiConsumer<String, AdmissionControl> consumer) {
+        for (EndPoint endpoint : endpoints) {
+            final AdmissionControl control = endpoint.peekAdmissionControl();
+            if (control != null && control.isEnabled()) {
+                consumer.accept("endpoint", control);
+            }
+        }
+        for (Link link : serverConfig.getLinks()) {
+            final AdmissionControl control = link.getAdmissionControl();
+            if (control.isEnabled()) {
+                consumer.accept("link", control);
+            }
+        }
+    }
+
+    private static void forEachUpstream(List<EndPoint> endpoints, BiConsumer<EndPoint, Upstream> consumer) {
+        for (EndPoint endpoint : endpoints) {
+            final UpstreamBalancer balancer = endpoint.peekBalancer();
+            if (balancer != null) {
+                for (Upstream upstream : balancer.getUpstreams()) {
+                    consumer.accept(endpoint, upstream);
+                }
+            }
+        }
+    }
+
+    private static void forEachPool(ServerConfig serverConfig, List<EndPoint> endpoints, Consumer<ConnectionPool> consumer) {
+        for (EndPoint endpoint : endpoints) {
+            if (endpoint.getLink() == null) {
+                consumer.accept(endpoint.getConnectionPool());
+            }
+        }
+        for (Link link : serverConfig.getLinks()) {
+            consumer.accept(link.getConnectionPool());
+        }
+    }
+
+    private static void writeCacheMetrics(StringBuilder out, ServerConfig serverConfig) {
+        ResponseCache cache = serverConfig.getResponseCache();
+        if (cache != null) {
+            writeCounter(out, "cache_hits_total", "Requests answered from the response cache.", cache.getHits());
+            writeCounter(out, "cache_misses_total", "Cacheable requests not found in the response cache.", cache.getMisses());
+            writeCounter(out, "cache_revalidations_total", "Stale cache entries that were revalidated.", cache.getRevalidations());
+            writeCounter(out, "cache_evictions_total", "Cache entries evicted to make room for others.", cache.getEvictions());
+            writeType(out, "cache_bytes", "gauge", "Size of the response cache.");
+            out.append(PREFIX).append("cache_bytes ").append(cache.getSize()).append('\n');
+        }
+        RequestCoalescer coalescer = serverConfig.getRequestCoalescer();
+        if (coalescer != null) {
+            writeCounter(out, "coalesce_forwarded_total", "Requests forwarded, sharing their response with identical requests.", coalescer.getForwarded());
+            writeCounter(out, "coalesce_coalesced_total", "Requests that got the response of an identical request.", coalescer.getCoalesced());
+            writeCounter(out, "coalesce_overflowed_total", "Requests forwarded separately because too many were waiting.", coalescer.getOverflowed());
+        }
+    }
+
+    private static void writeCompressionMetrics(StringBuilder out, LinkCompression compression) {
+        writeType(out, "link_compression_bytes_total", "counter", "Size of the compressed link bodies, before and after compression, by encoding and direction.");
+        for (LinkCompression.Encoding encoding : LinkCompression.Encoding.values()) {
+            writeCompressionLabels(out, "link_compression_bytes_total", encoding).append(",direction=\"sent\",state=\"uncompressed\"} ").append(compression.getUncompressedOut(encoding)).append('\n');
+            writeCompressionLabels(out, "link_compression_bytes_total", encoding).append(",direction=\"sent\",state=\"compressed\"} ").append(compression.getCompressedOut(encoding)).append('\n');
+            writeCompressionLabels(out, "link_compression_bytes_total", encoding).append(",direction=\"received\",state=\"uncompressed\"} ").append(compression.getUncompressedIn(encoding)).append('\n');
+            writeCompressionLabels(out, "link_compression_bytes_total", encoding).append(",direction=\"received\",state=\"compressed\"} ").append(compression.getCompressedIn(encoding)).append('\n');
+        }
+        writeType(out, "link_compression_seconds_total", "counter", "Time spent compressing and decompressing link bodies.");
+        for (LinkCompression.Encoding encoding : LinkCompression.Encoding.values()) {
+            writeCompressionLabels(out, "link_compression_seconds_total", encoding).append(",operation=\"compress\"} ").append(formatMicros(compression.getCompressNanos(encoding) / 1000)).append('\n');
+            writeCompressionLabels(out, "link_compression_seconds_total", encoding).append(",operation=\"decompress\"} ").append(formatMicros(compression.getDecompressNanos(encoding) / 1000)).append('\n');
+        }
+        writeCounter(out, "link_compression_skipped_total", "Link bodies sent uncompressed because they were below the threshold.", compression.getSkipped());
+    }
+
+    private static StringBuilder writeCompressionLabels(StringBuilder out, String name, LinkCompression.Encoding encoding) {
+        return out.append(PREFIX).append(name).append("{encoding=\"").append(encoding.name).append('"');
+    }
+
+    private static void writeCounter(StringBuilder out, String name, String help, long value) {
+        writeType(out, name, "counter", help);
+        out.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void writeType(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static StringBuilder writeRequestLabels(StringBuilder out, String name, RequestMetrics metrics) {
+        out.append(PREFIX).append(name).append("{resource=\"");
+        escape(out, metrics.getResourceId());
+        out.append("\",method=\"");
+        escape(out, metrics.getMethod());
+        return out.append('"');
+    }
+
+    private static StringBuilder writeUpstreamLabels(StringBuilder out, String name, EndPoint endpoint, Upstream upstream) {
+        out.append(PREFIX).append(name).append("{resource=\"");
+        escape(out, endpoint.getResourceId());
+        out.append("\",upstream=\"");
+        escape(out, upstream.getBaseUrl());
+        return out.append('"');
+    }
+
+    private static StringBuilder writeAdmissionLabels(StringBuilder out, String name, String scope, AdmissionControl control) {
+        out.append(PREFIX).append(name).append("{scope=\"").append(scope).append("\",name=\"");
+        escape(out, control.getName());
+        return out.append('"');
+    }
+
+    private static StringBuilder writeLinkLabels(StringBuilder out, String name, MicroBatcher batcher) {
+        out.append(PREFIX).append(name).append("{link=\"");
+        escape(out, batcher.getName());
+        return out.append('"');
+    }
+
+    private static StringBuilder writePoolLabels(StringBuilder out, String name, ConnectionPool pool) {
+        out.append(PREFIX).append(name).append("{pool=\"");
+        escape(out, pool.getName());
+        return out.append('"');
+    }
+
+    private static void escape(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+
+    private static String formatMicros(long micros) {
+        return BigDecimal.valueOf(micros, 6).stripTrailingZeros().toPlainString();
+    }
+}
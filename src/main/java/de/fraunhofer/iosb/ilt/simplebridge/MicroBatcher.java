@@ -0,0 +1,187 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the requests sent over a link, and sends them to the other Bridge
+ * as a single batch. A batch is sent when it holds the maximum number of
+ * requests, or when its first request waited the maximum wait time, whichever
+ * comes first. Each caller gets its own response as soon as it arrives.
+ *
+ * The circuit breaker of the link is not consulted here, the callers do that
+ * for each request.
+ *
+ * @author hylke
+ */
+public class MicroBatcher {
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "link-batcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Link link;
+    private final int maxSize;
+    private final long maxWaitNanos;
+
+    /**
+     * The batch that is collecting requests, guarded by this.
+     */
+    private Batch pending;
+
+    private final LongAdder fullBatches = new LongAdder();
+    private final LongAdder timedBatches = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+
+    private static class Batch {
+
+        final long start = System.nanoTime();
+        final List<BridgeRequest> requests;
+        final List<CompletableFuture<BridgeResponse>> futures;
+        ScheduledFuture<?> timer;
+
+        Batch(int maxSize) {
+            requests = new ArrayList<>(maxSize);
+            futures = new ArrayList<>(maxSize);
+        }
+    }
+
+    /**
+     * @param link The link to send the batches over.
+     * @param settings The batch settings, must be enabled.
+     */
+    public MicroBatcher(Link link, BatchSettings settings) {
+        this.link = link;
+        this.maxSize = settings.getMaxSize();
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(settings.getMaxWait());
+    }
+
+    /**
+     * Adds the request to the current batch.
+     *
+     * @param request The request to send.
+     * @return A future that completes with the response. It always completes
+     * normally, failures result in an error response.
+     */
+    public CompletableFuture<BridgeResponse> submit(BridgeRequest request) {
+        final CompletableFuture<BridgeResponse> future = new CompletableFuture<>();
+        Batch full = null;
+        synchronized (this) {
+            if (pending == null) {
+                final Batch batch = new Batch(maxSize);
+                batch.timer = TIMER.schedule(() -> expire(batch), maxWaitNanos, TimeUnit.NANOSECONDS);
+                pending = batch;
+            }
+            pending.requests.add(request);
+            pending.futures.add(future);
+            if (pending.requests.size() >= maxSize) {
+                full = pending;
+                pending = null;
+            }
+        }
+        if (full != null) {
+            full.timer.cancel(false);
+            fullBatches.increment();
+            dispatch(full);
+        }
+        return future;
+    }
+
+    private void expire(Batch batch) {
+        synchronized (this) {
+            if (pending != batch) {
+                // Already sent because it was full.
+                return;
+            }
+            pending = null;
+        }
+        timedBatches.increment();
+        dispatch(batch);
+    }
+
+    private void dispatch(Batch batch) {
+        requests.add(batch.requests.size());
+        waitNanos.add(System.nanoTime() - batch.start);
+        final List<CompletableFuture<BridgeResponse>> responses = LinkBatch.sendUnguarded(link, batch.requests);
+        for (int i = 0; i < responses.size(); i++) {
+            final CompletableFuture<BridgeResponse> future = batch.futures.get(i);
+            responses.get(i).thenAccept(future::complete);
+        }
+    }
+
+    /**
+     * Sends the batch that is collecting requests, if there is one.
+     */
+    public void flush() {
+        final Batch batch;
+        synchronized (this) {
+            batch = pending;
+            pending = null;
+        }
+        if (batch != null) {
+            batch.timer.cancel(false);
+            timedBatches.increment();
+            dispatch(batch);
+        }
+    }
+
+    /**
+     * @return the url of the link the batches are sent over.
+     */
+    public String getName() {
+        return link.getUrl();
+    }
+
+    /**
+     * @return the maximum number of requests in a batch.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return the maximum time a request waits for others, in nanoseconds.
+     */
+    public long getMaxWaitNanos() {
+        return maxWaitNanos;
+    }
+
+    /**
+     * @return the number of batches sent because they were full.
+     */
+    public long getFullBatches() {
+        return fullBatches.sum();
+    }
+
+    /**
+     * @return the number of batches sent because the wait time passed.
+     */
+    public long getTimedBatches() {
+        return timedBatches.sum();
+    }
+
+    /**
+     * @return the number of requests sent in batches.
+     */
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return the total time the first requests of the batches waited, in
+     * nanoseconds.
+     */
+    public long getWaitNanos() {
+        return waitNanos.sum();
+    }
+
+}
@@ -0,0 +1,282 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import com.google.gson.annotations.Expose;
+import de.fraunhofer.iosb.ilt.configurable.AnnotatedConfigurable;
+import de.fraunhofer.iosb.ilt.configurable.annotations.ConfigurableClass;
+import de.fraunhofer.iosb.ilt.configurable.annotations.ConfigurableField;
+import de.fraunhofer.iosb.ilt.configurable.editor.EditorInt;
+import java.util.Objects;
+
+/**
+ * The settings of the HTTP connection pool used to reach an upstream server or
+ * another Bridge, and of the handling of failures of that destination.
+ *
+ * @author hylke
+ */
+@ConfigurableClass()
+public class PoolSettings implements AnnotatedConfigurable<Void, Void> {
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Max Total", description = "The maximum number of open connections.")
+    @EditorInt.EdOptsInt(dflt = 200, min = 1, max = 100000)
+    @Expose
+    private int maxTotal = 200;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Max Per Route", description = "The maximum number of open connections to a single host.")
+    @EditorInt.EdOptsInt(dflt = 100, min = 1, max = 100000)
+    @Expose
+    private int maxPerRoute = 100;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Idle Timeout", description = "Connections that are idle for longer than this number of seconds are closed.")
+    @EditorInt.EdOptsInt(dflt = 30, min = 1, max = 3600)
+    @Expose
+    private int idleTimeout = 30;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Keep Alive", description = "The number of seconds to keep a connection alive, if the server does not specify this.")
+    @EditorInt.EdOptsInt(dflt = 30, min = 0, max = 3600)
+    @Expose
+    private int keepAlive = 30;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Connect Timeout", description = "The timeout in milliseconds for opening a connection.")
+    @EditorInt.EdOptsInt(dflt = 10000, min = 0, max = 3600000)
+    @Expose
+    private int connectTimeout = 10000;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Socket Timeout", description = "The timeout in milliseconds for waiting for data.")
+    @EditorInt.EdOptsInt(dflt = 60000, min = 0, max = 3600000)
+    @Expose
+    private int socketTimeout = 60000;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Lease Timeout", description = "The timeout in milliseconds for waiting for a free connection from the pool.")
+    @EditorInt.EdOptsInt(dflt = 30000, min = 0, max = 3600000)
+    @Expose
+    private int leaseTimeout = 30000;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "IO Threads", description = "The number of IO threads of the non-blocking client, used in async mode.")
+    @EditorInt.EdOptsInt(dflt = 1, min = 1, max = 64)
+    @Expose
+    private int ioThreads = 1;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Breaker Threshold", description = "The number of failed requests in a row after which requests fail fast, without contacting the server. 0 disables the circuit breaker.")
+    @EditorInt.EdOptsInt(dflt = 5, min = 0, max = 10000)
+    @Expose
+    private int breakerThreshold = 5;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Breaker Open Time", description = "The number of seconds requests fail fast, before a single request is let through to test the server.")
+    @EditorInt.EdOptsInt(dflt = 10, min = 1, max = 3600)
+    @Expose
+    private int breakerOpenTime = 10;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Retries", description = "The number of times an idempotent request is retried when the server could not be reached.")
+    @EditorInt.EdOptsInt(dflt = 1, min = 0, max = 5)
+    @Expose
+    private int retries = 1;
+
+    /**
+     * @return the maxTotal
+     */
+    public int getMaxTotal() {
+        return maxTotal;
+    }
+
+    /**
+     * @param maxTotal the maxTotal to set
+     */
+    public void setMaxTotal(int maxTotal) {
+        this.maxTotal = maxTotal;
+    }
+
+    /**
+     * @return the maxPerRoute
+     */
+    public int getMaxPerRoute() {
+        return maxPerRoute;
+    }
+
+    /**
+     * @param maxPerRoute the maxPerRoute to set
+     */
+    public void setMaxPerRoute(int maxPerRoute) {
+        this.maxPerRoute = maxPerRoute;
+    }
+
+    /**
+     * @return the idleTimeout in seconds
+     */
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * @param idleTimeout the idleTimeout to set, in seconds
+     */
+    public void setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * @return the keepAlive in seconds
+     */
+    public int getKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * @param keepAlive the keepAlive to set, in seconds
+     */
+    public void setKeepAlive(int keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * @return the connectTimeout in milliseconds
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * @param connectTimeout the connectTimeout to set, in milliseconds
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * @return the socketTimeout in milliseconds
+     */
+    public int getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    /**
+     * @param socketTimeout the socketTimeout to set, in milliseconds
+     */
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
+    /**
+     * @return the leaseTimeout in milliseconds
+     */
+    public int getLeaseTimeout() {
+        return leaseTimeout;
+    }
+
+    /**
+     * @param leaseTimeout the leaseTimeout to set, in milliseconds
+     */
+    public void setLeaseTimeout(int leaseTimeout) {
+        this.leaseTimeout = leaseTimeout;
+    }
+
+    /**
+     * @return the number of IO threads of the non-blocking client
+     */
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    /**
+     * @param ioThreads the number of IO threads of the non-blocking client
+     */
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+
+    /**
+     * @return the number of failures in a row that open the circuit breaker
+     */
+    public int getBreakerThreshold() {
+        return breakerThreshold;
+    }
+
+    /**
+     * @param breakerThreshold the number of failures in a row that open the
+     * circuit breaker, 0 to disable it
+     */
+    public void setBreakerThreshold(int breakerThreshold) {
+        this.breakerThreshold = breakerThreshold;
+    }
+
+    /**
+     * @return the number of seconds the circuit breaker stays open
+     */
+    public int getBreakerOpenTime() {
+        return breakerOpenTime;
+    }
+
+    /**
+     * @param breakerOpenTime the number of seconds the circuit breaker stays
+     * open
+     */
+    public void setBreakerOpenTime(int breakerOpenTime) {
+        this.breakerOpenTime = breakerOpenTime;
+    }
+
+    /**
+     * @return the number of retries of idempotent requests
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * @param retries the number of retries of idempotent requests
+     */
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    /**
+     * Checks if two settings result in the same connection pool, treating null
+     * as the default settings.
+     *
+     * @param first The first settings, may be null.
+     * @param second The second settings, may be null.
+     * @return true if the settings are equal.
+     */
+    public static boolean same(PoolSettings first, PoolSettings second) {
+        return Objects.equals(
+                first == null ? new PoolSettings() : first,
+                second == null ? new PoolSettings() : second);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(maxTotal, maxPerRoute, idleTimeout, keepAlive, connectTimeout, socketTimeout, leaseTimeout, ioThreads, breakerThreshold, breakerOpenTime, retries);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final PoolSettings other = (PoolSettings) obj;
+        return maxTotal == other.maxTotal
+                && maxPerRoute == other.maxPerRoute
+                && idleTimeout == other.idleTimeout
+                && keepAlive == other.keepAlive
+                && connectTimeout == other.connectTimeout
+                && socketTimeout == other.socketTimeout
+                && leaseTimeout == other.leaseTimeout
+                && ioThreads == other.ioThreads
+                && breakerThreshold == other.breakerThreshold
+                && breakerOpenTime == other.breakerOpenTime
+                && retries == other.retries;
+    }
+
+}
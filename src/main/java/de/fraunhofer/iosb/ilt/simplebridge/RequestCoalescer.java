@@ -0,0 +1,210 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces identical, idempotent requests that are in flight at the same
+ * time. The first request is forwarded, the requests that arrive while it is
+ * running wait for its response instead of being forwarded themselves.
+ *
+ * The number of requests waiting on a single forwarded request is bounded.
+ * Requests that arrive when the bound is reached are forwarded separately.
+ * When the forwarded request fails, all waiting requests fail in the same way.
+ *
+ * @author hylke
+ */
+public class RequestCoalescer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RequestCoalescer.class.getName());
+
+    private final int maxWaiters;
+    private final Map<String, Flight> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder overflowed = new LongAdder();
+
+    /**
+     * @param maxWaiters The maximum number of requests that wait for a single
+     * forwarded request.
+     */
+    public RequestCoalescer(int maxWaiters) {
+        LOGGER.info("Coalescing identical requests, with at most {} waiters.", maxWaiters);
+        this.maxWaiters = maxWaiters;
+    }
+
+    /**
+     * Checks if the given request may share its response with identical
+     * requests.
+     *
+     * @param request The request to check.
+     * @return true if the request is idempotent and has no body.
+     */
+    public static boolean isCoalescable(BridgeRequest request) {
+        return ("GET".equals(request.method) || "HEAD".equals(request.method))
+                && (request.body == null || request.body.isEmpty());
+    }
+
+    /**
+     * Executes the request, or waits for an identical request that is already
+     * in flight.
+     *
+     * @param request The request to execute.
+     * @param fetcher The function that forwards the request.
+     * @return The response.
+     */
+    public BridgeResponse execute(BridgeRequest request, Function<BridgeRequest, BridgeResponse> fetcher) {
+        if (!isCoalescable(request)) {
+            return fetcher.apply(request);
+        }
+        final String key = ResponseCache.createKey(request);
+        final Flight flight = new Flight();
+        final Flight existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            if (existing.addWaiter()) {
+                coalesced.increment();
+                final BridgeResponse shared;
+                try {
+                    shared = existing.result.join();
+                } catch (CompletionException ex) {
+                    throw unwrap(ex);
+                }
+                final BridgeResponse copy = copy(shared);
+                return copy == null ? fetcher.apply(request) : copy;
+            }
+            overflowed.increment();
+            return fetcher.apply(request);
+        }
+        forwarded.increment();
+        try {
+            BridgeResponse response = fetcher.apply(request);
+            inFlight.remove(key, flight);
+            flight.result.complete(response);
+            return response;
+        } catch (RuntimeException | Error ex) {
+            inFlight.remove(key, flight);
+            flight.result.completeExceptionally(ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Executes the request, or waits for an identical request that is already
+     * in flight.
+     *
+     * @param request The request to execute.
+     * @param fetcher The function that forwards the request.
+     * @return A future that completes with the response.
+     */
+    public CompletableFuture<BridgeResponse> executeAsync(BridgeRequest request, Function<BridgeRequest, CompletableFuture<BridgeResponse>> fetcher) {
+        if (!isCoalescable(request)) {
+            return fetcher.apply(request);
+        }
+        final String key = ResponseCache.createKey(request);
+        final Flight flight = new Flight();
+        final Flight existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            if (existing.addWaiter()) {
+                coalesced.increment();
+                return existing.result.thenCompose(shared -> {
+                    final BridgeResponse copy = copy(shared);
+                    return copy == null ? fetcher.apply(request) : CompletableFuture.completedFuture(copy);
+                });
+            }
+            overflowed.increment();
+            return fetcher.apply(request);
+        }
+        forwarded.increment();
+        CompletableFuture<BridgeResponse> response;
+        try {
+            response = fetcher.apply(request);
+        } catch (RuntimeException ex) {
+            response = CompletableFuture.failedFuture(ex);
+        }
+        return response.whenComplete((result, ex) -> {
+            // Remove first, so requests arriving from now on start a new flight.
+            inFlight.remove(key, flight);
+            if (ex == null) {
+                flight.result.complete(result);
+            } else {
+                flight.result.completeExceptionally(ex);
+            }
+        });
+    }
+
+    private static RuntimeException unwrap(CompletionException ex) {
+        Throwable cause = ex.getCause();
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        return ex;
+    }
+
+    /**
+     * Copies the response, so waiters do not share the headers map. The body
+     * is never modified, and is shared; the copy takes its own reference to
+     * it.
+     *
+     * @return the copy, or null if the request that fetched the response
+     * already released its body.
+     */
+    private static BridgeResponse copy(BridgeResponse response) {
+        if (response.body != null && !response.body.tryRetain()) {
+            return null;
+        }
+        BridgeResponse copy = new BridgeResponse();
+        copy.statusCode = response.statusCode;
+        copy.headers.putAll(response.headers);
+        copy.body = response.body;
+        return copy;
+    }
+
+    /**
+     * @return the number of requests that were forwarded, and shared their
+     * response with identical requests.
+     */
+    public long getForwarded() {
+        return forwarded.sum();
+    }
+
+    /**
+     * @return the number of requests that got the response of an identical
+     * request.
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return the number of requests that were forwarded separately because
+     * the identical request already had the maximum number of waiters.
+     */
+    public long getOverflowed() {
+        return overflowed.sum();
+    }
+
+    /**
+     * @return the number of distinct requests currently in flight.
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    private class Flight {
+
+        final CompletableFuture<BridgeResponse> result = new CompletableFuture<>();
+        final AtomicInteger waiters = new AtomicInteger();
+
+        boolean addWaiter() {
+            return waiters.incrementAndGet() <= maxWaiters;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of the requests with a single method, to a single endpoint:
+ * request counts per status class, the bytes received and sent, the retries
+ * and hedged requests, and the durations of the phases of the requests.
+ *
+ * @author hylke
+ */
+public class RequestMetrics {
+
+    /**
+     * The phases of a request that are timed separately.
+     */
+    public enum Phase {
+        /**
+         * Reading the request from the client or the other Bridge.
+         */
+        CLIENT_READ("client_read"),
+        /**
+         * The round trip to the other Bridge, for linked endpoints.
+         */
+        LINK("link"),
+        /**
+         * The round trip to the upstream server, for direct endpoints.
+         */
+        UPSTREAM("upstream"),
+        /**
+         * Writing the response to the client or the other Bridge.
+         */
+        RESPONSE_WRITE("response_write");
+
+        public final String label;
+
+        private Phase(String label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * The labels of the status classes, the index is the status code / 100.
+     * Index 0 is used for invalid status codes.
+     */
+    public static final String[] STATUS_CLASSES = {"other", "1xx", "2xx", "3xx", "4xx", "5xx"};
+
+    /**
+     * The label of the metrics shared by all methods that are not standard
+     * HTTP methods, so clients can not create any number of metrics.
+     */
+    public static final String METHOD_OTHER = "OTHER";
+
+    private static final Set<String> KNOWN_METHODS = new HashSet<>(Arrays.asList(
+            "GET", "HEAD", "POST", "PUT", "PATCH", "DELETE", "OPTIONS", "TRACE", "CONNECT"));
+
+    private final String resourceId;
+    private final String method;
+    private final LongAdder[] statusCounts = new LongAdder[STATUS_CLASSES.length];
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LatencyHistogram[] phases = new LatencyHistogram[Phase.values().length];
+
+    public RequestMetrics(String resourceId, String method) {
+        this.resourceId = resourceId;
+        this.method = method;
+        for (int i = 0; i < statusCounts.length; i++) {
+            statusCounts[i] = new LongAdder();
+        }
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @param method The method of a request, may be null.
+     * @return the method the request is counted under: the method itself for
+     * standard HTTP methods, {@link #METHOD_OTHER} for others.
+     */
+    public static String getMetricsMethod(String method) {
+        return method != null && KNOWN_METHODS.contains(method) ? method : METHOD_OTHER;
+    }
+
+    /**
+     * Records a finished request.
+     *
+     * @param statusCode The status code of the response.
+     * @param requestBytes The size of the request body.
+     * @param responseBytes The size of the response body.
+     */
+    public void recordRequest(int statusCode, long requestBytes, long responseBytes) {
+        final int statusClass = statusCode / 100;
+        if (statusClass > 0 && statusClass < STATUS_CLASSES.length) {
+            statusCounts[statusClass].increment();
+        } else {
+            statusCounts[0].increment();
+        }
+        if (requestBytes > 0) {
+            bytesIn.add(requestBytes);
+        }
+        if (responseBytes > 0) {
+            bytesOut.add(responseBytes);
+        }
+    }
+
+    /**
+     * Records the duration of a phase of a request.
+     *
+     * @param phase The phase to record.
+     * @param startNanos The start of the phase, from {@link System#nanoTime()}.
+     */
+    public void recordPhase(Phase phase, long startNanos) {
+        phases[phase.ordinal()].recordNanos(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records that a request was sent again, after it failed.
+     */
+    public void recordRetry() {
+        retries.increment();
+    }
+
+    /**
+     * Records that a copy of a slow request was sent to another replica.
+     */
+    public void recordHedge() {
+        hedges.increment();
+    }
+
+    /**
+     * Records that the copy of a slow request answered first.
+     */
+    public void recordHedgeWin() {
+        hedgeWins.increment();
+    }
+
+    /**
+     * @return the resourceId of the endpoint
+     */
+    public String getResourceId() {
+        return resourceId;
+    }
+
+    /**
+     * @return the method of the requests
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * @param statusClass The status code / 100, or 0 for invalid codes.
+     * @return the number of requests with a status code in the given class.
+     */
+    public long getStatusCount(int statusClass) {
+        return statusCounts[statusClass].sum();
+    }
+
+    /**
+     * @return the total size of the request bodies.
+     */
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    /**
+     * @return the total size of the response bodies.
+     */
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    /**
+     * @return the number of retried requests.
+     */
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    /**
+     * @return the number of requests sent to a second replica.
+     */
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    /**
+     * @return the number of requests where the second replica answered first.
+     */
+    public long getHedgeWins() {
+        return hedgeWins.sum();
+    }
+
+    /**
+     * @param phase The phase to get the histogram of.
+     * @return the histogram of the durations of the given phase.
+     */
+    public LatencyHistogram getHistogram(Phase phase) {
+        return phases[phase.ordinal()];
+    }
+
+}
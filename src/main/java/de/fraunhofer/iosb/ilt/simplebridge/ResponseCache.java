@@ -0,0 +1,445 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import org.apache.http.client.utils.DateUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A size-bounded cache of responses, on the requesting side of the Bridge.
+ * Responses are cached according to their Cache-Control and Expires headers,
+ * unless the endpoint overrides the time to live. Stale responses with an ETag
+ * or Last-Modified header are revalidated with a conditional request.
+ *
+ * The cache is split in segments, each with its own lock and LRU eviction, so
+ * lookups of different keys rarely contend.
+ *
+ * Each entry holds a reference to its body, released when the entry is
+ * replaced, removed or evicted. Responses taken from the cache hold their own
+ * reference.
+ *
+ * @author hylke
+ */
+public class ResponseCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResponseCache.class.getName());
+
+    private static final int SEGMENT_COUNT = 16;
+    /**
+     * The estimated memory overhead of an entry, on top of its key, headers
+     * and body.
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_EXPIRES = "Expires";
+    private static final String HEADER_DATE = "Date";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_VARY = "Vary";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxBytes The maximum total size of the cached responses.
+     */
+    public ResponseCache(long maxBytes) {
+        LOGGER.info("Creating response cache of {} bytes", maxBytes);
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(maxBytes / SEGMENT_COUNT);
+        }
+    }
+
+    /**
+     * Checks if the response to the given request may be taken from, or put
+     * in the cache.
+     *
+     * @param endpoint The endpoint the request is for.
+     * @param request The request to check.
+     * @return true if the request can use the cache.
+     */
+    public static boolean isCacheable(EndPoint endpoint, BridgeRequest request) {
+        if (endpoint.getCacheTtl() == 0) {
+            return false;
+        }
+        if (!"GET".equals(request.method) && !"HEAD".equals(request.method)) {
+            return false;
+        }
+        if (findHeader(request.headers, HEADER_IF_NONE_MATCH) != null
+                || findHeader(request.headers, HEADER_IF_MODIFIED_SINCE) != null) {
+            // The client does its own caching.
+            return false;
+        }
+        String cacheControl = findHeader(request.headers, HEADER_CACHE_CONTROL);
+        return cacheControl == null
+                || !(cacheControl.contains("no-cache") || cacheControl.contains("no-store"));
+    }
+
+    /**
+     * Answers the request from the cache if possible, otherwise uses the
+     * fetcher to get the response and caches it.
+     *
+     * @param endpoint The endpoint the request is for.
+     * @param request The request to answer.
+     * @param fetcher The function used to fetch responses that are not cached
+     * or are stale.
+     * @return The response.
+     */
+    public BridgeResponse execute(EndPoint endpoint, BridgeRequest request, Function<BridgeRequest, BridgeResponse> fetcher) {
+        return executeAsync(endpoint, request, r -> CompletableFuture.completedFuture(fetcher.apply(r))).join();
+    }
+
+    /**
+     * Answers the request from the cache if possible, otherwise uses the
+     * fetcher to get the response and caches it.
+     *
+     * @param endpoint The endpoint the request is for.
+     * @param request The request to answer.
+     * @param fetcher The function used to fetch responses that are not cached
+     * or are stale.
+     * @return A future that completes with the response.
+     */
+    public CompletableFuture<BridgeResponse> executeAsync(EndPoint endpoint, BridgeRequest request, Function<BridgeRequest, CompletableFuture<BridgeResponse>> fetcher) {
+        if (!isCacheable(endpoint, request)) {
+            return fetcher.apply(request);
+        }
+        final String key = createKey(request);
+        final Segment segment = segmentFor(key);
+        final Entry entry = segment.acquire(key);
+        final long now = System.currentTimeMillis();
+        if (entry != null && entry.expires > now) {
+            hits.increment();
+            return CompletableFuture.completedFuture(entry.toResponse());
+        }
+        BridgeRequest toSend = request;
+        if (entry != null && (entry.etag != null || entry.lastModified != null)) {
+            toSend = createConditionalRequest(request, entry);
+        } else {
+            misses.increment();
+            if (entry != null) {
+                entry.body.close();
+            }
+        }
+        final boolean conditional = toSend != request;
+        final CompletableFuture<BridgeResponse> fetched = fetcher.apply(toSend);
+        if (conditional) {
+            fetched.whenComplete((response, ex) -> {
+                if (ex != null) {
+                    entry.body.close();
+                }
+            });
+        }
+        return fetched.thenApply(response -> {
+            if (conditional && response.statusCode == 304) {
+                revalidations.increment();
+                response.close();
+                Entry refreshed = entry.refresh(computeExpires(endpoint, response, System.currentTimeMillis()));
+                segment.put(key, refreshed);
+                return entry.toResponse();
+            }
+            if (conditional) {
+                entry.body.close();
+            }
+            store(endpoint, segment, key, response);
+            return response;
+        });
+    }
+
+    private void store(EndPoint endpoint, Segment segment, String key, BridgeResponse response) {
+        if (response.statusCode != 200 || response.body == null) {
+            segment.remove(key);
+            return;
+        }
+        String cacheControl = findHeader(response.headers, HEADER_CACHE_CONTROL);
+        if (cacheControl != null) {
+            String lower = cacheControl.toLowerCase(Locale.ROOT);
+            if (lower.contains("no-store") || lower.contains("private")) {
+                segment.remove(key);
+                return;
+            }
+        }
+        if ("*".equals(findHeader(response.headers, HEADER_VARY))) {
+            return;
+        }
+        final long expires = computeExpires(endpoint, response, System.currentTimeMillis());
+        final String etag = findHeader(response.headers, HEADER_ETAG);
+        final String lastModified = findHeader(response.headers, HEADER_LAST_MODIFIED);
+        if (expires <= System.currentTimeMillis() && etag == null && lastModified == null) {
+            return;
+        }
+        segment.put(key, new Entry(key, response, expires, etag, lastModified));
+    }
+
+    private static long computeExpires(EndPoint endpoint, BridgeResponse response, long now) {
+        final int ttlOverride = endpoint.getCacheTtl();
+        if (ttlOverride > 0) {
+            return now + TimeUnit.SECONDS.toMillis(ttlOverride);
+        }
+        String cacheControl = findHeader(response.headers, HEADER_CACHE_CONTROL);
+        if (cacheControl != null) {
+            long maxAge = -1;
+            for (String directive : cacheControl.toLowerCase(Locale.ROOT).split(",")) {
+                directive = directive.trim();
+                if (directive.equals("no-cache")) {
+                    return now;
+                }
+                if (directive.startsWith("s-maxage=")) {
+                    maxAge = parseSeconds(directive.substring(9));
+                    break;
+                }
+                if (directive.startsWith("max-age=")) {
+                    maxAge = parseSeconds(directive.substring(8));
+                }
+            }
+            if (maxAge >= 0) {
+                return now + TimeUnit.SECONDS.toMillis(maxAge);
+            }
+        }
+        String expires = findHeader(response.headers, HEADER_EXPIRES);
+        if (expires != null) {
+            Date expiresDate = DateUtils.parseDate(expires);
+            if (expiresDate == null) {
+                return now;
+            }
+            Date date = DateUtils.parseDate(String.valueOf(findHeader(response.headers, HEADER_DATE)));
+            long base = date == null ? now : date.getTime();
+            return now + expiresDate.getTime() - base;
+        }
+        return now;
+    }
+
+    private static long parseSeconds(String value) {
+        try {
+            return Long.parseLong(value.trim().replace("\"", ""));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * The conditional request shares the body of the original request, which
+     * keeps owning it.
+     */
+    private static BridgeRequest createConditionalRequest(BridgeRequest request, Entry entry) {
+        BridgeRequest conditional = new BridgeRequest();
+        conditional.resourceId = request.resourceId;
+        conditional.url = request.url;
+        conditional.method = request.method;
+        conditional.body = request.body;
+        conditional.headers.putAll(request.headers);
+        if (entry.etag != null) {
+            conditional.headers.put(HEADER_IF_NONE_MATCH, entry.etag);
+        }
+        if (entry.lastModified != null) {
+            conditional.headers.put(HEADER_IF_MODIFIED_SINCE, entry.lastModified);
+        }
+        return conditional;
+    }
+
+    /**
+     * Creates the key that identifies the response to the given request.
+     */
+    static String createKey(BridgeRequest request) {
+        StringBuilder key = new StringBuilder(request.resourceId.length() + request.url.length() + 64);
+        key.append(request.resourceId).append('\n')
+                .append(request.method).append('\n')
+                .append(request.url);
+        request.headers.entrySet().stream()
+                .sorted(Map.Entry.comparingByKey())
+                .forEach(e -> key.append('\n').append(e.getKey()).append(':').append(e.getValue()));
+        return key.toString();
+    }
+
+    private Segment segmentFor(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return segments[hash & (SEGMENT_COUNT - 1)];
+    }
+
+    /**
+     * Finds a header, ignoring the case of its name.
+     */
+    static String findHeader(Map<String, String> headers, String name) {
+        String value = headers.get(name);
+        if (value != null) {
+            return value;
+        }
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            if (name.equalsIgnoreCase(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of requests answered from the cache.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of cacheable requests that were not in the cache.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of stale entries that were revalidated.
+     */
+    public long getRevalidations() {
+        return revalidations.sum();
+    }
+
+    /**
+     * @return the number of entries evicted to make room for others.
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the total size of all cached entries, in bytes.
+     */
+    public long getSize() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.getSize();
+        }
+        return size;
+    }
+
+    private static class Entry {
+
+        final String key;
+        final int statusCode;
+        final Map<String, String> headers;
+        final Body body;
+        final long expires;
+        final String etag;
+        final String lastModified;
+        final long size;
+
+        /**
+         * Creates an entry holding its own reference to the body of the
+         * response.
+         */
+        Entry(String key, BridgeResponse response, long expires, String etag, String lastModified) {
+            this(key, response.statusCode, response.headers, response.body.retain(), expires, etag, lastModified);
+        }
+
+        private Entry(String key, int statusCode, Map<String, String> headers, Body body, long expires, String etag, String lastModified) {
+            this.key = key;
+            this.statusCode = statusCode;
+            this.headers = headers;
+            this.body = body;
+            this.expires = expires;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            long headerSize = 0;
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                headerSize += header.getKey().length() + header.getValue().length();
+            }
+            this.size = ENTRY_OVERHEAD + 2L * (key.length() + headerSize) + body.length();
+        }
+
+        /**
+         * Creates a copy of this entry with a new expiry time, holding its own
+         * reference to the body. The caller must hold a reference.
+         */
+        Entry refresh(long newExpires) {
+            return new Entry(key, statusCode, headers, body.retain(), newExpires, etag, lastModified);
+        }
+
+        /**
+         * Creates a response that takes over the reference to the body that
+         * was taken with {@link Segment#acquire(java.lang.String)}.
+         */
+        BridgeResponse toResponse() {
+            BridgeResponse response = new BridgeResponse();
+            response.statusCode = statusCode;
+            response.headers.putAll(headers);
+            response.body = body;
+            return response;
+        }
+    }
+
+    private class Segment {
+
+        private final long maxSize;
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long size;
+
+        Segment(long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * Finds the entry for the given key, and takes a reference to its
+         * body, that the caller must release. Entries in the segment always
+         * hold a reference, so under the lock this can not fail.
+         */
+        synchronized Entry acquire(String key) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                entry.body.retain();
+            }
+            return entry;
+        }
+
+        /**
+         * Puts the entry in the segment, which takes over the reference the
+         * entry holds to its body.
+         */
+        synchronized void put(String key, Entry entry) {
+            if (entry.size > maxSize) {
+                entry.body.close();
+                remove(key);
+                return;
+            }
+            Entry old = entries.put(key, entry);
+            if (old != null) {
+                size -= old.size;
+                old.body.close();
+            }
+            size += entry.size;
+            Iterator<Entry> it = entries.values().iterator();
+            while (size > maxSize && it.hasNext()) {
+                Entry eldest = it.next();
+                it.remove();
+                size -= eldest.size;
+                eldest.body.close();
+                evictions.increment();
+            }
+        }
+
+        synchronized void remove(String key) {
+            Entry old = entries.remove(key);
+            if (old != null) {
+                size -= old.size;
+                old.body.close();
+            }
+        }
+
+        synchronized long getSize() {
+            return size;
+        }
+    }
+}
@@ -2,11 +2,31 @@ package de.fraunhofer.iosb.ilt.simplebridge;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.Expose;
 import de.fraunhofer.iosb.ilt.configurable.Utils;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.MultipartConfig;
 import javax.servlet.annotation.WebInitParam;
@@ -14,14 +34,17 @@ import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.apache.commons.lang3.StringUtils;
-import org.apache.http.Consts;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,6 +56,7 @@ import org.slf4j.LoggerFactory;
 @WebServlet(
         name = "RestBridge",
         urlPatterns = {"/resource/*"},
+        asyncSupported = true,
         initParams = {
             @WebInitParam(name = "readonly", value = "false")
         }
@@ -43,11 +67,83 @@ public class RestApi extends HttpServlet {
     public static final String ENCODING_UTF8 = "UTF-8";
     public static final String CONTENT_TYPE_APPLICATIONJSON = "application/json";
     public static final String CONTENT_TYPE_APPLICATIONGEOJSON = "application/geo+json";
+    public static final String CONTENT_TYPE_NDJSON = "application/x-ndjson";
+
+    /**
+     * The path that accepts batches of requests from clients.
+     */
+    public static final String PATH_BATCH = "/$batch";
+
+    /**
+     * The size of the buffer used when streaming bodies.
+     */
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+
+    private static final ContentType LINK_CONTENT_TYPE_BINARY = ContentType.create(LinkCodec.CONTENT_TYPE_LINK_BINARY);
 
     private static final Logger LOGGER = LoggerFactory.getLogger(RestApi.class.getName());
 
-    private static CloseableHttpClient client;
-    private static Gson gson;
+    /**
+     * Writes the results of a batch on a single line each.
+     */
+    private static final Gson BATCH_GSON = new GsonBuilder()
+            .excludeFieldsWithoutExposeAnnotation()
+            .disableHtmlEscaping()
+            .create();
+
+    /**
+     * A request in a batch sent by a client.
+     */
+    static class BatchItem {
+
+        @Expose
+        String method;
+        /**
+         * The resourceId, the path and the query of the request, like the
+         * path after /resource of a single request.
+         */
+        @Expose
+        String url;
+        @Expose
+        Map<String, String> headers;
+        /**
+         * The body of the request, as text.
+         */
+        @Expose
+        String body;
+        /**
+         * The body of the request, base64 encoded, for bodies that are not
+         * text.
+         */
+        @Expose
+        String bodyBase64;
+    }
+
+    /**
+     * A response in the answer to a batch.
+     */
+    static class BatchResult {
+
+        /**
+         * The index of the request in the batch.
+         */
+        @Expose
+        int index;
+        @Expose
+        int statusCode;
+        @Expose
+        Map<String, String> headers;
+        /**
+         * The body of the response, if it is text.
+         */
+        @Expose
+        String body;
+        /**
+         * The body of the response, base64 encoded, if it is not text.
+         */
+        @Expose
+        String bodyBase64;
+    }
 
     @Override
     protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
@@ -56,84 +152,627 @@ public class RestApi extends HttpServlet {
         String pathInfo = request.getPathInfo();
         if (Utils.isNullOrEmpty(pathInfo) || "/".equals(pathInfo)) {
             getIndex(response, serverConfig);
-            LOGGER.info("Index Request.");
+            LOGGER.debug("Index Request.");
+            return;
+        }
+        if (PATH_BATCH.equals(pathInfo) && "POST".equals(request.getMethod())) {
+            serviceBatch(request, response, serverConfig);
             return;
         }
 
-        EndPoint endpoint = getEndpoint(request, serverConfig);
-        if (endpoint == null) {
+        final Route route = getRoute(request, serverConfig);
+        if (route == null) {
             response.setStatus(404);
             return;
         }
+        final EndPoint endpoint = route.getEndpoint();
 
-        BridgeRequest bridgeRequest = createBridgeRequest(request, serverConfig, endpoint);
-        if (bridgeRequest == null) {
+        BridgeRequest bridgeRequest = createBridgeRequest(request, route);
+        if (!route.isMethodAllowed(bridgeRequest.method)) {
             response.setStatus(403);
             return;
         }
-        if (!endpoint.getMethodsAllowlist().contains(bridgeRequest.method)) {
-            response.setStatus(403);
+        final RequestMetrics metrics = endpoint.getMetrics(bridgeRequest.method);
+        ResponseCache cache = serverConfig.getResponseCache();
+        if (cache != null && !ResponseCache.isCacheable(endpoint, bridgeRequest)) {
+            cache = null;
+        }
+        final RequestCoalescer coalescer = serverConfig.getRequestCoalescer();
+        final boolean coalesce = coalescer != null && RequestCoalescer.isCoalescable(bridgeRequest);
+        final AccessLog accessLog = serverConfig.getAccessLogger();
+        final long start = System.nanoTime();
+        if (serverConfig.isAsync()) {
+            bridgeRequest.body = readRequestData(request.getInputStream(), endpoint.getSpillThreshold());
+            metrics.recordPhase(RequestMetrics.Phase.CLIENT_READ, start);
+            LOGGER.debug("Request: {} {} {}, headers: {}, bodySize {}, async", bridgeRequest.method, bridgeRequest.resourceId, bridgeRequest.url, bridgeRequest.headers.size(), bridgeRequest.body.length());
+            final AsyncContext asyncContext = request.startAsync();
+            final AsyncTimeout timeout = AsyncTimeout.start(asyncContext, LinkApi.getAsyncTimeout(endpoint, bridgeRequest.method));
+            final ResponseCache asyncCache = cache;
+            final long requestSize = bridgeRequest.body.length();
+            LinkApi.admitAndRun(endpoint, () -> {
+                if (asyncCache == null) {
+                    return forwardAsync(coalescer, bridgeRequest, endpoint);
+                }
+                return asyncCache.executeAsync(endpoint, bridgeRequest, r -> forwardAsync(coalescer, r, endpoint));
+            }).whenComplete((bridgeResponse, ex) -> bridgeRequest.close())
+                    .thenAccept(bridgeResponse -> writeResponseAsync(asyncContext, timeout, route, metrics, accessLog, bridgeRequest, requestSize, start, bridgeResponse));
             return;
         }
-        LOGGER.info("Request: {} {} {}", bridgeRequest.method, bridgeRequest.resourceId, bridgeRequest.url);
-        LOGGER.info("  Headers: {}, bodySize {}", bridgeRequest.headers.size(), bridgeRequest.body.length);
-        final String linkUrl = endpoint.getLinkUrl();
-        BridgeResponse bridgeResponse;
-        if (Utils.isNullOrEmpty(linkUrl)) {
-            bridgeResponse = LinkApi.executeRequest(endpoint, bridgeRequest);
-        } else {
-            bridgeResponse = sendBridgeRequest(bridgeRequest, endpoint);
+        // Waits in this thread if the request is queued.
+        final BridgeResponse rejected = endpoint.admit().join();
+        if (rejected != null) {
+            LOGGER.debug("Rejected: {} {} {}, status {}", bridgeRequest.method, bridgeRequest.resourceId, bridgeRequest.url, rejected.statusCode);
+            final long written = writeResponse(response, route, rejected);
+            metrics.recordRequest(rejected.statusCode, 0, written);
+            accessLog.log(AccessLog.API_REST, bridgeRequest, rejected.statusCode, 0, written, start);
+            return;
+        }
+        try {
+            serviceAdmitted(request, response, route, metrics, accessLog, bridgeRequest, cache, coalescer, coalesce, start);
+        } finally {
+            endpoint.release();
+        }
+    }
+
+    /**
+     * Handles a request that the limits of its endpoint admitted.
+     *
+     * @param received The value of System.nanoTime() when the request arrived.
+     */
+    private void serviceAdmitted(HttpServletRequest request, HttpServletResponse response, Route route, RequestMetrics metrics, AccessLog accessLog, BridgeRequest bridgeRequest, ResponseCache cache, RequestCoalescer coalescer, boolean coalesce, long received) throws IOException {
+        final EndPoint endpoint = route.getEndpoint();
+        final long start = System.nanoTime();
+        if (Utils.isNullOrEmpty(endpoint.getLinkUrl()) && endpoint.isStreaming() && cache == null && !coalesce) {
+            LOGGER.debug("Request: {} {} {}, headers: {}, streaming", bridgeRequest.method, bridgeRequest.resourceId, bridgeRequest.url, bridgeRequest.headers.size());
+            proxyRequest(request, response, route, metrics, accessLog, bridgeRequest, received);
+            return;
+        }
+        bridgeRequest.body = readRequestData(request.getInputStream(), endpoint.getSpillThreshold());
+        metrics.recordPhase(RequestMetrics.Phase.CLIENT_READ, start);
+        LOGGER.debug("Request: {} {} {}, headers: {}, bodySize {}", bridgeRequest.method, bridgeRequest.resourceId, bridgeRequest.url, bridgeRequest.headers.size(), bridgeRequest.body.length());
+        BridgeResponse bridgeResponse = null;
+        try {
+            if (cache == null) {
+                bridgeResponse = forward(coalescer, bridgeRequest, endpoint);
+            } else {
+                bridgeResponse = cache.execute(endpoint, bridgeRequest, r -> forward(coalescer, r, endpoint));
+            }
+            LOGGER.debug("Response {}, headers: {}, bodySize {}", bridgeResponse.statusCode, bridgeResponse.headers.size(), bridgeResponse.body.length());
+            final long writeStart = System.nanoTime();
+            response.setStatus(bridgeResponse.statusCode);
+            for (Map.Entry<String, String> entry : bridgeResponse.headers.entrySet()) {
+                addHeader(response, entry.getKey(), entry.getValue());
+            }
+            final long written = writeBody(response, route, getContentType(bridgeResponse), bridgeResponse.body);
+            metrics.recordPhase(RequestMetrics.Phase.RESPONSE_WRITE, writeStart);
+            metrics.recordRequest(bridgeResponse.statusCode, bridgeRequest.body.length(), written);
+            accessLog.log(AccessLog.API_REST, bridgeRequest, bridgeResponse.statusCode, bridgeRequest.body.length(), written, received);
+        } finally {
+            bridgeRequest.close();
+            if (bridgeResponse != null) {
+                bridgeResponse.close();
+            }
+        }
+    }
+
+    /**
+     * Forwards the request to the upstream server of a direct endpoint, or to
+     * the Bridge of a linked endpoint, through the coalescer if there is one.
+     */
+    private static BridgeResponse forward(RequestCoalescer coalescer, BridgeRequest bridgeRequest, EndPoint endpoint) {
+        if (coalescer != null) {
+            return coalescer.execute(bridgeRequest, r -> forward(null, r, endpoint));
+        }
+        if (Utils.isNullOrEmpty(endpoint.getLinkUrl())) {
+            return LinkApi.executeRequest(endpoint, bridgeRequest);
+        }
+        return sendBridgeRequest(bridgeRequest, endpoint);
+    }
+
+    private static CompletableFuture<BridgeResponse> forwardAsync(RequestCoalescer coalescer, BridgeRequest bridgeRequest, EndPoint endpoint) {
+        if (coalescer != null) {
+            return coalescer.executeAsync(bridgeRequest, r -> forwardAsync(null, r, endpoint));
+        }
+        if (Utils.isNullOrEmpty(endpoint.getLinkUrl())) {
+            return LinkApi.executeRequestAsync(endpoint, bridgeRequest);
+        }
+        return sendBridgeRequestAsync(bridgeRequest, endpoint);
+    }
+
+    /**
+     * Writes the response of an async request. Takes over the reference of
+     * the response to its body.
+     */
+    private static void writeResponseAsync(AsyncContext asyncContext, AsyncTimeout timeout, Route route, RequestMetrics metrics, AccessLog accessLog, BridgeRequest bridgeRequest, long requestSize, long received, BridgeResponse bridgeResponse) {
+        if (!timeout.claim()) {
+            bridgeResponse.close();
+            return;
+        }
+        LOGGER.debug("Response {}, headers: {}, bodySize {}", bridgeResponse.statusCode, bridgeResponse.headers.size(), bridgeResponse.body.length());
+        final long writeStart = System.nanoTime();
+        HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+        final Body body;
+        try {
+            body = rewriteBody(route, getContentType(bridgeResponse), bridgeResponse.body);
+        } catch (IOException ex) {
+            LOGGER.error("Failed to rewrite response: {}", ex.getMessage());
+            bridgeResponse.close();
+            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            asyncContext.complete();
+            return;
+        }
+        if (body != bridgeResponse.body) {
+            // The writer owns the rewritten body, the original is done.
+            bridgeResponse.close();
         }
-        LOGGER.info("  Response {}, Headers: {}, bodySize {}", bridgeResponse.statusCode, bridgeResponse.headers.size(), bridgeResponse.body.length);
         response.setStatus(bridgeResponse.statusCode);
         for (Map.Entry<String, String> entry : bridgeResponse.headers.entrySet()) {
-            final String headerName = entry.getKey();
-            if ("Content-Length".equals(headerName)) {
-                // Don't pass this one, it may be incorrect.
+            addHeader(response, entry.getKey(), entry.getValue());
+        }
+        final long responseSize = body.length();
+        AsyncResponseWriter.write(asyncContext, body, () -> {
+            metrics.recordPhase(RequestMetrics.Phase.RESPONSE_WRITE, writeStart);
+            metrics.recordRequest(bridgeResponse.statusCode, requestSize, responseSize);
+            accessLog.log(AccessLog.API_REST, bridgeRequest, bridgeResponse.statusCode, requestSize, responseSize, received);
+        });
+    }
+
+    /**
+     * Rewrites the URLs in a JSON body. The rewritten body is moved to a file
+     * if it is larger than the spill threshold of the endpoint, and must be
+     * closed when it is written, apart from the given body.
+     *
+     * @return The rewritten body, or the given body if it is not JSON.
+     * @throws IOException If the file of the rewritten body can not be
+     * written.
+     */
+    private static Body rewriteBody(Route route, String contentType, Body body) throws IOException {
+        if (contentType == null || !isJson(contentType)) {
+            return body;
+        }
+        return Body.of(route.getEndpoint().getSpillThreshold(), out -> {
+            UrlRewriter.RewritingOutputStream rewriting = route.wrap(out);
+            body.writeTo(rewriting);
+            rewriting.finish();
+        });
+    }
+
+    /**
+     * Executes a batch of requests from a client. The requests for endpoints
+     * behind a link that accepts batches are sent to the other Bridge in a
+     * single batch per link, the others are forwarded with at most the batch
+     * parallelism of the configuration running at the same time. The results
+     * are streamed back as they complete, one JSON object per line.
+     */
+    private void serviceBatch(HttpServletRequest request, HttpServletResponse response, ServerConfig serverConfig) throws IOException {
+        final long start = System.nanoTime();
+        BatchItem[] items;
+        try {
+            items = BATCH_GSON.fromJson(request.getReader(), BatchItem[].class);
+        } catch (JsonParseException ex) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid batch: " + ex.getMessage());
+            return;
+        }
+        if (items == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Expected an array of requests.");
+            return;
+        }
+        if (items.length > serverConfig.getMaxBatchSize()) {
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "At most " + serverConfig.getMaxBatchSize() + " requests are allowed in a batch.");
+            return;
+        }
+        LOGGER.debug("Batch: {} requests", items.length);
+        final AccessLog accessLog = serverConfig.getAccessLogger();
+        final Route[] routes = new Route[items.length];
+        final BridgeRequest[] bridgeRequests = new BridgeRequest[items.length];
+        final LinkBatch.Execution execution = new LinkBatch.Execution(items.length);
+        final Map<Link, List<Integer>> linkBatches = new LinkedHashMap<>();
+        for (int i = 0; i < items.length; i++) {
+            final BridgeResponse invalid = prepareBatchItem(serverConfig, items[i], i, routes, bridgeRequests);
+            if (invalid != null) {
+                execution.add(i, CompletableFuture.completedFuture(invalid));
                 continue;
             }
-            response.addHeader(headerName, entry.getValue());
+            final EndPoint endpoint = routes[i].getEndpoint();
+            final Link link = endpoint.getLink();
+            if (link != null && link.isBatch()) {
+                linkBatches.computeIfAbsent(link, l -> new ArrayList<>()).add(i);
+            } else {
+                final BridgeRequest bridgeRequest = bridgeRequests[i];
+                execution.addPending(i, () -> admitAndForwardAsync(bridgeRequest, endpoint));
+            }
+        }
+        for (Map.Entry<Link, List<Integer>> entry : linkBatches.entrySet()) {
+            sendLinkBatch(entry.getKey(), entry.getValue(), routes, bridgeRequests, execution);
+        }
+        response.setContentType(CONTENT_TYPE_NDJSON);
+        response.setCharacterEncoding(ENCODING_UTF8);
+        final OutputStream out = response.getOutputStream();
+        try {
+            execution.run(serverConfig.getBatchParallelism(), (index, bridgeResponse) -> writeBatchResult(out, index, routes[index], bridgeRequests[index], bridgeResponse, accessLog, start));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Checks a request of a batch, and creates the BridgeRequest for it.
+     *
+     * @return null if the request is valid, or the response to send if not.
+     */
+    private static BridgeResponse prepareBatchItem(ServerConfig serverConfig, BatchItem item, int index, Route[] routes, BridgeRequest[] bridgeRequests) {
+        if (item == null || Utils.isNullOrEmpty(item.method) || item.url == null || !item.url.startsWith("/")) {
+            return LinkApi.createErrorResponse(HttpServletResponse.SC_BAD_REQUEST, "A request needs a method, and a url starting with /resourceId.");
+        }
+        final int end = item.url.indexOf('/', 1);
+        final String resourceId = end < 0 ? item.url.substring(1) : item.url.substring(1, end);
+        final Route route = serverConfig.getRoute(resourceId);
+        if (route == null) {
+            return LinkApi.createErrorResponse(HttpServletResponse.SC_NOT_FOUND, "No such endpoint.");
         }
-        String contentType = bridgeResponse.headers.get("Content-Type");
-        if (contentType != null && contentType.startsWith(CONTENT_TYPE_APPLICATIONJSON)) {
-            final String localUrl = endpoint.getLocalUrl();
-            final String baseUrl = endpoint.getBaseUrl();
-            String data = StringUtils.replace(new String(bridgeResponse.body, ENCODING_UTF8), baseUrl, localUrl.substring(0, localUrl.length() - 1));
-            response.getWriter().write(data);
+        final String method = item.method.toUpperCase(Locale.ROOT);
+        if (!route.isMethodAllowed(method)) {
+            return LinkApi.createErrorResponse(HttpServletResponse.SC_FORBIDDEN, "Method not allowed.");
+        }
+        Body body;
+        if (item.bodyBase64 == null) {
+            body = item.body == null ? Body.EMPTY : Body.wrap(item.body.getBytes(StandardCharsets.UTF_8));
+        } else if (item.body != null) {
+            return LinkApi.createErrorResponse(HttpServletResponse.SC_BAD_REQUEST, "A request can have a body or a bodyBase64, not both.");
         } else {
-            response.getOutputStream().write(bridgeResponse.body);
+            try {
+                body = Body.wrap(Base64.getDecoder().decode(item.bodyBase64));
+            } catch (IllegalArgumentException ex) {
+                return LinkApi.createErrorResponse(HttpServletResponse.SC_BAD_REQUEST, "Invalid bodyBase64: " + ex.getMessage());
+            }
+        }
+        BridgeRequest bridgeRequest = new BridgeRequest();
+        bridgeRequest.method = method;
+        bridgeRequest.resourceId = route.getEndpoint().getResourceId();
+        bridgeRequest.url = end < 0 ? "/" : item.url.substring(end);
+        if (item.headers != null) {
+            Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            headers.putAll(item.headers);
+            for (String headerName : route.getHeaderAllowlist()) {
+                String header = headers.get(headerName);
+                if (!Utils.isNullOrEmpty(header)) {
+                    bridgeRequest.headers.put(headerName, header);
+                }
+            }
+        }
+        bridgeRequest.body = body;
+        routes[index] = route;
+        bridgeRequests[index] = bridgeRequest;
+        return null;
+    }
+
+    private static CompletableFuture<BridgeResponse> admitAndForwardAsync(BridgeRequest bridgeRequest, EndPoint endpoint) {
+        return LinkApi.admitAndRun(endpoint, () -> forwardAsync(null, bridgeRequest, endpoint));
+    }
+
+    /**
+     * Sends the given requests of a client batch to the other Bridge of the
+     * link. The requests the limits of their endpoints admit right away go in
+     * a single batch. Requests that have to wait for a slot are sent on their
+     * own as soon as they get one, so the batch never waits for slots that
+     * only its own requests can release.
+     */
+    private static void sendLinkBatch(Link link, List<Integer> indices, Route[] routes, BridgeRequest[] bridgeRequests, LinkBatch.Execution execution) {
+        final List<BridgeRequest> admitted = new ArrayList<>(indices.size());
+        final List<EndPoint> admittedEndpoints = new ArrayList<>(indices.size());
+        final List<CompletableFuture<BridgeResponse>> admittedResults = new ArrayList<>(indices.size());
+        for (int index : indices) {
+            final BridgeRequest bridgeRequest = bridgeRequests[index];
+            final EndPoint endpoint = routes[index].getEndpoint();
+            final CompletableFuture<BridgeResponse> result = new CompletableFuture<>();
+            execution.add(index, result);
+            final CompletableFuture<BridgeResponse> admission = endpoint.admit();
+            if (admission.isDone() && !admission.isCompletedExceptionally()) {
+                final BridgeResponse rejected = admission.join();
+                if (rejected == null) {
+                    admitted.add(bridgeRequest);
+                    admittedEndpoints.add(endpoint);
+                    admittedResults.add(result);
+                } else {
+                    result.complete(rejected);
+                }
+                continue;
+            }
+            admission.whenComplete((rejected, ex) -> {
+                if (ex != null || rejected != null) {
+                    result.complete(LinkApi.orErrorResponse(rejected, ex));
+                    return;
+                }
+                sendAdmitted(link, Collections.singletonList(bridgeRequest), Collections.singletonList(endpoint), Collections.singletonList(result));
+            });
+        }
+        if (!admitted.isEmpty()) {
+            sendAdmitted(link, admitted, admittedEndpoints, admittedResults);
+        }
+    }
+
+    /**
+     * Sends admitted requests to the other Bridge of the link in a single
+     * batch, and completes their results. The slot of each request is
+     * released when its response arrives.
+     */
+    private static void sendAdmitted(Link link, List<BridgeRequest> requests, List<EndPoint> endpoints, List<CompletableFuture<BridgeResponse>> results) {
+        List<CompletableFuture<BridgeResponse>> responses;
+        try {
+            responses = LinkBatch.send(link, requests);
+        } catch (RuntimeException ex) {
+            responses = Collections.nCopies(requests.size(), CompletableFuture.failedFuture(ex));
+        }
+        for (int i = 0; i < requests.size(); i++) {
+            final EndPoint endpoint = endpoints.get(i);
+            final CompletableFuture<BridgeResponse> result = results.get(i);
+            responses.get(i).whenComplete((bridgeResponse, ex) -> {
+                endpoint.release();
+                result.complete(LinkApi.orErrorResponse(bridgeResponse, ex));
+            });
+        }
+    }
+
+    /**
+     * Writes the result of a request of a batch, and closes its response.
+     */
+    private static void writeBatchResult(OutputStream out, int index, Route route, BridgeRequest bridgeRequest, BridgeResponse bridgeResponse, AccessLog accessLog, long received) throws IOException {
+        BatchResult result = new BatchResult();
+        result.index = index;
+        result.statusCode = bridgeResponse.statusCode;
+        result.headers = new HashMap<>(bridgeResponse.headers);
+        // These do not match the rewritten body.
+        result.headers.keySet().removeIf(name -> "Content-Length".equalsIgnoreCase(name) || "Transfer-Encoding".equalsIgnoreCase(name));
+        final String contentType = getContentType(bridgeResponse);
+        final byte[] body;
+        try (BridgeResponse owned = bridgeResponse) {
+            final Body rewritten = route == null ? owned.body : rewriteBody(route, contentType, owned.body);
+            try {
+                body = rewritten.toByteArray();
+            } finally {
+                if (rewritten != owned.body) {
+                    rewritten.close();
+                }
+            }
+        }
+        final String text = toText(contentType, body);
+        if (text == null) {
+            result.bodyBase64 = Base64.getEncoder().encodeToString(body);
+        } else {
+            result.body = text;
+        }
+        out.write(BATCH_GSON.toJson(result).getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+        out.flush();
+        if (route != null) {
+            route.getEndpoint().getMetrics(bridgeRequest.method).recordRequest(bridgeResponse.statusCode, bridgeRequest.body.length(), body.length);
+            accessLog.log(AccessLog.API_BATCH, bridgeRequest, bridgeResponse.statusCode, bridgeRequest.body.length(), body.length, received);
+        }
+    }
+
+    /**
+     * Forwards the request to a replica of the upstream server of a direct
+     * endpoint, streaming the request body to the upstream server, and the
+     * response body back to the client, using a fixed-size buffer. Since a
+     * streamed body can only be sent once, only requests without a body are
+     * retried.
+     */
+    private void proxyRequest(HttpServletRequest request, HttpServletResponse response, Route route, RequestMetrics metrics, AccessLog accessLog, BridgeRequest bridgeRequest, long received) throws IOException {
+        final EndPoint endpoint = route.getEndpoint();
+        final ConnectionPool pool = endpoint.getConnectionPool();
+        final CircuitBreaker breaker = pool.getCircuitBreaker();
+        final long contentLength = request.getContentLengthLong();
+        final boolean hasBody = contentLength > 0 || request.getHeader("Transfer-Encoding") != null;
+        final int attempts = hasBody ? 1 : LinkApi.getAttempts(pool, bridgeRequest.method);
+        final long start = System.nanoTime();
+        int statusCode = 500;
+        long written = 0;
+        Upstream previous = null;
+        for (int attempt = 0; attempt < attempts; attempt++) {
+            if (!breaker.allowRequest()) {
+                BridgeResponse rejected = LinkApi.createBreakerResponse(breaker);
+                statusCode = rejected.statusCode;
+                written = writeResponse(response, route, rejected);
+                break;
+            }
+            if (attempt > 0) {
+                metrics.recordRetry();
+            }
+            final Upstream upstream = endpoint.getBalancer().choose(previous);
+            HttpEntityEnclosingRequestBase httpRequest;
+            try {
+                httpRequest = LinkApi.createHttpRequest(upstream, bridgeRequest);
+            } catch (IllegalArgumentException ex) {
+                BridgeResponse invalid = LinkApi.createInvalidUrlResponse(ex);
+                statusCode = invalid.statusCode;
+                written = writeResponse(response, route, invalid);
+                break;
+            }
+            if (hasBody) {
+                httpRequest.setEntity(new InputStreamEntity(request.getInputStream(), contentLength));
+            }
+            final long upstreamStart = upstream.begin();
+            CloseableHttpResponse upstreamResponse;
+            try {
+                // The request body is streamed while waiting for the upstream server.
+                upstreamResponse = pool.getClient().execute(httpRequest);
+            } catch (IOException ex) {
+                LOGGER.error("Failed to execute request on {}: {}", upstream.getBaseUrl(), ex.getMessage());
+                upstream.end(upstreamStart, false);
+                breaker.record(false);
+                if (attempt + 1 < attempts) {
+                    previous = upstream;
+                    continue;
+                }
+                BridgeResponse error = LinkApi.createErrorResponse(ex);
+                statusCode = error.statusCode;
+                written = writeResponse(response, route, error);
+                break;
+            }
+            metrics.recordPhase(RequestMetrics.Phase.UPSTREAM, start);
+            statusCode = upstreamResponse.getStatusLine().getStatusCode();
+            upstream.end(upstreamStart, !LinkApi.isUpstreamFailure(statusCode));
+            breaker.record(!LinkApi.isUpstreamFailure(statusCode));
+            written = streamResponse(response, route, metrics, upstreamResponse);
+            if (written < 0) {
+                statusCode = response.getStatus();
+                written = 0;
+            }
+            break;
+        }
+        metrics.recordRequest(statusCode, contentLength, written);
+        accessLog.log(AccessLog.API_REST, bridgeRequest, statusCode, Math.max(0, contentLength), written, received);
+    }
+
+    /**
+     * Streams the response of the upstream server to the client.
+     *
+     * @return The number of bytes written, or -1 if streaming failed.
+     */
+    private static long streamResponse(HttpServletResponse response, Route route, RequestMetrics metrics, CloseableHttpResponse upstreamResponse) throws IOException {
+        CountingOutputStream counter = null;
+        try (CloseableHttpResponse upstream = upstreamResponse) {
+            final int statusCode = upstream.getStatusLine().getStatusCode();
+            LOGGER.debug("Response {}, headers: {}, streaming", statusCode, upstream.getAllHeaders().length);
+            final long writeStart = System.nanoTime();
+            response.setStatus(statusCode);
+            for (Header header : upstream.getAllHeaders()) {
+                addHeader(response, header.getName(), header.getValue());
+            }
+            HttpEntity entity = upstream.getEntity();
+            if (entity != null) {
+                counter = new CountingOutputStream(response.getOutputStream());
+                Header contentType = upstream.getFirstHeader("Content-Type");
+                try (InputStream content = entity.getContent()) {
+                    if (contentType != null && isJson(contentType.getValue())) {
+                        UrlRewriter.RewritingOutputStream out = route.wrap(counter);
+                        IOUtils.copy(content, out, COPY_BUFFER_SIZE);
+                        out.finish();
+                    } else {
+                        IOUtils.copy(content, counter, COPY_BUFFER_SIZE);
+                    }
+                }
+            }
+            metrics.recordPhase(RequestMetrics.Phase.RESPONSE_WRITE, writeStart);
+        } catch (IOException ex) {
+            LOGGER.error("Failed to stream response", ex);
+            if (!response.isCommitted()) {
+                response.reset();
+                response.setStatus(HttpServletResponse.SC_BAD_GATEWAY);
+            }
+            return -1;
+        }
+        return counter == null ? 0 : counter.getByteCount();
+    }
+
+    /**
+     * Writes a complete response to the client.
+     *
+     * @return The number of bytes written.
+     */
+    private static long writeResponse(HttpServletResponse response, Route route, BridgeResponse bridgeResponse) throws IOException {
+        response.setStatus(bridgeResponse.statusCode);
+        for (Map.Entry<String, String> entry : bridgeResponse.headers.entrySet()) {
+            addHeader(response, entry.getKey(), entry.getValue());
         }
+        return writeBody(response, route, getContentType(bridgeResponse), bridgeResponse.body);
+    }
+
+    private static void addHeader(HttpServletResponse response, String headerName, String value) {
+        if ("Content-Length".equalsIgnoreCase(headerName) || "Transfer-Encoding".equalsIgnoreCase(headerName)) {
+            // Don't pass these, they may be incorrect.
+            return;
+        }
+        response.addHeader(headerName, value);
+    }
+
+    /**
+     * Checks if the content type is one that may contain URLs that need to be
+     * rewritten.
+     */
+    private static boolean isJson(String contentType) {
+        final String mediaType = contentType.trim().toLowerCase(Locale.ROOT);
+        return mediaType.startsWith(CONTENT_TYPE_APPLICATIONJSON)
+                || mediaType.startsWith(CONTENT_TYPE_APPLICATIONGEOJSON);
     }
 
-    private EndPoint getEndpoint(HttpServletRequest request, ServerConfig serverConfig) {
+    /**
+     * Decodes a body that is text. Bodies with a content type that is not
+     * textual, or that are not valid UTF-8, can not be put in a JSON string
+     * without losing data.
+     *
+     * @return the body as text, or null if it is not text.
+     */
+    private static String toText(String contentType, byte[] body) {
+        if (contentType != null && !isText(contentType)) {
+            return null;
+        }
+        try {
+            return StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(body))
+                    .toString();
+        } catch (CharacterCodingException ex) {
+            return null;
+        }
+    }
+
+    private static boolean isText(String contentType) {
+        final String mediaType = contentType.trim().toLowerCase(Locale.ROOT);
+        return mediaType.startsWith("text/")
+                || mediaType.contains("json")
+                || mediaType.contains("xml")
+                || mediaType.contains("javascript")
+                || mediaType.startsWith("application/x-www-form-urlencoded");
+    }
+
+    /**
+     * @return the Content-Type of the response, whatever the case of the
+     * header name the server used, or null if it has none.
+     */
+    private static String getContentType(BridgeResponse bridgeResponse) {
+        return ResponseCache.findHeader(bridgeResponse.headers, "Content-Type");
+    }
+
+    /**
+     * Writes the body to the response, rewriting the URLs in JSON bodies.
+     *
+     * @return The number of bytes written.
+     */
+    private static long writeBody(HttpServletResponse response, Route route, String contentType, Body body) throws IOException {
+        if (contentType != null && isJson(contentType)) {
+            CountingOutputStream counter = new CountingOutputStream(response.getOutputStream());
+            UrlRewriter.RewritingOutputStream out = route.wrap(counter);
+            body.writeTo(out);
+            out.finish();
+            return counter.getByteCount();
+        }
+        body.writeTo(response.getOutputStream());
+        return body.length();
+    }
+
+    private Route getRoute(HttpServletRequest request, ServerConfig serverConfig) {
         String pathInfo = request.getPathInfo();
         String resourceId = pathInfo.substring(1, pathInfo.indexOf('/', 1));
-        return serverConfig.getEndpoint(resourceId);
+        return serverConfig.getRoute(resourceId);
     }
 
-    private BridgeRequest createBridgeRequest(HttpServletRequest request, ServerConfig serverConfig, EndPoint endpoint) {
+    static BridgeRequest createBridgeRequest(HttpServletRequest request, Route route) {
         final String method = request.getMethod();
         String pathInfo = request.getPathInfo();
         String queryString = request.getQueryString();
 
         BridgeRequest bridgeRequest = new BridgeRequest();
         bridgeRequest.method = method;
-        bridgeRequest.resourceId = endpoint.getResourceId();
+        bridgeRequest.resourceId = route.getEndpoint().getResourceId();
 
         bridgeRequest.url = pathInfo.substring(pathInfo.indexOf('/', 1));
         if (queryString != null && !queryString.isEmpty()) {
             bridgeRequest.url += "?" + queryString;
         }
 
-        byte[] requestData;
-        try {
-            requestData = readRequestData(request.getInputStream());
-            bridgeRequest.body = requestData;
-        } catch (IOException ex) {
-            LOGGER.warn("Failed to read body");
-        }
-
-        for (String headerName : endpoint.getHeaderAllowlist()) {
+        for (String headerName : route.getHeaderAllowlist()) {
             String header = request.getHeader(headerName);
             if (!Utils.isNullOrEmpty(header)) {
                 bridgeRequest.headers.put(headerName, header);
@@ -142,20 +781,255 @@ public class RestApi extends HttpServlet {
         return bridgeRequest;
     }
 
+    /**
+     * Sends the request to the Bridge of the given endpoint. Requests fail
+     * fast while the circuit breaker of the link is open, and idempotent
+     * requests are retried when the other Bridge could not be reached.
+     *
+     * @param bridgeRequest The request to send.
+     * @param endPoint The endpoint the request is for.
+     * @return The response.
+     */
     public static BridgeResponse sendBridgeRequest(BridgeRequest bridgeRequest, EndPoint endPoint) {
-        HttpPost httpPost = new HttpPost(endPoint.getLinkUrl() + "/link/");
-        String requestData = getGson().toJson(bridgeRequest);
-        httpPost.setEntity(new StringEntity(requestData, ContentType.APPLICATION_JSON));
-        try (CloseableHttpResponse response = getHttpClient().execute(httpPost)) {
-            String responseData = EntityUtils.toString(response.getEntity(), Consts.UTF_8);
-            return getGson().fromJson(responseData, BridgeResponse.class);
+        final long start = System.nanoTime();
+        final RequestMetrics metrics = endPoint.getMetrics(bridgeRequest.method);
+        try {
+            final ConnectionPool pool = endPoint.getLink().getConnectionPool();
+            final CircuitBreaker breaker = pool.getCircuitBreaker();
+            final int attempts = LinkApi.getAttempts(pool, bridgeRequest.method);
+            BridgeResponse response = null;
+            for (int attempt = 0; attempt < attempts; attempt++) {
+                if (!breaker.allowRequest()) {
+                    return LinkApi.createBreakerResponse(breaker);
+                }
+                if (attempt > 0) {
+                    metrics.recordRetry();
+                }
+                response = doSendBridgeRequest(bridgeRequest, endPoint);
+                breaker.record(!response.failed);
+                if (!response.failed) {
+                    break;
+                }
+            }
+            return response;
+        } finally {
+            metrics.recordPhase(RequestMetrics.Phase.LINK, start);
+        }
+    }
+
+    private static BridgeResponse doSendBridgeRequest(BridgeRequest bridgeRequest, EndPoint endPoint) {
+        final Link link = endPoint.getLink();
+        final CompletableFuture<BridgeResponse> multiplexed = sendMultiplexed(bridgeRequest, link);
+        if (multiplexed != null) {
+            final BridgeResponse response;
+            try {
+                response = multiplexed.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return LinkApi.createErrorResponse();
+            } catch (ExecutionException ex) {
+                LOGGER.error("Failed to execute request", ex);
+                return LinkApi.createErrorResponse();
+            }
+            if (!LinkChannel.isFallback(response)) {
+                return response;
+            }
+            response.close();
+        }
+        final HttpPost httpPost;
+        try {
+            httpPost = createLinkRequest(bridgeRequest, endPoint);
+        } catch (IOException ex) {
+            return createEncodeErrorResponse(link, ex);
+        }
+        try (CloseableHttpResponse response = link.getConnectionPool().getClient().execute(httpPost)) {
+            return parseBridgeResponse(response, link);
+        } catch (IOException ex) {
+            LOGGER.error("Failed to execute request on {}: {}", link.getUrl(), ex.getMessage());
+            return LinkApi.createErrorResponse(ex);
+        } finally {
+            Body.release(httpPost.getEntity());
+        }
+    }
+
+    /**
+     * Sends the request to the Bridge of the given endpoint, using the
+     * non-blocking client. The returned future always completes normally,
+     * failures result in an error response. Like
+     * {@link #sendBridgeRequest(BridgeRequest, EndPoint)}, this fails fast
+     * while the circuit breaker of the link is open, and retries idempotent
+     * requests.
+     *
+     * @param bridgeRequest The request to send.
+     * @param endPoint The endpoint the request is for.
+     * @return A future that completes with the response.
+     */
+    public static CompletableFuture<BridgeResponse> sendBridgeRequestAsync(BridgeRequest bridgeRequest, EndPoint endPoint) {
+        final long start = System.nanoTime();
+        final RequestMetrics metrics = endPoint.getMetrics(bridgeRequest.method);
+        final int attempts = LinkApi.getAttempts(endPoint.getLink().getConnectionPool(), bridgeRequest.method);
+        return sendAttemptAsync(bridgeRequest, endPoint, metrics, attempts)
+                .whenComplete((response, ex) -> metrics.recordPhase(RequestMetrics.Phase.LINK, start));
+    }
+
+    private static CompletableFuture<BridgeResponse> sendAttemptAsync(BridgeRequest bridgeRequest, EndPoint endPoint, RequestMetrics metrics, int attempts) {
+        final CircuitBreaker breaker = endPoint.getLink().getConnectionPool().getCircuitBreaker();
+        if (!breaker.allowRequest()) {
+            return CompletableFuture.completedFuture(LinkApi.createBreakerResponse(breaker));
+        }
+        return doSendBridgeRequestAsync(bridgeRequest, endPoint).thenCompose(response -> {
+            breaker.record(!response.failed);
+            if (response.failed && attempts > 1) {
+                metrics.recordRetry();
+                return sendAttemptAsync(bridgeRequest, endPoint, metrics, attempts - 1);
+            }
+            return CompletableFuture.completedFuture(response);
+        });
+    }
+
+    private static CompletableFuture<BridgeResponse> doSendBridgeRequestAsync(BridgeRequest bridgeRequest, EndPoint endPoint) {
+        final Link link = endPoint.getLink();
+        final CompletableFuture<BridgeResponse> multiplexed = sendMultiplexed(bridgeRequest, link);
+        if (multiplexed != null) {
+            return multiplexed.thenCompose(response -> {
+                if (!LinkChannel.isFallback(response)) {
+                    return CompletableFuture.completedFuture(response);
+                }
+                response.close();
+                return postBridgeRequestAsync(bridgeRequest, endPoint);
+            });
+        }
+        return postBridgeRequestAsync(bridgeRequest, endPoint);
+    }
+
+    private static CompletableFuture<BridgeResponse> postBridgeRequestAsync(BridgeRequest bridgeRequest, EndPoint endPoint) {
+        final Link link = endPoint.getLink();
+        final HttpPost httpPost;
+        try {
+            httpPost = createLinkRequest(bridgeRequest, endPoint);
         } catch (IOException ex) {
-            LOGGER.error("Failed to execute request", ex);
+            return CompletableFuture.completedFuture(createEncodeErrorResponse(link, ex));
+        }
+        final CompletableFuture<BridgeResponse> result = new CompletableFuture<>();
+        result.whenComplete((response, ex) -> Body.release(httpPost.getEntity()));
+        link.getConnectionPool().getAsyncClient().execute(httpPost, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                try {
+                    result.complete(parseBridgeResponse(response, link));
+                } catch (IOException | RuntimeException ex) {
+                    failed(ex);
+                }
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                LOGGER.error("Failed to execute request on {}: {}", link.getUrl(), ex.getMessage());
+                result.complete(LinkApi.createErrorResponse(ex));
+            }
+
+            @Override
+            public void cancelled() {
+                result.complete(LinkApi.createErrorResponse());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Sends the request in a batch with other requests, if the link collects
+     * requests into batches and the other Bridge supports them, or over the
+     * persistent channel of the link, if it has an open one.
+     *
+     * @return the future response, or null if the request was not sent.
+     */
+    private static CompletableFuture<BridgeResponse> sendMultiplexed(BridgeRequest bridgeRequest, Link link) {
+        final MicroBatcher batcher = link.getBatcher();
+        if (batcher != null && link.isBatch()) {
+            return batcher.submit(bridgeRequest);
+        }
+        final LinkChannel channel = link.getChannel();
+        if (channel == null) {
+            return null;
+        }
+        return channel.send(bridgeRequest);
+    }
+
+    /**
+     * Creates the POST to the link of the given endpoint, in the format and
+     * with the compression the other Bridge accepts. The encoded request is
+     * moved to a file if it is larger than the spill threshold of the link.
+     * It must be released with {@link Body#release(HttpEntity)} when the
+     * request is done.
+     */
+    private static HttpPost createLinkRequest(BridgeRequest bridgeRequest, EndPoint endPoint) throws IOException {
+        final Link link = endPoint.getLink();
+        HttpPost httpPost = new HttpPost(endPoint.getLinkUrl() + "/link/");
+        Body data;
+        ContentType contentType;
+        if (link.isBinary()) {
+            httpPost.setHeader("Accept", LinkCodec.CONTENT_TYPE_LINK_BINARY);
+            data = Body.of(link.getSpillThreshold(), out -> LinkCodec.writeRequest(bridgeRequest, out));
+            contentType = LINK_CONTENT_TYPE_BINARY;
+        } else {
+            data = Body.of(link.getSpillThreshold(), out -> {
+                Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                getGson().toJson(bridgeRequest, writer);
+                writer.flush();
+            });
+            contentType = ContentType.APPLICATION_JSON;
+        }
+        final LinkCompression.Encoding encoding = link.getEncoding();
+        if (encoding != null) {
+            httpPost.setHeader(LinkApi.HEADER_ACCEPT_ENCODING, encoding.name);
+            final LinkCompression compression = link.getCompression();
+            if (compression.shouldCompress(encoding, data.length())) {
+                try (Body uncompressed = data) {
+                    data = compression.compress(encoding, uncompressed, link.getSpillThreshold());
+                }
+                httpPost.setHeader(LinkApi.HEADER_CONTENT_ENCODING, encoding.name);
+            }
+        }
+        httpPost.setEntity(data.toEntity(contentType));
+        return httpPost;
+    }
+
+    /**
+     * Creates the response for a request that could not be encoded for the
+     * other Bridge. This is not a failure of the other Bridge.
+     */
+    private static BridgeResponse createEncodeErrorResponse(Link link, IOException ex) {
+        LOGGER.error("Failed to encode request for {}: {}", link.getUrl(), ex.getMessage());
+        BridgeResponse error = LinkApi.createErrorResponse(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Failed to buffer the request.");
+        error.failed = false;
+        return error;
+    }
+
+    private static BridgeResponse parseBridgeResponse(HttpResponse response, Link link) throws IOException {
+        final HttpEntity entity = response.getEntity();
+        final int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode < 200 || statusCode >= 300 || entity == null) {
+            EntityUtils.consume(entity);
+            if (statusCode == HttpServletResponse.SC_NOT_FOUND) {
+                BridgeResponse notFound = LinkApi.createErrorResponse(statusCode, "No such endpoint on the other Bridge.");
+                notFound.failed = false;
+                return notFound;
+            }
+            BridgeResponse error = LinkApi.createErrorResponse(HttpServletResponse.SC_BAD_GATEWAY, "The other Bridge answered with status " + statusCode + ".");
+            // Only server errors say something about the health of the other Bridge.
+            error.failed = statusCode >= 500;
+            return error;
+        }
+        final Header contentEncoding = response.getFirstHeader(LinkApi.HEADER_CONTENT_ENCODING);
+        final Header contentType = entity.getContentType();
+        final long spillThreshold = link.getSpillThreshold();
+        // Decompressed while it is read, the body is moved to a file if it is large.
+        try (InputStream content = link.getCompression().decompressing(contentEncoding == null ? null : contentEncoding.getValue(), entity.getContent())) {
+            if (contentType != null && LinkCodec.isBinary(contentType.getValue())) {
+                return LinkCodec.readResponse(content, spillThreshold);
+            }
+            return LinkApi.getGson(spillThreshold).fromJson(new InputStreamReader(content, StandardCharsets.UTF_8), BridgeResponse.class);
         }
-        BridgeResponse response = new BridgeResponse();
-        response.statusCode = 500;
-        response.body = new byte[0];
-        return response;
     }
 
     private void getIndex(HttpServletResponse response, ServerConfig serverConfig) {
@@ -163,36 +1037,27 @@ public class RestApi extends HttpServlet {
         response.setCharacterEncoding(ENCODING_UTF8);
         try {
             List<EndPoint> endpoints = serverConfig.getEndpoints();
-            String asJson = getGson().toJson(endpoints);
+            String asJson = ServerConfig.toPeerJson(endpoints);
             response.getWriter().write(asJson);
         } catch (IOException ex) {
             LOGGER.error("Failed to write response", ex);
         }
     }
 
-    private static CloseableHttpClient getHttpClient() {
-        if (client == null) {
-            client = HttpClients.createSystem();
-        }
-        return client;
-    }
-
     public static Gson getGson() {
-        if (gson == null) {
-            gson = new GsonBuilder()
-                    .setPrettyPrinting()
-                    .excludeFieldsWithoutExposeAnnotation()
-                    .create();
-        }
-        return gson;
+        return LinkApi.getGson();
     }
 
-    private static byte[] readRequestData(InputStream reader) {
+    /**
+     * Reads the body of the request of the client, moving it to a file if it
+     * is larger than the given spill threshold.
+     */
+    private static Body readRequestData(InputStream reader, long spillThreshold) {
         try {
-            return reader.readAllBytes();
+            return Body.read(reader, spillThreshold);
         } catch (IOException ex) {
             LOGGER.error("Failed to read body", ex);
-            return new byte[0];
+            return Body.EMPTY;
         }
     }
 }
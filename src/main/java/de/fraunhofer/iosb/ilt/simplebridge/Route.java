@@ -0,0 +1,103 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The prepared, immutable routing information of a single endpoint: the local
+ * url, the rewriters for the urls in responses and the allowlists, in the form
+ * the request path needs them.
+ *
+ * @author hylke
+ */
+public class Route {
+
+    private final EndPoint endpoint;
+    private final String localUrl;
+    private final UrlRewriter[] rewriters;
+    private final String[] headerAllowlist;
+    private final Set<String> methodsAllowlist;
+
+    /**
+     * @param endpoint The endpoint to route to.
+     * @param localUrl The url of the endpoint on this Bridge, ending in a
+     * slash.
+     */
+    public Route(EndPoint endpoint, String localUrl) {
+        this.endpoint = endpoint;
+        this.localUrl = localUrl;
+        final String target = localUrl.substring(0, localUrl.length() - 1);
+        final List<String> upstreamUrls = endpoint.getUpstreamUrls();
+        this.rewriters = new UrlRewriter[upstreamUrls.size()];
+        for (int i = 0; i < rewriters.length; i++) {
+            rewriters[i] = new UrlRewriter(upstreamUrls.get(i), target);
+        }
+        this.headerAllowlist = toArray(endpoint.getHeaderAllowlist());
+        this.methodsAllowlist = toSet(endpoint.getMethodsAllowlist());
+    }
+
+    private static String[] toArray(List<String> list) {
+        if (list == null) {
+            return new String[0];
+        }
+        return list.toArray(new String[list.size()]);
+    }
+
+    private static Set<String> toSet(List<String> list) {
+        if (list == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(new HashSet<>(list));
+    }
+
+    /**
+     * @return the endpoint
+     */
+    public EndPoint getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return the url of the endpoint on this Bridge, ending in a slash.
+     */
+    public String getLocalUrl() {
+        return localUrl;
+    }
+
+    /**
+     * Wraps the given stream in a stream that replaces the baseUrl, and the
+     * urls of the replicas, of the endpoint with its localUrl.
+     * {@link UrlRewriter.RewritingOutputStream#finish()} must be called after
+     * the last write.
+     *
+     * @param out The stream to write the rewritten bytes to.
+     * @return The rewriting stream.
+     */
+    public UrlRewriter.RewritingOutputStream wrap(OutputStream out) {
+        UrlRewriter.RewritingOutputStream result = rewriters[rewriters.length - 1].wrap(out);
+        for (int i = rewriters.length - 2; i >= 0; i--) {
+            result = rewriters[i].wrap(result);
+        }
+        return result;
+    }
+
+    /**
+     * @return the names of the request headers that are passed on. The array
+     * must not be modified.
+     */
+    public String[] getHeaderAllowlist() {
+        return headerAllowlist;
+    }
+
+    /**
+     * @param method The method to check.
+     * @return true if the method is on the allowlist of the endpoint.
+     */
+    public boolean isMethodAllowed(String method) {
+        return methodsAllowlist.contains(method);
+    }
+
+}
@@ -0,0 +1,72 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The immutable map from resourceId to the prepared route of each endpoint.
+ * The table is built once, and published through a volatile reference, so
+ * lookups do not lock or allocate. A changed configuration results in a new
+ * table, not in changes to an existing one.
+ *
+ * @author hylke
+ */
+public class RoutingTable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RoutingTable.class.getName());
+
+    private final Map<String, Route> routes;
+
+    /**
+     * Builds the routes for the given endpoints. Also sets the localUrl of each
+     * endpoint, so it is advertised to other Bridges.
+     *
+     * @param baseUrl The url this Bridge can be reached on, ending in a slash.
+     * @param endpoints The endpoints to route to, may be null.
+     */
+    public RoutingTable(String baseUrl, List<EndPoint> endpoints) {
+        Map<String, Route> map = new HashMap<>();
+        if (endpoints != null) {
+            final String resourceUrl = baseUrl + "resource/";
+            for (EndPoint endpoint : endpoints) {
+                final String localUrl = resourceUrl + endpoint.getResourceId() + "/";
+                endpoint.setLocalUrl(localUrl);
+                Route old = map.put(endpoint.getResourceId(), new Route(endpoint, localUrl));
+                if (old != null) {
+                    LOGGER.warn("Duplicate resourceId {}, only the last endpoint is used.", endpoint.getResourceId());
+                }
+            }
+        }
+        this.routes = Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * @param resourceId The resourceId of the endpoint.
+     * @return The route to the endpoint, or null if there is no such endpoint.
+     */
+    public Route getRoute(String resourceId) {
+        return routes.get(resourceId);
+    }
+
+    /**
+     * @param resourceId The resourceId of the endpoint.
+     * @return The endpoint, or null if there is no such endpoint.
+     */
+    public EndPoint getEndpoint(String resourceId) {
+        final Route route = routes.get(resourceId);
+        return route == null ? null : route.getEndpoint();
+    }
+
+    /**
+     * @return all routes.
+     */
+    public Collection<Route> getRoutes() {
+        return routes.values();
+    }
+
+}
@@ -1,20 +1,34 @@
 package de.fraunhofer.iosb.ilt.simplebridge;
 
+import com.google.gson.ExclusionStrategy;
+import com.google.gson.FieldAttributes;
+import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.annotations.Expose;
 import de.fraunhofer.iosb.ilt.configurable.AnnotatedConfigurable;
 import de.fraunhofer.iosb.ilt.configurable.ConfigurationException;
 import de.fraunhofer.iosb.ilt.configurable.annotations.ConfigurableClass;
 import de.fraunhofer.iosb.ilt.configurable.annotations.ConfigurableField;
+import de.fraunhofer.iosb.ilt.configurable.editor.EditorBoolean;
 import de.fraunhofer.iosb.ilt.configurable.editor.EditorClass;
 import de.fraunhofer.iosb.ilt.configurable.editor.EditorInt;
 import de.fraunhofer.iosb.ilt.configurable.editor.EditorList;
 import de.fraunhofer.iosb.ilt.configurable.editor.EditorString;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 
 /**
@@ -26,6 +40,36 @@ public class ServerConfig implements AnnotatedConfigurable<Void, Void> {
 
     public static final String TAG_SERVER_CONFIG = "serverConfig";
 
+    /**
+     * The fields of the configuration, and of its endpoints, that other
+     * Bridges need to route requests through a link. The rest of the
+     * configuration stays behind the admin api.
+     */
+    private static final Set<String> PEER_FIELDS = Collections.singleton("endpoints");
+    private static final Set<String> PEER_ENDPOINT_FIELDS = new HashSet<>(Arrays.asList(
+            "resourceId", "baseUrl", "replicas", "headerAllowlist", "methodsAllowlist", "cacheTtl"));
+    private static final Gson PEER_GSON = new GsonBuilder()
+            .setPrettyPrinting()
+            .excludeFieldsWithoutExposeAnnotation()
+            .addSerializationExclusionStrategy(new ExclusionStrategy() {
+                @Override
+                public boolean shouldSkipField(FieldAttributes field) {
+                    if (field.getDeclaringClass() == ServerConfig.class) {
+                        return !PEER_FIELDS.contains(field.getName());
+                    }
+                    if (field.getDeclaringClass() == EndPoint.class) {
+                        return !PEER_ENDPOINT_FIELDS.contains(field.getName());
+                    }
+                    return false;
+                }
+
+                @Override
+                public boolean shouldSkipClass(Class<?> clazz) {
+                    return false;
+                }
+            })
+            .create();
+
     @ConfigurableField(editor = EditorInt.class, optional = false,
             label = "Port", description = "The port to listen on")
     @EditorInt.EdOptsInt(dflt = 1337, min = 1024, max = 65535)
@@ -40,44 +84,196 @@ public class ServerConfig implements AnnotatedConfigurable<Void, Void> {
 
     @ConfigurableField(editor = EditorList.class, optional = true,
             label = "LinkServers", description = "Bridges to communicate with")
-    @EditorList.EdOptsList(editor = EditorString.class)
-    @EditorString.EdOptsString()
+    @EditorList.EdOptsList(editor = EditorClass.class)
+    @EditorClass.EdOptsClass(clazz = LinkServer.class)
     @Expose
-    private List<String> linkServers;
+    private List<LinkServer> linkServers;
 
     @ConfigurableField(editor = EditorList.class, optional = true,
             label = "EndPoints", description = "REST EndPoints to expose")
     @EditorList.EdOptsList(editor = EditorClass.class)
     @EditorClass.EdOptsClass(clazz = EndPoint.class)
     @Expose
-    private List<EndPoint> endpoints;
+    private volatile List<EndPoint> endpoints;
+
+    @ConfigurableField(editor = EditorClass.class, optional = true,
+            label = "Jetty", description = "The threads and the connector of the server. Changes apply when the server is restarted.")
+    @EditorClass.EdOptsClass(clazz = JettySettings.class)
+    @Expose
+    private JettySettings jetty;
+
+    @ConfigurableField(editor = EditorClass.class, optional = true,
+            label = "Link Pool", description = "The settings for the connections to other Bridges.")
+    @EditorClass.EdOptsClass(clazz = PoolSettings.class)
+    @Expose
+    private PoolSettings linkPool;
+
+    @ConfigurableField(editor = EditorClass.class, optional = true,
+            label = "Link Limits", description = "The limits on the requests sent to each other Bridge.")
+    @EditorClass.EdOptsClass(clazz = LimitSettings.class)
+    @Expose
+    private LimitSettings linkLimits;
+
+    @ConfigurableField(editor = EditorClass.class, optional = true,
+            label = "Link Batching", description = "Collect the requests sent to each other Bridge into batches, if the other Bridge supports them.")
+    @EditorClass.EdOptsClass(clazz = BatchSettings.class)
+    @Expose
+    private BatchSettings linkBatching;
+
+    @ConfigurableField(editor = EditorBoolean.class, optional = true,
+            label = "Async", description = "Handle requests asynchronously, using non-blocking clients, so waiting for upstream servers and other Bridges does not hold a thread.")
+    @EditorBoolean.EdOptsBool(dflt = false)
+    @Expose
+    private boolean async;
+
+    @ConfigurableField(editor = EditorBoolean.class, optional = true,
+            label = "Link Channel", description = "Send requests to other Bridges over a persistent, multiplexed WebSocket channel, if the other Bridge supports it.")
+    @EditorBoolean.EdOptsBool(dflt = false)
+    @Expose
+    private boolean linkChannel;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Cache Size", description = "The maximum size of the response cache, in MiB. 0 disables the cache.")
+    @EditorInt.EdOptsInt(dflt = 0, min = 0, max = 1024 * 1024)
+    @Expose
+    private int cacheSize;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Coalesce Waiters", description = "Identical GET requests that arrive while one is in flight wait for its response, instead of being forwarded. This is the maximum number of requests that wait for a single forwarded request. 0 disables coalescing.")
+    @EditorInt.EdOptsInt(dflt = 0, min = 0, max = Integer.MAX_VALUE)
+    @Expose
+    private int coalesceWaiters;
+
+    @ConfigurableField(editor = EditorString.class, optional = true,
+            label = "Link Compression", description = "The compression used for requests and responses to other Bridges, if the other Bridge supports it: gzip, deflate or none.")
+    @EditorString.EdOptsString(dflt = "gzip")
+    @Expose
+    private String linkCompression = "gzip";
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Link Compression Threshold", description = "Requests and responses to other Bridges smaller than this number of bytes are not compressed.")
+    @EditorInt.EdOptsInt(dflt = 1024, min = 0, max = Integer.MAX_VALUE)
+    @Expose
+    private int linkCompressionThreshold = 1024;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Spill Threshold", description = "Request and response bodies larger than this number of bytes are buffered in a temporary file instead of in memory. 0 to always buffer in memory.")
+    @EditorInt.EdOptsInt(dflt = 1048576, min = 0, max = Integer.MAX_VALUE)
+    @Expose
+    private int spillThreshold = 1048576;
+
+    @ConfigurableField(editor = EditorString.class, optional = true,
+            label = "Config File", description = "A file to watch for changes. When the file changes, the configuration is reloaded from it, without restarting the server.")
+    @EditorString.EdOptsString(dflt = "")
+    @Expose
+    private String configFile = "";
+
+    @ConfigurableField(editor = EditorString.class, optional = true,
+            label = "Admin Token", description = "The bearer token that allows posting a new configuration to /admin/config. The admin api is disabled when empty.")
+    @EditorString.EdOptsString(dflt = "")
+    private String adminToken = "";
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Drain Timeout", description = "After a configuration reload, the number of seconds to give running requests before the connections of the old configuration are closed.")
+    @EditorInt.EdOptsInt(dflt = 60, min = 0, max = 3600)
+    @Expose
+    private int drainTimeout = 60;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Discovery Timeout", description = "The maximum number of seconds to wait for the other Bridges when discovering their endpoints. Bridges that answer later are added when they answer.")
+    @EditorInt.EdOptsInt(dflt = 10, min = 1, max = 3600)
+    @Expose
+    private int discoveryTimeout = 10;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Discovery Interval", description = "The number of seconds between checks for changed endpoints on the other Bridges. 0 disables the checks.")
+    @EditorInt.EdOptsInt(dflt = 60, min = 0, max = 86400)
+    @Expose
+    private int discoveryInterval = 60;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Batch Parallelism", description = "The maximum number of requests of a single batch that are executed at the same time.")
+    @EditorInt.EdOptsInt(dflt = 8, min = 1, max = 1000)
+    @Expose
+    private int batchParallelism = 8;
+
+    @ConfigurableField(editor = EditorInt.class, optional = true,
+            label = "Max Batch Size", description = "The maximum number of requests in a single batch.")
+    @EditorInt.EdOptsInt(dflt = 100, min = 1, max = 10000)
+    @Expose
+    private int maxBatchSize = 100;
+
+    @ConfigurableField(editor = EditorClass.class, optional = true,
+            label = "Access Log", description = "Which requests are written to the access log, one JSON record per request.")
+    @EditorClass.EdOptsClass(clazz = AccessLogSettings.class)
+    @Expose
+    private AccessLogSettings accessLog;
 
-    private final Map<String, EndPoint> endpointsById = new HashMap<>();
+    private volatile RoutingTable routingTable;
 
-    private boolean inited = false;
+    private final Map<String, Link> links = new ConcurrentHashMap<>();
+
+    private volatile ResponseCache responseCache;
+
+    private volatile RequestCoalescer requestCoalescer;
+
+    private volatile LinkCompression compression;
+
+    private volatile AccessLog accessLogger;
+
+    private LinkDiscovery discovery;
 
     public static ServerConfig fromString(String config) throws ConfigurationException {
-        JsonElement json = JsonParser.parseString(config);
+        JsonElement json = parseConfig(config);
         ServerConfig serverConfig = new ServerConfig();
         serverConfig.configure(json, null, null, null);
         return serverConfig;
     }
 
-    public static ServerConfig getServerConfig(HttpServletRequest request) {
-        ServerConfig serverConfig = (ServerConfig) request.getServletContext().getAttribute(ServerConfig.TAG_SERVER_CONFIG);
-        if (!serverConfig.inited) {
-            if (!serverConfig.baseUrl.endsWith("/")) {
-                serverConfig.baseUrl += '/';
-            }
-            serverConfig.inited = true;
-            String baseUrl = serverConfig.baseUrl + "resource/";
-            for (EndPoint endpoint : serverConfig.endpoints) {
-                endpoint.setLocalUrl(baseUrl + endpoint.getResourceId() + "/");
+    /**
+     * Parses a configuration. Entries of the linkServers that are only a url
+     * are turned into objects with that url.
+     *
+     * @param config The configuration, as JSON.
+     * @return The parsed configuration.
+     */
+    public static JsonElement parseConfig(String config) {
+        JsonElement json = JsonParser.parseString(config);
+        if (!json.isJsonObject()) {
+            return json;
+        }
+        JsonElement servers = json.getAsJsonObject().get("linkServers");
+        if (servers == null || !servers.isJsonArray()) {
+            return json;
+        }
+        JsonArray array = servers.getAsJsonArray();
+        for (int i = 0; i < array.size(); i++) {
+            JsonElement server = array.get(i);
+            if (server.isJsonPrimitive()) {
+                JsonObject object = new JsonObject();
+                object.add("url", server);
+                array.set(i, object);
             }
         }
-        return serverConfig;
+        return json;
+    }
+
+    public static ServerConfig getServerConfig(HttpServletRequest request) {
+        return getServerConfig(request.getServletContext());
+    }
+
+    /**
+     * @param context The context of the Bridge.
+     * @return the current configuration of the Bridge. This changes when the
+     * configuration is reloaded, so it should not be held on to.
+     */
+    public static ServerConfig getServerConfig(ServletContext context) {
+        return (ServerConfig) context.getAttribute(ServerConfig.TAG_SERVER_CONFIG);
     }
 
+    /**
+     * @return the complete configuration, as JSON.
+     */
     public String toJson() {
         return new GsonBuilder()
                 .setPrettyPrinting()
@@ -86,6 +282,24 @@ public class ServerConfig implements AnnotatedConfigurable<Void, Void> {
                 .toJson(this);
     }
 
+    /**
+     * @return the view of the configuration that other Bridges read from the
+     * link index: the endpoints, with only what is needed to route requests
+     * to them, as JSON.
+     */
+    public String toPeerJson() {
+        return PEER_GSON.toJson(this);
+    }
+
+    /**
+     * @param endpoints The endpoints to write.
+     * @return the endpoints, with only what is needed to route requests to
+     * them, as JSON.
+     */
+    public static String toPeerJson(List<EndPoint> endpoints) {
+        return PEER_GSON.toJson(endpoints);
+    }
+
     /**
      * @return the port
      */
@@ -117,14 +331,14 @@ public class ServerConfig implements AnnotatedConfigurable<Void, Void> {
     /**
      * @return the linkServers
      */
-    public List<String> getLinkServers() {
+    public List<LinkServer> getLinkServers() {
         return linkServers;
     }
 
     /**
      * @param linkServers the linkServers to set
      */
-    public void setLinkServers(List<String> linkServers) {
+    public void setLinkServers(List<LinkServer> linkServers) {
         this.linkServers = linkServers;
     }
 
@@ -135,13 +349,62 @@ public class ServerConfig implements AnnotatedConfigurable<Void, Void> {
         return endpoints;
     }
 
+    /**
+     * @param id The resourceId of the endpoint.
+     * @return The endpoint with the given resourceId, or null.
+     */
     public EndPoint getEndpoint(String id) {
-        if (endpointsById.isEmpty() && !endpoints.isEmpty()) {
-            for (EndPoint endpoint : endpoints) {
-                endpointsById.put(endpoint.getResourceId(), endpoint);
+        final Route route = getRoute(id);
+        return route == null ? null : route.getEndpoint();
+    }
+
+    /**
+     * @param id The resourceId of the endpoint.
+     * @return The route to the endpoint with the given resourceId, or null.
+     */
+    public Route getRoute(String id) {
+        return getRoutingTable().getRoute(id);
+    }
+
+    /**
+     * @return the routing table, built from the current endpoints on first
+     * use.
+     */
+    public RoutingTable getRoutingTable() {
+        RoutingTable result = routingTable;
+        if (result == null) {
+            synchronized (this) {
+                result = routingTable;
+                if (result == null) {
+                    result = buildRoutingTable();
+                    routingTable = result;
+                }
             }
         }
-        return endpointsById.get(id);
+        return result;
+    }
+
+    /**
+     * @return the routing table, or null if it has not been built yet.
+     */
+    RoutingTable getRoutingTableIfBuilt() {
+        return routingTable;
+    }
+
+    /**
+     * Builds a new routing table from the current endpoints, and publishes it.
+     * Must be called after the endpoints are changed.
+     */
+    public synchronized void updateRoutingTable() {
+        routingTable = buildRoutingTable();
+    }
+
+    private RoutingTable buildRoutingTable() {
+        String localBase = baseUrl == null ? "/" : baseUrl;
+        if (!localBase.endsWith("/")) {
+            localBase += '/';
+        }
+        return new RoutingTable(localBase, endpoints);
     }
 
     /**
@@ -151,4 +414,536 @@ public class ServerConfig implements AnnotatedConfigurable<Void, Void> {
         this.endpoints = endpoints;
     }
 
+    /**
+     * @return the settings for the threads and the connector of the server,
+     * or null for the defaults
+     */
+    public JettySettings getJetty() {
+        return jetty;
+    }
+
+    /**
+     * @param jetty the settings for the threads and the connector of the
+     * server
+     */
+    public void setJetty(JettySettings jetty) {
+        this.jetty = jetty;
+    }
+
+    /**
+     * @return the settings for the connections to other Bridges
+     */
+    public PoolSettings getLinkPool() {
+        return linkPool;
+    }
+
+    /**
+     * @param linkPool the settings for the connections to other Bridges
+     */
+    public void setLinkPool(PoolSettings linkPool) {
+        this.linkPool = linkPool;
+    }
+
+    /**
+     * @return the limits on the requests sent to each other Bridge
+     */
+    public LimitSettings getLinkLimits() {
+        return linkLimits;
+    }
+
+    /**
+     * @param linkLimits the limits on the requests sent to each other Bridge
+     */
+    public void setLinkLimits(LimitSettings linkLimits) {
+        this.linkLimits = linkLimits;
+    }
+
+    /**
+     * @return the settings for collecting the requests sent to each other
+     * Bridge into batches
+     */
+    public BatchSettings getLinkBatching() {
+        return linkBatching;
+    }
+
+    /**
+     * @param linkBatching the settings for collecting the requests sent to
+     * each other Bridge into batches
+     */
+    public void setLinkBatching(BatchSettings linkBatching) {
+        this.linkBatching = linkBatching;
+    }
+
+    /**
+     * @return the async flag
+     */
+    public boolean isAsync() {
+        return async;
+    }
+
+    /**
+     * @param async the async flag to set
+     */
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    /**
+     * @return the linkChannel flag
+     */
+    public boolean isLinkChannel() {
+        return linkChannel;
+    }
+
+    /**
+     * @param linkChannel the linkChannel flag to set
+     */
+    public void setLinkChannel(boolean linkChannel) {
+        this.linkChannel = linkChannel;
+    }
+
+    /**
+     * @return the maximum size of the response cache, in MiB
+     */
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * @param cacheSize the maximum size of the response cache to set, in MiB
+     */
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * @return the response cache, created on first use, or null if caching is
+     * disabled.
+     */
+    public ResponseCache getResponseCache() {
+        if (cacheSize <= 0) {
+            return null;
+        }
+        ResponseCache result = responseCache;
+        if (result == null) {
+            synchronized (this) {
+                result = responseCache;
+                if (result == null) {
+                    result = new ResponseCache(cacheSize * 1024L * 1024L);
+                    responseCache = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the size in bytes above which bodies are buffered in a
+     * file
+     */
+    public int getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    /**
+     * @param spillThreshold the size in bytes above which bodies are
+     * buffered in a file
+     */
+    public void setSpillThreshold(int spillThreshold) {
+        this.spillThreshold = spillThreshold;
+    }
+
+    /**
+     * @return the settings of the access log
+     */
+    public AccessLogSettings getAccessLog() {
+        return accessLog;
+    }
+
+    /**
+     * @param accessLog the settings of the access log
+     */
+    public void setAccessLog(AccessLogSettings accessLog) {
+        this.accessLog = accessLog;
+    }
+
+    /**
+     * @return the access log, created on first use.
+     */
+    public AccessLog getAccessLogger() {
+        AccessLog result = accessLogger;
+        if (result == null) {
+            synchronized (this) {
+                result = accessLogger;
+                if (result == null) {
+                    result = new AccessLog(accessLog);
+                    accessLogger = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the maximum number of requests waiting for an identical request
+     */
+    public int getCoalesceWaiters() {
+        return coalesceWaiters;
+    }
+
+    /**
+     * @param coalesceWaiters the maximum number of requests waiting for an
+     * identical request to set
+     */
+    public void setCoalesceWaiters(int coalesceWaiters) {
+        this.coalesceWaiters = coalesceWaiters;
+    }
+
+    /**
+     * @return the request coalescer, created on first use, or null if
+     * coalescing is disabled.
+     */
+    public RequestCoalescer getRequestCoalescer() {
+        if (coalesceWaiters <= 0) {
+            return null;
+        }
+        RequestCoalescer result = requestCoalescer;
+        if (result == null) {
+            synchronized (this) {
+                result = requestCoalescer;
+                if (result == null) {
+                    result = new RequestCoalescer(coalesceWaiters);
+                    requestCoalescer = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the compression used for requests and responses to other
+     * Bridges, or "none".
+     */
+    public String getLinkCompression() {
+        return linkCompression;
+    }
+
+    /**
+     * @param linkCompression the compression to use for requests and responses
+     * to other Bridges
+     */
+    public void setLinkCompression(String linkCompression) {
+        this.linkCompression = linkCompression;
+    }
+
+    /**
+     * @return the minimum size of requests and responses to other Bridges to
+     * compress them
+     */
+    public int getLinkCompressionThreshold() {
+        return linkCompressionThreshold;
+    }
+
+    /**
+     * @param linkCompressionThreshold the minimum size of requests and
+     * responses to other Bridges to compress them
+     */
+    public void setLinkCompressionThreshold(int linkCompressionThreshold) {
+        this.linkCompressionThreshold = linkCompressionThreshold;
+    }
+
+    /**
+     * @return the compression of link traffic, created on first use.
+     */
+    public LinkCompression getCompression() {
+        LinkCompression result = compression;
+        if (result == null) {
+            synchronized (this) {
+                result = compression;
+                if (result == null) {
+                    result = new LinkCompression(linkCompression, linkCompressionThreshold);
+                    compression = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the file to watch for configuration changes, or an empty string.
+     */
+    public String getConfigFile() {
+        return configFile;
+    }
+
+    /**
+     * @param configFile the file to watch for configuration changes
+     */
+    public void setConfigFile(String configFile) {
+        this.configFile = configFile;
+    }
+
+    /**
+     * @return the token for the admin api, or an empty string if it is
+     * disabled.
+     */
+    public String getAdminToken() {
+        return adminToken;
+    }
+
+    /**
+     * @param adminToken the token for the admin api to set
+     */
+    public void setAdminToken(String adminToken) {
+        this.adminToken = adminToken;
+    }
+
+    /**
+     * @return the seconds to give running requests after a reload
+     */
+    public int getDrainTimeout() {
+        return drainTimeout;
+    }
+
+    /**
+     * @param drainTimeout the seconds to give running requests after a reload
+     */
+    public void setDrainTimeout(int drainTimeout) {
+        this.drainTimeout = drainTimeout;
+    }
+
+    /**
+     * Takes over the links of the configuration this configuration replaces,
+     * if they are set up the same way, so their connections and channels stay
+     * open. Must be called before the links are initialised.
+     *
+     * @param previous The previous configuration.
+     */
+    void adoptLinks(ServerConfig previous) {
+        if (!Objects.equals(linkCompression, previous.linkCompression)
+                || linkCompressionThreshold != previous.linkCompressionThreshold
+                || !PoolSettings.same(linkPool, previous.linkPool)
+                || !LimitSettings.same(linkLimits, previous.linkLimits)
+                || spillThreshold != previous.spillThreshold
+                || linkChannel != previous.linkChannel) {
+            return;
+        }
+        compression = previous.getCompression();
+        for (Map.Entry<String, Link> entry : previous.links.entrySet()) {
+            final String linkUrl = entry.getKey();
+            if (BatchSettings.same(getBatching(linkUrl), previous.getBatching(linkUrl))
+                    && Objects.equals(getCompressionName(linkUrl), previous.getCompressionName(linkUrl))) {
+                links.put(linkUrl, entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return the maximum number of seconds to wait for other Bridges during
+     * discovery
+     */
+    public int getDiscoveryTimeout() {
+        return discoveryTimeout;
+    }
+
+    /**
+     * @param discoveryTimeout the maximum number of seconds to wait for other
+     * Bridges during discovery
+     */
+    public void setDiscoveryTimeout(int discoveryTimeout) {
+        this.discoveryTimeout = discoveryTimeout;
+    }
+
+    /**
+     * @return the number of seconds between checks for changed endpoints on
+     * other Bridges
+     */
+    public int getDiscoveryInterval() {
+        return discoveryInterval;
+    }
+
+    /**
+     * @param discoveryInterval the number of seconds between checks for
+     * changed endpoints on other Bridges
+     */
+    public void setDiscoveryInterval(int discoveryInterval) {
+        this.discoveryInterval = discoveryInterval;
+    }
+
+    /**
+     * @return the maximum number of requests of a batch executed at the same
+     * time
+     */
+    public int getBatchParallelism() {
+        return batchParallelism;
+    }
+
+    /**
+     * @param batchParallelism the maximum number of requests of a batch
+     * executed at the same time
+     */
+    public void setBatchParallelism(int batchParallelism) {
+        this.batchParallelism = batchParallelism;
+    }
+
+    /**
+     * @return the maximum number of requests in a batch
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * @param maxBatchSize the maximum number of requests in a batch
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Sets up the links to other Bridges, and discovers their endpoints.
+     * Returns when all Bridges answered, or the discovery timeout passed.
+     *
+     * @param predecessor The configuration this one replaces, to take over
+     * the state of its endpoints, or null.
+     */
+    public void startDiscovery(ServerConfig predecessor) {
+        LinkDiscovery newDiscovery;
+        synchronized (this) {
+            if (discovery != null) {
+                return;
+            }
+            newDiscovery = new LinkDiscovery(this, predecessor);
+            discovery = newDiscovery;
+        }
+        newDiscovery.start();
+    }
+
+    /**
+     * Stops checking other Bridges for changed endpoints.
+     */
+    public void stopDiscovery() {
+        LinkDiscovery oldDiscovery;
+        synchronized (this) {
+            oldDiscovery = discovery;
+        }
+        if (oldDiscovery != null) {
+            oldDiscovery.close();
+        }
+    }
+
+    /**
+     * @return the links to other Bridges that have been created.
+     */
+    public Collection<Link> getLinks() {
+        return links.values();
+    }
+
+    /**
+     * Returns the link to the Bridge with the given url, creating it if it
+     * does not exist yet.
+     *
+     * @param linkUrl The url of the other Bridge.
+     * @return The link to the other Bridge.
+     */
+    public Link getLink(String linkUrl) {
+        return links.computeIfAbsent(linkUrl, url -> new Link(url, linkPool, linkLimits, getBatching(url), getCompression(url), spillThreshold));
+    }
+
+    /**
+     * @param linkUrl The url of the other Bridge.
+     * @return The linkServers entry for the Bridge with the given url, or null
+     * if it is not in the linkServers.
+     */
+    private LinkServer findLinkServer(String linkUrl) {
+        if (linkServers != null) {
+            for (LinkServer linkServer : linkServers) {
+                if (linkUrl.equals(linkServer.getUrl())) {
+                    return linkServer;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param linkUrl The url of the other Bridge.
+     * @return The batching settings of the link to the Bridge with the given
+     * url: its own, or the server-wide ones.
+     */
+    private BatchSettings getBatching(String linkUrl) {
+        final LinkServer linkServer = findLinkServer(linkUrl);
+        if (linkServer != null && linkServer.getBatching() != null) {
+            return linkServer.getBatching();
+        }
+        return linkBatching;
+    }
+
+    /**
+     * @param linkUrl The url of the other Bridge.
+     * @return The name of the compression of the link to the Bridge with the
+     * given url: its own, or the server-wide one.
+     */
+    private String getCompressionName(String linkUrl) {
+        final LinkServer linkServer = findLinkServer(linkUrl);
+        if (linkServer != null && linkServer.getCompression() != null) {
+            return linkServer.getCompression();
+        }
+        return linkCompression;
+    }
+
+    /**
+     * @param linkUrl The url of the other Bridge.
+     * @return The compression of the link to the Bridge with the given url.
+     */
+    private LinkCompression getCompression(String linkUrl) {
+        final String name = getCompressionName(linkUrl);
+        if (Objects.equals(name, linkCompression)) {
+            return getCompression();
+        }
+        return getCompression().withPreferred(name);
+    }
+
+    /**
+     * Closes all connection pools and channels of this configuration.
+     */
+    public void close() {
+        close(null);
+    }
+
+    /**
+     * Closes the connection pools and channels of this configuration that are
+     * not used by the configuration that replaced it.
+     *
+     * @param successor The configuration that replaced this one, or null.
+     */
+    public void close(ServerConfig successor) {
+        stopDiscovery();
+        Set<Object> inUse = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (successor != null) {
+            inUse.addAll(successor.links.values());
+            if (successor.endpoints != null) {
+                for (EndPoint endpoint : successor.endpoints) {
+                    inUse.add(endpoint.peekConnectionPool());
+                    inUse.add(endpoint.peekBalancer());
+                }
+            }
+        }
+        for (Link link : links.values()) {
+            if (!inUse.contains(link)) {
+                link.close();
+            }
+        }
+        if (endpoints != null) {
+            for (EndPoint endpoint : endpoints) {
+                if (!inUse.contains(endpoint.peekBalancer())) {
+                    endpoint.closeBalancer();
+                }
+                if (!inUse.contains(endpoint.peekConnectionPool())) {
+                    endpoint.closeConnectionPool();
+                }
+            }
+        }
+    }
+
 }
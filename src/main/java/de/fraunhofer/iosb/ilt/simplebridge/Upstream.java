@@ -0,0 +1,168 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A single replica of the upstream server of an endpoint, with the state the
+ * balancer needs to choose between replicas: the number of outstanding
+ * requests, the moving average of the latency and the health.
+ *
+ * @author hylke
+ */
+public class Upstream {
+
+    /**
+     * The weight of a new latency sample in the moving average.
+     */
+    private static final double EWMA_ALPHA = 0.2;
+
+    private final String baseUrl;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    /**
+     * The moving average of the latency, in nanoseconds. 0 until the first
+     * request completed.
+     */
+    private final AtomicLong ewmaNanos = new AtomicLong();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder ejections = new LongAdder();
+    private final AtomicBoolean checking = new AtomicBoolean();
+    private volatile boolean healthy = true;
+    private int failedChecks;
+
+    public Upstream(String baseUrl) {
+        this.baseUrl = baseUrl;
+    }
+
+    /**
+     * @return the base url of this replica.
+     */
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    /**
+     * Marks the start of a request to this replica.
+     *
+     * @return the start time, to pass to {@link #end(long, boolean)}.
+     */
+    public long begin() {
+        outstanding.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Marks the end of a request to this replica.
+     *
+     * @param start The value returned by {@link #begin()}.
+     * @param success false if the request failed with an I/O error or a
+     * server error.
+     */
+    public void end(long start, boolean success) {
+        outstanding.decrementAndGet();
+        requests.increment();
+        if (!success) {
+            failures.increment();
+        }
+        final long sample = System.nanoTime() - start;
+        long current;
+        long next;
+        do {
+            current = ewmaNanos.get();
+            next = current == 0 ? sample : (long) (current + EWMA_ALPHA * (sample - current));
+        } while (!ewmaNanos.compareAndSet(current, next));
+    }
+
+    /**
+     * Marks the end of a request to this replica that was aborted, without
+     * counting it as a finished request.
+     */
+    public void cancel() {
+        outstanding.decrementAndGet();
+    }
+
+    /**
+     * @return the number of requests to this replica that have not finished.
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return the moving average of the latency, in nanoseconds.
+     */
+    public long getEwmaNanos() {
+        return ewmaNanos.get();
+    }
+
+    /**
+     * @return the number of finished requests.
+     */
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return the number of failed requests.
+     */
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * @return the number of times this replica was ejected by the health
+     * checks.
+     */
+    public long getEjections() {
+        return ejections.sum();
+    }
+
+    /**
+     * @return false if this replica failed its recent health checks.
+     */
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * Claims the health check of this replica, so a slow replica is not
+     * checked again before the previous check finished.
+     *
+     * @return true if the caller should run the check.
+     */
+    boolean startCheck() {
+        return checking.compareAndSet(false, true);
+    }
+
+    /**
+     * Records the result of a health check. The replica is ejected after the
+     * given number of failed checks in a row, and returns after the first
+     * check that passes.
+     *
+     * @param passed The result of the check.
+     * @param threshold The number of failed checks that eject the replica.
+     * @return true if the health of the replica changed.
+     */
+    synchronized boolean endCheck(boolean passed, int threshold) {
+        checking.set(false);
+        if (passed) {
+            failedChecks = 0;
+            if (!healthy) {
+                healthy = true;
+                return true;
+            }
+            return false;
+        }
+        failedChecks++;
+        if (healthy && failedChecks >= threshold) {
+            healthy = false;
+            ejections.increment();
+            return true;
+        }
+        return false;
+    }
+
+}
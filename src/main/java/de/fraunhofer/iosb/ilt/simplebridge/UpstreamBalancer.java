@@ -0,0 +1,263 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chooses the replica of the upstream server of a direct endpoint that a
+ * request is sent to, and checks the health of the replicas in the background.
+ * Replicas that fail their health checks are not chosen until they pass a
+ * check again. When no replica is healthy, all replicas are used.
+ *
+ * The health checks use a small client of their own, with a connection per
+ * replica, so they never wait for a connection of the requests. A busy pool
+ * does not make healthy replicas fail their checks.
+ *
+ * @author hylke
+ */
+public class UpstreamBalancer implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UpstreamBalancer.class.getName());
+
+    public static final String STRATEGY_LEAST_OUTSTANDING = "least-outstanding";
+    public static final String STRATEGY_EWMA = "ewma";
+
+    /**
+     * The longest time a single health check may take.
+     */
+    private static final int MAX_CHECK_MILLIS = 5000;
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "health-check");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "health-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String resourceId;
+    private final Upstream[] upstreams;
+    private final List<Upstream> upstreamList;
+    private final boolean ewma;
+    private final String strategy;
+    private final String healthPath;
+    private final int healthInterval;
+    private final int healthThreshold;
+    /**
+     * Rotates the replica that is looked at first, so ties are spread.
+     */
+    private final AtomicInteger next = new AtomicInteger();
+    private ScheduledFuture<?> checker;
+    private volatile CloseableHttpClient healthClient;
+
+    /**
+     * @param endpoint The endpoint to balance the requests of.
+     */
+    public UpstreamBalancer(EndPoint endpoint) {
+        this.resourceId = endpoint.getResourceId();
+        List<Upstream> list = new ArrayList<>();
+        for (String url : endpoint.getUpstreamUrls()) {
+            list.add(new Upstream(url));
+        }
+        this.upstreams = list.toArray(new Upstream[list.size()]);
+        this.upstreamList = Collections.unmodifiableList(list);
+        this.strategy = endpoint.getBalancing();
+        this.ewma = STRATEGY_EWMA.equalsIgnoreCase(strategy);
+        if (!ewma && !STRATEGY_LEAST_OUTSTANDING.equalsIgnoreCase(strategy)) {
+            LOGGER.warn("Unknown balancing strategy {} for {}, using {}", strategy, resourceId, STRATEGY_LEAST_OUTSTANDING);
+        }
+        this.healthPath = endpoint.getHealthPath() == null ? "" : endpoint.getHealthPath();
+        this.healthInterval = endpoint.getHealthInterval();
+        this.healthThreshold = Math.max(1, endpoint.getHealthThreshold());
+    }
+
+    /**
+     * Starts the health checks, if there is more than one replica to choose
+     * from.
+     */
+    public synchronized void start() {
+        if (upstreams.length > 1 && healthInterval > 0 && checker == null) {
+            LOGGER.info("Checking the health of {} replicas of {} every {} s.", upstreams.length, resourceId, healthInterval);
+            healthClient = HttpClients.custom()
+                    .useSystemProperties()
+                    .setMaxConnTotal(upstreams.length)
+                    .setMaxConnPerRoute(1)
+                    .disableAutomaticRetries()
+                    .disableContentCompression()
+                    .build();
+            checker = SCHEDULER.scheduleWithFixedDelay(this::checkAll, 0, healthInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Chooses the replica for the next request: the healthy replica with the
+     * fewest outstanding requests or, for the ewma strategy, with the lowest
+     * average latency weighted by its outstanding requests.
+     *
+     * @return the chosen replica.
+     */
+    public Upstream choose() {
+        return choose(null);
+    }
+
+    /**
+     * Chooses the replica for the next request, like {@link #choose()}, but
+     * not the given replica, unless it is the only one.
+     *
+     * @param avoid The replica to avoid, for instance because the request
+     * just failed on it, or null.
+     * @return the chosen replica.
+     */
+    public Upstream choose(Upstream avoid) {
+        final int count = upstreams.length;
+        if (count == 1) {
+            return upstreams[0];
+        }
+        final int offset = Math.floorMod(next.getAndIncrement(), count);
+        Upstream best = choose(offset, true, avoid);
+        if (best == null) {
+            best = choose(offset, false, avoid);
+        }
+        return best == null ? avoid : best;
+    }
+
+    private Upstream choose(int offset, boolean healthyOnly, Upstream avoid) {
+        final int count = upstreams.length;
+        Upstream best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            final Upstream upstream = upstreams[(offset + i) % count];
+            if (upstream == avoid || healthyOnly && !upstream.isHealthy()) {
+                continue;
+            }
+            final double score = score(upstream);
+            if (score < bestScore) {
+                best = upstream;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    private double score(Upstream upstream) {
+        final int outstanding = upstream.getOutstanding();
+        if (ewma) {
+            // Replicas without samples score as the fastest, so they get tried.
+            return (upstream.getEwmaNanos() + 1.0) * (outstanding + 1);
+        }
+        return outstanding;
+    }
+
+    private void checkAll() {
+        for (Upstream upstream : upstreams) {
+            if (upstream.startCheck()) {
+                EXECUTOR.execute(() -> check(upstream));
+            }
+        }
+    }
+
+    private void check(Upstream upstream) {
+        final CloseableHttpClient client = healthClient;
+        if (client == null) {
+            // The balancer was closed.
+            return;
+        }
+        final int timeoutMillis = (int) Math.min(MAX_CHECK_MILLIS, TimeUnit.SECONDS.toMillis(healthInterval));
+        HttpGet httpGet = new HttpGet(upstream.getBaseUrl() + healthPath);
+        httpGet.setConfig(RequestConfig.custom()
+                .setConnectTimeout(timeoutMillis)
+                .setSocketTimeout(timeoutMillis)
+                .setConnectionRequestTimeout(timeoutMillis)
+                .build());
+        boolean passed;
+        String reason;
+        try (CloseableHttpResponse response = client.execute(httpGet)) {
+            final int statusCode = response.getStatusLine().getStatusCode();
+            EntityUtils.consume(response.getEntity());
+            passed = statusCode < 400;
+            reason = "status " + statusCode;
+        } catch (IOException | RuntimeException ex) {
+            passed = false;
+            reason = ex.getMessage();
+        }
+        if (upstream.endCheck(passed, healthThreshold)) {
+            if (passed) {
+                LOGGER.info("Replica {} of {} recovered.", upstream.getBaseUrl(), resourceId);
+            } else {
+                LOGGER.warn("Replica {} of {} ejected: {}", upstream.getBaseUrl(), resourceId, reason);
+            }
+        }
+    }
+
+    /**
+     * @return the replicas, in the order of the configuration.
+     */
+    public List<Upstream> getUpstreams() {
+        return upstreamList;
+    }
+
+    /**
+     * Checks if this balancer was created for the same replicas and settings
+     * as the given endpoint would use, so it can be taken over after a
+     * configuration reload.
+     *
+     * @param endpoint The endpoint to compare with.
+     * @return true if the balancer can be used for the endpoint.
+     */
+    boolean matches(EndPoint endpoint) {
+        final List<String> urls = endpoint.getUpstreamUrls();
+        if (urls.size() != upstreams.length) {
+            return false;
+        }
+        for (int i = 0; i < upstreams.length; i++) {
+            if (!upstreams[i].getBaseUrl().equals(urls.get(i))) {
+                return false;
+            }
+        }
+        return Objects.equals(strategy, endpoint.getBalancing())
+                && healthPath.equals(endpoint.getHealthPath() == null ? "" : endpoint.getHealthPath())
+                && healthInterval == endpoint.getHealthInterval()
+                && healthThreshold == Math.max(1, endpoint.getHealthThreshold());
+    }
+
+    /**
+     * Stops the health checks, and closes their client.
+     */
+    @Override
+    public synchronized void close() {
+        if (checker != null) {
+            checker.cancel(false);
+            checker = null;
+        }
+        final CloseableHttpClient client = healthClient;
+        healthClient = null;
+        if (client != null) {
+            try {
+                client.close();
+            } catch (IOException ex) {
+                LOGGER.debug("Failed to close the health check client of {}: {}", resourceId, ex.getMessage());
+            }
+        }
+    }
+
+}
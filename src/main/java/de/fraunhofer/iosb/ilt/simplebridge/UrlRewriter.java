@@ -0,0 +1,186 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Replaces all occurrences of one URL with another in a stream of UTF-8
+ * bytes, while the bytes pass through. Matches that straddle the boundaries of
+ * written chunks are handled, without buffering more than the length of the
+ * URL.
+ *
+ * The rewriter itself is immutable and can be shared, the streams created by
+ * {@link #wrap(OutputStream)} are not thread safe.
+ *
+ * @author hylke
+ */
+public class UrlRewriter {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final byte[] pattern;
+    private final byte[] replacement;
+    /**
+     * The KMP failure table of the pattern: for each prefix length - 1, the
+     * length of the longest proper prefix that is also a suffix.
+     */
+    private final int[] failure;
+
+    public UrlRewriter(String from, String to) {
+        this.pattern = from.getBytes(StandardCharsets.UTF_8);
+        this.replacement = to.getBytes(StandardCharsets.UTF_8);
+        this.failure = new int[pattern.length];
+        int k = 0;
+        for (int i = 1; i < pattern.length; i++) {
+            while (k > 0 && pattern[i] != pattern[k]) {
+                k = failure[k - 1];
+            }
+            if (pattern[i] == pattern[k]) {
+                k++;
+            }
+            failure[i] = k;
+        }
+    }
+
+    /**
+     * Wraps the given stream in a stream that rewrites all bytes written to
+     * it. {@link RewritingOutputStream#finish()} must be called after the last
+     * write.
+     *
+     * @param out The stream to write the rewritten bytes to.
+     * @return The rewriting stream.
+     */
+    public RewritingOutputStream wrap(OutputStream out) {
+        return new RewritingOutputStream(out);
+    }
+
+    public class RewritingOutputStream extends FilterOutputStream {
+
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int count;
+        /**
+         * The number of bytes of the pattern matched so far. These bytes are
+         * held back until the match either completes or fails.
+         */
+        private int matched;
+
+        private RewritingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (pattern.length == 0) {
+                emit((byte) b);
+                return;
+            }
+            process((byte) b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int off, int len) throws IOException {
+            if (pattern.length == 0) {
+                emit(bytes, off, len);
+                return;
+            }
+            final byte first = pattern[0];
+            final int end = off + len;
+            int i = off;
+            while (i < end) {
+                if (matched == 0) {
+                    // Fast path: copy everything up to the next possible match.
+                    int start = i;
+                    while (i < end && bytes[i] != first) {
+                        i++;
+                    }
+                    emit(bytes, start, i - start);
+                    if (i == end) {
+                        return;
+                    }
+                }
+                process(bytes[i++]);
+            }
+        }
+
+        private void process(byte b) throws IOException {
+            while (matched > 0 && pattern[matched] != b) {
+                final int keep = failure[matched - 1];
+                emit(pattern, 0, matched - keep);
+                matched = keep;
+            }
+            if (pattern[matched] == b) {
+                matched++;
+                if (matched == pattern.length) {
+                    emit(replacement, 0, replacement.length);
+                    matched = 0;
+                }
+            } else {
+                emit(b);
+            }
+        }
+
+        private void emit(byte b) throws IOException {
+            if (count == buffer.length) {
+                flushBuffer();
+            }
+            buffer[count++] = b;
+        }
+
+        private void emit(byte[] bytes, int off, int len) throws IOException {
+            if (len > buffer.length - count) {
+                flushBuffer();
+                if (len > buffer.length) {
+                    out.write(bytes, off, len);
+                    return;
+                }
+            }
+            System.arraycopy(bytes, off, buffer, count, len);
+            count += len;
+        }
+
+        private void flushBuffer() throws IOException {
+            if (count > 0) {
+                out.write(buffer, 0, count);
+                count = 0;
+            }
+        }
+
+        /**
+         * Flushes the bytes that have been rewritten so far. Bytes that may be
+         * the start of a match are held back.
+         *
+         * @throws IOException If the underlying stream throws.
+         */
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+            out.flush();
+        }
+
+        /**
+         * Writes out any held-back bytes and flushes, without closing the
+         * underlying stream. When the underlying stream is also a rewriting
+         * stream, it is finished too.
+         *
+         * @throws IOException If the underlying stream throws.
+         */
+        public void finish() throws IOException {
+            emit(pattern, 0, matched);
+            matched = 0;
+            if (out instanceof RewritingOutputStream) {
+                flushBuffer();
+                ((RewritingOutputStream) out).finish();
+                return;
+            }
+            flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+            out.close();
+        }
+    }
+}
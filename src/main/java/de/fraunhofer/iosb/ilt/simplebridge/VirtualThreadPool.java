@@ -0,0 +1,92 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Jetty thread pool that runs each task on a new virtual thread. Virtual
+ * threads are looked up by reflection, so the Bridge still builds and runs on
+ * Java versions without them.
+ *
+ * @author hylke
+ */
+public class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VirtualThreadPool.class.getName());
+
+    private final ExecutorService executor;
+    private final AtomicInteger running = new AtomicInteger();
+
+    private VirtualThreadPool(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @return a new pool, or null if this Java version has no virtual
+     * threads.
+     */
+    public static VirtualThreadPool create() {
+        try {
+            final Object executor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            return new VirtualThreadPool((ExecutorService) executor);
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            LOGGER.debug("No virtual threads: {}", ex.getMessage());
+            return null;
+        } catch (InvocationTargetException ex) {
+            // Virtual threads are a preview feature on Java 19 and 20.
+            LOGGER.debug("No virtual threads: {}", ex.getCause().getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        executor.execute(() -> {
+            running.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                running.decrementAndGet();
+            }
+        });
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        executor.shutdownNow();
+        super.doStop();
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        while (!executor.awaitTermination(1, TimeUnit.HOURS)) {
+            // Wait until the pool is stopped.
+        }
+    }
+
+    /**
+     * @return the number of running tasks.
+     */
+    @Override
+    public int getThreads() {
+        return running.get();
+    }
+
+    @Override
+    public int getIdleThreads() {
+        return 0;
+    }
+
+    @Override
+    public boolean isLowOnThreads() {
+        return false;
+    }
+
+}
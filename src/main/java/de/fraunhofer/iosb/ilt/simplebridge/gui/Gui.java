@@ -2,24 +2,17 @@ package de.fraunhofer.iosb.ilt.simplebridge.gui;
 
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
-import com.google.gson.JsonParser;
 import de.fraunhofer.iosb.ilt.configurable.ConfigurationException;
 import de.fraunhofer.iosb.ilt.configurable.annotations.AnnotationHelper;
 import de.fraunhofer.iosb.ilt.configurable.editor.EditorMap;
-import de.fraunhofer.iosb.ilt.simplebridge.ContextListener;
-import de.fraunhofer.iosb.ilt.simplebridge.LinkApi;
-import de.fraunhofer.iosb.ilt.simplebridge.RestApi;
+import de.fraunhofer.iosb.ilt.simplebridge.BridgeServer;
 import de.fraunhofer.iosb.ilt.simplebridge.ServerConfig;
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.Optional;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
 import org.apache.commons.io.FileUtils;
-import org.eclipse.jetty.server.Server;
-import org.eclipse.jetty.server.handler.HandlerCollection;
-import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,19 +23,23 @@ import org.slf4j.LoggerFactory;
 public class Gui extends javax.swing.JFrame {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Gui.class.getName());
+    private static final int LOG_BUFFER_SIZE = 8192;
+    private static final int LOG_MAX_LINES = 5000;
+    private static final int LOG_FRAMES_PER_SECOND = 20;
 
     private EditorMap<?> configEditor;
     private final JFileChooser fileChooser = new JFileChooser(new File(".").getAbsoluteFile());
 
-    private Server myServer;
+    private BridgeServer myServer;
 
     /**
      * Creates new form NewJFrame
      */
     public Gui() {
         initComponents();
-        OutputStream os = new TextAreaOutputStream(jTextAreaOutput);
-        StaticOutputStreamAppender.setStaticOutputStream(os);
+        LogBuffer logBuffer = new LogBuffer(LOG_BUFFER_SIZE);
+        new TextAreaLogView(jTextAreaOutput, logBuffer, LOG_MAX_LINES, LOG_FRAMES_PER_SECOND).start();
+        StaticOutputStreamAppender.setLogBuffer(logBuffer);
 
         jButtonStop.setEnabled(false);
         Optional<EditorMap<?>> optionalEditor = AnnotationHelper.generateEditorFromAnnotations(ServerConfig.class, null, null);
@@ -85,7 +82,7 @@ public class Gui extends javax.swing.JFrame {
             }
             File file = fileChooser.getSelectedFile();
             String config = FileUtils.readFileToString(file, "UTF-8");
-            JsonElement json = JsonParser.parseString(config);
+            JsonElement json = ServerConfig.parseConfig(config);
             return json;
         } catch (IOException ex) {
             LOGGER.error("Failed to read file", ex);
@@ -131,34 +128,9 @@ public class Gui extends javax.swing.JFrame {
         jButtonStart.setEnabled(false);
         jButtonStop.setEnabled(true);
 
-        myServer = new Server(config.getPort());
-        HandlerCollection contextHandlerCollection = new HandlerCollection(true);
-        myServer.setHandler(contextHandlerCollection);
-        LOGGER.info("Server starting...");
-        try {
-            myServer.start();
-        } catch (Exception ex) {
-            LOGGER.error("Exception starting server!");
-            throw new IllegalStateException(ex);
-        }
-
-        ServletContextHandler handler = new ServletContextHandler();
-        handler.getServletContext().setExtendedListenerTypes(true);
         String configString = elementToString(configEditor.getConfig());
-
-        handler.setInitParameter(ServerConfig.TAG_SERVER_CONFIG, configString);
-        handler.addEventListener(new ContextListener());
-        handler.addServlet(LinkApi.class, "/link/*");
-        handler.addServlet(RestApi.class, "/resource/*");
-        contextHandlerCollection.addHandler(handler);
-        try {
-            handler.start();
-        } catch (Exception ex) {
-            LOGGER.error("Exception starting server!");
-            throw new IllegalStateException(ex);
-        }
-
-        LOGGER.info("Server started.");
+        myServer = new BridgeServer(config.getPort(), configString, config.getJetty());
+        myServer.start();
     }
 
     private String elementToString(JsonElement element) {
@@ -172,11 +144,7 @@ public class Gui extends javax.swing.JFrame {
     private void stopServer() {
         jButtonStart.setEnabled(true);
         jButtonStop.setEnabled(false);
-        try {
-            myServer.stop();
-        } catch (Exception ex) {
-            LOGGER.error("Exception stopping server", ex);
-        }
+        myServer.stop();
     }
 
     /**
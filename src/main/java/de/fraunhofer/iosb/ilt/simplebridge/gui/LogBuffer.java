@@ -0,0 +1,107 @@
+package de.fraunhofer.iosb.ilt.simplebridge.gui;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * A bounded ring buffer of log messages, filled by any number of threads and
+ * drained by one. Adding a message never blocks: when the buffer is full the
+ * message is dropped and counted.
+ *
+ * Each slot has a sequence number that tells whether it is free for the
+ * producer of a given position, or filled for the consumer, so producers only
+ * compete on a single compare-and-set of the tail.
+ *
+ * @author hylke
+ */
+public class LogBuffer {
+
+    private final int mask;
+    private final AtomicReferenceArray<String> messages;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * Only changed by the consumer.
+     */
+    private volatile long head;
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * @param capacity The maximum number of messages in the buffer, rounded up
+     * to a power of two.
+     */
+    public LogBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mask = size - 1;
+        messages = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds a message, if there is room for it.
+     *
+     * @param message The message to add.
+     * @return false if the buffer was full and the message was dropped.
+     */
+    public boolean offer(String message) {
+        while (true) {
+            final long position = tail.get();
+            final int index = (int) position & mask;
+            final long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    messages.set(index, message);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                // The consumer has not taken the message of the previous round.
+                dropped.increment();
+                return false;
+            }
+            // Another producer took the position, try the next one.
+        }
+    }
+
+    /**
+     * Hands the messages in the buffer to the consumer, in the order they
+     * were added. Must only be called by one thread at a time.
+     *
+     * @param consumer The consumer of the messages.
+     * @param max The maximum number of messages to hand over.
+     * @return the number of messages handed over.
+     */
+    public int drain(Consumer<String> consumer, int max) {
+        long position = head;
+        int count = 0;
+        while (count < max) {
+            final int index = (int) position & mask;
+            if (sequences.get(index) != position + 1) {
+                // Empty, or the producer is still writing the message.
+                break;
+            }
+            final String message = messages.get(index);
+            messages.set(index, null);
+            sequences.set(index, position + mask + 1);
+            position++;
+            count++;
+            consumer.accept(message);
+        }
+        head = position;
+        return count;
+    }
+
+    /**
+     * @return the number of messages dropped because the buffer was full.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+}
@@ -1,40 +1,70 @@
 package de.fraunhofer.iosb.ilt.simplebridge.gui;
 
-import ch.qos.logback.core.OutputStreamAppender;
-import java.io.FilterOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
+import ch.qos.logback.core.Layout;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.encoder.Encoder;
+import ch.qos.logback.core.encoder.LayoutWrappingEncoder;
+import java.nio.charset.Charset;
 
-public class StaticOutputStreamAppender<E> extends OutputStreamAppender<E> {
+/**
+ * Hands formatted log events to a static {@link LogBuffer}, that the GUI
+ * drains. Logging threads never wait for the GUI, or for each other: events
+ * that do not fit in the buffer are dropped. Without a buffer, events are not
+ * even formatted.
+ *
+ * @param <E> The type of the log events.
+ */
+public class StaticOutputStreamAppender<E> extends UnsynchronizedAppenderBase<E> {
 
-    private static final DelegatingOutputStream DELEGATING_OUTPUT_STREAM = new DelegatingOutputStream(null);
+    private static volatile LogBuffer buffer;
+
+    private Encoder<E> encoder;
+    private Layout<E> layout;
 
     @Override
     public void start() {
-        setOutputStream(DELEGATING_OUTPUT_STREAM);
+        if (encoder == null) {
+            addError("No encoder set for the appender named \"" + name + "\".");
+            return;
+        }
+        if (encoder instanceof LayoutWrappingEncoder) {
+            layout = ((LayoutWrappingEncoder<E>) encoder).getLayout();
+        }
         super.start();
     }
 
-    public static void setStaticOutputStream(OutputStream outputStream) {
-        DELEGATING_OUTPUT_STREAM.setOutputStream(outputStream);
+    @Override
+    protected void append(E event) {
+        final LogBuffer target = buffer;
+        if (target == null) {
+            return;
+        }
+        if (layout != null) {
+            target.offer(layout.doLayout(event));
+        } else {
+            target.offer(new String(encoder.encode(event), Charset.defaultCharset()));
+        }
     }
 
-    private static class DelegatingOutputStream extends FilterOutputStream {
-
-        /**
-         * Creates a delegating outputstream with a NO-OP delegate
-         */
-        public DelegatingOutputStream(OutputStream out) {
-            super(new OutputStream() {
-                @Override
-                public void write(int b) throws IOException {
-                }
-            });
-        }
+    /**
+     * @return the encoder
+     */
+    public Encoder<E> getEncoder() {
+        return encoder;
+    }
 
-        void setOutputStream(OutputStream outputStream) {
-            this.out = outputStream;
-        }
+    /**
+     * @param encoder the encoder to set
+     */
+    public void setEncoder(Encoder<E> encoder) {
+        this.encoder = encoder;
+    }
+
+    /**
+     * @param logBuffer the buffer to log to, or null to stop logging.
+     */
+    public static void setLogBuffer(LogBuffer logBuffer) {
+        buffer = logBuffer;
     }
 
 }
@@ -0,0 +1,81 @@
+package de.fraunhofer.iosb.ilt.simplebridge.gui;
+
+import javax.swing.JTextArea;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shows the messages of a {@link LogBuffer} in a text area. The buffer is
+ * drained on the event dispatch thread a fixed number of times per second,
+ * each time with a single append, and the text area only keeps the last
+ * lines. Messages dropped by the buffer are counted in the text.
+ *
+ * @author hylke
+ */
+public class TextAreaLogView {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TextAreaLogView.class.getName());
+
+    private final JTextArea textArea;
+    private final LogBuffer buffer;
+    private final int maxLines;
+    private final Timer timer;
+    private final StringBuilder frame = new StringBuilder();
+    private long droppedShown;
+
+    /**
+     * @param textArea The text area to show the messages in.
+     * @param buffer The buffer to take the messages from.
+     * @param maxLines The number of lines to keep in the text area.
+     * @param framesPerSecond How often to drain the buffer.
+     */
+    public TextAreaLogView(JTextArea textArea, LogBuffer buffer, int maxLines, int framesPerSecond) {
+        this.textArea = textArea;
+        this.buffer = buffer;
+        this.maxLines = maxLines;
+        this.timer = new Timer(1000 / framesPerSecond, event -> drain());
+        this.timer.setCoalesce(true);
+    }
+
+    public void start() {
+        timer.start();
+    }
+
+    public void stop() {
+        timer.stop();
+    }
+
+    private void drain() {
+        buffer.drain(frame::append, maxLines);
+        // Messages are dropped when the buffer is full, so after the ones in it.
+        final long dropped = buffer.getDropped();
+        if (dropped != droppedShown) {
+            frame.append("... ").append(dropped - droppedShown).append(" log messages dropped ...\n");
+            droppedShown = dropped;
+        }
+        if (frame.length() == 0) {
+            return;
+        }
+        textArea.append(frame.toString());
+        frame.setLength(0);
+        if (frame.capacity() > 1 << 20) {
+            frame.trimToSize();
+        }
+        trim();
+    }
+
+    private void trim() {
+        final int excess = textArea.getLineCount() - maxLines;
+        if (excess <= 0) {
+            return;
+        }
+        try {
+            textArea.replaceRange(null, 0, textArea.getLineStartOffset(excess));
+        } catch (BadLocationException ex) {
+            LOGGER.debug("Failed to trim the log.", ex);
+        }
+    }
+
+}
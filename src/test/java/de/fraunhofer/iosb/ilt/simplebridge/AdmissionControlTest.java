@@ -0,0 +1,160 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import de.fraunhofer.iosb.ilt.simplebridge.AdmissionControl.Result;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests the concurrency limit with its queue, and the rate limit, of the
+ * admission control.
+ *
+ * @author hylke
+ */
+public class AdmissionControlTest {
+
+    private static LimitSettings limits(int maxConcurrent, int maxQueued, int queueTimeout, int rate, int burst) {
+        LimitSettings settings = new LimitSettings();
+        settings.setMaxConcurrent(maxConcurrent);
+        settings.setMaxQueued(maxQueued);
+        settings.setQueueTimeout(queueTimeout);
+        settings.setRate(rate);
+        settings.setBurst(burst);
+        return settings;
+    }
+
+    private static Result now(CompletableFuture<Result> future) {
+        assertTrue("Expected a completed future", future.isDone());
+        return future.join();
+    }
+
+    @Test
+    public void testNoLimits() {
+        AdmissionControl control = new AdmissionControl("test", null);
+        assertFalse(control.isEnabled());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(Result.ADMITTED, now(control.acquire()));
+        }
+    }
+
+    @Test
+    public void testQueueIsFifoAndBounded() {
+        AdmissionControl control = new AdmissionControl("test", limits(2, 2, 10_000, 0, 0));
+        assertEquals(Result.ADMITTED, now(control.acquire()));
+        assertEquals(Result.ADMITTED, now(control.acquire()));
+        CompletableFuture<Result> first = control.acquire();
+        CompletableFuture<Result> second = control.acquire();
+        assertFalse(first.isDone());
+        assertFalse(second.isDone());
+        assertEquals(2, control.getQueued());
+        assertEquals(Result.OVERLOADED, now(control.acquire()));
+        assertEquals(1, control.getOverloaded());
+
+        control.release();
+        assertEquals(Result.ADMITTED, now(first));
+        assertFalse(second.isDone());
+        assertEquals(2, control.getInFlight());
+        control.release();
+        assertEquals(Result.ADMITTED, now(second));
+        assertEquals(0, control.getQueued());
+
+        control.release();
+        control.release();
+        assertEquals(0, control.getInFlight());
+        assertEquals(4, control.getAdmitted());
+    }
+
+    @Test
+    public void testQueueTimeout() throws Exception {
+        AdmissionControl control = new AdmissionControl("test", limits(1, 1, 50, 0, 0));
+        assertEquals(Result.ADMITTED, now(control.acquire()));
+        CompletableFuture<Result> waiter = control.acquire();
+        assertEquals(Result.OVERLOADED, waiter.get(5, TimeUnit.SECONDS));
+        // The timer thread counts the timeout after completing the waiter.
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((control.getTimedOut() == 0 || control.getQueued() != 0) && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, control.getTimedOut());
+        assertEquals(0, control.getQueued());
+        // The slot goes back to the pool, not to the request that gave up.
+        control.release();
+        assertEquals(0, control.getInFlight());
+        assertEquals(Result.ADMITTED, now(control.acquire()));
+    }
+
+    @Test
+    public void testRateLimit() {
+        AdmissionControl control = new AdmissionControl("test", limits(0, 0, 1000, 1, 2));
+        assertTrue(control.isEnabled());
+        assertEquals(Result.ADMITTED, now(control.acquire()));
+        assertEquals(Result.ADMITTED, now(control.acquire()));
+        assertEquals(Result.RATE_LIMITED, now(control.acquire()));
+        assertEquals(1, control.getRateLimited());
+        assertTrue(control.getRetryAfterSeconds(Result.RATE_LIMITED) >= 1);
+    }
+
+    @Test
+    public void testOverloadedRequestsRefundTheirToken() {
+        AdmissionControl control = new AdmissionControl("test", limits(1, 0, 1000, 1, 2));
+        assertEquals(Result.ADMITTED, now(control.acquire()));
+        assertEquals(Result.OVERLOADED, now(control.acquire()));
+        assertEquals(Result.OVERLOADED, now(control.acquire()));
+        control.release();
+        // The second token of the burst was not used up by the rejected requests.
+        assertEquals(Result.ADMITTED, now(control.acquire()));
+        assertEquals(0, control.getRateLimited());
+    }
+
+    /**
+     * Releases race with requests entering the queue. No request may be lost
+     * in the queue, and the limit may never be exceeded.
+     */
+    @Test
+    public void testQueueReleaseRace() throws Exception {
+        final int maxConcurrent = 4;
+        final int threads = 16;
+        final int rounds = 2000;
+        AdmissionControl control = new AdmissionControl("test", limits(maxConcurrent, threads, 60_000, 0, 0));
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < rounds; i++) {
+                        assertEquals(Result.ADMITTED, control.acquire().get(10, TimeUnit.SECONDS));
+                        maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+                        active.decrementAndGet();
+                        control.release();
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> result : results) {
+                result.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertTrue("Limit exceeded: " + maxActive.get(), maxActive.get() <= maxConcurrent);
+        assertEquals(0, control.getInFlight());
+        assertEquals(0, control.getQueued());
+        assertEquals((long) threads * rounds, control.getAdmitted());
+    }
+
+}
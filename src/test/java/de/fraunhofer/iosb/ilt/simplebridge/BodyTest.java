@@ -0,0 +1,204 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests moving bodies to a file at the spill threshold, reading bodies that
+ * are mapped in several parts, and the reference counting of bodies.
+ *
+ * @author hylke
+ */
+public class BodyTest {
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private static byte[] randomBytes(int count) {
+        byte[] data = new byte[count];
+        new Random(count).nextBytes(data);
+        return data;
+    }
+
+    private static int countBodyFiles() throws IOException {
+        int count = 0;
+        Path tmp = Paths.get(System.getProperty("java.io.tmpdir"));
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(tmp, "simplebridge-body-*")) {
+            for (Path file : files) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static byte[] readAll(InputStream in, int readSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[readSize];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static void assertContent(byte[] expected, Body body) throws IOException {
+        assertEquals(expected.length, body.length());
+        assertArrayEquals(expected, body.toByteArray());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+        assertArrayEquals(expected, out.toByteArray());
+        out.reset();
+        body.writeTo(Channels.newChannel(out));
+        assertArrayEquals(expected, out.toByteArray());
+        try (InputStream in = body.openStream()) {
+            assertArrayEquals(expected, readAll(in, 1000));
+        }
+    }
+
+    @Test
+    public void testSpillAtChunkBoundary() throws IOException {
+        for (int length : new int[]{CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, 2 * CHUNK_SIZE, 2 * CHUNK_SIZE + 1}) {
+            byte[] data = randomBytes(length);
+            try (Body written = Body.of(CHUNK_SIZE, out -> out.write(data));
+                    Body read = Body.read(new ByteArrayInputStream(data), CHUNK_SIZE)) {
+                assertEquals("spilled " + length, length > CHUNK_SIZE, written.isSpilled());
+                assertEquals("spilled " + length, length > CHUNK_SIZE, read.isSpilled());
+                assertContent(data, written);
+                assertContent(data, read);
+            }
+        }
+    }
+
+    @Test
+    public void testSpillWithSingleByteWrites() throws IOException {
+        byte[] data = randomBytes(3 * CHUNK_SIZE + 7);
+        try (Body body = Body.of(CHUNK_SIZE + 1, out -> {
+            for (byte b : data) {
+                out.write(b);
+            }
+        })) {
+            assertTrue(body.isSpilled());
+            assertContent(data, body);
+        }
+    }
+
+    @Test
+    public void testNoSpillWithoutThreshold() throws IOException {
+        byte[] data = randomBytes(10 * CHUNK_SIZE);
+        try (Body body = Body.read(new ByteArrayInputStream(data), 0)) {
+            assertFalse(body.isSpilled());
+            assertContent(data, body);
+        }
+    }
+
+    @Test
+    public void testMappedInParts() throws IOException {
+        byte[] data = randomBytes(50_001);
+        Body.Builder builder = new Body.Builder(CHUNK_SIZE, false, 10_000);
+        builder.write(data, 0, data.length);
+        try (Body body = builder.build()) {
+            assertTrue(body.isSpilled());
+            List<ByteBuffer> buffers = body.buffers();
+            assertEquals(6, buffers.size());
+            assertEquals(10_000, buffers.get(0).remaining());
+            assertEquals(1, buffers.get(5).remaining());
+            assertContent(data, body);
+            // Reads that straddle the boundaries of the parts.
+            try (InputStream in = body.openStream()) {
+                assertArrayEquals(data, readAll(in, 9_999));
+            }
+            try (InputStream in = body.openStream()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                int b;
+                while ((b = in.read()) >= 0) {
+                    out.write(b);
+                }
+                assertArrayEquals(data, out.toByteArray());
+            }
+        }
+    }
+
+    @Test
+    public void testSpilledFilesAreDeleted() throws IOException {
+        int before = countBodyFiles();
+        byte[] data = randomBytes(5 * CHUNK_SIZE);
+        try (Body body = Body.read(new ByteArrayInputStream(data), CHUNK_SIZE)) {
+            assertTrue(body.isSpilled());
+        }
+        Body.Builder builder = new Body.Builder(CHUNK_SIZE);
+        builder.write(data, 0, data.length);
+        builder.discard();
+        assertEquals(before, countBodyFiles());
+    }
+
+    @Test(expected = EOFException.class)
+    public void testReadShortStream() throws IOException {
+        Body.read(new ByteArrayInputStream(randomBytes(100)), 200, 0);
+    }
+
+    @Test
+    public void testReferenceCounting() throws IOException {
+        byte[] data = randomBytes(3 * CHUNK_SIZE);
+        Body body = Body.of(0, out -> out.write(data));
+        assertTrue(body.tryRetain());
+        body.close();
+        assertContent(data, body);
+        body.close();
+        assertFalse(body.tryRetain());
+        try {
+            body.buffers();
+            fail("Buffers of a released body");
+        } catch (IllegalStateException ex) {
+            // Expected.
+        }
+        try {
+            body.retain();
+            fail("Retained a released body");
+        } catch (IllegalStateException ex) {
+            // Expected.
+        }
+        // Releasing again does nothing.
+        body.close();
+    }
+
+    @Test
+    public void testStreamKeepsMappedBodyAlive() throws IOException {
+        byte[] data = randomBytes(4 * CHUNK_SIZE);
+        Body body = Body.read(new ByteArrayInputStream(data), CHUNK_SIZE);
+        assertTrue(body.isSpilled());
+        InputStream in = body.openStream();
+        body.close();
+        assertTrue(body.tryRetain());
+        body.close();
+        assertArrayEquals(data, readAll(in, 5000));
+        in.close();
+        assertFalse(body.tryRetain());
+    }
+
+    @Test
+    public void testHeapBodiesNeedNoRelease() throws IOException {
+        byte[] data = randomBytes(100);
+        Body body = Body.wrap(data);
+        body.close();
+        body.close();
+        assertTrue(body.tryRetain());
+        assertContent(data, body);
+    }
+
+}
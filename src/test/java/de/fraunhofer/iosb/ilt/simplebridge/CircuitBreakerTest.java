@@ -0,0 +1,153 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests the state changes of the circuit breaker, and that a half-open
+ * breaker lets through a single probe.
+ *
+ * @author hylke
+ */
+public class CircuitBreakerTest {
+
+    private static final long OPEN_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    private static CircuitBreaker openBreaker() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 3, OPEN_NANOS);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(breaker.allowRequest());
+            breaker.record(false);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        return breaker;
+    }
+
+    private static void waitOpenTime() throws InterruptedException {
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(OPEN_NANOS) + 10);
+    }
+
+    @Test
+    public void testOpensAfterFailuresInARow() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 3, OPEN_NANOS);
+        breaker.record(false);
+        breaker.record(false);
+        breaker.record(true);
+        breaker.record(false);
+        breaker.record(false);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.record(false);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(1, breaker.getOpened());
+    }
+
+    @Test
+    public void testRejectsWhileOpen() {
+        CircuitBreaker breaker = openBreaker();
+        assertFalse(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        assertEquals(2, breaker.getRejected());
+        assertEquals(1, breaker.getRetryAfterSeconds());
+    }
+
+    @Test
+    public void testSingleProbeWhenHalfOpen() throws InterruptedException {
+        CircuitBreaker breaker = openBreaker();
+        waitOpenTime();
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        assertEquals(0, breaker.getRetryAfterSeconds());
+    }
+
+    @Test
+    public void testProbeSuccessCloses() throws InterruptedException {
+        CircuitBreaker breaker = openBreaker();
+        waitOpenTime();
+        assertTrue(breaker.allowRequest());
+        breaker.record(true);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        assertTrue(breaker.allowRequest());
+        // The failures before opening no longer count.
+        breaker.record(false);
+        breaker.record(false);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testProbeFailureOpensAgain() throws InterruptedException {
+        CircuitBreaker breaker = openBreaker();
+        waitOpenTime();
+        assertTrue(breaker.allowRequest());
+        breaker.record(false);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(2, breaker.getOpened());
+        assertFalse(breaker.allowRequest());
+        waitOpenTime();
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void testLostProbeDoesNotBlock() throws InterruptedException {
+        CircuitBreaker breaker = openBreaker();
+        waitOpenTime();
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        // The probe never reports back.
+        waitOpenTime();
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void testConcurrentProbes() throws Exception {
+        CircuitBreaker breaker = openBreaker();
+        waitOpenTime();
+        final int threads = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                Callable<Boolean> task = () -> {
+                    start.await();
+                    return breaker.allowRequest();
+                };
+                results.add(executor.submit(task));
+            }
+            start.countDown();
+            int allowed = 0;
+            for (Future<Boolean> result : results) {
+                if (result.get()) {
+                    allowed++;
+                }
+            }
+            assertEquals(1, allowed);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testThresholdZeroNeverOpens() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 0, OPEN_NANOS);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(breaker.allowRequest());
+            breaker.record(false);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+}
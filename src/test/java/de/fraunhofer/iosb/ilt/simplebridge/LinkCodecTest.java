@@ -0,0 +1,162 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests the binary link format.
+ *
+ * @author hylke
+ */
+public class LinkCodecTest {
+
+    private static BridgeRequest createRequest(byte[] body) {
+        BridgeRequest request = new BridgeRequest();
+        request.resourceId = "frost";
+        request.url = "/v1.1/Things?$filter=name eq 'ä'";
+        request.method = "POST";
+        request.headers.put("Content-Type", "application/json");
+        request.headers.put("X-Empty", "");
+        request.body = Body.wrap(body);
+        return request;
+    }
+
+    private static byte[] randomBytes(int count) {
+        byte[] data = new byte[count];
+        new Random(count).nextBytes(data);
+        return data;
+    }
+
+    private static void assertSameRequest(BridgeRequest expected, BridgeRequest actual) throws IOException {
+        assertEquals(expected.resourceId, actual.resourceId);
+        assertEquals(expected.url, actual.url);
+        assertEquals(expected.method, actual.method);
+        assertEquals(expected.headers, actual.headers);
+        assertArrayEquals(expected.body.toByteArray(), actual.body.toByteArray());
+    }
+
+    @Test
+    public void testRequestRoundTrip() throws IOException {
+        BridgeRequest request = createRequest(randomBytes(20_000));
+        try (BridgeRequest read = LinkCodec.readRequest(new ByteArrayInputStream(LinkCodec.toBytes(request)))) {
+            assertSameRequest(request, read);
+        }
+    }
+
+    @Test
+    public void testRequestWithNullsAndEmptyBody() throws IOException {
+        BridgeRequest request = new BridgeRequest();
+        request.method = "GET";
+        try (BridgeRequest read = LinkCodec.readRequest(new ByteArrayInputStream(LinkCodec.toBytes(request)))) {
+            assertNull(read.resourceId);
+            assertNull(read.url);
+            assertEquals("GET", read.method);
+            assertTrue(read.headers.isEmpty());
+            assertTrue(read.body.isEmpty());
+        }
+    }
+
+    @Test
+    public void testResponseRoundTrip() throws IOException {
+        BridgeResponse response = new BridgeResponse();
+        response.statusCode = 201;
+        response.headers.put("Location", "/v1.1/Things(1)");
+        response.body = Body.wrap("{\"@iot.id\": 1}".getBytes(StandardCharsets.UTF_8));
+        try (BridgeResponse read = LinkCodec.readResponse(new ByteArrayInputStream(LinkCodec.toBytes(response)))) {
+            assertEquals(201, read.statusCode);
+            assertEquals(response.headers, read.headers);
+            assertArrayEquals(response.body.toByteArray(), read.body.toByteArray());
+        }
+    }
+
+    @Test
+    public void testSpilledBodyRoundTrip() throws IOException {
+        BridgeRequest request = createRequest(randomBytes(100_000));
+        try (BridgeRequest read = LinkCodec.readRequest(new ByteArrayInputStream(LinkCodec.toBytes(request)), 10_000)) {
+            assertTrue(read.body.isSpilled());
+            assertSameRequest(request, read);
+        }
+    }
+
+    @Test
+    public void testTruncatedRequest() {
+        byte[] frame = LinkCodec.toBytes(createRequest(randomBytes(100)));
+        for (int length = 0; length < frame.length; length++) {
+            try {
+                LinkCodec.readRequest(new ByteArrayInputStream(Arrays.copyOf(frame, length)));
+                fail("Frame truncated to " + length + " of " + frame.length + " bytes was read");
+            } catch (IOException ex) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void testTruncatedResponse() {
+        BridgeResponse response = new BridgeResponse();
+        response.statusCode = 200;
+        response.headers.put("Content-Type", "text/plain");
+        response.body = Body.wrap(randomBytes(100));
+        byte[] frame = LinkCodec.toBytes(response);
+        for (int length = 0; length < frame.length; length++) {
+            try {
+                LinkCodec.readResponse(new ByteArrayInputStream(Arrays.copyOf(frame, length)));
+                fail("Frame truncated to " + length + " of " + frame.length + " bytes was read");
+            } catch (IOException ex) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotAFrame() throws IOException {
+        LinkCodec.readRequest(new ByteArrayInputStream("{\"method\": \"GET\"}".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testBatchRoundTrip() throws IOException {
+        List<BridgeRequest> requests = Arrays.asList(createRequest(randomBytes(10)), createRequest(new byte[0]), createRequest(randomBytes(50_000)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LinkCodec.writeBatch(requests, out);
+        List<BridgeRequest> read = LinkCodec.readBatch(new ByteArrayInputStream(out.toByteArray()), 3, 0);
+        assertEquals(3, read.size());
+        for (int i = 0; i < requests.size(); i++) {
+            assertSameRequest(requests.get(i), read.get(i));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testBatchTooLarge() throws IOException {
+        List<BridgeRequest> requests = Arrays.asList(createRequest(randomBytes(10)), createRequest(randomBytes(10)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LinkCodec.writeBatch(requests, out);
+        LinkCodec.readBatch(new ByteArrayInputStream(out.toByteArray()), 1, 0);
+    }
+
+    @Test
+    public void testMessageSize() throws IOException {
+        BridgeRequest request = createRequest(randomBytes(30_000));
+        try (Body message = LinkCodec.toMessage(7, request, 0)) {
+            assertEquals(message.length(), LinkCodec.messageSize(request));
+        }
+        BridgeResponse response = new BridgeResponse();
+        response.statusCode = 404;
+        response.headers.put("Content-Type", "text/plain; charset=utf-8");
+        response.body = Body.wrap("nicht gefunden: ö".getBytes(StandardCharsets.UTF_8));
+        try (Body message = LinkCodec.toMessage(7, response, 0)) {
+            assertEquals(message.length(), LinkCodec.messageSize(response));
+        }
+    }
+
+}
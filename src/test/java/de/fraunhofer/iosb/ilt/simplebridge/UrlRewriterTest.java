@@ -0,0 +1,136 @@
+package de.fraunhofer.iosb.ilt.simplebridge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Tests the streaming URL rewriter against String.replace, with matches split
+ * over the written chunks in all possible ways.
+ *
+ * @author hylke
+ */
+public class UrlRewriterTest {
+
+    private static final String FROM = "http://frost1:8080/FROST-Server";
+    private static final String TO = "https://bridge.example.com/resource/frost";
+
+    /**
+     * Rewrites the input, writing it in chunks that end at the given offsets.
+     */
+    private static String rewrite(UrlRewriter rewriter, String input, int... splits) throws IOException {
+        byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        UrlRewriter.RewritingOutputStream rewriting = rewriter.wrap(out);
+        int start = 0;
+        for (int split : splits) {
+            rewriting.write(bytes, start, split - start);
+            start = split;
+        }
+        rewriting.write(bytes, start, bytes.length - start);
+        rewriting.finish();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testReplacesAll() throws IOException {
+        String input = "{\"@iot.selfLink\": \"" + FROM + "/v1.1/Things(1)\", \"next\": \"" + FROM + "/v1.1/Things?$skip=1\"}";
+        assertEquals(input.replace(FROM, TO), rewrite(new UrlRewriter(FROM, TO), input));
+    }
+
+    @Test
+    public void testMatchSplitAtEveryOffset() throws IOException {
+        UrlRewriter rewriter = new UrlRewriter(FROM, TO);
+        String input = "a\"" + FROM + "/v1.1\"b";
+        String expected = input.replace(FROM, TO);
+        int length = input.getBytes(StandardCharsets.UTF_8).length;
+        for (int split = 0; split <= length; split++) {
+            assertEquals("split at " + split, expected, rewrite(rewriter, input, split));
+            for (int second = split; second <= length; second++) {
+                assertEquals("split at " + split + " and " + second, expected, rewrite(rewriter, input, split, second));
+            }
+        }
+    }
+
+    @Test
+    public void testSingleByteWrites() throws IOException {
+        UrlRewriter rewriter = new UrlRewriter(FROM, TO);
+        String input = FROM + FROM + "x" + FROM.substring(0, 10) + FROM + FROM.substring(0, 5);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        UrlRewriter.RewritingOutputStream rewriting = rewriter.wrap(out);
+        for (byte b : input.getBytes(StandardCharsets.UTF_8)) {
+            rewriting.write(b);
+        }
+        rewriting.finish();
+        assertEquals(input.replace(FROM, TO), new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testSelfOverlappingPattern() throws IOException {
+        assertEquals("aaX", rewrite(new UrlRewriter("aab", "X"), "aaaab", 2));
+        assertEquals("Xab", rewrite(new UrlRewriter("abab", "X"), "ababab", 3));
+        assertEquals("abaX", rewrite(new UrlRewriter("abac", "X"), "abaabac", 3, 4));
+    }
+
+    @Test
+    public void testPartialMatchAtEnd() throws IOException {
+        String input = "text " + FROM.substring(0, 12);
+        assertEquals(input, rewrite(new UrlRewriter(FROM, TO), input, 7));
+    }
+
+    @Test
+    public void testRandomChunks() throws IOException {
+        Random random = new Random(42);
+        String[] parts = {"ab", "aba", "abab", "b", "c", "äb", "a"};
+        UrlRewriter rewriter = new UrlRewriter("abab", "ö");
+        for (int run = 0; run < 500; run++) {
+            StringBuilder input = new StringBuilder();
+            for (int i = random.nextInt(30); i > 0; i--) {
+                input.append(parts[random.nextInt(parts.length)]);
+            }
+            int length = input.toString().getBytes(StandardCharsets.UTF_8).length;
+            int[] splits = new int[length == 0 ? 0 : random.nextInt(4)];
+            for (int i = 0; i < splits.length; i++) {
+                splits[i] = random.nextInt(length + 1);
+            }
+            Arrays.sort(splits);
+            assertEquals(input.toString(), input.toString().replace("abab", "ö"), rewrite(rewriter, input.toString(), splits));
+        }
+    }
+
+    @Test
+    public void testLargerThanBuffer() throws IOException {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            input.append("{\"id\": ").append(i).append(", \"url\": \"").append(FROM).append("/v1.1/Things(").append(i).append(")\"}\n");
+        }
+        String text = input.toString();
+        int length = text.length();
+        assertEquals(text.replace(FROM, TO), rewrite(new UrlRewriter(FROM, TO), text, 5, length / 2, length - 3));
+    }
+
+    @Test
+    public void testEmptyPattern() throws IOException {
+        assertEquals("unchanged", rewrite(new UrlRewriter("", "X"), "unchanged", 3));
+    }
+
+    @Test
+    public void testFinishChained() throws IOException {
+        UrlRewriter first = new UrlRewriter("http://a/", "http://b/");
+        UrlRewriter second = new UrlRewriter("http://b/x", "http://c/y");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        UrlRewriter.RewritingOutputStream inner = second.wrap(out);
+        UrlRewriter.RewritingOutputStream outer = first.wrap(inner);
+        byte[] bytes = "see http://a/x and http://a/".getBytes(StandardCharsets.UTF_8);
+        outer.write(bytes, 0, 10);
+        outer.write(bytes, 10, bytes.length - 10);
+        outer.finish();
+        // The inner stream held back "http://b/" until the outer finished it.
+        assertEquals("see http://c/y and http://b/", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+}